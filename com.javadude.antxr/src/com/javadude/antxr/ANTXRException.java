@@ -30,4 +30,9 @@ public class ANTXRException extends Exception {
 	public ANTXRException(Throwable cause) {
 		super(cause);
 	}
+
+    /** Create an exception that may skip recording its stack trace */
+    protected ANTXRException(String message, boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
 }
@@ -20,6 +20,7 @@ public class ANTXRHashString {
     // only one of s or buf is non-null
     private String s;
     private char[] buf;
+    private int offset;
     private int len;
     private CharScanner lexer;
     private static final int prime = 151;
@@ -41,7 +42,7 @@ public class ANTXRHashString {
     }
 
     private final char charAt(int index) {
-        return (s != null) ? s.charAt(index) : buf[index];
+        return (s != null) ? s.charAt(index) : buf[offset + index];
     }
 
     // Return true if o is an ANTXRHashString equal to this.
@@ -70,8 +71,14 @@ public class ANTXRHashString {
             }
         }
         else {
+            char[] lower = lexer.getLowerCaseTable();
             for (int i = 0; i < l; i++) {
-                if (lexer.toLower(charAt(i)) != lexer.toLower(string.charAt(i))) {
+                if (lower != null) {
+                    if (lower[charAt(i)] != lower[string.charAt(i)]) {
+                        return false;
+                    }
+                }
+                else if (lexer.toLower(charAt(i)) != lexer.toLower(string.charAt(i))) {
                     return false;
                 }
             }
@@ -90,8 +97,9 @@ public class ANTXRHashString {
             }
         }
         else {
+            char[] lower = lexer.getLowerCaseTable();
             for (int i = 0; i < l; i++) {
-                hashval = hashval * ANTXRHashString.prime + lexer.toLower(charAt(i));
+                hashval = hashval * ANTXRHashString.prime + (lower != null ? lower[charAt(i)] : lexer.toLower(charAt(i)));
             }
         }
         return hashval;
@@ -102,7 +110,12 @@ public class ANTXRHashString {
     }
 
     public void setBuffer(char[] buf, int length) {
+        setBuffer(buf, 0, length);
+    }
+
+    public void setBuffer(char[] buf, int offset, int length) {
         this.buf = buf;
+        this.offset = offset;
         this.len = length;
         s = null;
     }
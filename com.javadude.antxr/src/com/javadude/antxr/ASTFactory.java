@@ -12,12 +12,19 @@
  *******************************************************************************/
 package com.javadude.antxr;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import com.javadude.antxr.collections.AST;
 import com.javadude.antxr.collections.impl.ASTArray;
+import com.javadude.antxr.collections.impl.ArenaAST;
 
 /** AST Support code shared by TreeParser and Parser.
  *  We use delegation to share code (and have only one
@@ -30,6 +37,43 @@ import com.javadude.antxr.collections.impl.ASTArray;
  *  create to make heterogeneous nodes etc...
  */
 public class ASTFactory {
+    private static final ASTNodeFactory COMMON_AST_FACTORY = new ASTNodeFactory() {
+        public AST createAST(int type) {
+            return new CommonAST();
+        }
+    };
+    private static final ASTNodeFactory HIDDEN_TOKENS_AST_FACTORY = new ASTNodeFactory() {
+        public AST createAST(int type) {
+            return new CommonASTWithHiddenTokens();
+        }
+    };
+
+    /** Does a subclass override the methods create(int) used to rely on to
+     *  pick and create nodes? If so, create(int) still calls them.
+     */
+    private static final ClassValue<Boolean> USES_NODE_CLASSES = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != ASTFactory.class; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("getASTNodeType", int.class);
+                    return Boolean.TRUE;
+                }
+                catch (NoSuchMethodException e) {
+                    // keep looking
+                }
+                try {
+                    c.getDeclaredMethod("create", Class.class);
+                    return Boolean.TRUE;
+                }
+                catch (NoSuchMethodException e) {
+                    // keep looking
+                }
+            }
+            return Boolean.FALSE;
+        }
+    };
+
     /** Name of AST class to create during tree construction.
      *  Null implies that the create method should create
      *  a default AST type such as CommonAST.  This is for
@@ -56,6 +100,22 @@ public class ASTFactory {
      */
     protected Map<Integer, Class<?>> tokenTypeToASTClassMap = null;
 
+    /** Creates the nodes for token types that have no node factory of
+     *  their own. This follows setASTNodeClass() unless
+     *  setASTNodeFactory() was called.
+     */
+    protected ASTNodeFactory theASTNodeFactory = ASTFactory.COMMON_AST_FACTORY;
+
+    /** The node factory for each token type, indexed by token type; null
+     *  entries use theASTNodeFactory. setTokenTypeASTNodeType() keeps this
+     *  in step with the token type to class map, and
+     *  setTokenTypeASTNodeFactory() replaces entries with factories
+     *  supplied by the user.
+     */
+    protected ASTNodeFactory[] tokenTypeToASTNodeFactory = null;
+
+    private final boolean usesNodeClasses = ASTFactory.USES_NODE_CLASSES.get(getClass()).booleanValue();
+
     public ASTFactory() {
         // do nothing
     }
@@ -92,12 +152,14 @@ public class ASTFactory {
         }
         if ( className==null ) {
             tokenTypeToASTClassMap.remove(new Integer(tokenType));
+            setTokenTypeASTNodeFactory(tokenType, null);
             return;
         }
         Class<?> c = null;
         try {
             c = Utils.loadClass(className);
             tokenTypeToASTClassMap.put(new Integer(tokenType), c);
+            setTokenTypeASTNodeFactory(tokenType, createASTNodeFactory(c));
         }
         catch (Exception e) {
             throw new IllegalArgumentException("Invalid class, "+className);
@@ -126,6 +188,73 @@ public class ASTFactory {
         return CommonAST.class;
     }
 
+    /** Specify the factory that creates the nodes for a specific token
+     *  type. This overrides the class set for the token type, if any.
+     *  Generated parsers never call this; register a factory yourself to
+     *  create a token type's nodes without reflection.
+     *
+     *  Set factory to null to remove it.
+     */
+    public void setTokenTypeASTNodeFactory(int tokenType, ASTNodeFactory factory) {
+        if (tokenType < 0) {
+            throw new IllegalArgumentException("Invalid token type, " + tokenType);
+        }
+        if (tokenTypeToASTNodeFactory == null || tokenType >= tokenTypeToASTNodeFactory.length) {
+            if (factory == null) {
+                return;
+            }
+            int length = tokenTypeToASTNodeFactory == null ? 16 : tokenTypeToASTNodeFactory.length;
+            while (length <= tokenType) {
+                length *= 2;
+            }
+            ASTNodeFactory[] factories = new ASTNodeFactory[length];
+            if (tokenTypeToASTNodeFactory != null) {
+                System.arraycopy(tokenTypeToASTNodeFactory, 0, factories, 0, tokenTypeToASTNodeFactory.length);
+            }
+            tokenTypeToASTNodeFactory = factories;
+        }
+        tokenTypeToASTNodeFactory[tokenType] = factory;
+    }
+
+    /** For a given token type, what creates its AST nodes? */
+    public ASTNodeFactory getASTNodeFactory(int tokenType) {
+        if (tokenTypeToASTNodeFactory != null && tokenType >= 0 && tokenType < tokenTypeToASTNodeFactory.length) {
+            ASTNodeFactory factory = tokenTypeToASTNodeFactory[tokenType];
+            if (factory != null) {
+                return factory;
+            }
+        }
+        return theASTNodeFactory;
+    }
+
+    /** Create nodes with the given factory, unless their token type has
+     *  a factory or class of its own. Pass null to go back to creating
+     *  nodes of the AST node class.
+     */
+    public void setASTNodeFactory(ASTNodeFactory factory) {
+        if (factory == null) {
+            factory = createASTNodeFactory(theASTNodeTypeClass == null ? CommonAST.class : theASTNodeTypeClass);
+        }
+        theASTNodeFactory = factory;
+    }
+
+    /** Get a factory that creates nodes of the given class, directly for
+     *  the node classes ANTXR provides and through create(Class) otherwise
+     */
+    protected ASTNodeFactory createASTNodeFactory(final Class<?> c) {
+        if (c == CommonAST.class) {
+            return ASTFactory.COMMON_AST_FACTORY;
+        }
+        if (c == CommonASTWithHiddenTokens.class) {
+            return ASTFactory.HIDDEN_TOKENS_AST_FACTORY;
+        }
+        return new ASTNodeFactory() {
+            public AST createAST(int type) {
+                return create(c);
+            }
+        };
+    }
+
     /** Add a child to the current AST */
     public void addASTChild(ASTPair currentAST, AST child) {
         if (child != null) {
@@ -156,8 +285,13 @@ public class ASTFactory {
     }
 
     public AST create(int type) {
-        Class<?> c = getASTNodeType(type);
-        AST t = create(c);
+        AST t;
+        if (usesNodeClasses) {
+            t = create(getASTNodeType(type));
+        }
+        else {
+            t = getASTNodeFactory(type).createAST(type);
+        }
         if ( t!=null ) {
             t.initialize(type, "");
         }
@@ -266,6 +400,9 @@ public class ASTFactory {
      * @since 2.7.2
      */
     protected AST create(Class<?> c) {
+        if (c == CommonAST.class) {
+            return new CommonAST();
+        }
         AST t = null;
         try {
             t = (AST)c.newInstance(); // make a new one
@@ -284,40 +421,120 @@ public class ASTFactory {
      *  clone() is not used because we want all AST creation
      *  to go thru the factory so creation can be
      *  tracked.  Returns null if t is null.
+     *
+     *  Nodes in an ASTArena are copied into the same arena.
      */
     public AST dup(AST t) {
         if ( t==null ) {
             return null;
         }
-        AST dup_t = create(t.getClass());
+        AST dup_t;
+        if (t instanceof ArenaAST) {
+            dup_t = ((ArenaAST)t).getArena().createAST(t.getType());
+        }
+        else {
+            dup_t = create(t.getClass());
+        }
         dup_t.initialize(t);
         return dup_t;
     }
 
     /** Duplicate tree including siblings of root. */
     public AST dupList(AST t) {
-        AST result = dupTree(t);            // if t == null, then result==null
-        AST nt = result;
-        while (t != null) {						// for each sibling of the root
-            t = t.getNextSibling();
-            nt.setNextSibling(dupTree(t));	// dup each subtree, building new tree
-            nt = nt.getNextSibling();
-        }
-        return result;
+        return dupNodes(t, true);
     }
 
     /**Duplicate a tree, assuming this is a root node of a tree--
      * duplicate that node and what's below; ignore siblings of root node.
      */
     public AST dupTree(AST t) {
-        AST result = dup(t);		// make copy of root
-        // copy all children of root.
-        if (t != null) {
-            result.setFirstChild(dupList(t.getFirstChild()));
+        return dupNodes(t, false);
+    }
+
+    /** Copy a tree with dup(), node by node in preorder. An explicit stack
+     *  is used rather than recursion, so long or deep trees can't overflow
+     *  the Java stack.
+     *  @param siblings whether to copy the siblings of the root too
+     */
+    private AST dupNodes(AST t, boolean siblings) {
+        AST result = null;
+        AST parent = null;      // the copy whose children we're copying
+        AST previous = null;    // the last copy in the current sibling list
+        // for each level we're below: the next sibling to copy when we come
+        //   back up, and the parent and previous copies there
+        List<AST> stack = new ArrayList<AST>();
+        AST node = t;
+        while (true) {
+            if (node == null) {
+                if (stack.isEmpty()) {
+                    break;
+                }
+                previous = stack.remove(stack.size() - 1);
+                parent = stack.remove(stack.size() - 1);
+                node = stack.remove(stack.size() - 1);
+                continue;
+            }
+            AST copy = dup(node);
+            if (previous != null) {
+                previous.setNextSibling(copy);
+            }
+            else if (parent != null) {
+                parent.setFirstChild(copy);
+            }
+            else {
+                result = copy;
+            }
+            AST next = (siblings || !stack.isEmpty()) ? node.getNextSibling() : null;
+            AST child = node.getFirstChild();
+            if (child != null) {
+                stack.add(next);
+                stack.add(parent);
+                stack.add(copy);
+                parent = copy;
+                previous = null;
+                node = child;
+            }
+            else {
+                previous = copy;
+                node = next;
+            }
         }
         return result;
     }
 
+    /** Write a tree, including the siblings of its root, in a compact
+     *  binary form that {@link #readSnapshot(File, byte[])} can load back
+     *  much faster than the input can be reparsed. Each node's type, text,
+     *  line and column are kept; token text is stored once in a string
+     *  table, so repeated identifiers and keywords cost a few bytes each.
+     *  <p>
+     *  The key is stored in the snapshot and checked when it's read; pass
+     *  a digest of the input the tree was parsed from, so a cached
+     *  snapshot is ignored once the input changes. It may be null.
+     */
+    public void writeSnapshot(AST t, byte[] key, OutputStream out) throws IOException {
+        ASTSnapshot.write(t, key, out);
+    }
+
+    /** Read a tree written by {@link #writeSnapshot}. The nodes are created
+     *  by this factory, so node classes and node factories (an ASTArena,
+     *  for instance) apply just as they do when parsing.
+     *  @return the tree, or null if the snapshot was written with a
+     *          different key
+     */
+    public AST readSnapshot(InputStream in, byte[] key) throws IOException {
+        return ASTSnapshot.read(this, in, key);
+    }
+
+    /** Read a tree written by {@link #writeSnapshot} to a file. The file is
+     *  memory-mapped rather than read through a stream.
+     *  @return the tree, or null if the snapshot was written with a
+     *          different key
+     */
+    public AST readSnapshot(File file, byte[] key) throws IOException {
+        return ASTSnapshot.read(this, file, key);
+    }
+
     /** Make a tree from a list of nodes.  The first element in the
      *  array is the root.  If the root is null, then the tree is
      *  a simple list not a tree.  Handles null children nodes correctly.
@@ -382,6 +599,7 @@ public class ASTFactory {
         if ( c!=null ) {
             theASTNodeTypeClass = c;
             theASTNodeType = c.getName();
+            theASTNodeFactory = createASTNodeFactory(c);
         }
     }
 
@@ -389,6 +607,7 @@ public class ASTFactory {
         theASTNodeType = t;
         try {
             theASTNodeTypeClass = Utils.loadClass(t); // get class def
+            theASTNodeFactory = createASTNodeFactory(theASTNodeTypeClass);
         }
         catch (Exception e) {
             // either class not found,
@@ -404,6 +623,12 @@ public class ASTFactory {
 
     public void setTokenTypeToASTClassMap(Map<Integer, Class<?>> tokenTypeToClassMap) {
         this.tokenTypeToASTClassMap = tokenTypeToClassMap;
+        tokenTypeToASTNodeFactory = null;
+        if (tokenTypeToClassMap != null) {
+            for (Map.Entry<Integer, Class<?>> entry : tokenTypeToClassMap.entrySet()) {
+                setTokenTypeASTNodeFactory(entry.getKey().intValue(), createASTNodeFactory(entry.getValue()));
+            }
+        }
     }
 
     /** To change where error messages go, can subclass/override this method
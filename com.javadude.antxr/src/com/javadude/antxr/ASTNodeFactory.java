@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import com.javadude.antxr.collections.AST;
+
+/** Creates AST nodes for an ASTFactory without reflection. The
+ *  ASTFactory uses built-in ones for the node classes ANTXR provides;
+ *  for your own node classes, register one with
+ *  ASTFactory.setASTNodeFactory() (for all nodes) or
+ *  ASTFactory.setTokenTypeASTNodeFactory() (for one token type), so
+ *  creating a node is an array lookup and a "new" instead of
+ *  newInstance(). For example:
+ *
+ *  <pre>
+ *  parser.getASTFactory().setTokenTypeASTNodeFactory(MyParser.PLUS,
+ *      new ASTNodeFactory() {
+ *          public AST createAST(int type) {
+ *              return new PLUSNode();
+ *          }
+ *      });
+ *  </pre>
+ *
+ *  Generated parsers don't register these. Node types named in the
+ *  tokens{...} section (like <code>PLUS&lt;AST=PLUSNode&gt;</code>) are
+ *  registered by class name, and those nodes are still created with
+ *  reflection.
+ *
+ *  @see ASTFactory#setASTNodeFactory(ASTNodeFactory)
+ *  @see ASTFactory#setTokenTypeASTNodeFactory(int, ASTNodeFactory)
+ */
+public interface ASTNodeFactory {
+    /** Create an empty AST node. The ASTFactory initializes it afterward.
+     *  @param type the token type of the node being created
+     *  @return the new node
+     */
+    AST createAST(int type);
+}
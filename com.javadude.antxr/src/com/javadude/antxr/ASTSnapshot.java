@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javadude.antxr.collections.AST;
+
+/** Reads and writes the binary AST snapshot format used by
+ *  {@link ASTFactory#writeSnapshot} and {@link ASTFactory#readSnapshot}.
+ *  <p>
+ *  A snapshot is laid out as:
+ *  <pre>
+ *    "AXST" version
+ *    key-length key-bytes
+ *    string-count (byte-length utf8-bytes)*
+ *    node-count root-count
+ *    (type text line column child-count)*
+ *  </pre>
+ *  Every number is a varint, seven bits to a byte, low bits first; type,
+ *  line and column are zigzag encoded so negative values stay short. Nodes
+ *  are written in preorder, each followed by its children. A node's text
+ *  is an index into the string table, plus one, so that zero can stand
+ *  for null text, and its line is the difference from the line of the
+ *  node before it.
+ */
+class ASTSnapshot {
+    private static final byte[] MAGIC = { 'A', 'X', 'S', 'T' };
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private ASTSnapshot() {
+        // only static methods
+    }
+
+    /** A growable byte array that varints are written into */
+    private static class Bytes {
+        byte[] data = new byte[256];
+        int length;
+
+        void write(int b) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[length++] = (byte) b;
+        }
+
+        void write(byte[] b) {
+            if (length + b.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + b.length));
+            }
+            System.arraycopy(b, 0, data, length, b.length);
+            length += b.length;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeSigned(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+    }
+
+    /** Write a tree, and the siblings of its root, to a stream */
+    static void write(AST t, byte[] key, OutputStream out) throws IOException {
+        Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        Bytes nodes = new Bytes();
+        int nodeCount = 0;
+        int rootCount = 0;
+        int previousLine = 0;
+        for (AST root = t; root != null; root = root.getNextSibling()) {
+            rootCount++;
+        }
+
+        // preorder walk; the stack holds the next sibling of each node
+        //   whose children we're in
+        List<AST> stack = new ArrayList<AST>();
+        AST node = t;
+        while (true) {
+            if (node == null) {
+                if (stack.isEmpty()) {
+                    break;
+                }
+                node = stack.remove(stack.size() - 1);
+                continue;
+            }
+            nodeCount++;
+            String text = node.getText();
+            int textIndex = 0;
+            if (text != null) {
+                Integer index = stringIndex.get(text);
+                if (index == null) {
+                    index = Integer.valueOf(strings.size());
+                    stringIndex.put(text, index);
+                    strings.add(text);
+                }
+                textIndex = index.intValue() + 1;
+            }
+            nodes.writeSigned(node.getType());
+            nodes.writeVarint(textIndex);
+            nodes.writeSigned(node.getLine() - previousLine);
+            previousLine = node.getLine();
+            nodes.writeSigned(node.getColumn());
+            AST child = node.getFirstChild();
+            nodes.writeVarint(node.getNumberOfChildren());
+            if (child != null) {
+                stack.add(node.getNextSibling());
+                node = child;
+            }
+            else {
+                node = node.getNextSibling();
+            }
+        }
+
+        Bytes header = new Bytes();
+        header.write(ASTSnapshot.MAGIC);
+        header.writeVarint(ASTSnapshot.VERSION);
+        if (key == null) {
+            header.writeVarint(0);
+        }
+        else {
+            header.writeVarint(key.length);
+            header.write(key);
+        }
+        header.writeVarint(strings.size());
+        for (String s : strings) {
+            byte[] b = s.getBytes(ASTSnapshot.UTF8);
+            header.writeVarint(b.length);
+            header.write(b);
+        }
+        header.writeVarint(nodeCount);
+        header.writeVarint(rootCount);
+        out.write(header.data, 0, header.length);
+        out.write(nodes.data, 0, nodes.length);
+        out.flush();
+    }
+
+    /** Read a snapshot from a stream */
+    static AST read(ASTFactory factory, InputStream in, byte[] key) throws IOException {
+        Bytes bytes = new Bytes();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            if (bytes.length + n > bytes.data.length) {
+                bytes.data = Arrays.copyOf(bytes.data, Math.max(bytes.data.length * 2, bytes.length + n));
+            }
+            System.arraycopy(chunk, 0, bytes.data, bytes.length, n);
+            bytes.length += n;
+        }
+        return ASTSnapshot.read(factory, ByteBuffer.wrap(bytes.data, 0, bytes.length), key);
+    }
+
+    /** Read a snapshot by mapping a file into memory */
+    static AST read(ASTFactory factory, File file, byte[] key) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be an AST snapshot");
+            }
+            return ASTSnapshot.read(factory, channel.map(FileChannel.MapMode.READ_ONLY, 0, size), key);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed AST snapshot: varint too long");
+    }
+
+    private static int readSigned(ByteBuffer in) throws IOException {
+        int value = ASTSnapshot.readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readCount(ByteBuffer in) throws IOException {
+        int count = ASTSnapshot.readVarint(in);
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Malformed AST snapshot: bad count " + count);
+        }
+        return count;
+    }
+
+    /** Read a snapshot out of a buffer
+     *  @return the tree, or null if the snapshot was written with a
+     *          different key
+     */
+    private static AST read(ASTFactory factory, ByteBuffer in, byte[] key) throws IOException {
+        try {
+            for (int i = 0; i < ASTSnapshot.MAGIC.length; i++) {
+                if (in.get() != ASTSnapshot.MAGIC[i]) {
+                    throw new IOException("Not an AST snapshot");
+                }
+            }
+            int version = ASTSnapshot.readVarint(in);
+            if (version != ASTSnapshot.VERSION) {
+                throw new IOException("Unsupported AST snapshot version " + version);
+            }
+            byte[] snapshotKey = new byte[ASTSnapshot.readCount(in)];
+            in.get(snapshotKey);
+            if (!Arrays.equals(snapshotKey, key == null ? new byte[0] : key)) {
+                return null;
+            }
+
+            String[] strings = new String[ASTSnapshot.readCount(in)];
+            byte[] scratch = new byte[64];
+            for (int i = 0; i < strings.length; i++) {
+                int length = ASTSnapshot.readCount(in);
+                if (length > scratch.length) {
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+                }
+                in.get(scratch, 0, length);
+                strings[i] = new String(scratch, 0, length, ASTSnapshot.UTF8);
+            }
+
+            int nodeCount = ASTSnapshot.readCount(in);
+            int remainingRoots = ASTSnapshot.readVarint(in);
+            AST first = null;
+            AST last = null;
+
+            // the nodes whose children we're reading, how many of their
+            //   children are still to come, and the last child read so far
+            AST[] parents = new AST[16];
+            int[] remaining = new int[16];
+            AST[] lastChildren = new AST[16];
+            int depth = 0;
+            int line = 0;
+
+            for (int i = 0; i < nodeCount; i++) {
+                int type = ASTSnapshot.readSigned(in);
+                int textIndex = ASTSnapshot.readVarint(in);
+                if (textIndex < 0 || textIndex > strings.length) {
+                    throw new IOException("Malformed AST snapshot: bad string index " + textIndex);
+                }
+                String text = textIndex == 0 ? null : strings[textIndex - 1];
+                line += ASTSnapshot.readSigned(in);
+                int column = ASTSnapshot.readSigned(in);
+                int children = ASTSnapshot.readCount(in);
+
+                AST node;
+                if (line == 0 && column == 0) {
+                    node = factory.create(type, text);
+                }
+                else {
+                    // pass the position along in a token, for node types
+                    //   that keep it
+                    Token token = new CommonHiddenStreamToken(type, text);
+                    token.setLine(line);
+                    token.setColumn(column);
+                    node = factory.create(token);
+                }
+
+                if (depth == 0) {
+                    if (remainingRoots-- <= 0) {
+                        throw new IOException("Malformed AST snapshot: too many roots");
+                    }
+                    if (last == null) {
+                        first = node;
+                    }
+                    else {
+                        last.setNextSibling(node);
+                    }
+                    last = node;
+                }
+                else {
+                    if (lastChildren[depth - 1] == null) {
+                        parents[depth - 1].setFirstChild(node);
+                    }
+                    else {
+                        lastChildren[depth - 1].setNextSibling(node);
+                    }
+                    lastChildren[depth - 1] = node;
+                    remaining[depth - 1]--;
+                }
+
+                if (children > 0) {
+                    if (depth == parents.length) {
+                        parents = Arrays.copyOf(parents, depth * 2);
+                        remaining = Arrays.copyOf(remaining, depth * 2);
+                        lastChildren = Arrays.copyOf(lastChildren, depth * 2);
+                    }
+                    parents[depth] = node;
+                    remaining[depth] = children;
+                    lastChildren[depth] = null;
+                    depth++;
+                }
+                while (depth > 0 && remaining[depth - 1] == 0) {
+                    depth--;
+                    parents[depth] = null;
+                    lastChildren[depth] = null;
+                }
+            }
+            if (depth != 0 || remainingRoots != 0) {
+                throw new IOException("Malformed AST snapshot: node count doesn't match the structure");
+            }
+            return first;
+        }
+        catch (BufferUnderflowException e) {
+            EOFException eof = new EOFException("Truncated AST snapshot");
+            eof.initCause(e);
+            throw eof;
+        }
+    }
+}
@@ -88,23 +88,84 @@ public abstract class BaseAST implements AST, Serializable {
     }
 
     private void doWorkForFindAll(List<AST> v, AST target, boolean partialMatch) {
-        AST sibling;
-
-        // Start walking sibling lists, looking for matches.
-        for (sibling = this;
-             sibling != null;
-             sibling = sibling.getNextSibling()) {
-            if ((partialMatch && sibling.equalsTreePartial(target)) ||
-                (!partialMatch && sibling.equalsTree(target))) {
-                v.add(sibling);
+        // Walk this node, its siblings and all their children in preorder,
+        //   looking for matches. The stack holds the next sibling of each
+        //   node whose children we're walking.
+        List<AST> stack = new ArrayList<AST>();
+        AST node = this;
+        while (true) {
+            if (node == null) {
+                if (stack.isEmpty()) {
+                    break;
+                }
+                node = stack.remove(stack.size() - 1);
+                continue;
+            }
+            if ((partialMatch && node.equalsTreePartial(target)) ||
+                (!partialMatch && node.equalsTree(target))) {
+                v.add(node);
             }
             // regardless of match or not, check any children for matches
-            if (sibling.getFirstChild() != null) {
-                ((BaseAST)sibling.getFirstChild()).doWorkForFindAll(v, target, partialMatch);
+            AST child = node.getFirstChild();
+            if (child != null) {
+                stack.add(node.getNextSibling());
+                node = child;
+            }
+            else {
+                node = node.getNextSibling();
             }
         }
     }
 
+    /** Compare two sibling lists and everything below them, using an
+     *  explicit stack rather than recursion so long or deep trees can't
+     *  overflow the Java stack.
+     *  @param partial if true, target only needs to match the start of each
+     *         sibling list and children of list are only compared when
+     *         target has some, as in equalsListPartial()
+     */
+    private static boolean matchList(AST list, AST target, boolean partial) {
+        if (target == null) {
+            return partial;
+        }
+        // pairs of next siblings to come back to after matching children
+        List<AST> stack = new ArrayList<AST>();
+        AST t = list;
+        AST u = target;
+        while (true) {
+            if (t == null || u == null) {
+                // one sibling list has more than the other
+                if (u != null || (t != null && !partial)) {
+                    return false;
+                }
+                if (stack.isEmpty()) {
+                    return true;
+                }
+                u = stack.remove(stack.size() - 1);
+                t = stack.remove(stack.size() - 1);
+                continue;
+            }
+            if (!t.equals(u)) {
+                return false;
+            }
+            AST tChild = t.getFirstChild();
+            AST uChild = u.getFirstChild();
+            if (tChild != null && uChild != null) {
+                stack.add(t.getNextSibling());
+                stack.add(u.getNextSibling());
+                t = tChild;
+                u = uChild;
+                continue;
+            }
+            // an exact match needs both to have children or neither
+            if (!partial && (tChild != null || uChild != null)) {
+                return false;
+            }
+            t = t.getNextSibling();
+            u = u.getNextSibling();
+        }
+    }
+
     /** Is node t equal to this in terms of token type and text? */
     public boolean equals(AST t) {
         if (t == null) {
@@ -126,72 +187,16 @@ public abstract class BaseAST implements AST, Serializable {
      *  'this' reference is considered the start of a sibling list.
      */
     public boolean equalsList(AST t) {
-        AST sibling;
-
         // the empty tree is not a match of any non-null tree.
-        if (t == null) {
-            return false;
-        }
-
-        // Otherwise, start walking sibling lists.  First mismatch, return false.
-        for (sibling = this;
-             sibling != null && t != null;
-             sibling = sibling.getNextSibling(), t = t.getNextSibling())
-        {
-            // as a quick optimization, check roots first.
-            if (!sibling.equals(t)) {
-                return false;
-            }
-            // if roots match, do full list match test on children.
-            if (sibling.getFirstChild() != null) {
-                if (!sibling.getFirstChild().equalsList(t.getFirstChild())) {
-                    return false;
-                }
-            }
-            // sibling has no kids, make sure t doesn't either
-            else if (t.getFirstChild() != null) {
-                return false;
-            }
-        }
-        if (sibling == null && t == null) {
-            return true;
-        }
-        // one sibling list has more than the other
-        return false;
+        return BaseAST.matchList(this, t, false);
     }
 
     /** Is 'sub' a subtree of this list?
      *  The siblings of the root are NOT ignored.
      */
     public boolean equalsListPartial(AST sub) {
-        AST sibling;
-
         // the empty tree is always a subset of any tree.
-        if (sub == null) {
-            return true;
-        }
-
-        // Otherwise, start walking sibling lists.  First mismatch, return false.
-        for (sibling = this;
-             sibling != null && sub != null;
-             sibling = sibling.getNextSibling(), sub = sub.getNextSibling()) {
-            // as a quick optimization, check roots first.
-            if (!sibling.equals(sub)) {
-                return false;
-            }
-            // if roots match, do partial list match test on children.
-            if (sibling.getFirstChild() != null) {
-                if (!sibling.getFirstChild().equalsListPartial(sub.getFirstChild())) {
-                    return false;
-                }
-            }
-        }
-        if (sibling == null && sub != null) {
-            // nothing left to match in this tree, but subtree has more
-            return false;
-        }
-        // either both are null or sibling has more, but subtree doesn't
-        return true;
+        return BaseAST.matchList(this, sub, true);
     }
 
     /** Is tree rooted at 'this' equal to 't'?  The siblings
@@ -204,15 +209,10 @@ public abstract class BaseAST implements AST, Serializable {
         }
         // if roots match, do full list match test on children.
         if (this.getFirstChild() != null) {
-            if (!this.getFirstChild().equalsList(t.getFirstChild())) {
-                return false;
-            }
+            return BaseAST.matchList(this.getFirstChild(), t.getFirstChild(), false);
         }
         // sibling has no kids, make sure t doesn't either
-        else if (t.getFirstChild() != null) {
-            return false;
-        }
-        return true;
+        return t.getFirstChild() == null;
     }
 
     /** Is 't' a subtree of the tree rooted at 'this'?  The siblings
@@ -230,16 +230,15 @@ public abstract class BaseAST implements AST, Serializable {
         }
         // if roots match, do full list partial match test on children.
         if (this.getFirstChild() != null) {
-            if (!this.getFirstChild().equalsListPartial(sub.getFirstChild())) {
-                return false;
-            }
+            return BaseAST.matchList(this.getFirstChild(), sub.getFirstChild(), true);
         }
         return true;
     }
 
     /** Walk the tree looking for all exact subtree matches.  Return
      *  an ASTEnumerator that lets the caller walk the list
-     *  of subtree roots found herein.
+     *  of subtree roots found herein. To search the same tree for
+     *  many targets, build a {@link com.javadude.antxr.collections.impl.TreeIndex} once and ask it instead.
      */
     public ASTEnumeration findAll(AST target) {
         List<AST> roots = new ArrayList<AST>();
@@ -249,7 +248,7 @@ public abstract class BaseAST implements AST, Serializable {
             return null;
         }
 
-        doWorkForFindAll(roots, target, false);  // find all matches recursively
+        doWorkForFindAll(roots, target, false);  // find all matches
 
         return new ASTEnumerator(roots);
     }
@@ -266,7 +265,7 @@ public abstract class BaseAST implements AST, Serializable {
             return null;
         }
 
-        doWorkForFindAll(roots, sub, true);  // find all matches recursively
+        doWorkForFindAll(roots, sub, true);  // find all matches
 
         return new ASTEnumerator(roots);
     }
@@ -357,38 +356,52 @@ public abstract class BaseAST implements AST, Serializable {
 
     /** Print out a child-sibling tree in LISP notation */
     public String toStringList() {
-        AST t = this;
-        String ts = "";
-        if (t.getFirstChild() != null) {
-            ts += " (";
-        }
-        ts += " " + this.toString();
-        if (t.getFirstChild() != null) {
-            ts += ((BaseAST)t.getFirstChild()).toStringList();
-        }
-        if (t.getFirstChild() != null) {
-            ts += " )";
-        }
-        if (t.getNextSibling() != null) {
-            ts += ((BaseAST)t.getNextSibling()).toStringList();
-        }
-        return ts;
+        StringBuilder b = new StringBuilder();
+        BaseAST.appendList(this, b);
+        return b.toString();
     }
 
     public String toStringTree() {
-        AST t = this;
-        String ts = "";
-        if (t.getFirstChild() != null) {
-            ts += " (";
-        }
-        ts += " " + this.toString();
-        if (t.getFirstChild() != null) {
-            ts += ((BaseAST)t.getFirstChild()).toStringList();
-        }
-        if (t.getFirstChild() != null) {
-            ts += " )";
+        StringBuilder b = new StringBuilder();
+        AST child = getFirstChild();
+        if (child != null) {
+            b.append(" (");
+        }
+        b.append(' ').append(this.toString());
+        if (child != null) {
+            BaseAST.appendList(child, b);
+            b.append(" )");
+        }
+        return b.toString();
+    }
+
+    /** Append a sibling list and everything below it in LISP notation */
+    private static void appendList(AST t, StringBuilder b) {
+        // the next sibling of each node whose children we're printing
+        List<AST> stack = new ArrayList<AST>();
+        AST node = t;
+        while (true) {
+            if (node == null) {
+                if (stack.isEmpty()) {
+                    break;
+                }
+                b.append(" )");
+                node = stack.remove(stack.size() - 1);
+                continue;
+            }
+            AST child = node.getFirstChild();
+            if (child != null) {
+                b.append(" (");
+            }
+            b.append(' ').append(node.toString());
+            if (child != null) {
+                stack.add(node.getNextSibling());
+                node = child;
+            }
+            else {
+                node = node.getNextSibling();
+            }
         }
-        return ts;
     }
 
     public static String decode(String text) {
@@ -501,22 +514,32 @@ public abstract class BaseAST implements AST, Serializable {
     }
 
     public void xmlSerialize(Writer out) throws IOException {
-        // print out this node and all siblings
-        for (AST node = this;
-             node != null;
-             node = node.getNextSibling()) {
+        // print out this node and all siblings; the stack holds the nodes
+        //   whose end tags are still to come
+        List<AST> open = new ArrayList<AST>();
+        AST node = this;
+        while (true) {
+            if (node == null) {
+                if (open.isEmpty()) {
+                    break;
+                }
+                // print end tag
+                AST root = open.remove(open.size() - 1);
+                ((BaseAST)root).xmlSerializeRootClose(out);
+                node = root.getNextSibling();
+                continue;
+            }
             if (node.getFirstChild() == null) {
                 // print guts (class name, attributes)
                 ((BaseAST)node).xmlSerializeNode(out);
+                node = node.getNextSibling();
             }
             else {
                 ((BaseAST)node).xmlSerializeRootOpen(out);
 
                 // print children
-                ((BaseAST)node.getFirstChild()).xmlSerialize(out);
-
-                // print end tag
-                ((BaseAST)node).xmlSerializeRootClose(out);
+                open.add(node);
+                node = node.getFirstChild();
             }
         }
     }
@@ -34,11 +34,28 @@ public class ByteBuffer extends InputBuffer {
     // char source
     transient InputStream input;
 
+    // bytes are read from the source a block at a time
+    private byte[] block;
+    private char[] chars;
+
 
     /** Create a character buffer */
     public ByteBuffer(InputStream input_) {
+        this(input_, InputBuffer.DEFAULT_BLOCK_SIZE);
+    }
+
+    /** Create a character buffer that reads blockSize bytes at a time.
+     *  A block size of 1 never reads ahead of what the lexer asks for,
+     *  which you may want for interactive input.
+     */
+    public ByteBuffer(InputStream input_, int blockSize) {
         super();
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
         input = input_;
+        block = new byte[blockSize];
+        chars = new char[blockSize];
     }
 
     /** Ensure that the character buffer is sufficiently full */
@@ -47,9 +64,21 @@ public class ByteBuffer extends InputBuffer {
         try {
             syncConsume();
             // Fill the buffer sufficiently to hold needed characters
-            while (queue.nbrEntries < amount + markerOffset) {
-                // Append the next character
-                queue.append((char)input.read());
+            int needed = amount + markerOffset;
+            while (queue.nbrEntries < needed) {
+                // Append the next block of bytes, one char per byte
+                int n = input.read(block, 0, block.length);
+                if (n < 0) {
+                    // at end of input, pad with EOF characters
+                    while (queue.nbrEntries < needed) {
+                        queue.append(CharScanner.EOF_CHAR);
+                    }
+                    break;
+                }
+                for (int i = 0; i < n; i++) {
+                    chars[i] = (char) (block[i] & 0xff);
+                }
+                queue.append(chars, 0, n);
             }
         }
         catch (IOException io) {
@@ -35,10 +35,25 @@ public class CharBuffer extends InputBuffer {
     // char source
     transient Reader input;
 
+    // characters are read from the source a block at a time
+    private char[] block;
+
     /** Create a character buffer */
     public CharBuffer(Reader input_) { // SAS: for proper text i/o
+        this(input_, InputBuffer.DEFAULT_BLOCK_SIZE);
+    }
+
+    /** Create a character buffer that reads blockSize characters at a time.
+     *  A block size of 1 never reads ahead of what the lexer asks for,
+     *  which you may want for interactive input.
+     */
+    public CharBuffer(Reader input_, int blockSize) {
         super();
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
         input = input_;
+        block = new char[blockSize];
     }
 
     /** Ensure that the character buffer is sufficiently full */
@@ -47,9 +62,18 @@ public class CharBuffer extends InputBuffer {
         try {
             syncConsume();
             // Fill the buffer sufficiently to hold needed characters
-            while (queue.nbrEntries < amount + markerOffset) {
-                // Append the next character
-                queue.append((char)input.read());
+            int needed = amount + markerOffset;
+            while (queue.nbrEntries < needed) {
+                // Append the next block of characters
+                int n = input.read(block, 0, block.length);
+                if (n < 0) {
+                    // at end of input, pad with EOF characters
+                    while (queue.nbrEntries < needed) {
+                        queue.append(CharScanner.EOF_CHAR);
+                    }
+                    break;
+                }
+                queue.append(block, 0, n);
             }
         }
         catch (IOException io) {
@@ -22,6 +22,10 @@ public class CharQueue {
     private int offset;
     /** number of tokens in the queue */
     protected int nbrEntries;
+    /** the lower case of each char, or null if we aren't folding case */
+    private char[] foldTable;
+    /** the folded chars, at the same physical indexes as buffer */
+    protected char[] folded;
 
     public CharQueue(int minSize) {
         // Find first power of 2 >= to requested size
@@ -48,10 +52,46 @@ public class CharQueue {
         if (nbrEntries == buffer.length) {
             expand();
         }
-        buffer[(offset + nbrEntries) & sizeLessOne] = tok;
+        int end = (offset + nbrEntries) & sizeLessOne;
+        buffer[end] = tok;
+        if (foldTable != null) {
+            folded[end] = foldTable[tok];
+        }
         nbrEntries++;
     }
 
+    /** Add several tokens to the end of the queue
+     * @param toks The array holding the tokens to add
+     * @param off The index of the first token to add
+     * @param len The number of tokens to add
+     */
+    public final void append(char[] toks, int off, int len) {
+        while (nbrEntries + len > buffer.length) {
+            expand();
+        }
+        int end = (offset + nbrEntries) & sizeLessOne;
+        // the new tokens may wrap around the end of the buffer
+        int first = Math.min(len, buffer.length - end);
+        System.arraycopy(toks, off, buffer, end, first);
+        System.arraycopy(toks, off + first, buffer, 0, len - first);
+        if (foldTable != null) {
+            fold(end, len);
+        }
+        nbrEntries += len;
+    }
+
+    /** Fold the case of chars in the buffer
+     * @param start the physical index of the first char to fold
+     * @param len the number of chars to fold
+     */
+    private void fold(int start, int len) {
+        char[] table = foldTable;
+        for (int i = 0; i < len; i++) {
+            int index = (start + i) & sizeLessOne;
+            folded[index] = table[buffer[index]];
+        }
+    }
+
     /** Fetch a token from the queue by index
      * @param idx The index of the token to fetch, where zero is the token at the front of the queue
      */
@@ -59,14 +99,41 @@ public class CharQueue {
         return buffer[(offset + idx) & sizeLessOne];
     }
 
+    /** Fetch the folded version of a token from the queue by index
+     * @param idx The index of the token to fetch, where zero is the token at the front of the queue
+     */
+    public final char foldedElementAt(int idx) {
+        return folded[(offset + idx) & sizeLessOne];
+    }
+
+    /** Keep a copy of the queue's chars with their case folded, which
+     *  foldedElementAt() returns. Chars are folded once, as they are
+     *  added.
+     * @param table the folded version of each char, or null to stop folding
+     */
+    public void setFoldTable(char[] table) {
+        foldTable = table;
+        if (table == null) {
+            folded = null;
+            return;
+        }
+        folded = new char[buffer.length];
+        fold(offset, nbrEntries);
+    }
     /** Expand the token buffer by doubling its capacity */
     private final void expand() {
         char[] newBuffer = new char[buffer.length * 2];
         // Copy the contents to the new buffer
         // Note that this will store the first logical item in the
         // first physical array element.
-        for (int i = 0; i < buffer.length; i++) {
-            newBuffer[i] = elementAt(i);
+        int first = Math.min(nbrEntries, buffer.length - offset);
+        System.arraycopy(buffer, offset, newBuffer, 0, first);
+        System.arraycopy(buffer, 0, newBuffer, first, nbrEntries - first);
+        if (foldTable != null) {
+            char[] newFolded = new char[newBuffer.length];
+            System.arraycopy(folded, offset, newFolded, 0, first);
+            System.arraycopy(folded, 0, newFolded, first, nbrEntries - first);
+            folded = newFolded;
         }
         // Re-initialize with new contents, keep old nbrEntries
         buffer = newBuffer;
@@ -80,6 +147,9 @@ public class CharQueue {
     public void init(int size) {
         // Allocate buffer
         buffer = new char[size];
+        if (foldTable != null) {
+            folded = new char[size];
+        }
         // Other initialization
         sizeLessOne = size - 1;
         offset = 0;
@@ -98,4 +168,12 @@ public class CharQueue {
         offset = (offset + 1) & sizeLessOne;
         nbrEntries--;
     }
+
+    /** Remove chars from front of queue
+     * @param n the number to remove, which must be <= the number in the queue
+     */
+    public final void removeFirst(int n) {
+        offset = (offset + n) & sizeLessOne;
+        nbrEntries -= n;
+    }
 }
@@ -17,14 +17,70 @@ import java.util.Map;
 import com.javadude.antxr.collections.impl.BitSet;
 
 public abstract class CharScanner implements TokenStream {
+    private static final TokenFactory COMMON_TOKEN_FACTORY = new TokenFactory() {
+        public Token createToken(int type) {
+            return new CommonToken();
+        }
+    };
+    private static final TokenFactory LAZY_TEXT_TOKEN_FACTORY = new TokenFactory() {
+        public Token createToken(int type) {
+            return new LazyTextToken();
+        }
+    };
+    private static final TokenFactory HIDDEN_STREAM_TOKEN_FACTORY = new TokenFactory() {
+        public Token createToken(int type) {
+            return new CommonHiddenStreamToken();
+        }
+    };
+
+    /** Is toLower() overridden by a lexer class? */
+    private static final ClassValue<Boolean> OVERRIDES_TO_LOWER = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != CharScanner.class; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("toLower", char.class);
+                    return Boolean.TRUE;
+                }
+                catch (NoSuchMethodException e) {
+                    // keep looking
+                }
+            }
+            return Boolean.FALSE;
+        }
+    };
+
+    /** The lower case of every char in the Basic Multilingual Plane,
+     *  computed the first time a lexer needs it
+     */
+    private static class LowerCase {
+        static final char[] TABLE = new char[Character.MAX_VALUE + 1];
+        static {
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                LowerCase.TABLE[c] = Character.toLowerCase((char)c);
+            }
+        }
+    }
+
     static final char NO_CHAR = 0;
     public static final char EOF_CHAR = (char)-1;
     protected ANTXRStringBuffer text; // text of current token
 
     protected boolean saveConsumedInput = true; // does consume() save characters?
+    protected boolean lazyTextAllowed = false; // was the lexer generated with lazyText?
+    protected boolean lazyText = false; // do tokens take their text from the input buffer?
+    protected long textStart; // input buffer position of the current token, if lazyText
     protected Class<?> tokenObjectClass; // what kind of tokens to create?
+    protected TokenFactory tokenFactory; // creates the tokens; null means use reflection
+    // the tokenObjectClass tokenFactory was picked for, or null if the
+    //   factory was set by the user
+    private Class<?> tokenFactoryClass;
     protected boolean caseSensitive = true;
     protected boolean caseSensitiveLiterals = true;
+    // toLower() of every char, if this lexer doesn't override toLower()
+    private char[] lowerCaseTable;
+    // true if LA() reads chars the input buffer has already folded
+    private boolean foldedInput = false;
     protected Map<ANTXRHashString, Integer> literals; // set by subclass
 
     /** Tab chars are handled by tab() according to this value; override
@@ -48,7 +104,25 @@ public abstract class CharScanner implements TokenStream {
     /** Used to keep track of indentdepth for traceIn/Out */
     protected int traceDepth = 0;
 
+    /** Results of rules generated with the memoize option, by rule number */
+    private MemoTable[] memoTables;
+
+    /** The buffer the memoized results are for, and its reset count when
+     *  they were recorded; indexes from before a reset mean nothing after
+     */
+    private InputBuffer memoInput;
+    private int memoResetCount;
+
+    /** The number of results kept for each memoized rule */
+    private int memoLimit = MemoTable.DEFAULT_LIMIT;
+
+    /** Thrown when something doesn't match while guessing */
+    private MismatchedCharException guessFailure;
+
     public CharScanner() {
+        if (!CharScanner.OVERRIDES_TO_LOWER.get(getClass()).booleanValue()) {
+            lowerCaseTable = LowerCase.TABLE;
+        }
         text = new ANTXRStringBuffer();
         hashString = new ANTXRHashString(this);
         setTokenObjectClass("com.javadude.antxr.CommonToken");
@@ -65,12 +139,18 @@ public abstract class CharScanner implements TokenStream {
     }
 
     public void append(char c) {
+        if (lazyText) {
+            throw new IllegalStateException("append() cannot be used with lazyText");
+        }
         if (saveConsumedInput) {
             text.append(c);
         }
     }
 
     public void append(String s) {
+        if (lazyText) {
+            throw new IllegalStateException("append() cannot be used with lazyText");
+        }
         if (saveConsumedInput) {
             text.append(s);
         }
@@ -80,16 +160,102 @@ public abstract class CharScanner implements TokenStream {
         inputState.input.commit();
     }
 
+    /** Set the number of results each memoized rule keeps. When a rule
+     *  has this many, the ones for input that can't be rewound to are
+     *  dropped, or all of them if that isn't enough.
+     */
+    public void setMemoLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        memoLimit = limit;
+        clearMemo();
+    }
+
+    /** Forget the results of memoized rules. This is done automatically
+     *  when the input state is replaced or its input buffer is reset.
+     */
+    public void clearMemo() {
+        memoTables = null;
+    }
+
+    /** Forget the results of memoized rules if they were recorded for a
+     *  different buffer, or before the buffer was reset
+     */
+    private void checkMemoInput() {
+        InputBuffer input = inputState.input;
+        if (input != memoInput || input.getResetCount() != memoResetCount) {
+            memoTables = null;
+            memoInput = input;
+            memoResetCount = input.getResetCount();
+        }
+    }
+
+    /** The index of the next character, used to memoize rules */
+    protected long memoIndex() {
+        return inputState.input.index();
+    }
+
+    /** See if a memoized rule has been tried at an index before. If it
+     *  matched, the characters it matched are consumed again.
+     *  @param rule the rule's number
+     *  @param start the index returned by memoIndex()
+     *  @return true if the rule matched at the index before, false if it
+     *          hasn't been tried
+     *  @throws RecognitionException if the rule failed at the index
+     */
+    protected boolean alreadyParsedRule(int rule, long start) throws RecognitionException, CharStreamException {
+        checkMemoInput();
+        if (memoTables == null || rule >= memoTables.length || memoTables[rule] == null) {
+            return false;
+        }
+        long stop = memoTables[rule].get(start);
+        if (stop == MemoTable.UNKNOWN) {
+            return false;
+        }
+        if (stop == MemoTable.FAILED) {
+            throw guessFailure();
+        }
+        while (memoIndex() < stop) {
+            consume();
+        }
+        return true;
+    }
+
+    /** Record whether a memoized rule matched
+     *  @param rule the rule's number
+     *  @param start the index returned by memoIndex() when the rule started
+     *  @param succeeded true if the rule matched; the stop index is the
+     *         current one
+     */
+    protected void memoize(int rule, long start, boolean succeeded) {
+        checkMemoInput();
+        if (memoTables == null) {
+            memoTables = new MemoTable[rule + 1];
+        }
+        else if (rule >= memoTables.length) {
+            MemoTable[] tables = new MemoTable[rule + 1];
+            System.arraycopy(memoTables, 0, tables, 0, memoTables.length);
+            memoTables = tables;
+        }
+        if (memoTables[rule] == null) {
+            memoTables[rule] = new MemoTable(memoLimit);
+        }
+        long stop = succeeded ? memoIndex() : MemoTable.FAILED;
+        memoTables[rule].put(start, stop, inputState.input.firstIndex());
+    }
+
     public void consume() throws CharStreamException {
         if (inputState.guessing == 0) {
-            char c = LA(1);
-            if (caseSensitive) {
+            // use input.LA(), not LA(), to get original case
+            // CharScanner.LA() would toLower it.
+            char c = inputState.input.LA(1);
+            if (!lazyText) {
                 append(c);
             }
-            else {
-                // use input.LA(), not LA(), to get original case
-                // CharScanner.LA() would toLower it.
-                append(inputState.input.LA(1));
+            // Character.toLowerCase() leaves everything but tab alone
+            if (!caseSensitive && !foldedInput) {
+                c = toLower(c);
             }
             if (c == '\t') {
                 tab();
@@ -149,6 +315,29 @@ public abstract class CharScanner implements TokenStream {
 
     public void setInputState(LexerSharedInputState state) {
         inputState = state;
+        clearMemo();
+        setLazyText(lazyTextAllowed);
+        setCaseSensitive(caseSensitive);
+    }
+
+    /** Have tokens take their text straight from the input buffer rather
+     *  than from characters saved as they're consumed. This is only done if
+     *  the input buffer keeps all of its input; otherwise the characters are
+     *  saved as usual. Lexers generated with the lazyText option call this
+     *  from their constructor. append() and setText() cannot be used once
+     *  lazy text is on.
+     */
+    public void setLazyText(boolean lazy) {
+        lazyTextAllowed = lazy;
+        lazyText = lazy && inputState.input.isRetainingInput();
+        if (lazyText && tokenObjectClass == CommonToken.class && tokenFactoryClass == CommonToken.class) {
+            tokenObjectClass = LazyTextToken.class;
+            useBuiltInTokenFactory();
+        }
+    }
+
+    public boolean getLazyText() {
+        return lazyText;
     }
 
     public int getLine() {
@@ -157,9 +346,30 @@ public abstract class CharScanner implements TokenStream {
 
     /** return a copy of the current text buffer */
     public String getText() {
+        if (lazyText) {
+            return inputState.input.getText(textStart, inputState.input.getPosition());
+        }
         return text.toString();
     }
 
+    /** Get the current text position, to pass to getText(long) or
+     *  makeToken(int, long) once a token has been matched
+     */
+    protected long textPosition() {
+        if (lazyText) {
+            return inputState.input.getPosition();
+        }
+        return text.length();
+    }
+
+    /** Get the text matched since textPosition() returned begin */
+    protected String getText(long begin) {
+        if (lazyText) {
+            return inputState.input.getText(begin, inputState.input.getPosition());
+        }
+        return new String(text.getBuffer(), (int)begin, text.length() - (int)begin);
+    }
+
     public Token getTokenObject() {
         return _returnToken;
     }
@@ -168,12 +378,25 @@ public abstract class CharScanner implements TokenStream {
         if (caseSensitive) {
 	        return inputState.input.LA(i);
         }
+        if (foldedInput) {
+            return inputState.input.foldedLA(i);
+        }
         return toLower(inputState.input.LA(i));
     }
 
     protected Token makeToken(int t) {
         try {
-            Token tok = (Token)tokenObjectClass.newInstance();
+            Token tok;
+            if (tokenFactoryClass != tokenObjectClass && tokenFactoryClass != null) {
+                // a subclass assigned tokenObjectClass directly
+                useBuiltInTokenFactory();
+            }
+            if (tokenFactory != null) {
+                tok = tokenFactory.createToken(t);
+            }
+            else {
+                tok = (Token)tokenObjectClass.newInstance();
+            }
             tok.setType(t);
             tok.setColumn(inputState.tokenStartColumn);
             tok.setLine(inputState.tokenStartLine);
@@ -189,12 +412,53 @@ public abstract class CharScanner implements TokenStream {
         return Token.badToken;
     }
 
+    /** Create a token whose text is everything matched since
+     *  textPosition() returned begin. If lazy text is on, and the token is
+     *  a LazyTextToken, the text is not copied out of the input buffer
+     *  unless someone asks for it.
+     */
+    protected Token makeToken(int t, long begin) {
+        Token tok = makeToken(t);
+        if (lazyText && tok instanceof LazyTextToken) {
+            ((LazyTextToken)tok).setText(inputState.input, begin, inputState.input.getPosition());
+        }
+        else {
+            tok.setText(getText(begin));
+        }
+        return tok;
+    }
+
     public int mark() {
         return inputState.input.mark();
     }
 
+    /** Get the exception thrown when something doesn't match while
+     *  guessing. Rules rethrow exceptions while guessing, so all it does is
+     *  make the syntactic predicate fail; the same one is thrown every time
+     *  and it has no stack trace, which made failed guesses expensive.
+     */
+    protected MismatchedCharException guessFailure() {
+        if (guessFailure == null) {
+            guessFailure = new MismatchedCharException("syntactic predicate failed", false);
+        }
+        return guessFailure;
+    }
+
+    /** Get the exception generated code throws when no alternative
+     *  matches LA(1)
+     */
+    protected RecognitionException noViableAltForChar() throws CharStreamException {
+        if (inputState.guessing > 0) {
+            return guessFailure();
+        }
+        return new NoViableAltForCharException(LA(1), getFilename(), getLine(), getColumn());
+    }
+
     public void match(char c) throws MismatchedCharException, CharStreamException {
         if (LA(1) != c) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedCharException(LA(1), c, false, this);
         }
         consume();
@@ -202,6 +466,9 @@ public abstract class CharScanner implements TokenStream {
 
     public void match(BitSet b) throws MismatchedCharException, CharStreamException {
         if (!b.member(LA(1))) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
 	        throw new MismatchedCharException(LA(1), b, false, this);
         }
         consume();
@@ -211,6 +478,9 @@ public abstract class CharScanner implements TokenStream {
         int len = s.length();
         for (int i = 0; i < len; i++) {
             if (LA(1) != s.charAt(i)) {
+                if (inputState.guessing > 0) {
+                    throw guessFailure();
+                }
                 throw new MismatchedCharException(LA(1), s.charAt(i), false, this);
             }
             consume();
@@ -219,6 +489,9 @@ public abstract class CharScanner implements TokenStream {
 
     public void matchNot(char c) throws MismatchedCharException, CharStreamException {
         if (LA(1) == c) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedCharException(LA(1), c, true, this);
         }
         consume();
@@ -226,6 +499,9 @@ public abstract class CharScanner implements TokenStream {
 
     public void matchRange(char c1, char c2) throws MismatchedCharException, CharStreamException {
         if (LA(1) < c1 || LA(1) > c2) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
 	        throw new MismatchedCharException(LA(1), c1, c2, false, this);
         }
         consume();
@@ -302,6 +578,9 @@ public abstract class CharScanner implements TokenStream {
 
     public void resetText() {
         text.setLength(0);
+        if (lazyText) {
+            textStart = inputState.input.getPosition();
+        }
         inputState.tokenStartColumn = inputState.column;
         inputState.tokenStartLine = inputState.line;
     }
@@ -312,8 +591,16 @@ public abstract class CharScanner implements TokenStream {
          // setColumn(inputState.tokenStartColumn);
     }
 
+    /** Set whether the lexer is case sensitive. If it isn't, LA() returns
+     *  characters in lower case. Unless toLower() is overridden, the
+     *  input buffer folds the case of each character once, as it's read.
+     */
     public void setCaseSensitive(boolean t) {
         caseSensitive = t;
+        foldedInput = !t && lowerCaseTable != null && inputState != null;
+        if (foldedInput) {
+            inputState.input.setCaseFolding(lowerCaseTable);
+        }
     }
 
     public void setCommitToPath(boolean commit) {
@@ -329,6 +616,9 @@ public abstract class CharScanner implements TokenStream {
     }
 
     public void setText(String s) {
+        if (lazyText) {
+            throw new IllegalStateException("setText() cannot be used with lazyText");
+        }
         resetText();
         text.append(s);
     }
@@ -336,21 +626,72 @@ public abstract class CharScanner implements TokenStream {
     public void setTokenObjectClass(String cl) {
         try {
             tokenObjectClass = Utils.loadClass(cl);
+            useBuiltInTokenFactory();
         }
         catch (ClassNotFoundException ce) {
             panic("ClassNotFoundException: " + cl);
         }
     }
 
+    /** Create tokens with the given factory rather than by reflection.
+     *  Pass null to go back to creating instances of the token object class.
+     */
+    public void setTokenFactory(TokenFactory factory) {
+        if (factory == null) {
+            useBuiltInTokenFactory();
+        }
+        else {
+            tokenFactory = factory;
+            tokenFactoryClass = null;
+        }
+    }
+
+    public TokenFactory getTokenFactory() {
+        return tokenFactory;
+    }
+
+    /** Create tokens of the token object class directly if it's one of
+     *  the token classes ANTXR provides, or by reflection if not
+     */
+    private void useBuiltInTokenFactory() {
+        tokenFactory = CharScanner.getBuiltInTokenFactory(tokenObjectClass);
+        tokenFactoryClass = tokenObjectClass;
+    }
+
+    /** Get the factory that creates tokens of one of the token classes
+     *  ANTXR provides
+     *  @return the factory, or null if c isn't one of those classes
+     */
+    private static TokenFactory getBuiltInTokenFactory(Class<?> c) {
+        if (c == CommonToken.class) {
+            return CharScanner.COMMON_TOKEN_FACTORY;
+        }
+        if (c == LazyTextToken.class) {
+            return CharScanner.LAZY_TEXT_TOKEN_FACTORY;
+        }
+        if (c == CommonHiddenStreamToken.class) {
+            return CharScanner.HIDDEN_STREAM_TOKEN_FACTORY;
+        }
+        return null;
+    }
+
     // Test the token text against the literals table
     // Override this method to perform a different literals test
     public int testLiteralsTable(int ttype) {
-        hashString.setBuffer(text.getBuffer(), text.length());
-        Integer literalsIndex = literals.get(hashString);
-        if (literalsIndex != null) {
-            ttype = literalsIndex.intValue();
+        if (lazyText) {
+            // the text buffer isn't otherwise used; borrow it
+            text.setLength(0);
+            inputState.input.appendText(textStart, inputState.input.getPosition(), text);
         }
-        return ttype;
+        return matchLiteral(text.getBuffer(), 0, text.length(), ttype);
+    }
+
+    /** Test the text matched since text position begin against the
+     *  literals table. Generated lexers call this to test a portion of
+     *  a token.
+     */
+    public int testLiteralsTable(int begin, int ttype) {
+        return matchLiteral(text.getBuffer(), begin, text.length() - begin, ttype);
     }
 
     /** Test the text passed in against the literals table
@@ -359,14 +700,99 @@ public abstract class CharScanner implements TokenStream {
      * a token.
      */
     public int testLiteralsTable(String testToTest, int ttype) {
-        ANTXRHashString s = new ANTXRHashString(testToTest, this);
-        Integer literalsIndex = literals.get(s);
+        char[] chars = testToTest.toCharArray();
+        return matchLiteral(chars, 0, chars.length, ttype);
+    }
+
+    /** Look up text in the literals table.
+     *  Generated lexers override this with a matcher that compares the
+     *  text against their literals character by character, and only call
+     *  this version if the literals table has been changed.
+     *  @param buffer holds the text to look up
+     *  @param start where the text starts in buffer
+     *  @param length the length of the text
+     *  @param ttype the type to return if the text isn't a literal
+     *  @return the literal's token type, or ttype
+     */
+    protected int matchLiteral(char[] buffer, int start, int length, int ttype) {
+        hashString.setBuffer(buffer, start, length);
+        Integer literalsIndex = literals.get(hashString);
         if (literalsIndex != null) {
             ttype = literalsIndex.intValue();
         }
         return ttype;
     }
 
+    /** Match the longest token that a generated lexer's DFA accepts.
+     *  Lookahead characters are run through the DFA until it has nowhere
+     *  to go; the characters up to the last accepting state are then
+     *  consumed. Nothing is consumed if no state accepts.
+     *  @param charClasses the character class of each character; other
+     *         characters are in class 0, which never matches
+     *  @param transitions the next state for each state and class, at
+     *         state * classCount + class; state 0 is the dead state and
+     *         state 1 the start state
+     *  @param classCount the number of character classes
+     *  @param accepts the token type each state accepts, or 0
+     *  @return the type of the token matched, or Token.INVALID_TYPE
+     */
+    protected int matchDFA(char[] charClasses, char[] transitions, int classCount, char[] accepts) throws CharStreamException {
+        int state = 1;
+        int ttype = Token.INVALID_TYPE;
+        int length = 0;
+        for (int i = 1;; i++) {
+            char c = LA(i);
+            if (c >= charClasses.length) {
+                break;
+            }
+            state = transitions[state * classCount + charClasses[c]];
+            if (state == 0) {
+                break;
+            }
+            if (accepts[state] != 0) {
+                ttype = accepts[state];
+                length = i;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            consume();
+        }
+        return ttype;
+    }
+
+    /** Unpack a table that a generated lexer stores as strings. Each pair
+     *  of characters in the strings is a count and a value to repeat that
+     *  many times.
+     */
+    protected static char[] unpackDFATable(String[] packed) {
+        int length = 0;
+        for (String s : packed) {
+            for (int i = 0; i < s.length(); i += 2) {
+                length += s.charAt(i);
+            }
+        }
+        char[] table = new char[length];
+        int n = 0;
+        for (String s : packed) {
+            for (int i = 0; i < s.length(); i += 2) {
+                int count = s.charAt(i);
+                char value = s.charAt(i + 1);
+                for (int j = 0; j < count; j++) {
+                    table[n++] = value;
+                }
+            }
+        }
+        return table;
+    }
+
+    /** Get the table of lower-case chars that ANTXRHashString uses when
+     *  literals aren't case sensitive
+     *  @return the table, or null if toLower() is overridden
+     */
+    char[] getLowerCaseTable() {
+        return lowerCaseTable;
+    }
+
     // Override this method to get more specific case handling
     public char toLower(char c) {
         return Character.toLowerCase(c);
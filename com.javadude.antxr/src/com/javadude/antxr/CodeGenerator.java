@@ -572,6 +572,17 @@ public abstract class CodeGenerator {
         return firstSetName;
     }
 
+    /**
+     * Get the expression an action uses to read an attribute of the current
+     * XML start tag (an <code>@prefix:name</code> reference).
+     * @param prefix the attribute's namespace prefix, or "" for none
+     * @param attribute the attribute's local name
+     * @return the expression
+     */
+    public String getXMLAttributeString(String prefix, String attribute) {
+        return "((XMLToken)__xml_startTag).getAttribute(resolveNamespace(\""+prefix+"\"),\""+attribute+"\")";
+    }
+
     /**
      * Remove the assignment portion of a declaration, if any.
      * @param d the declaration
@@ -72,6 +72,8 @@ public abstract class Grammar {
     protected boolean traceRules = false;
     protected boolean debuggingOutput = false;
     protected boolean defaultErrorHandler = true;
+    protected boolean memoize = false;
+    protected boolean inlineSynPreds = false;
 
     protected String comment = null; // javadoc comment
 
@@ -103,6 +105,11 @@ public abstract class Grammar {
         return defaultErrorHandler;
     }
 
+    /* Do this grammar's rules remember their results while guessing? */
+    public boolean getMemoize() {
+        return memoize;
+    }
+
     public String getFilename() {
         return fileName;
     }
@@ -228,6 +235,30 @@ public abstract class Grammar {
             }
             return true;
         }
+        if (key.equals("memoize")) {
+            if (s.equals("true")) {
+                memoize = true;
+            }
+            else if (s.equals("false")) {
+                memoize = false;
+            }
+            else {
+                antxrTool.error("Value for memoize must be true or false", getFilename(), value.getLine(), value.getColumn());
+            }
+            return true;
+        }
+        if (key.equals("inlineSynPreds")) {
+            if (s.equals("true")) {
+                inlineSynPreds = true;
+            }
+            else if (s.equals("false")) {
+                inlineSynPreds = false;
+            }
+            else {
+                antxrTool.error("Value for inlineSynPreds must be true or false", getFilename(), value.getLine(), value.getColumn());
+            }
+            return true;
+        }
         if (key.equals("analyzerDebug")) {
             if (s.equals("true")) {
                 analyzerDebug = true;
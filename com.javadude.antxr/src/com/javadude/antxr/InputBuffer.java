@@ -32,6 +32,9 @@ package com.javadude.antxr;
  * @see com.javadude.antxr.CharQueue
  */
 public abstract class InputBuffer {
+    /** Number of characters read from the input at a time, by default */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
     // Number of active markers
     protected int nMarkers = 0;
 
@@ -44,6 +47,17 @@ public abstract class InputBuffer {
     // Circular queue
     protected CharQueue queue;
 
+    // Number of characters removed from the front of the queue
+    protected long nRemoved = 0;
+
+    // Number of calls to reset(), so memoized results from before one
+    //   can be told apart
+    private int resetCount = 0;
+
+    // The lower case of each char, if case-insensitive lexers read this
+    //   buffer through foldedLA()
+    protected char[] caseFolding;
+
     /** Create an input buffer */
     public InputBuffer() {
         queue = new CharQueue(1);
@@ -87,12 +101,88 @@ public abstract class InputBuffer {
         return (nMarkers != 0);
     }
 
+    /** Does this buffer keep all of its input, so that getPosition() and
+     *  getText(long, long) can be used? Lexers generated with the lazyText
+     *  option only create lazy tokens when it does.
+     */
+    public boolean isRetainingInput() {
+        return false;
+    }
+
+    /** Get the position of the next character (LA(1)), for use with
+     *  getText(long, long). Positions are only meaningful to the buffer
+     *  that returned them.
+     */
+    public long getPosition() {
+        throw new UnsupportedOperationException(getClass().getName() + " does not keep its input");
+    }
+
+    /** Append the characters between two positions to a buffer
+     *  @param start the position of the first character
+     *  @param end the position after the last character
+     *  @param buffer the buffer to append to
+     */
+    public void appendText(long start, long end, ANTXRStringBuffer buffer) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not keep its input");
+    }
+
+    /** Get the characters between two positions
+     *  @param start the position of the first character
+     *  @param end the position after the last character
+     */
+    public String getText(long start, long end) {
+        ANTXRStringBuffer buffer = new ANTXRStringBuffer((int) Math.min(Math.max(end - start, 1), 1024));
+        appendText(start, end, buffer);
+        return buffer.toString();
+    }
+
+    /** Get the index of LA(1): the number of characters consumed before
+     *  it. Memoized rules use this to remember where they started and
+     *  stopped. Unlike getPosition(), every buffer supports it.
+     */
+    public long index() {
+        return nRemoved + markerOffset + numToConsume;
+    }
+
+    /** Get the smallest index that rewind() can still return to */
+    public long firstIndex() {
+        return nRemoved;
+    }
+
     /** Get a lookahead character */
     public char LA(int i) throws CharStreamException {
+        // Deferred consumption just moves LA(1) further into the queue, so
+        //   buffered characters can be returned without syncing it up
+        int index = markerOffset + numToConsume + i - 1;
+        if (index < queue.nbrEntries) {
+            return queue.elementAt(index);
+        }
         fill(i);
         return queue.elementAt(markerOffset + i - 1);
     }
 
+    /** Get a lookahead character with its case folded by the table passed
+     *  to setCaseFolding(). Characters are folded once, as they're added
+     *  to the buffer, rather than each time they're looked at.
+     */
+    public char foldedLA(int i) throws CharStreamException {
+        int index = markerOffset + numToConsume + i - 1;
+        if (index < queue.nbrEntries) {
+            return queue.foldedElementAt(index);
+        }
+        fill(i);
+        return queue.foldedElementAt(markerOffset + i - 1);
+    }
+
+    /** Have the buffer keep a case-folded copy of its characters for
+     *  foldedLA(). Case-insensitive lexers call this.
+     *  @param table the folded version of each char, or null to stop folding
+     */
+    public void setCaseFolding(char[] table) {
+        caseFolding = table;
+        queue.setFoldTable(table);
+    }
+
     /**Return an integer marker that can be used to rewind the buffer to
      * its current state.
      */
@@ -117,21 +207,32 @@ public abstract class InputBuffer {
         nMarkers = 0;
         markerOffset = 0;
         numToConsume = 0;
+        nRemoved = 0;
         queue.reset();
+        resetCount++;
+    }
+
+    /** The number of times the buffer has been reset. Indexes (see
+     *  index()) from before a reset don't refer to the same characters
+     *  after it.
+     */
+    public int getResetCount() {
+        return resetCount;
     }
 
     /** Sync up deferred consumption */
     protected void syncConsume() {
-        while (numToConsume > 0) {
+        if (numToConsume > 0) {
             if (nMarkers > 0) {
                 // guess mode -- leave leading characters and bump offset.
-                markerOffset++;
+                markerOffset += numToConsume;
             }
             else {
-                // normal mode -- remove first character
-                queue.removeFirst();
+                // normal mode -- remove leading characters
+                queue.removeFirst(numToConsume);
+                nRemoved += numToConsume;
             }
-            numToConsume--;
+            numToConsume = 0;
         }
     }
 }
@@ -14,10 +14,13 @@ package com.javadude.antxr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 
 import com.javadude.antxr.actions.java.ActionLexer;
 import com.javadude.antxr.collections.impl.BitSet;
@@ -42,9 +45,22 @@ public class JavaCodeGenerator extends CodeGenerator {
     // Are we generating ASTs (for parsers and tree parsers) right now?
     protected boolean genAST = false;
 
+    // Things in lexer actions that need the consumed text to be saved
+    private static final Pattern TEXT_CHANGE_PATTERN = Pattern.compile("\\$(append|setText)\\b|\\btext\\b|(?<![.\\w])(append|setText)\\s*\\(");
+
     // Are we saving the text consumed (for lexers) right now?
     protected boolean saveText = false;
 
+    // Does the lexer being generated take token text from the input buffer?
+    protected boolean lazyText = false;
+
+    // The DFA that matches some of the lexer's tokens (lexerEngine=dfa), the
+    // characters that start only those tokens, and the types of the tokens
+    // that need a literals test (null if all do)
+    private LexerDFA lexerDFA;
+    private BitSet lexerDFAFirst;
+    private BitSet lexerDFATestLiterals;
+
     // Grammar parameters set up to handle different grammar classes.
     // These are used to get instanceof tests out of code generation
     String labeledElementType;
@@ -85,6 +101,12 @@ public class JavaCodeGenerator extends CodeGenerator {
 
     private List<String> semPreds;
 
+    /** XML attributes referenced by the parser's actions; an attribute's
+     *  position in these lists is its id in the generated tag table
+     */
+    private List<String> xmlAttributeNamespaces = new ArrayList<String>();
+    private List<String> xmlAttributeLocalNames = new ArrayList<String>();
+
     /** Create a Java code-generator using the given Grammar.
      * The caller must still call setTool, setBehavior, and setAnalyzer
      * before generating code.
@@ -532,6 +554,9 @@ public class JavaCodeGenerator extends CodeGenerator {
         // the casesensitive stuff.
             println("caseSensitiveLiterals = " + g.caseSensitiveLiterals + ";");
             println("setCaseSensitive(" + g.caseSensitive + ");");
+        if (lazyText) {
+            println("setLazyText(true);");
+        }
 
         // Generate the initialization of a hashtable
         // containing the string literals used in the lexer
@@ -553,6 +578,8 @@ public class JavaCodeGenerator extends CodeGenerator {
 
         println("}");
 
+        genLiteralMatcher(g);
+
         // generate the rule name array for debugging
         if (grammar.debuggingOutput) {
                 println("private static final String _ruleNames[] = {");
@@ -569,6 +596,9 @@ public class JavaCodeGenerator extends CodeGenerator {
         // nextToken() is a synthetic lexer rule that is the implicit OR of all
         // user-defined lexer rules.
         genNextToken();
+        if (lexerDFA != null) {
+            genLexerDFATables();
+        }
 
         // Generate code for each rule in the lexer
         int ruleNum = 0;
@@ -714,6 +744,8 @@ public class JavaCodeGenerator extends CodeGenerator {
         if (!(grammar instanceof ParserGrammar)) {
             antxrTool.fatalError("panic: Internal error generating parser");
         }
+        xmlAttributeNamespaces = new ArrayList<String>();
+        xmlAttributeLocalNames = new ArrayList<String>();
 
             // Open the output stream for the parser and set the currentOutput
             // SAS: moved file setup so subclass could do it (for VAJ interface)
@@ -760,6 +792,7 @@ public class JavaCodeGenerator extends CodeGenerator {
         println("// ANTXR XML Mode Support");
         println("import com.javadude.antxr.scanner.XMLToken;");
         println("import com.javadude.antxr.scanner.Attribute;");
+        println("import com.javadude.antxr.scanner.XMLTagTable;");
         println("import java.util.Map;");
         println("import java.util.HashMap;");
         println("");
@@ -913,6 +946,9 @@ public class JavaCodeGenerator extends CodeGenerator {
         // Generate the token names
         genTokenStrings();
 
+        // Generate the XML tag lookup table
+        genXMLTagTable();
+
         if ( grammar.buildAST ) {
             genTokenASTNodeMap();
         }
@@ -2388,7 +2424,212 @@ public class JavaCodeGenerator extends CodeGenerator {
     }
 
     private void genLiteralsTestForPartialToken() {
-        println("_ttype = testLiteralsTable(new String(text.getBuffer(),_begin,text.length()-_begin),_ttype);");
+        if (lazyText) {
+            println("_ttype = testLiteralsTable(getText(_begin),_ttype);");
+        }
+        else {
+            println("_ttype = testLiteralsTable(_begin,_ttype);");
+        }
+    }
+
+    /** Generate a matchLiteral() method that looks up text in the lexer's
+     *  literals with a switch on the text's length, then on its
+     *  characters, rather than hashing it and looking it up in the
+     *  literals map. The map is still used if it's changed at runtime.
+     * @param g the lexer grammar
+     */
+    private void genLiteralMatcher(LexerGrammar g) {
+        // the literals, keyed by the text they match. Like the map, a
+        //   later literal that matches the same text replaces an earlier one
+        Map<String, Integer> literals = new HashMap<String, Integer>();
+        Iterator<String> keys = grammar.tokenManager.getTokenSymbolKeys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (key.charAt(0) != '"') {
+                continue;
+            }
+            TokenSymbol sym = grammar.tokenManager.getTokenSymbol(key);
+            if (sym instanceof StringLiteralSymbol) {
+                String text = JavaCodeGenerator.unescapeLiteral(sym.getId());
+                if (!g.caseSensitiveLiterals) {
+                    char[] chars = text.toCharArray();
+                    for (int i = 0; i < chars.length; i++) {
+                        chars[i] = Character.toLowerCase(chars[i]);
+                    }
+                    text = new String(chars);
+                }
+                literals.put(text, new Integer(sym.getTokenType()));
+            }
+        }
+        if (literals.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, List<String>> byLength = new TreeMap<Integer, List<String>>();
+        for (String text : literals.keySet()) {
+            List<String> group = byLength.get(text.length());
+            if (group == null) {
+                group = new ArrayList<String>();
+                byLength.put(text.length(), group);
+            }
+            group.add(text);
+        }
+
+        println("");
+        println("protected int matchLiteral(char[] _text, int _start, int _length, int _ttype) {");
+        tabs++;
+        println("if (literals.size() != " + literals.size() + ") {");
+        println("	return super.matchLiteral(_text, _start, _length, _ttype);");
+        println("}");
+        println("switch (_length) {");
+        for (Map.Entry<Integer, List<String>> entry : byLength.entrySet()) {
+            println("case " + entry.getKey() + ":");
+            tabs++;
+            List<String> group = entry.getValue();
+            Collections.sort(group);
+            if (genLiteralMatch(group, 0, literals, g.caseSensitiveLiterals)) {
+                println("break;");
+            }
+            tabs--;
+        }
+        println("}");
+        println("return _ttype;");
+        tabs--;
+        println("}");
+    }
+
+    /** Generate the test for a group of literals of the same length that
+     *  have the same characters before position pos
+     * @return false if the generated code always returns
+     */
+    private boolean genLiteralMatch(List<String> group, int pos, Map<String, Integer> literals, boolean caseSensitive) {
+        String first = group.get(0);
+        int length = first.length();
+        if (group.size() == 1) {
+            if (pos == length) {
+                println("return " + literals.get(first) + ";");
+                return false;
+            }
+            println("if (" + genLiteralCharsTest(first, pos, length, caseSensitive) + ") {");
+            println("	return " + literals.get(first) + ";");
+            println("}");
+            return true;
+        }
+
+        // skip past the characters all of the literals have in common
+        int diff = pos;
+        boolean same = true;
+        while (same) {
+            for (String text : group) {
+                if (text.charAt(diff) != first.charAt(diff)) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                diff++;
+            }
+        }
+        if (diff > pos) {
+            println("if (" + genLiteralCharsTest(first, pos, diff, caseSensitive) + ") {");
+            tabs++;
+        }
+
+        Map<Character, List<String>> byChar = new TreeMap<Character, List<String>>();
+        for (String text : group) {
+            List<String> sub = byChar.get(text.charAt(diff));
+            if (sub == null) {
+                sub = new ArrayList<String>();
+                byChar.put(text.charAt(diff), sub);
+            }
+            sub.add(text);
+        }
+        println("switch (" + genLiteralCharExpr(diff, caseSensitive) + ") {");
+        for (Map.Entry<Character, List<String>> entry : byChar.entrySet()) {
+            println("case " + charFormatter.literalChar(entry.getKey().charValue()) + ":");
+            tabs++;
+            if (genLiteralMatch(entry.getValue(), diff + 1, literals, caseSensitive)) {
+                println("break;");
+            }
+            tabs--;
+        }
+        println("}");
+
+        if (diff > pos) {
+            tabs--;
+            println("}");
+        }
+        return true;
+    }
+
+    /** Get the expression that tests the text's characters from start
+     *  (inclusive) to end (exclusive) against a literal's
+     */
+    private String genLiteralCharsTest(String literal, int start, int end, boolean caseSensitive) {
+        StringBuffer test = new StringBuffer();
+        for (int i = start; i < end; i++) {
+            if (i > start) {
+                test.append(" && ");
+            }
+            test.append(genLiteralCharExpr(i, caseSensitive));
+            test.append("==");
+            test.append(charFormatter.literalChar(literal.charAt(i)));
+        }
+        return test.toString();
+    }
+
+    /** Get the expression for a character of the text in matchLiteral() */
+    private String genLiteralCharExpr(int i, boolean caseSensitive) {
+        String c = (i == 0) ? "_text[_start]" : "_text[_start+" + i + "]";
+        if (caseSensitive) {
+            return c;
+        }
+        return "toLower(" + c + ")";
+    }
+
+    /** Get the characters of a literal's id, which is written as a Java
+     *  string literal
+     */
+    static String unescapeLiteral(String id) {
+        StringBuffer text = new StringBuffer();
+        int end = id.length() - 1;
+        for (int i = 1; i < end; i++) {
+            char c = id.charAt(i);
+            if (c != '\\' || i + 1 >= end) {
+                text.append(c);
+                continue;
+            }
+            c = id.charAt(++i);
+            switch (c) {
+                case 'n':  text.append('\n'); break;
+                case 'r':  text.append('\r'); break;
+                case 't':  text.append('\t'); break;
+                case 'b':  text.append('\b'); break;
+                case 'f':  text.append('\f'); break;
+                case 'u':
+                    while (id.charAt(i + 1) == 'u') {
+                        i++;
+                    }
+                    text.append((char)Integer.parseInt(id.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    if (c >= '0' && c <= '7') {
+                        // up to three octal digits, at most \377
+                        int value = c - '0';
+                        int maxDigits = (c <= '3') ? 3 : 2;
+                        for (int n = 1; n < maxDigits && i + 1 < end && id.charAt(i + 1) >= '0' && id.charAt(i + 1) <= '7'; n++) {
+                            value = value * 8 + id.charAt(++i) - '0';
+                        }
+                        text.append((char)value);
+                    }
+                    else {
+                        text.append(c);
+                    }
+                    break;
+            }
+        }
+        return text.toString();
     }
 
     protected void genMatch(BitSet b) {
@@ -2470,6 +2711,144 @@ public class JavaCodeGenerator extends CodeGenerator {
         println((atom.not ? "matchNot(" : "match(") + s + ");", atom.getLine());
     }
 
+    /** Build the DFA for the public lexer rules that it can match
+     *  (those without actions or predicates), and work out which
+     *  characters start tokens that only those rules match. The other
+     *  rules are matched the usual way.
+     * @param nextTokenBlk the analyzed nextToken rule
+     */
+    private void buildLexerDFA(RuleBlock nextTokenBlk) {
+        LexerGrammar g = (LexerGrammar)grammar;
+        if (g.traceRules || g.debuggingOutput) {
+            antxrTool.warning("lexerEngine=dfa ignored when tracing or debugging", g.getFilename(), nextTokenBlk.getLine(), nextTokenBlk.getColumn());
+            return;
+        }
+        LexerDFA dfa = new LexerDFA(g);
+        BitSet first = new BitSet();
+        BitSet otherFirst = new BitSet();
+        BitSet testLiterals = new BitSet();
+        boolean added = false;
+        for (Alternative alt : nextTokenBlk.getAlternatives()) {
+            RuleRefElement rr = (RuleRefElement)alt.head;
+            RuleSymbol rs = (RuleSymbol)grammar.getSymbol(rr.targetRule);
+            BitSet altFirst = alt.cache[1] != null ? alt.cache[1].fset : rr.look(1).fset;
+            TokenSymbol ts = grammar.tokenManager.getTokenSymbol(CodeGenerator.decodeLexerRuleName(rr.targetRule));
+            if (alt.semPred == null && ts != null && !rr.targetRule.equals("mEOF") &&
+                dfa.addRule(rs, ts.getTokenType())) {
+                added = true;
+                first.orInPlace(altFirst);
+                if (rs.getBlock().getTestLiterals()) {
+                    testLiterals.add(ts.getTokenType());
+                }
+            }
+            else {
+                otherFirst.orInPlace(altFirst);
+            }
+        }
+        first.subtractInPlace(otherFirst);
+        if (!added || first.nil()) {
+            return;
+        }
+        if (!dfa.build()) {
+            antxrTool.warning("lexerEngine=dfa ignored: the DFA is too large", g.getFilename(), nextTokenBlk.getLine(), nextTokenBlk.getColumn());
+            return;
+        }
+        lexerDFA = dfa;
+        lexerDFAFirst = first;
+        lexerDFATestLiterals = g.getTestLiterals() ? null : testLiterals;
+    }
+
+    /** Generate the part of nextToken() that tries the DFA first, when
+     *  the next character can only start a token that the DFA matches.
+     *  If the DFA doesn't match anything, the rules report the error.
+     * @param filterRule the lexer's filter rule, or null
+     */
+    private void genLexerDFAMatch(String filterRule) {
+        println("if (" + getBitsetName(markBitsetForGen(lexerDFAFirst)) + ".member(LA(1))) {");
+        tabs++;
+        println("long _begin = textPosition();");
+        println("_ttype = matchDFA(_dfaCharClasses, _dfaTransitions, " + lexerDFA.getClassCount() + ", _dfaAccepts);");
+        println("if (_ttype != Token.INVALID_TYPE) {");
+        tabs++;
+        if (filterRule != null) {
+            println("commit();");
+        }
+        if (lexerDFATestLiterals == null) {
+            genLiteralsTest();
+        }
+        else if (!lexerDFATestLiterals.nil()) {
+            println("if (" + getBitsetName(markBitsetForGen(lexerDFATestLiterals)) + ".member(_ttype)) {");
+            tabs++;
+            genLiteralsTest();
+            tabs--;
+            println("}");
+        }
+        println("return makeToken(_ttype, _begin);");
+        tabs--;
+        println("}");
+        tabs--;
+        println("}");
+    }
+
+    /** Generate the tables for the DFA that nextToken() uses */
+    private void genLexerDFATables() {
+        println("");
+        println("// " + lexerDFA.getStateCount() + " states, " + lexerDFA.getClassCount() + " character classes");
+        genLexerDFATable("_dfaCharClasses", lexerDFA.getCharClasses());
+        genLexerDFATable("_dfaTransitions", lexerDFA.getTransitions());
+        genLexerDFATable("_dfaAccepts", lexerDFA.getAccepts());
+    }
+
+    /** Generate a DFA table, run-length encoded in strings so it doesn't
+     *  take up a huge static initializer. Each string is kept short
+     *  enough to fit in a class file constant.
+     */
+    private void genLexerDFATable(String name, char[] table) {
+        println("private static final char[] " + name + " = unpackDFATable(new String[] {");
+        tabs++;
+        StringBuffer line = new StringBuffer();
+        int chunkLength = 0;
+        boolean firstInChunk = true;
+        for (int i = 0; i < table.length;) {
+            char value = table[i];
+            int count = 1;
+            while (i + count < table.length && table[i + count] == value && count < 0xFFFF) {
+                count++;
+            }
+            i += count;
+            line.append(JavaCodeGenerator.packedChar((char)count));
+            line.append(JavaCodeGenerator.packedChar(value));
+            chunkLength += 2;
+            if (line.length() >= 70 || i == table.length || chunkLength >= 16000) {
+                boolean endChunk = i == table.length || chunkLength >= 16000;
+                println((firstInChunk ? "" : "+ ") + "\"" + line + "\"" + (endChunk ? "," : ""));
+                line.setLength(0);
+                firstInChunk = endChunk;
+                if (endChunk) {
+                    chunkLength = 0;
+                }
+            }
+        }
+        tabs--;
+        println("});");
+    }
+
+    /** Write a character for a Java string literal. Three-digit octal
+     *  escapes are used for control characters, since a unicode escape for
+     *  a newline would end the string.
+     */
+    private static String packedChar(char c) {
+        if (c >= ' ' && c < 0x7f && c != '"' && c != '\\') {
+            return String.valueOf(c);
+        }
+        if (c < 0x100) {
+            String octal = Integer.toOctalString(c);
+            return "\\" + "000".substring(octal.length()) + octal;
+        }
+        String hex = Integer.toHexString(c);
+        return "\\u" + "0000".substring(hex.length()) + hex;
+    }
+
     /** Generate the nextToken() rule.  nextToken() is a synthetic
      * lexer rule that is the implicit OR of all user-defined
      * lexer rules.
@@ -2513,6 +2892,10 @@ public class JavaCodeGenerator extends CodeGenerator {
         grammar.define(nextTokenRs);
         // Analyze the nextToken rule
         grammar.theLLkAnalyzer.deterministic(nextTokenBlk);
+        lexerDFA = null;
+        if (((LexerGrammar)grammar).dfaEngine) {
+            buildLexerDFA(nextTokenBlk);
+        }
 
         // Generate the next token rule
         String filterRule = null;
@@ -2569,6 +2952,10 @@ public class JavaCodeGenerator extends CodeGenerator {
             }
         }
 
+        if (lexerDFA != null) {
+            genLexerDFAMatch(filterRule);
+        }
+
         // Generate the block
         String newline = System.getProperty("line.separator");
         JavaBlockFinishingInfo howToFinish = genCommonBlock(nextTokenBlk, false);
@@ -2848,6 +3235,16 @@ public class JavaCodeGenerator extends CodeGenerator {
                 println(labeledElementASTType + " " + s.getId() + "_AST = null;");
         }
 
+        // Look the rule up in its memo table while guessing
+        boolean memoize = rblk.getMemoize() && grammar.hasSyntacticPredicate;
+        if (rblk.getMemoize() && grammar instanceof TreeWalkerGrammar) {
+            antxrTool.warning("memoize option ignored for tree parser rule " + rblk.ruleName, grammar.getFilename(), rblk.getLine(), rblk.getColumn());
+            memoize = false;
+        }
+        if (memoize) {
+            genMemoLookup(rblk, ruleNum);
+        }
+
         genBlockPreamble(rblk);
         genBlockInitAction(rblk);
             println("");
@@ -2953,12 +3350,28 @@ public class JavaCodeGenerator extends CodeGenerator {
         // if doing a lexer rule, dump code to create token if necessary
         if (grammar instanceof LexerGrammar) {
                 println("if ( _createToken && _token==null && _ttype!=Token.SKIP ) {");
+            if (lazyText) {
+                println("	_token = makeToken(_ttype, _begin);");
+            }
+            else {
                 println("	_token = makeToken(_ttype);");
                 println("	_token.setText(new String(text.getBuffer(), _begin, text.length()-_begin));");
+            }
                 println("}");
                 println("_returnToken = _token;");
         }
 
+        if (memoize) {
+            println("_memoOK = true;");
+            tabs--;
+            println("}");
+            println("finally { // for memoization");
+            println("	if (_memoStart>=0) {");
+            println("		memoize(" + ruleNum + ",_memoStart,_memoOK);");
+            println("	}");
+            println("}");
+        }
+
         // Gen the return statement if there is one (lexer has hard-wired return action)
         if (rblk.returnAction != null) {
                 println("return " + extractIdOfAction(rblk.returnAction, rblk.getLine(), rblk.getColumn()) + ";");
@@ -3005,6 +3418,51 @@ public class JavaCodeGenerator extends CodeGenerator {
         }
     }
 
+    /** Generate the code that looks a memoized rule up while guessing. If
+     *  it was tried at the current index before, the rule returns (having
+     *  consumed what it matched) or throws; otherwise the rest of the rule
+     *  is wrapped in a try that records the result.
+     */
+    protected void genMemoLookup(RuleBlock rblk, int ruleNum) {
+        println("long _memoStart = -1;");
+        println("if (inputState.guessing>0) {");
+        tabs++;
+        println("_memoStart = memoIndex();");
+        println("if (alreadyParsedRule(" + ruleNum + ",_memoStart)) {");
+        tabs++;
+        if (grammar instanceof LexerGrammar) {
+            println("_returnToken = null;");
+        }
+        if (rblk.returnAction != null) {
+            // actions aren't run while guessing, so the value isn't used
+            String type = extractTypeOfAction(rblk.returnAction, rblk.getLine(), rblk.getColumn());
+            println("return " + JavaCodeGenerator.defaultValueOf(type) + ";");
+        }
+        else {
+            println("return;");
+        }
+        tabs--;
+        println("}");
+        tabs--;
+        println("}");
+        println("boolean _memoOK = false;");
+        println("try { // for memoization");
+        tabs++;
+    }
+
+    /** The default value of a java type, as a literal */
+    private static String defaultValueOf(String type) {
+        type = type.trim();
+        if (type.equals("boolean")) {
+            return "false";
+        }
+        if (type.equals("int") || type.equals("long") || type.equals("short") || type.equals("byte") ||
+                type.equals("char") || type.equals("float") || type.equals("double")) {
+            return "0";
+        }
+        return "null";
+    }
+
     private void GenRuleInvocation(RuleRefElement rr) {
         int oldDefaultLine = defaultLine;
         try {
@@ -3097,6 +3555,50 @@ public class JavaCodeGenerator extends CodeGenerator {
         println("};", JavaCodeGenerator.NO_MAPPING);
     }
 
+    /** Get an LA() test that's equivalent to a syntactic predicate, if
+     *  all the predicate does is match a sequence of tokens (in a parser)
+     *  or chars (in a lexer).
+     *  @return the test, or null if the predicate does anything else
+     */
+    protected String getInlineSynPredTest(SynPredBlock blk) {
+        if (grammar instanceof TreeWalkerGrammar || blk.alternatives.size() != 1) {
+            return null;
+        }
+        Alternative alt = blk.getAlternativeAt(0);
+        if (alt.semPred != null || alt.synPred != null || alt.head == null) {
+            return null;
+        }
+        StringBuffer test = new StringBuffer();
+        int i = 1;
+        for (AlternativeElement e = alt.head; !(e instanceof BlockEndElement); e = e.next, i++) {
+            String term;
+            if (grammar instanceof LexerGrammar && e instanceof CharLiteralElement) {
+                GrammarAtom atom = (GrammarAtom)e;
+                term = "LA(" + i + ")" + (atom.not ? "!=" : "==") + atom.atomText;
+            }
+            else if (grammar instanceof LexerGrammar && e instanceof CharRangeElement) {
+                CharRangeElement r = (CharRangeElement)e;
+                term = "(LA(" + i + ")>=" + r.beginText + " && LA(" + i + ")<=" + r.endText + ")";
+            }
+            else if (grammar instanceof ParserGrammar && (e instanceof TokenRefElement || e instanceof StringLiteralElement)) {
+                GrammarAtom atom = (GrammarAtom)e;
+                String value = atom.atomText.equals("EOF") ? "Token.EOF_TYPE" : getValueString(atom.getType());
+                term = "LA(" + i + ")" + (atom.not ? "!=" : "==") + value;
+            }
+            else {
+                return null;
+            }
+            if (test.length() > 0) {
+                test.append(" && ");
+            }
+            test.append(term);
+        }
+        if (test.length() == 0) {
+            return null;
+        }
+        return "(" + test + ")";
+    }
+
     protected void genSynPred(SynPredBlock blk, String lookaheadExpr) {
         int oldDefaultLine = defaultLine;
         try {
@@ -3105,6 +3607,18 @@ public class JavaCodeGenerator extends CodeGenerator {
             System.out.println("gen=>(" + blk + ")");
         }
 
+        // A predicate that just matches a sequence of tokens or chars can be
+        //   tested with LA(), so it fails without throwing anything
+        String inlineTest = null;
+        if (grammar.inlineSynPreds && !grammar.debuggingOutput) {
+            inlineTest = getInlineSynPredTest(blk);
+        }
+        if (inlineTest != null) {
+            println("boolean synPredMatched" + blk.ID + " = (" + lookaheadExpr + ") && " + inlineTest + ";");
+            println("if ( synPredMatched" + blk.ID + " ) {");
+            return;
+        }
+
         // Dump synpred result variable
             println("boolean synPredMatched" + blk.ID + " = false;");
         // Gen normal lookahead test
@@ -3222,6 +3736,83 @@ public class JavaCodeGenerator extends CodeGenerator {
         }
     }
 
+    /** Generate a static table mapping each XML tag in the vocabulary
+     * (namespace and local name) to its token type, so XML token streams
+     * don't have to work it out from _tokenNames each time they're created.
+     * Tags without a namespace prefix are placed in the grammar's default
+     * namespace. The table also lists the attributes the actions refer to,
+     * in id order (see getXMLAttributeString()).
+     */
+    public void genXMLTagTable() {
+        int oldDefaultLine = defaultLine;
+        try {
+            defaultLine = JavaCodeGenerator.NO_MAPPING;
+        List<String> namespaces = new ArrayList<String>();
+        List<String> localNames = new ArrayList<String>();
+        List<Integer> types = new ArrayList<Integer>();
+        List<String> v = grammar.tokenManager.getVocabulary();
+        for (int i = 0; i < v.size(); i++) {
+            String s = v.get(i);
+            if (s == null || !s.startsWith("\"<") || !s.endsWith(">\"") || s.length() < 4) {
+                continue;
+            }
+            String tag = s.substring(2, s.length() - 2);
+            String namespace = grammar.namespaceMap.get("$DEFAULT");
+            int colon = tag.lastIndexOf(':');
+            if (colon != -1) {
+                namespace = tag.substring(0, colon);
+                tag = tag.substring(colon + 1);
+            }
+            namespaces.add(namespace == null ? "" : namespace);
+            localNames.add(tag);
+            types.add(i);
+        }
+
+            println("");
+            println("public static final XMLTagTable __xml_tagTable = new XMLTagTable(");
+        tabs++;
+            println("new String[] {" + joinLiterals(namespaces) + "},");
+            println("new String[] {" + joinLiterals(localNames) + "},");
+        StringBuilder typeList = new StringBuilder();
+        for (Integer type : types) {
+            if (typeList.length() > 0) {
+                typeList.append(", ");
+            }
+            typeList.append(type);
+        }
+            println("new int[] {" + typeList + "},");
+            println(v.size() + ", " + xmlTokenType("PCDATA") + ", " + xmlTokenType("XML_END_TAG") + ", " + xmlTokenType("OTHER_TAG") + ",");
+            println("new String[] {" + joinLiterals(xmlAttributeNamespaces) + "},");
+            println("new String[] {" + joinLiterals(xmlAttributeLocalNames) + "});");
+        tabs--;
+        } finally {
+            defaultLine = oldDefaultLine;
+        }
+    }
+
+    /** Format strings as a comma-separated list of Java string literals */
+    private String joinLiterals(List<String> strings) {
+        StringBuilder result = new StringBuilder();
+        for (String s : strings) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(charFormatter.literalString(s));
+        }
+        return result.toString();
+    }
+
+    /** Get the token type of one of the special XML tokens, or the code for
+     *  XMLTagTable.UNDEFINED if the grammar doesn't use it
+     */
+    private String xmlTokenType(String name) {
+        TokenSymbol ts = grammar.tokenManager.getTokenSymbol(name);
+        if (ts == null) {
+            return "XMLTagTable.UNDEFINED";
+        }
+        return String.valueOf(ts.getTokenType());
+    }
+
     /** Create and set Integer token type objects that map
      *  to Java Class objects (which AST node to create).
      */
@@ -3637,6 +4228,37 @@ public class JavaCodeGenerator extends CodeGenerator {
         return mangled;
     }
 
+    /** Parsers look attributes up by the id they are assigned in the
+     * generated XML tag table, rather than by namespace and name. The name
+     * is passed too, for tokens that were created without ids.
+     * @param prefix the attribute's namespace prefix, or "" for none
+     * @param attribute the attribute's local name
+     * @return the expression
+     */
+    @Override
+    public String getXMLAttributeString(String prefix, String attribute) {
+        String namespace = "";
+        if (!"".equals(prefix)) {
+            namespace = grammar.namespaceMap.get(prefix);
+        }
+        if (!(grammar instanceof ParserGrammar) || namespace == null) {
+            return super.getXMLAttributeString(prefix, attribute);
+        }
+        int id;
+        for (id = 0; id < xmlAttributeNamespaces.size(); id++) {
+            if (xmlAttributeNamespaces.get(id).equals(namespace) &&
+                xmlAttributeLocalNames.get(id).equals(attribute)) {
+                break;
+            }
+        }
+        if (id == xmlAttributeNamespaces.size()) {
+            xmlAttributeNamespaces.add(namespace);
+            xmlAttributeLocalNames.add(attribute);
+        }
+        return "((XMLToken)__xml_startTag).getAttribute(" + id + ", " +
+            charFormatter.literalString(namespace) + ", " + charFormatter.literalString(attribute) + ")";
+    }
+
     /** Map an identifier to it's corresponding tree-node variable.
      * This is context-sensitive, depending on the rule and alternative
      * being generated
@@ -3751,6 +4373,73 @@ public class JavaCodeGenerator extends CodeGenerator {
         }
     }
 
+    /** Check whether a lexer generated with the lazyText option can really
+     *  take its token text from the input buffer. It can't if it removes
+     *  matched text with '!' or changes the text in an action, as the text
+     *  is never copied out of the input. A warning says why not.
+     * @param g the lexer grammar
+     * @return true if the lexer can use lazy text
+     */
+    private boolean canUseLazyText(LexerGrammar g) {
+        for (RuleSymbol rs : g.rules) {
+            if (!rs.isDefined()) {
+                continue;
+            }
+            String conflict = findLazyTextConflict(rs.getBlock(), true);
+            if (conflict != null) {
+                antxrTool.warning("lazyText option ignored: rule " + CodeGenerator.decodeLexerRuleName(rs.getId()) + " uses " + conflict,
+                                  g.getFilename(), rs.getBlock().getLine(), rs.getBlock().getColumn());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Look for something in a block that keeps a lexer from using lazy text
+     * @param blk the block to check
+     * @param save whether text is being saved where the block appears
+     * @return what was found, or null if nothing was
+     */
+    private String findLazyTextConflict(AlternativeBlock blk, boolean save) {
+        boolean blockSave = save && blk.getAutoGen();
+        if (blk.getInitAction() != null && JavaCodeGenerator.changesText(blk.getInitAction())) {
+            return "an action that changes the token text";
+        }
+        for (Alternative alt : blk.getAlternatives()) {
+            // as in genAlt(), a '!' on the alt or block only matters to the
+            //   elements that would have their text removed
+            boolean altSave = blockSave && alt.getAutoGen();
+            for (AlternativeElement elem = alt.head; elem != null && !(elem instanceof BlockEndElement); elem = elem.next) {
+                if (elem instanceof ActionElement) {
+                    if (JavaCodeGenerator.changesText(((ActionElement)elem).actionText)) {
+                        return "an action that changes the token text";
+                    }
+                }
+                else if (elem instanceof AlternativeBlock) {
+                    // syntactic predicates only guess, so they never save text
+                    if (!(elem instanceof SynPredBlock)) {
+                        String conflict = findLazyTextConflict((AlternativeBlock)elem, altSave);
+                        if (conflict != null) {
+                            return conflict;
+                        }
+                    }
+                }
+                else if (!altSave || elem.getAutoGenType() == GrammarElement.AUTO_GEN_BANG) {
+                    return "'!'";
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Does a lexer action change (or directly use) the saved token text?
+     * @param action the action text
+     * @return true if it might
+     */
+    private static boolean changesText(String action) {
+        return JavaCodeGenerator.TEXT_CHANGE_PATTERN.matcher(action).find();
+    }
+
     /** Lexically process $var and tree-specifiers in the action.
      *  This will replace #id and #(...) with the appropriate
      *  function calls and/or variables etc...
@@ -3831,17 +4520,23 @@ public class JavaCodeGenerator extends CodeGenerator {
             commonLocalVars = "";
             lt1Value = "LT(1)";
             exceptionThrown = "RecognitionException";
-            throwNoViable = "throw new NoViableAltException(LT(1), getFilename());";
+            throwNoViable = "throw noViableAlt();";
         }
         else if (g instanceof LexerGrammar) {
             labeledElementType = "char ";
             labeledElementInit = "'\\0'";
             commonExtraArgs = "";
             commonExtraParams = "boolean _createToken";
-            commonLocalVars = "int _ttype; Token _token=null; int _begin=text.length();";
+            lazyText = ((LexerGrammar)g).lazyText && canUseLazyText((LexerGrammar)g);
+            if (lazyText) {
+                commonLocalVars = "int _ttype; Token _token=null; long _begin=textPosition();";
+            }
+            else {
+                commonLocalVars = "int _ttype; Token _token=null; int _begin=text.length();";
+            }
             lt1Value = "LA(1)";
             exceptionThrown = "RecognitionException";
-            throwNoViable = "throw new NoViableAltForCharException(LA(1), getFilename(), getLine(), getColumn());";
+            throwNoViable = "throw noViableAltForChar();";
         }
         else if (g instanceof TreeWalkerGrammar) {
             labeledElementASTType = "AST";
@@ -3865,7 +4560,7 @@ public class JavaCodeGenerator extends CodeGenerator {
             commonLocalVars = "";
             lt1Value = "(" + labeledElementASTType + ")_t";
             exceptionThrown = "RecognitionException";
-            throwNoViable = "throw new NoViableAltException(_t);";
+            throwNoViable = "throw noViableAlt(_t);";
         }
         else {
             antxrTool.fatalError("panic: Unknown grammar type");
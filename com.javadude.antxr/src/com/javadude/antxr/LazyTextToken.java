@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+/** A token that remembers where its text is in the input buffer, and only
+ *  creates the text String when getText() is first called. Lexers
+ *  generated with the lazyText option create these when their input
+ *  buffer keeps all of its input (see {@link InputBuffer#isRetainingInput()}).
+ *  <p>
+ *  Until then the token refers to the input buffer, so the buffer must
+ *  still be readable. A {@link MappedInputBuffer} is not once it has been
+ *  closed; call getText() on tokens you keep (or on the AST built from
+ *  them) before closing it.
+ */
+public class LazyTextToken extends CommonToken {
+    // where the text comes from, until it's been created
+    protected InputBuffer input;
+    protected long start;
+    protected long end;
+
+    public LazyTextToken() {
+        // nothing
+    }
+
+    public LazyTextToken(int t, String txt) {
+        super(t, txt);
+    }
+
+    /** Set the token's text to the characters between two positions in an
+     *  input buffer
+     */
+    public void setText(InputBuffer input_, long start_, long end_) {
+        text = null;
+        input = input_;
+        start = start_;
+        end = end_;
+    }
+
+    /** The position of the token's first character in its input buffer */
+    public long getStartPosition() {
+        return start;
+    }
+
+    /** The position after the token's last character in its input buffer */
+    public long getEndPosition() {
+        return end;
+    }
+
+    /** Get the token's text, creating it from the input buffer the first
+     *  time
+     *  @throws IllegalStateException If the text hasn't been created yet and
+     *                                the input buffer has been closed
+     */
+    @Override
+    public String getText() {
+        if (input != null) {
+            text = input.getText(start, end);
+            input = null;
+        }
+        return text;
+    }
+
+    @Override
+    public void setText(String s) {
+        text = s;
+        input = null;
+    }
+}
@@ -0,0 +1,471 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javadude.antxr.collections.impl.BitSet;
+
+/**Builds the DFA used by lexers generated with lexerEngine=dfa.
+ * <p>
+ * Each public rule that has no actions, predicates or '!' is turned into
+ * an NFA, with the protected rules it references inlined. The NFAs are
+ * combined, turned into a DFA, and the DFA is minimized. Like flex, the
+ * DFA matches the longest token it can, and if more than one rule matches
+ * that text, the rule defined first wins.
+ * <p>
+ * Characters that no part of the DFA tells apart share a character class,
+ * so the transition table has a column per class rather than per
+ * character. State 0 is the dead state and state 1 is the start state.
+ *
+ * @see com.javadude.antxr.CharScanner#matchDFA
+ */
+class LexerDFA {
+    /** the most DFA states we'll build before giving up */
+    private static final int MAX_STATES = 4096;
+
+    private LexerGrammar grammar;
+    /** the lexer's vocabulary, without EOF_CHAR */
+    private BitSet vocabulary;
+    private int maxChar;
+
+    private List<NFAState> nfaStates = new ArrayList<NFAState>();
+    private NFAState nfaStart;
+    /** the token type of each rule added to the NFA */
+    private List<Integer> ruleTokenTypes = new ArrayList<Integer>();
+    /** the rules being inlined, so we can spot recursion */
+    private List<String> inlining = new ArrayList<String>();
+
+    private char[] charClasses;
+    private int classCount;
+    private char[] transitions;
+    private char[] accepts;
+    private int stateCount;
+
+    /** A state in the NFA. An edge is taken on any character in its set */
+    private static class NFAState {
+        int id;
+        List<NFAState> epsilon = new ArrayList<NFAState>();
+        List<BitSet> edgeSets = new ArrayList<BitSet>();
+        List<NFAState> edgeTargets = new ArrayList<NFAState>();
+        /** the index of the rule that's matched if we get here, or -1 */
+        int rule = -1;
+    }
+
+    LexerDFA(LexerGrammar grammar) {
+        this.grammar = grammar;
+        vocabulary = (BitSet)grammar.charVocabulary.clone();
+        vocabulary.remove(CharScanner.EOF_CHAR);
+        int[] chars = vocabulary.toArray();
+        maxChar = chars.length == 0 ? 0 : chars[chars.length - 1];
+        nfaStart = newState();
+    }
+
+    /** The character class of each character; characters past the end of
+     *  the array are in class 0, which never matches */
+    char[] getCharClasses() {
+        return charClasses;
+    }
+
+    int getClassCount() {
+        return classCount;
+    }
+
+    /** The next state for each state and character class, at
+     *  state * getClassCount() + class */
+    char[] getTransitions() {
+        return transitions;
+    }
+
+    /** The token type matched in each state, or 0 if none is */
+    char[] getAccepts() {
+        return accepts;
+    }
+
+    int getStateCount() {
+        return stateCount;
+    }
+
+    /** Add a public rule to the DFA, if the DFA can match it
+     * @param rule the rule
+     * @param tokenType the type of the tokens the rule creates
+     * @return false if the rule must be matched the usual way
+     */
+    boolean addRule(RuleSymbol rule, int tokenType) {
+        int oldSize = nfaStates.size();
+        NFAState start = newState();
+        inlining.add(rule.getId());
+        NFAState end = buildRule(rule.getBlock(), start);
+        inlining.clear();
+        if (end == null) {
+            nfaStates.subList(oldSize, nfaStates.size()).clear();
+            return false;
+        }
+        end.rule = ruleTokenTypes.size();
+        ruleTokenTypes.add(new Integer(tokenType));
+        nfaStart.epsilon.add(start);
+        return true;
+    }
+
+    private NFAState newState() {
+        NFAState state = new NFAState();
+        state.id = nfaStates.size();
+        nfaStates.add(state);
+        return state;
+    }
+
+    /** Add an edge to a new state
+     * @return the new state
+     */
+    private NFAState edge(NFAState from, BitSet set) {
+        NFAState to = newState();
+        from.edgeSets.add(set);
+        from.edgeTargets.add(to);
+        return to;
+    }
+
+    private NFAState buildRule(RuleBlock rblk, NFAState start) {
+        if (rblk.argAction != null || rblk.returnAction != null || !rblk.exceptionSpecs.isEmpty()) {
+            return null;
+        }
+        return buildBlock(rblk, start, true);
+    }
+
+    /** Build the NFA for a block
+     * @param save whether text is being saved where the block appears
+     * @return the state at the end of the block, or null if the DFA can't
+     *         match it
+     */
+    private NFAState buildBlock(AlternativeBlock blk, NFAState start, boolean save) {
+        if (blk instanceof SynPredBlock || blk.getInitAction() != null || (blk.greedySet && !blk.greedy)) {
+            return null;
+        }
+        boolean blockSave = save && blk.getAutoGen();
+        if (blk.not) {
+            BitSet set = (BitSet)vocabulary.clone();
+            for (Alternative alt : blk.getAlternatives()) {
+                BitSet altSet = atomSet(alt.head);
+                if (altSet == null || !blockSave || !alt.getAutoGen() ||
+                    alt.head.getAutoGenType() == GrammarElement.AUTO_GEN_BANG) {
+                    return null;
+                }
+                set.subtractInPlace(altSet);
+            }
+            return edge(start, set);
+        }
+
+        NFAState end = newState();
+        NFAState loop = start;
+        if (blk instanceof BlockWithImpliedExitPath) {
+            loop = newState();
+            start.epsilon.add(loop);
+            if (blk instanceof ZeroOrMoreBlock) {
+                loop.epsilon.add(end);
+            }
+            end.epsilon.add(loop);
+        }
+        for (Alternative alt : blk.getAlternatives()) {
+            NFAState altEnd = buildAlt(alt, loop, blockSave);
+            if (altEnd == null) {
+                return null;
+            }
+            altEnd.epsilon.add(end);
+        }
+        return end;
+    }
+
+    private NFAState buildAlt(Alternative alt, NFAState start, boolean save) {
+        if (alt.semPred != null || alt.synPred != null || alt.exceptionSpec != null) {
+            return null;
+        }
+        // as in JavaCodeGenerator.genAlt(), a '!' on the alt or block only
+        //   matters to the elements that would have their text removed
+        boolean altSave = save && alt.getAutoGen();
+        NFAState state = newState();
+        start.epsilon.add(state);
+        for (AlternativeElement elem = alt.head; elem != null && !(elem instanceof BlockEndElement); elem = elem.next) {
+            if (elem instanceof AlternativeBlock) {
+                state = buildBlock((AlternativeBlock)elem, state, altSave);
+            }
+            else if (!altSave || elem.getAutoGenType() == GrammarElement.AUTO_GEN_BANG) {
+                return null;
+            }
+            else {
+                state = buildElement(elem, state);
+            }
+            if (state == null) {
+                return null;
+            }
+        }
+        return state;
+    }
+
+    private NFAState buildElement(AlternativeElement elem, NFAState start) {
+        if (elem instanceof StringLiteralElement) {
+            String text = JavaCodeGenerator.unescapeLiteral(((StringLiteralElement)elem).getText());
+            NFAState state = start;
+            for (int i = 0; i < text.length(); i++) {
+                state = edge(state, BitSet.of(text.charAt(i)));
+            }
+            return state;
+        }
+        if (elem instanceof WildcardElement) {
+            return edge(start, vocabulary);
+        }
+        if (elem instanceof CharLiteralElement && ((CharLiteralElement)elem).not) {
+            BitSet set = (BitSet)vocabulary.clone();
+            set.remove(((CharLiteralElement)elem).getType());
+            return edge(start, set);
+        }
+        if (elem instanceof RuleRefElement) {
+            RuleRefElement rr = (RuleRefElement)elem;
+            if (rr.args != null || rr.idAssign != null || inlining.contains(rr.targetRule)) {
+                return null;
+            }
+            RuleSymbol rs = (RuleSymbol)grammar.getSymbol(rr.targetRule);
+            if (rs == null || !rs.isDefined()) {
+                return null;
+            }
+            inlining.add(rr.targetRule);
+            NFAState end = buildRule(rs.getBlock(), start);
+            inlining.remove(inlining.size() - 1);
+            return end;
+        }
+        BitSet set = atomSet(elem);
+        if (set == null) {
+            return null;
+        }
+        return edge(start, set);
+    }
+
+    /** Get the characters matched by a character or range
+     * @return null if elem isn't a character or range
+     */
+    private BitSet atomSet(AlternativeElement elem) {
+        if (elem instanceof CharLiteralElement && !((CharLiteralElement)elem).not) {
+            return BitSet.of(((CharLiteralElement)elem).getType());
+        }
+        if (elem instanceof CharRangeElement) {
+            CharRangeElement range = (CharRangeElement)elem;
+            BitSet set = new BitSet();
+            for (int c = range.begin; c <= range.end; c++) {
+                set.add(c);
+            }
+            return set;
+        }
+        return null;
+    }
+
+    /** Turn the NFA into a minimal DFA
+     * @return false if the DFA would be too big
+     */
+    boolean build() {
+        char[] representatives = buildCharClasses();
+
+        // subset construction
+        List<BitSet> dfaStates = new ArrayList<BitSet>();
+        Map<BitSet, Integer> dfaStateNumbers = new HashMap<BitSet, Integer>();
+        List<int[]> dfaTransitions = new ArrayList<int[]>();
+        dfaStates.add(new BitSet());	// the dead state
+        dfaTransitions.add(new int[classCount]);
+        BitSet start = new BitSet(nfaStates.size());
+        start.add(nfaStart.id);
+        closure(start);
+        dfaStates.add(start);
+        dfaStateNumbers.put(start, new Integer(1));
+        for (int i = 1; i < dfaStates.size(); i++) {
+            int[] members = dfaStates.get(i).toArray();
+            int[] row = new int[classCount];
+            for (int k = 1; k < classCount; k++) {
+                BitSet next = new BitSet(nfaStates.size());
+                for (int m : members) {
+                    NFAState state = nfaStates.get(m);
+                    for (int e = 0; e < state.edgeSets.size(); e++) {
+                        if (state.edgeSets.get(e).member(representatives[k])) {
+                            next.add(state.edgeTargets.get(e).id);
+                        }
+                    }
+                }
+                if (next.nil()) {
+                    continue;
+                }
+                closure(next);
+                Integer n = dfaStateNumbers.get(next);
+                if (n == null) {
+                    if (dfaStates.size() >= LexerDFA.MAX_STATES) {
+                        return false;
+                    }
+                    n = new Integer(dfaStates.size());
+                    dfaStates.add(next);
+                    dfaStateNumbers.put(next, n);
+                }
+                row[k] = n.intValue();
+            }
+            dfaTransitions.add(row);
+        }
+
+        // the token type each state accepts; the earliest rule wins
+        int[] dfaAccepts = new int[dfaStates.size()];
+        for (int i = 1; i < dfaStates.size(); i++) {
+            int rule = Integer.MAX_VALUE;
+            for (int m : dfaStates.get(i).toArray()) {
+                int r = nfaStates.get(m).rule;
+                if (r >= 0 && r < rule) {
+                    rule = r;
+                }
+            }
+            if (rule != Integer.MAX_VALUE) {
+                dfaAccepts[i] = ruleTokenTypes.get(rule).intValue();
+            }
+        }
+
+        minimize(dfaTransitions, dfaAccepts);
+        return true;
+    }
+
+    /** Add the states reachable through epsilon edges to a set of states */
+    private void closure(BitSet states) {
+        int[] work = states.toArray();
+        List<NFAState> stack = new ArrayList<NFAState>();
+        for (int id : work) {
+            stack.add(nfaStates.get(id));
+        }
+        while (!stack.isEmpty()) {
+            NFAState state = stack.remove(stack.size() - 1);
+            for (NFAState next : state.epsilon) {
+                if (!states.member(next.id)) {
+                    states.add(next.id);
+                    stack.add(next);
+                }
+            }
+        }
+    }
+
+    /** Split the vocabulary into classes of characters that every edge
+     *  in the NFA treats the same way
+     * @return a character in each class
+     */
+    private char[] buildCharClasses() {
+        int[] classes = new int[maxChar + 1];
+        for (int c = 0; c <= maxChar; c++) {
+            classes[c] = vocabulary.member(c) ? 1 : 0;
+        }
+        int nextClass = 2;
+        Map<BitSet, Boolean> seen = new HashMap<BitSet, Boolean>();
+        for (NFAState state : nfaStates) {
+            for (BitSet set : state.edgeSets) {
+                if (seen.put(set, Boolean.TRUE) != null) {
+                    continue;
+                }
+                // move the characters in the set to a new class, one for
+                //   each class they're in now
+                Map<Integer, Integer> split = new HashMap<Integer, Integer>();
+                for (int c = 0; c <= maxChar; c++) {
+                    if (classes[c] != 0 && set.member(c)) {
+                        Integer newClass = split.get(new Integer(classes[c]));
+                        if (newClass == null) {
+                            newClass = new Integer(nextClass++);
+                            split.put(new Integer(classes[c]), newClass);
+                        }
+                        classes[c] = newClass.intValue();
+                    }
+                }
+            }
+        }
+
+        // number the classes that are left from 1
+        int[] numbers = new int[nextClass];
+        List<Character> representatives = new ArrayList<Character>();
+        representatives.add(new Character((char)0));
+        charClasses = new char[maxChar + 1];
+        for (int c = 0; c <= maxChar; c++) {
+            if (classes[c] == 0) {
+                continue;
+            }
+            if (numbers[classes[c]] == 0) {
+                numbers[classes[c]] = representatives.size();
+                representatives.add(new Character((char)c));
+            }
+            charClasses[c] = (char)numbers[classes[c]];
+        }
+        classCount = representatives.size();
+        char[] result = new char[classCount];
+        for (int k = 0; k < classCount; k++) {
+            result[k] = representatives.get(k).charValue();
+        }
+        return result;
+    }
+
+    /** Merge equivalent DFA states and build the final tables */
+    private void minimize(List<int[]> dfaTransitions, int[] dfaAccepts) {
+        int n = dfaAccepts.length;
+        // start with the dead state on its own, and the others grouped by
+        //   the token they accept
+        int[] group = new int[n];
+        Map<Integer, Integer> byAccept = new HashMap<Integer, Integer>();
+        int groups = 1;
+        for (int s = 1; s < n; s++) {
+            Integer g = byAccept.get(new Integer(dfaAccepts[s]));
+            if (g == null) {
+                g = new Integer(groups++);
+                byAccept.put(new Integer(dfaAccepts[s]), g);
+            }
+            group[s] = g.intValue();
+        }
+
+        // split groups until all of the states in each group move to the
+        //   same groups
+        for (;;) {
+            Map<String, Integer> bySignature = new HashMap<String, Integer>();
+            int[] newGroup = new int[n];
+            int newGroups = 1;
+            for (int s = 1; s < n; s++) {
+                int[] row = dfaTransitions.get(s);
+                int[] signature = new int[classCount + 1];
+                signature[0] = group[s];
+                for (int k = 0; k < classCount; k++) {
+                    signature[k + 1] = group[row[k]];
+                }
+                String key = Arrays.toString(signature);
+                Integer g = bySignature.get(key);
+                if (g == null) {
+                    g = new Integer(newGroups++);
+                    bySignature.put(key, g);
+                }
+                newGroup[s] = g.intValue();
+            }
+            group = newGroup;
+            if (newGroups == groups) {
+                break;
+            }
+            groups = newGroups;
+        }
+
+        // the start state is in group 1, since it was numbered first
+        stateCount = groups;
+        transitions = new char[stateCount * classCount];
+        accepts = new char[stateCount];
+        for (int s = 1; s < n; s++) {
+            int g = group[s];
+            int[] row = dfaTransitions.get(s);
+            for (int k = 0; k < classCount; k++) {
+                transitions[g * classCount + k] = (char)group[row[k]];
+            }
+            accepts[g] = (char)dfaAccepts[s];
+        }
+    }
+}
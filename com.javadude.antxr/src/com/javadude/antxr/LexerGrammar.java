@@ -26,6 +26,11 @@ class LexerGrammar extends Grammar {
     protected boolean caseSensitiveLiterals = true;
     /** true if the lexer generates case-sensitive literals testing */
     protected boolean caseSensitive = true;
+    /** true if tokens take their text from the input buffer when they can */
+    protected boolean lazyText = false;
+    /** true if public rules without actions or predicates are matched by
+     *  a table-driven DFA (lexerEngine=dfa) */
+    protected boolean dfaEngine = false;
     /** true if lexer is to ignore all unrecognized tokens */
     protected boolean filterMode = false;
 
@@ -140,6 +145,30 @@ class LexerGrammar extends Grammar {
             }
             return true;
         }
+        if (key.equals("lazyText")) {
+            if (s.equals("true")) {
+                lazyText = true;
+            }
+            else if (s.equals("false")) {
+                lazyText = false;
+            }
+            else {
+                antxrTool.warning("lazyText option must be true or false", getFilename(), value.getLine(), value.getColumn());
+            }
+            return true;
+        }
+        if (key.equals("lexerEngine")) {
+            if (s.equals("dfa")) {
+                dfaEngine = true;
+            }
+            else if (s.equals("recursive")) {
+                dfaEngine = false;
+            }
+            else {
+                antxrTool.warning("lexerEngine option must be dfa or recursive", getFilename(), value.getLine(), value.getColumn());
+            }
+            return true;
+        }
         if (key.equals("caseSensitiveLiterals")) {
             if (s.equals("true")) {
                 caseSensitiveLiterals = true;
@@ -256,6 +256,7 @@ public class MakeGrammar extends DefineGrammarSymbols {
 
         // Lexer rules do not generate default error handling
         rb.setDefaultErrorHandler(grammar.getDefaultErrorHandler());
+        rb.setMemoize(grammar.getMemoize());
 
         ruleBlock = rb;
         blocks.push(new BlockContext()); // enter new context
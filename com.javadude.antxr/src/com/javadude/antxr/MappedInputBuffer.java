@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**A Stream of characters fed to the lexer straight out of a memory-mapped
+ * file.
+ * <p>
+ * Unlike {@link CharBuffer} and {@link ByteBuffer}, nothing is copied into a
+ * queue: LA(i) decodes the i'th character from the current position in the
+ * mapping, and mark()/rewind() just remember and restore that position (the
+ * marker is an index into a stack of positions, so it works anywhere in a
+ * file of any size). The
+ * whole file stays available, so guessing never makes the buffer grow.
+ * <p>
+ * Two decodings are supported. {@link #ASCII} turns each byte into one
+ * character (bytes above 0x7f become the Latin-1 characters, as
+ * {@link ByteBuffer} does). {@link #UTF8} decodes UTF-8; characters outside
+ * the Basic Multilingual Plane are returned as a surrogate pair, a leading
+ * byte order mark is skipped, and malformed bytes become U+FFFD.
+ * <p>
+ * Files larger than 2GB are mapped one window at a time.
+ *
+ * @see com.javadude.antxr.InputBuffer
+ */
+public class MappedInputBuffer extends InputBuffer {
+    /** Decode each byte as a single character */
+    public static final int ASCII = 0;
+    /** Decode the bytes as UTF-8 */
+    public static final int UTF8 = 1;
+
+    /** the largest part of the file mapped at once, by default */
+    public static final int DEFAULT_WINDOW_SIZE = Integer.MAX_VALUE;
+    /** how much of the file before a position we keep mapped when we move
+     *  the window, so rewinding a little doesn't remap (at most half the
+     *  window, so reading on doesn't remap right away either) */
+    private static final int WINDOW_BACKUP = 64 * 1024;
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private int windowLength;
+    private int windowSize;
+    private long fileSize;
+    private boolean utf8;
+
+    // The current position. For ASCII, this is the file offset; for UTF-8,
+    //   it's the file offset times two, plus one if we're on the second
+    //   half of a surrogate pair
+    private long start;
+    private long position;
+
+    // the marked positions; a marker is an index into this array
+    private long[] marks = new long[8];
+
+
+    /** Create a buffer that reads an ASCII file */
+    public MappedInputBuffer(File file) throws IOException {
+        this(file, MappedInputBuffer.ASCII);
+    }
+
+    /** Create a buffer that reads a file
+     *  @param encoding {@link #ASCII} or {@link #UTF8}
+     */
+    public MappedInputBuffer(File file, int encoding) throws IOException {
+        this(file, encoding, MappedInputBuffer.DEFAULT_WINDOW_SIZE);
+    }
+
+    /** Create a buffer that reads a file, mapping at most windowSize bytes
+     *  of it at a time. You only need this to limit how much address space
+     *  the mapping uses.
+     *  @param encoding {@link #ASCII} or {@link #UTF8}
+     */
+    public MappedInputBuffer(File file, int encoding, int windowSize) throws IOException {
+        super();
+        if (encoding != MappedInputBuffer.ASCII && encoding != MappedInputBuffer.UTF8) {
+            throw new IllegalArgumentException("encoding must be ASCII or UTF8");
+        }
+        if (windowSize <= MappedInputBuffer.WINDOW_BACKUP) {
+            throw new IllegalArgumentException("windowSize must be > " + MappedInputBuffer.WINDOW_BACKUP);
+        }
+        this.file = file;
+        this.utf8 = encoding == MappedInputBuffer.UTF8;
+        this.windowSize = windowSize;
+        randomAccessFile = new RandomAccessFile(file, "r");
+        boolean mapped = false;
+        try {
+            channel = randomAccessFile.getChannel();
+            fileSize = channel.size();
+            mapWindow(0);
+            mapped = true;
+        }
+        finally {
+            if (!mapped) {
+                randomAccessFile.close();
+            }
+        }
+        if (utf8 && fileSize >= 3 && byteAt(0) == 0xEF && byteAt(1) == 0xBB && byteAt(2) == 0xBF) {
+            start = 3 << 1;
+        }
+        position = start;
+    }
+
+    /** Map the part of the file around a file offset */
+    private void mapWindow(long offset) throws IOException {
+        long windowOffset = offset;
+        if (windowSize < fileSize) {
+            int backup = Math.min(MappedInputBuffer.WINDOW_BACKUP, windowSize / 2);
+            windowOffset = Math.max(0, Math.min(offset - backup, fileSize - windowSize));
+        }
+        windowLength = (int) Math.min(fileSize - windowOffset, windowSize);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowOffset, windowLength);
+        windowStart = windowOffset;
+    }
+
+    /** Get the byte at a file offset, which must be less than the file size */
+    private int byteAt(long offset) {
+        long i = offset - windowStart;
+        if (i < 0 || i >= windowLength) {
+            if (window == null) {
+                throw new IllegalStateException("Cannot read " + file + "; the buffer has been closed");
+            }
+            try {
+                mapWindow(offset);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Cannot map " + file + ". See nested exception.", e);
+            }
+            i = offset - windowStart;
+        }
+        return window.get((int) i) & 0xff;
+    }
+
+    /** Decode the UTF-8 sequence at a file offset. Malformed bytes are
+     *  replaced the way the JDK's decoder replaces them: the start of a
+     *  sequence that breaks off (at a bad byte or the end of the file) is
+     *  replaced as a whole, a byte that can't start a sequence (including
+     *  the first byte of an overlong form or a value above U+10FFFF) is
+     *  replaced on its own, and so is an encoded surrogate.
+     *  @return the code point, or minus the number of bytes that one
+     *          replacement character stands for
+     */
+    private int decode(long offset) {
+        int b = byteAt(offset);
+        if (b < 0x80) {
+            return b;
+        }
+        if (b < 0xc2 || b > 0xf4) {
+            return -1;
+        }
+        int length = MappedInputBuffer.sequenceLength(b);
+        int codePoint = b & (0x7f >> length);
+        for (int i = 1; i < length; i++) {
+            if (offset + i >= fileSize) {
+                return -i;
+            }
+            int c = byteAt(offset + i);
+            // the second byte also rules out overlong forms and values
+            //   above U+10FFFF
+            if ((c & 0xc0) != 0x80 ||
+                i == 1 && (b == 0xe0 && c < 0xa0 || b == 0xf0 && c < 0x90 || b == 0xf4 && c > 0x8f)) {
+                return -i;
+            }
+            codePoint = (codePoint << 6) | (c & 0x3f);
+        }
+        if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            return -length;
+        }
+        return codePoint;
+    }
+
+    /** The number of bytes in a UTF-8 sequence, given its first byte, or 1
+     *  if it can't start a sequence */
+    private static int sequenceLength(int b) {
+        if ((b & 0xe0) == 0xc0) {
+            return 2;
+        }
+        if ((b & 0xf0) == 0xe0) {
+            return 3;
+        }
+        if ((b & 0xf8) == 0xf0) {
+            return 4;
+        }
+        return 1;
+    }
+
+    /** Get the character at a position */
+    private char charAt(long pos) {
+        if (!utf8) {
+            return pos < fileSize ? (char) byteAt(pos) : CharScanner.EOF_CHAR;
+        }
+        long offset = pos >>> 1;
+        if (offset >= fileSize) {
+            return CharScanner.EOF_CHAR;
+        }
+        int codePoint = decode(offset);
+        if (codePoint < 0) {
+            return MappedInputBuffer.REPLACEMENT_CHAR;
+        }
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            return (char) codePoint;
+        }
+        if ((pos & 1) == 0) {
+            return Character.highSurrogate(codePoint);
+        }
+        return Character.lowSurrogate(codePoint);
+    }
+
+    /** Get the position of the character after the one at a position */
+    private long next(long pos) {
+        if (!utf8) {
+            return pos < fileSize ? pos + 1 : pos;
+        }
+        long offset = pos >>> 1;
+        if (offset >= fileSize) {
+            return pos;
+        }
+        int b = byteAt(offset);
+        if (b < 0x80) {
+            return pos + 2;
+        }
+        int codePoint = decode(offset);
+        if (codePoint < 0) {
+            return (offset - codePoint) << 1;
+        }
+        if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT && (pos & 1) == 0) {
+            return pos + 1;
+        }
+        return (offset + MappedInputBuffer.sequenceLength(b)) << 1;
+    }
+
+    /** Release the mapping and close the file. Tokens created with
+     *  {@link LazyTextToken} still refer to the buffer, so call getText()
+     *  on any you keep <i>before</i> closing it; afterwards their getText()
+     *  throws IllegalStateException.
+     */
+    public void close() throws IOException {
+        window = null;
+        windowLength = 0;
+        randomAccessFile.close();
+    }
+
+    /** Mark another character as consumed */
+    @Override
+    public void consume() {
+        position = next(position);
+    }
+
+    /** The whole file is always available */
+    @Override
+    public boolean isRetainingInput() {
+        return true;
+    }
+
+    @Override
+    public long getPosition() {
+        return position;
+    }
+
+    /** The position is used as the index; it grows by one or two for
+     *  each character */
+    @Override
+    public long index() {
+        return position;
+    }
+
+    @Override
+    public long firstIndex() {
+        return nMarkers == 0 ? position : marks[0];
+    }
+
+    @Override
+    public void appendText(long start, long end, ANTXRStringBuffer buffer) {
+        if (!utf8) {
+            for (long pos = start; pos < end; pos++) {
+                buffer.append((char) byteAt(pos));
+            }
+            return;
+        }
+        for (long pos = start; pos < end; pos = next(pos)) {
+            buffer.append(charAt(pos));
+        }
+    }
+
+    /** Nothing to do; the whole file is always available */
+    @Override
+    public void fill(int amount) throws CharStreamException {
+        // nothing to fill
+    }
+
+    /** There's no lookahead buffer; only the next character is returned */
+    @Override
+    public String getLAChars() {
+        return getText(position, next(position));
+    }
+
+    @Override
+    public String getMarkedChars() {
+        if (nMarkers == 0) {
+            return "";
+        }
+        return getText(marks[0], position);
+    }
+
+    /** Get a lookahead character */
+    @Override
+    public char LA(int i) throws CharStreamException {
+        if (!utf8) {
+            long pos = position + i - 1;
+            return pos < fileSize ? (char) byteAt(pos) : CharScanner.EOF_CHAR;
+        }
+        long pos = position;
+        for (int j = 1; j < i; j++) {
+            pos = next(pos);
+        }
+        return charAt(pos);
+    }
+
+    /** Get a lookahead character with its case folded. There's no queue
+     *  to fold the characters in, so they're folded as they're read.
+     */
+    @Override
+    public char foldedLA(int i) throws CharStreamException {
+        return caseFolding[LA(i)];
+    }
+
+    /**Return an integer marker that can be used to rewind the buffer to
+     * its current state.
+     */
+    @Override
+    public int mark() {
+        if (nMarkers == marks.length) {
+            long[] newMarks = new long[marks.length * 2];
+            System.arraycopy(marks, 0, newMarks, 0, nMarkers);
+            marks = newMarks;
+        }
+        marks[nMarkers] = position;
+        return nMarkers++;
+    }
+
+    /**Rewind the character buffer to a marker.
+     * @param mark Marker returned previously from mark()
+     */
+    @Override
+    public void rewind(int mark) {
+        position = marks[mark];
+        nMarkers--;
+    }
+
+    /** Reset the input buffer to the start of the file
+     */
+    @Override
+    public void reset() {
+        super.reset();
+        position = start;
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.util.Arrays;
+
+/**Remembers where one rule stopped, or that it failed, for each input
+ * index it was started at while guessing. Rules generated with the
+ * memoize option look themselves up here before parsing, so nested or
+ * repeated syntactic predicates don't re-parse the same input with the
+ * same rule over and over.
+ * <p>
+ * Indexes are the ones returned by TokenBuffer.index() or
+ * InputBuffer.index(). The table is an open-addressed hash of primitive
+ * longs, and holds at most <tt>limit</tt> results. When it's full, results
+ * for indexes that the input buffer can no longer rewind to are dropped;
+ * if that doesn't free enough room, the table is emptied.
+ *
+ * @see com.javadude.antxr.Parser#setMemoLimit(int)
+ * @see com.javadude.antxr.CharScanner#setMemoLimit(int)
+ */
+public class MemoTable {
+    /** The number of results kept for each rule, by default */
+    public static final int DEFAULT_LIMIT = 64 * 1024;
+    /** Returned by get() when the rule hasn't been tried at an index */
+    public static final long UNKNOWN = -1;
+    /** Returned by get() when the rule failed at an index */
+    public static final long FAILED = -2;
+
+    private static final long EMPTY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    /** start indexes, or EMPTY */
+    private long[] starts;
+    /** stop index (or FAILED) for the start index at the same slot */
+    private long[] stops;
+    /** starts.length-1 for quick modulos */
+    private int mask;
+    private int size;
+    private int limit;
+
+    /** Create a table holding at most DEFAULT_LIMIT results */
+    public MemoTable() {
+        this(MemoTable.DEFAULT_LIMIT);
+    }
+
+    /** Create a table holding at most limit results */
+    public MemoTable(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        this.limit = limit;
+        init(MemoTable.MIN_CAPACITY);
+    }
+
+    private void init(int capacity) {
+        starts = new long[capacity];
+        stops = new long[capacity];
+        Arrays.fill(starts, MemoTable.EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int slot(long start) {
+        int h = (int) (start ^ (start >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /** Get the stop index recorded for a start index
+     *  @return the stop index, FAILED or UNKNOWN
+     */
+    public long get(long start) {
+        for (int i = slot(start); ; i = (i + 1) & mask) {
+            long s = starts[i];
+            if (s == start) {
+                return stops[i];
+            }
+            if (s == MemoTable.EMPTY) {
+                return MemoTable.UNKNOWN;
+            }
+        }
+    }
+
+    /** Record where the rule stopped when started at an index
+     *  @param start the index the rule started at
+     *  @param stop the index after the last thing it matched, or FAILED
+     *  @param firstIndex the smallest index the input can still be rewound
+     *         to; results for indexes before it are dropped if the table
+     *         is full
+     */
+    public void put(long start, long stop, long firstIndex) {
+        if (size >= limit) {
+            evict(firstIndex);
+        }
+        else if ((size + 1) * 2 > starts.length) {
+            rehash(starts.length * 2, Long.MIN_VALUE);
+        }
+        insert(start, stop);
+    }
+
+    private void insert(long start, long stop) {
+        int i = slot(start);
+        while (starts[i] != MemoTable.EMPTY && starts[i] != start) {
+            i = (i + 1) & mask;
+        }
+        if (starts[i] == MemoTable.EMPTY) {
+            starts[i] = start;
+            size++;
+        }
+        stops[i] = stop;
+    }
+
+    /** Drop the results that can't be used any more, or everything if
+     *  that leaves the table more than three quarters full */
+    private void evict(long firstIndex) {
+        int used = 0;
+        for (long start : starts) {
+            if (start != MemoTable.EMPTY && start >= firstIndex) {
+                used++;
+            }
+        }
+        if (used > limit - limit / 4) {
+            clear();
+        }
+        else {
+            rehash(starts.length, firstIndex);
+        }
+    }
+
+    /** Move the results for indexes >= firstIndex to new arrays */
+    private void rehash(int capacity, long firstIndex) {
+        long[] oldStarts = starts;
+        long[] oldStops = stops;
+        init(capacity);
+        for (int i = 0; i < oldStarts.length; i++) {
+            if (oldStarts[i] != MemoTable.EMPTY && oldStarts[i] >= firstIndex) {
+                insert(oldStarts[i], oldStops[i]);
+            }
+        }
+    }
+
+    /** Forget all results */
+    public void clear() {
+        if (starts.length > MemoTable.MIN_CAPACITY) {
+            init(MemoTable.MIN_CAPACITY);
+        }
+        else {
+            Arrays.fill(starts, MemoTable.EMPTY);
+            size = 0;
+        }
+    }
+
+    /** The number of results held */
+    public int size() {
+        return size;
+    }
+}
@@ -49,6 +49,13 @@ public class MismatchedCharException extends RecognitionException {
         super("Mismatched char");
     }
 
+    /** Create an exception that may skip recording its stack trace, like
+     *  the ones thrown while guessing
+     */
+    protected MismatchedCharException(String s, boolean writableStackTrace) {
+        super(s, writableStackTrace);
+    }
+
     // Expected range / not range
     public MismatchedCharException(char c, char lower, char upper_, boolean matchNot, CharScanner scanner_) {
         super("Mismatched char", scanner_.getFilename(), scanner_.getLine(), scanner_.getColumn());
@@ -50,6 +50,13 @@ public class MismatchedTokenException extends RecognitionException {
         super("Mismatched Token: expecting any AST node", "<AST>", -1, -1);
     }
 
+    /** Create an exception that may skip recording its stack trace, like
+     *  the ones thrown while guessing
+     */
+    protected MismatchedTokenException(String s, boolean writableStackTrace) {
+        super(s, writableStackTrace);
+    }
+
     // Expected range / not range
     public MismatchedTokenException(String[] tokenNames_, AST node_, int lower, int upper_, boolean matchNot) {
         super("Mismatched Token", "<AST>", node_==null? -1:node_.getLine(), node_==null? -1:node_.getColumn());
@@ -76,6 +76,21 @@ public abstract class Parser {
     /** Used to keep track of indentdepth for traceIn/Out */
     protected int traceDepth = 0;
 
+    /** Results of rules generated with the memoize option, by rule number */
+    private MemoTable[] memoTables;
+
+    /** The buffer the memoized results are for, and its reset count when
+     *  they were recorded; indexes from before a reset mean nothing after
+     */
+    private TokenBuffer memoInput;
+    private int memoResetCount;
+
+    /** The number of results kept for each memoized rule */
+    private int memoLimit = MemoTable.DEFAULT_LIMIT;
+
+    /** Thrown when something doesn't match while guessing */
+    private MismatchedTokenException guessFailure;
+
     public Parser() {
         this(new ParserSharedInputState());
     }
@@ -128,6 +143,7 @@ public abstract class Parser {
 
     public void setInputState(ParserSharedInputState state) {
         inputState = state;
+        clearMemo();
     }
 
     public String getTokenName(int num) {
@@ -138,6 +154,28 @@ public abstract class Parser {
         return tokenNames;
     }
 
+    /** Get the exception thrown when something doesn't match while
+     *  guessing. Rules rethrow exceptions while guessing, so all it does is
+     *  make the syntactic predicate fail; the same one is thrown every time
+     *  and it has no stack trace, which made failed guesses expensive.
+     */
+    protected MismatchedTokenException guessFailure() {
+        if (guessFailure == null) {
+            guessFailure = new MismatchedTokenException("syntactic predicate failed", false);
+        }
+        return guessFailure;
+    }
+
+    /** Get the exception generated code throws when no alternative
+     *  matches LT(1)
+     */
+    protected RecognitionException noViableAlt() throws TokenStreamException {
+        if (inputState.guessing > 0) {
+            return guessFailure();
+        }
+        return new NoViableAltException(LT(1), getFilename());
+    }
+
     public boolean isDebugMode() {
         return false;
     }
@@ -156,12 +194,100 @@ public abstract class Parser {
         return inputState.input.mark();
     }
 
+    /** Set the number of results each memoized rule keeps. When a rule
+     *  has this many, the ones for input that can't be rewound to are
+     *  dropped, or all of them if that isn't enough.
+     */
+    public void setMemoLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be > 0");
+        }
+        memoLimit = limit;
+        clearMemo();
+    }
+
+    /** Forget the results of memoized rules. This is done automatically
+     *  when the input state or token buffer is replaced or reset.
+     */
+    public void clearMemo() {
+        memoTables = null;
+    }
+
+    /** Forget the results of memoized rules if they were recorded for a
+     *  different buffer, or before the buffer was reset
+     */
+    private void checkMemoInput() {
+        TokenBuffer input = inputState.input;
+        if (input != memoInput || input.getResetCount() != memoResetCount) {
+            memoTables = null;
+            memoInput = input;
+            memoResetCount = input.getResetCount();
+        }
+    }
+
+    /** The index of the next token, used to memoize rules */
+    protected long memoIndex() {
+        return inputState.input.index();
+    }
+
+    /** See if a memoized rule has been tried at an index before. If it
+     *  matched, the tokens it matched are consumed again.
+     *  @param rule the rule's number
+     *  @param start the index returned by memoIndex()
+     *  @return true if the rule matched at the index before, false if it
+     *          hasn't been tried
+     *  @throws RecognitionException if the rule failed at the index
+     */
+    protected boolean alreadyParsedRule(int rule, long start) throws RecognitionException, TokenStreamException {
+        checkMemoInput();
+        if (memoTables == null || rule >= memoTables.length || memoTables[rule] == null) {
+            return false;
+        }
+        long stop = memoTables[rule].get(start);
+        if (stop == MemoTable.UNKNOWN) {
+            return false;
+        }
+        if (stop == MemoTable.FAILED) {
+            throw guessFailure();
+        }
+        while (memoIndex() < stop) {
+            consume();
+        }
+        return true;
+    }
+
+    /** Record whether a memoized rule matched
+     *  @param rule the rule's number
+     *  @param start the index returned by memoIndex() when the rule started
+     *  @param succeeded true if the rule matched; the stop index is the
+     *         current one
+     */
+    protected void memoize(int rule, long start, boolean succeeded) {
+        checkMemoInput();
+        if (memoTables == null) {
+            memoTables = new MemoTable[rule + 1];
+        }
+        else if (rule >= memoTables.length) {
+            MemoTable[] tables = new MemoTable[rule + 1];
+            System.arraycopy(memoTables, 0, tables, 0, memoTables.length);
+            memoTables = tables;
+        }
+        if (memoTables[rule] == null) {
+            memoTables[rule] = new MemoTable(memoLimit);
+        }
+        long stop = succeeded ? memoIndex() : MemoTable.FAILED;
+        memoTables[rule].put(start, stop, inputState.input.firstIndex());
+    }
+
     /**Make sure current lookahead symbol matches token type <tt>t</tt>.
      * Throw an exception upon mismatch, which is catch by either the
      * error handler or by the syntactic predicate.
      */
     public void match(int t) throws MismatchedTokenException, TokenStreamException {
         if (LA(1) != t) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedTokenException(tokenNames, LT(1), t, false, getFilename());
         }
         // mark token as consumed -- fetch next token deferred until LA/LT
@@ -174,6 +300,9 @@ public abstract class Parser {
      */
     public void match(BitSet b) throws MismatchedTokenException, TokenStreamException {
         if (!b.member(LA(1))) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedTokenException(tokenNames, LT(1), b, false, getFilename());
         }
         // mark token as consumed -- fetch next token deferred until LA/LT
@@ -182,6 +311,9 @@ public abstract class Parser {
 
     public void matchNot(int t) throws MismatchedTokenException, TokenStreamException {
         if (LA(1) == t) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             // Throws inverted-sense exception
             throw new MismatchedTokenException(tokenNames, LT(1), t, true, getFilename());
         }
@@ -248,6 +380,13 @@ public abstract class Parser {
         astFactory.setASTNodeClass(cl);
     }
 
+    /** Specify the factory that creates nodes during tree building,
+     *  rather than a node class
+     */
+    public void setASTNodeFactory(ASTNodeFactory factory) {
+        astFactory.setASTNodeFactory(factory);
+    }
+
     /** Specify the type of node to create during tree building; use setASTNodeClass now
      *  to be consistent with Token Object Type accessor.
      *  @deprecated since 2.7.1
@@ -264,6 +403,7 @@ public abstract class Parser {
     /** Set or change the input token buffer */
     public void setTokenBuffer(TokenBuffer t) {
         inputState.input = t;
+        clearMemo();
     }
 
     public void traceIndent() {
@@ -53,6 +53,16 @@ public class RecognitionException extends ANTXRException {
         column = column_;
     }
 
+    /** Create an exception that may skip recording its stack trace, like
+     *  the ones thrown while guessing
+     */
+    protected RecognitionException(String s, boolean writableStackTrace) {
+        super(s, writableStackTrace);
+        fileName = null;
+        line = -1;
+        column = -1;
+    }
+
     public String getFilename() {
         return fileName;
     }
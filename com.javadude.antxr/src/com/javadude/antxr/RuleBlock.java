@@ -47,6 +47,7 @@ public class RuleBlock extends AlternativeBlock {
 
     // grammar-settable options
     protected boolean defaultErrorHandler = true;
+    protected boolean memoize = false;
     protected String ignoreRule = null;
 
     /** Construct a named rule. */
@@ -101,6 +102,10 @@ public class RuleBlock extends AlternativeBlock {
         return endNode;
     }
 
+    public boolean getMemoize() {
+        return memoize;
+    }
+
     public String getIgnoreRule() {
         return ignoreRule;
     }
@@ -133,6 +138,10 @@ public class RuleBlock extends AlternativeBlock {
         defaultErrorHandler = value;
     }
 
+    public void setMemoize(boolean value) {
+        memoize = value;
+    }
+
     public void setEndElement(RuleEndElement re) {
         endNode = re;
     }
@@ -150,6 +159,17 @@ public class RuleBlock extends AlternativeBlock {
                 grammar.antxrTool.error("Value for defaultErrorHandler must be true or false", grammar.getFilename(), key.getLine(), key.getColumn());
             }
         }
+        else if (key.getText().equals("memoize")) {
+            if (value.getText().equals("true")) {
+                memoize = true;
+            }
+            else if (value.getText().equals("false")) {
+                memoize = false;
+            }
+            else {
+                grammar.antxrTool.error("Value for memoize must be true or false", grammar.getFilename(), key.getLine(), key.getColumn());
+            }
+        }
         else if (key.getText().equals("testLiterals")) {
             if (!(grammar instanceof LexerGrammar)) {
                 grammar.antxrTool.error("testLiterals option only valid for lexer rules", grammar.getFilename(), key.getLine(), key.getColumn());
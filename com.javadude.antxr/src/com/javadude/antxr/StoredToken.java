@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+/** A view of a token in a {@link TokenStore}. It holds only the store and
+ *  the token's index; everything else is read from (and written to) the
+ *  store.
+ */
+public class StoredToken extends Token {
+    private final TokenStore store;
+    private final int index;
+
+    public StoredToken(TokenStore store, int index) {
+        super();
+        this.store = store;
+        this.index = index;
+    }
+
+    public TokenStore getStore() {
+        return store;
+    }
+
+    /** The token's index in its store */
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public int getType() {
+        return store.getType(index);
+    }
+
+    @Override
+    public void setType(int t) {
+        store.setType(index, t);
+    }
+
+    @Override
+    public String getText() {
+        return store.getText(index);
+    }
+
+    @Override
+    public void setText(String t) {
+        store.setText(index, t);
+    }
+
+    @Override
+    public int getLine() {
+        return store.getLine(index);
+    }
+
+    @Override
+    public void setLine(int l) {
+        store.setLine(index, l);
+    }
+
+    @Override
+    public int getColumn() {
+        return store.getColumn(index);
+    }
+
+    @Override
+    public void setColumn(int c) {
+        store.setColumn(index, c);
+    }
+
+    /** Views of the same token are equal */
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StoredToken)) {
+            return false;
+        }
+        StoredToken other = (StoredToken)o;
+        return store == other.store && index == other.index;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(store) * 31 + index;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + index + ":\"" + getText() + "\",<" + getType() + ">,line=" + getLine() + ",col=" + getColumn() + "]";
+    }
+}
@@ -45,6 +45,16 @@ public class TokenBuffer {
     // Circular queue
     TokenQueue queue;
 
+    // Number of tokens removed from the front of the queue
+    long nRemoved = 0;
+
+    // Number of calls to reset(), so memoized results from before one
+    //   can be told apart
+    private int resetCount = 0;
+
+    // LT(1), or null if it has to be looked up again
+    private Token la1;
+
     /** Create a token buffer */
     public TokenBuffer(TokenStream input_) {
         input = input_;
@@ -56,12 +66,23 @@ public class TokenBuffer {
         nMarkers = 0;
         markerOffset = 0;
         numToConsume = 0;
+        nRemoved = 0;
+        la1 = null;
         queue.reset();
+        resetCount++;
+    }
+
+    /** The number of times the buffer has been reset. Indexes (see
+     *  index()) from before a reset don't refer to the same tokens after it.
+     */
+    public int getResetCount() {
+        return resetCount;
     }
 
     /** Mark another token for deferred consumption */
     public void consume() {
         numToConsume++;
+        la1 = null;
     }
 
     /** Ensure that the token buffer is sufficiently full */
@@ -81,16 +102,43 @@ public class TokenBuffer {
 
     /** Get a lookahead token value */
     public int LA(int i) throws TokenStreamException {
-        fill(i);
-        return queue.elementAt(markerOffset + i - 1).getType();
+        if (i == 1) {
+            if (la1 == null) {
+                la1 = LT(1);
+            }
+            // actions can retype the token, so its type isn't cached
+            return la1.getType();
+        }
+        return LT(i).getType();
     }
 
     /** Get a lookahead token */
     public Token LT(int i) throws TokenStreamException {
+        if (i == 1 && la1 != null) {
+            return la1;
+        }
+        // Deferred consumption just moves LA(1) further into the queue, so
+        //   buffered tokens can be returned without syncing it up
+        int index = markerOffset + numToConsume + i - 1;
+        if (index < queue.nbrEntries) {
+            return queue.elementAt(index);
+        }
         fill(i);
         return queue.elementAt(markerOffset + i - 1);
     }
 
+    /** Get the index of LA(1): the number of tokens consumed before it.
+     *  Memoized rules use this to remember where they started and stopped.
+     */
+    public long index() {
+        return nRemoved + markerOffset + numToConsume;
+    }
+
+    /** Get the smallest index that rewind() can still return to */
+    public long firstIndex() {
+        return nRemoved;
+    }
+
     /**Return an integer marker that can be used to rewind the buffer to
      * its current state.
      */
@@ -109,22 +157,24 @@ public class TokenBuffer {
         syncConsume();
         markerOffset = mark;
         nMarkers--;
+        la1 = null;
 //System.out.println("Rewinding to " + mark);
 //try { for (int i = 1; i <= 2; i++) { System.out.println("LA("+i+")=="+LT(i).getText()); } } catch (ScannerException e) {}
     }
 
     /** Sync up deferred consumption */
     private void syncConsume() {
-        while (numToConsume > 0) {
+        if (numToConsume > 0) {
             if (nMarkers > 0) {
                 // guess mode -- leave leading tokens and bump offset.
-                markerOffset++;
+                markerOffset += numToConsume;
             }
             else {
-                // normal mode -- remove first token
-                queue.removeFirst();
+                // normal mode -- remove leading tokens
+                queue.removeFirst(numToConsume);
+                nRemoved += numToConsume;
             }
-            numToConsume--;
+            numToConsume = 0;
         }
     }
 }
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+/** Creates the token objects a lexer returns. By default a lexer creates
+ *  tokens of its token object class through reflection (except for the
+ *  token classes ANTXR provides, which it creates directly); give it a
+ *  TokenFactory with CharScanner.setTokenFactory() to create your own
+ *  token class without reflection:
+ *
+ *  <pre>
+ *  lexer.setTokenFactory(new TokenFactory() {
+ *      public Token createToken(int type) {
+ *          return new MyToken();
+ *      }
+ *  });
+ *  </pre>
+ *
+ *  @see CharScanner#setTokenFactory(TokenFactory)
+ */
+public interface TokenFactory {
+    /** Create a token. The lexer sets its type, line, column and text
+     *  afterward; the type is passed in case you want a different token
+     *  class for some token types.
+     *  @param type the type of the token being created
+     *  @return the new token
+     */
+    Token createToken(int type);
+}
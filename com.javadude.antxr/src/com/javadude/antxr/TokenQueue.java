@@ -98,4 +98,12 @@ class TokenQueue {
         offset = (offset + 1) & sizeLessOne;
         nbrEntries--;
     }
+
+    /** Remove tokens from front of queue
+     * @param n the number to remove, which must be <= the number in the queue
+     */
+    public final void removeFirst(int n) {
+        offset = (offset + n) & sizeLessOne;
+        nbrEntries -= n;
+    }
 }
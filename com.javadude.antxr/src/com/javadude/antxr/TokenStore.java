@@ -0,0 +1,365 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.javadude.antxr.collections.impl.BitSet;
+
+/**Records every token a lexer produces, hidden ones included, in a few
+ * parallel arrays rather than as one object per token. A token is just an
+ * index; its type, channel, line, column, text and input positions are the
+ * elements at that index.
+ * <p>
+ * Like {@link TokenStreamHiddenTokenFilter}, the store can hide token
+ * types (whitespace and comments, say) from the parser, and discard
+ * others completely. Hidden tokens are kept, on {@link #HIDDEN_CHANNEL},
+ * but instead of being linked to their neighbors they are found by index:
+ * {@link #getHiddenBefore(int)} and {@link #getHiddenAfter(int)}.
+ * <p>
+ * The parser reads from a view of the store:
+ * <pre>
+ *   TokenStore store = new TokenStore(lexer);
+ *   store.hide(WS);
+ *   store.hide(COMMENT);
+ *   MyParser parser = new MyParser(store.getTokenStream());
+ * </pre>
+ * The tokens the parser sees are {@link StoredToken}s, small objects that
+ * read the store; getIndex() on one gives its index for hidden token
+ * queries. Tokens are read from the lexer as the parser asks for them.
+ * <p>
+ * Text is kept in a pool, so each distinct string is stored once. If the
+ * lexer was generated with the lazyText option, text isn't stored at
+ * all; it's read back out of the lexer's input buffer from the token's
+ * start and end positions.
+ */
+public class TokenStore {
+    /** The channel of tokens that are passed to the parser */
+    public static final int DEFAULT_CHANNEL = 0;
+    /** The channel of hidden tokens */
+    public static final int HIDDEN_CHANNEL = 1;
+
+    /** The index used for "no token" (and "no text") */
+    public static final int NIL = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    /** The text index of tokens whose text is null */
+    private static final int NULL_TEXT = -2;
+
+    private TokenStream input;
+    private BitSet hideMask = new BitSet();
+    private BitSet discardMask = new BitSet();
+    private boolean sawEOF;
+
+    private int[] types;
+    private byte[] channels;
+    private int[] lines;
+    private int[] columns;
+    private int[] texts;
+    private long[] starts;
+    private long[] ends;
+    private int size;
+
+    // where text comes from for tokens that don't have any in the pool
+    private InputBuffer textInput;
+
+    private String[] textPool;
+    private int textPoolSize;
+    private Map<String, Integer> textIndexes;
+
+    /** Create a store that reads tokens from a lexer or another
+     *  TokenStream
+     */
+    public TokenStore(TokenStream input) {
+        this.input = input;
+        types = new int[TokenStore.INITIAL_CAPACITY];
+        channels = new byte[TokenStore.INITIAL_CAPACITY];
+        lines = new int[TokenStore.INITIAL_CAPACITY];
+        columns = new int[TokenStore.INITIAL_CAPACITY];
+        texts = new int[TokenStore.INITIAL_CAPACITY];
+        starts = new long[TokenStore.INITIAL_CAPACITY];
+        ends = new long[TokenStore.INITIAL_CAPACITY];
+        textPool = new String[16];
+        textIndexes = new HashMap<String, Integer>();
+    }
+
+    /** Keep tokens of a type, but don't pass them to the parser */
+    public void hide(int m) {
+        hideMask.add(m);
+    }
+
+    public void hide(BitSet mask) {
+        hideMask = mask;
+    }
+
+    public BitSet getHideMask() {
+        return hideMask;
+    }
+
+    /** Drop tokens of a type completely */
+    public void discard(int ttype) {
+        discardMask.add(ttype);
+    }
+
+    public void discard(BitSet mask) {
+        discardMask = mask;
+    }
+
+    public BitSet getDiscardMask() {
+        return discardMask;
+    }
+
+    /** Read the next token that isn't discarded from the input and add it
+     *  to the store
+     *  @return false if the store already ends with EOF
+     */
+    public boolean fetch() throws TokenStreamException {
+        if (sawEOF) {
+            return false;
+        }
+        Token tok = input.nextToken();
+        while (tok != null && tok.getType() != Token.EOF_TYPE && discardMask.member(tok.getType())) {
+            tok = input.nextToken();
+        }
+        if (tok == null || tok.getType() == Token.EOF_TYPE) {
+            sawEOF = true;
+            if (tok == null) {
+                tok = new CommonToken(Token.EOF_TYPE, null);
+            }
+        }
+        add(tok);
+        return true;
+    }
+
+    /** Read all of the input */
+    public void fetchAll() throws TokenStreamException {
+        while (fetch()) {
+            // keep reading
+        }
+    }
+
+    private void add(Token tok) {
+        if (size == types.length) {
+            grow();
+        }
+        int i = size++;
+        types[i] = tok.getType();
+        // EOF must go to the parser
+        boolean hidden = tok.getType() != Token.EOF_TYPE && hideMask.member(tok.getType());
+        channels[i] = (byte) (hidden ? TokenStore.HIDDEN_CHANNEL : TokenStore.DEFAULT_CHANNEL);
+        lines[i] = tok.getLine();
+        columns[i] = tok.getColumn();
+        starts[i] = -1;
+        ends[i] = -1;
+        if (tok instanceof LazyTextToken) {
+            LazyTextToken lazy = (LazyTextToken)tok;
+            starts[i] = lazy.getStartPosition();
+            ends[i] = lazy.getEndPosition();
+            // the text is still in the input buffer; leave it there
+            if (lazy.input != null && (textInput == null || textInput == lazy.input)) {
+                textInput = lazy.input;
+                texts[i] = TokenStore.NIL;
+                return;
+            }
+        }
+        texts[i] = textIndex(tok.getText());
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        int[] newTypes = new int[capacity];
+        System.arraycopy(types, 0, newTypes, 0, size);
+        types = newTypes;
+        byte[] newChannels = new byte[capacity];
+        System.arraycopy(channels, 0, newChannels, 0, size);
+        channels = newChannels;
+        lines = TokenStore.copy(lines, capacity);
+        columns = TokenStore.copy(columns, capacity);
+        texts = TokenStore.copy(texts, capacity);
+        long[] newStarts = new long[capacity];
+        System.arraycopy(starts, 0, newStarts, 0, size);
+        starts = newStarts;
+        long[] newEnds = new long[capacity];
+        System.arraycopy(ends, 0, newEnds, 0, size);
+        ends = newEnds;
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    /** Get the pool index of a string, adding it if needed */
+    private int textIndex(String text) {
+        if (text == null) {
+            return TokenStore.NULL_TEXT;
+        }
+        Integer index = textIndexes.get(text);
+        if (index != null) {
+            return index.intValue();
+        }
+        if (textPoolSize == textPool.length) {
+            String[] pool = new String[textPool.length * 2];
+            System.arraycopy(textPool, 0, pool, 0, textPoolSize);
+            textPool = pool;
+        }
+        textPool[textPoolSize] = text;
+        textIndexes.put(text, Integer.valueOf(textPoolSize));
+        return textPoolSize++;
+    }
+
+    /** The number of tokens read so far, hidden ones included */
+    public int size() {
+        return size;
+    }
+
+    /** The number of distinct strings stored as token text */
+    public int getTextPoolSize() {
+        return textPoolSize;
+    }
+
+    /** Get a view of a token
+     *  @return the view, or null if token is NIL
+     */
+    public Token getToken(int token) {
+        if (token == TokenStore.NIL) {
+            return null;
+        }
+        if (token < 0 || token >= size) {
+            throw new IndexOutOfBoundsException("No token " + token + "; " + size + " tokens have been read");
+        }
+        return new StoredToken(this, token);
+    }
+
+    public int getType(int token) {
+        return types[token];
+    }
+
+    public void setType(int token, int type) {
+        types[token] = type;
+    }
+
+    /** @return {@link #DEFAULT_CHANNEL} or {@link #HIDDEN_CHANNEL} */
+    public int getChannel(int token) {
+        return channels[token];
+    }
+
+    public boolean isHidden(int token) {
+        return channels[token] == TokenStore.HIDDEN_CHANNEL;
+    }
+
+    public String getText(int token) {
+        int text = texts[token];
+        if (text == TokenStore.NIL) {
+            return textInput.getText(starts[token], ends[token]);
+        }
+        if (text == TokenStore.NULL_TEXT) {
+            return null;
+        }
+        return textPool[text];
+    }
+
+    public void setText(int token, String text) {
+        texts[token] = textIndex(text);
+    }
+
+    public int getLine(int token) {
+        return lines[token];
+    }
+
+    public void setLine(int token, int line) {
+        lines[token] = line;
+    }
+
+    public int getColumn(int token) {
+        return columns[token];
+    }
+
+    public void setColumn(int token, int column) {
+        columns[token] = column;
+    }
+
+    /** The position of the token's first character in the lexer's input
+     *  buffer, or -1 if the lexer doesn't use lazyText
+     */
+    public long getStartPosition(int token) {
+        return starts[token];
+    }
+
+    /** The position after the token's last character in the lexer's
+     *  input buffer, or -1 if the lexer doesn't use lazyText
+     */
+    public long getEndPosition(int token) {
+        return ends[token];
+    }
+
+    /** Return the hidden token appearing immediately before a token,
+     *  or NIL
+     */
+    public int getHiddenBefore(int token) {
+        if (token > 0 && isHidden(token - 1)) {
+            return token - 1;
+        }
+        return TokenStore.NIL;
+    }
+
+    /** Return the hidden token appearing immediately after a token,
+     *  or NIL. The hidden tokens after a token the parser has seen have
+     *  always been read.
+     */
+    public int getHiddenAfter(int token) {
+        if (token + 1 < size && isHidden(token + 1)) {
+            return token + 1;
+        }
+        return TokenStore.NIL;
+    }
+
+    /** Return the first hidden token if one appears before any token
+     *  passed to the parser, or NIL
+     */
+    public int getInitialHiddenToken() {
+        return getHiddenAfter(-1);
+    }
+
+    /** Get a stream of the tokens that aren't hidden, for a parser to read.
+     *  Each call returns a new stream that starts at the first token.
+     */
+    public TokenStream getTokenStream() {
+        return new View();
+    }
+
+    /** Passes the tokens on the default channel to a parser */
+    private class View implements TokenStream {
+        private int next;
+
+        public Token nextToken() throws TokenStreamException {
+            while (true) {
+                if (next == size && !fetch()) {
+                    // past EOF; keep returning it
+                    return new StoredToken(TokenStore.this, size - 1);
+                }
+                int token = next++;
+                if (!isHidden(token)) {
+                    // read the hidden tokens after this one, so they can
+                    //   be found while the parser is looking at it
+                    while (!sawEOF && (next == size || isHidden(size - 1))) {
+                        fetch();
+                    }
+                    return new StoredToken(TokenStore.this, token);
+                }
+            }
+        }
+    }
+}
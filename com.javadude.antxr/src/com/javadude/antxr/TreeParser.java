@@ -46,6 +46,9 @@ public class TreeParser {
     /** Used to keep track of indentdepth for traceIn/Out */
     protected int traceDepth = 0;
 
+    /** Thrown when something doesn't match while guessing */
+    private MismatchedTokenException guessFailure;
+
     public TreeParser() {
         inputState = new TreeParserSharedInputState();
     }
@@ -67,9 +70,34 @@ public class TreeParser {
         return tokenNames;
     }
 
+    /** Get the exception thrown when something doesn't match while
+     *  guessing. Rules rethrow exceptions while guessing, so all it does is
+     *  make the syntactic predicate fail; the same one is thrown every time
+     *  and it has no stack trace, which made failed guesses expensive.
+     */
+    protected MismatchedTokenException guessFailure() {
+        if (guessFailure == null) {
+            guessFailure = new MismatchedTokenException("syntactic predicate failed", false);
+        }
+        return guessFailure;
+    }
+
+    /** Get the exception generated code throws when no alternative
+     *  matches a node
+     */
+    protected RecognitionException noViableAlt(AST t) {
+        if (inputState.guessing > 0) {
+            return guessFailure();
+        }
+        return new NoViableAltException(t);
+    }
+
     protected void match(AST t, int ttype) throws MismatchedTokenException {
         //System.out.println("match("+ttype+"); cursor is "+t);
         if (t == null || t == TreeParser.ASTNULL || t.getType() != ttype) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedTokenException(getTokenNames(), t, ttype, false);
         }
     }
@@ -80,6 +108,9 @@ public class TreeParser {
      */
     public void match(AST t, BitSet b) throws MismatchedTokenException {
         if (t == null || t == TreeParser.ASTNULL || !b.member(t.getType())) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedTokenException(getTokenNames(), t, b, false);
         }
     }
@@ -87,6 +118,9 @@ public class TreeParser {
     protected void matchNot(AST t, int ttype) throws MismatchedTokenException {
         //System.out.println("match("+ttype+"); cursor is "+t);
         if (t == null || t == TreeParser.ASTNULL || t.getType() == ttype) {
+            if (inputState.guessing > 0) {
+                throw guessFailure();
+            }
             throw new MismatchedTokenException(getTokenNames(), t, ttype, true);
         }
     }
@@ -131,6 +165,13 @@ public class TreeParser {
         astFactory.setASTNodeClass(nodeType);
     }
 
+    /** Specify the factory that creates nodes during tree building,
+     *  rather than a node class
+     */
+    public void setASTNodeFactory(ASTNodeFactory factory) {
+        astFactory.setASTNodeFactory(factory);
+    }
+
     public void traceIndent() {
         for (int i = 0; i < traceDepth; i++) {
             System.out.print(" ");
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.collections.impl;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.javadude.antxr.ASTNodeFactory;
+import com.javadude.antxr.collections.AST;
+
+/**Holds a whole forest of AST nodes in a few int arrays, rather than as
+ * one object per node. A node is just an index; its token type, text,
+ * first child, next sibling, line and column are the elements at that
+ * index. Node text is kept in a pool, so each distinct string is stored
+ * once no matter how many nodes have it. For trees with millions of
+ * nodes, this takes a fraction of the memory CommonAST nodes would.
+ * <p>
+ * To have a parser build its trees here, make the arena its node factory:
+ * <pre>
+ *   ASTArena arena = new ASTArena();
+ *   parser.setASTNodeFactory(arena);
+ * </pre>
+ * The nodes the parser sees (and getAST() returns) are {@link ArenaAST}
+ * views, small objects that read and write the arena, so tree parsers
+ * and anything else that works with AST work with them. Views are
+ * created as trees are walked; two views of the same node are equal().
+ * <p>
+ * Nodes can't be removed, except by clearing the whole arena.
+ */
+public class ASTArena implements ASTNodeFactory, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The index used for "no node" (and "no text") */
+    public static final int NIL = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] types;
+    private int[] texts;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private int[] lines;
+    private int[] columns;
+    private int size;
+
+    private String[] textPool;
+    private int textPoolSize;
+    private Map<String, Integer> textIndexes;
+
+    /** Create an empty arena */
+    public ASTArena() {
+        this(ASTArena.INITIAL_CAPACITY);
+    }
+
+    /** Create an empty arena with room for a number of nodes */
+    public ASTArena(int capacity) {
+        if (capacity < 1) {
+            capacity = 1;
+        }
+        types = new int[capacity];
+        texts = new int[capacity];
+        firstChildren = new int[capacity];
+        nextSiblings = new int[capacity];
+        lines = new int[capacity];
+        columns = new int[capacity];
+        textPool = new String[16];
+        textIndexes = new HashMap<String, Integer>();
+    }
+
+    /** Add a node with no children or siblings
+     *  @return the new node's index
+     */
+    public int add(int type, String text, int line, int column) {
+        if (size == types.length) {
+            grow();
+        }
+        int node = size++;
+        types[node] = type;
+        texts[node] = textIndex(text);
+        firstChildren[node] = ASTArena.NIL;
+        nextSiblings[node] = ASTArena.NIL;
+        lines[node] = line;
+        columns[node] = column;
+        return node;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = ASTArena.copy(types, capacity);
+        texts = ASTArena.copy(texts, capacity);
+        firstChildren = ASTArena.copy(firstChildren, capacity);
+        nextSiblings = ASTArena.copy(nextSiblings, capacity);
+        lines = ASTArena.copy(lines, capacity);
+        columns = ASTArena.copy(columns, capacity);
+    }
+
+    private static int[] copy(int[] array, int length) {
+        int[] newArray = new int[length];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    /** Get the pool index of a string, adding it if needed */
+    private int textIndex(String text) {
+        if (text == null) {
+            return ASTArena.NIL;
+        }
+        Integer index = textIndexes.get(text);
+        if (index != null) {
+            return index.intValue();
+        }
+        if (textPoolSize == textPool.length) {
+            String[] pool = new String[textPool.length * 2];
+            System.arraycopy(textPool, 0, pool, 0, textPoolSize);
+            textPool = pool;
+        }
+        textPool[textPoolSize] = text;
+        textIndexes.put(text, Integer.valueOf(textPoolSize));
+        return textPoolSize++;
+    }
+
+    /** Create a node for an ASTFactory; it fills in the rest */
+    public AST createAST(int type) {
+        return new ArenaAST(this, add(type, null, 0, 0));
+    }
+
+    /** Get a view of a node
+     *  @return the view, or null if node is NIL
+     */
+    public AST getAST(int node) {
+        if (node == ASTArena.NIL) {
+            return null;
+        }
+        return new ArenaAST(this, node);
+    }
+
+    /** The number of nodes in the arena */
+    public int size() {
+        return size;
+    }
+
+    /** The number of distinct strings used as node text */
+    public int getTextPoolSize() {
+        return textPoolSize;
+    }
+
+    /** Remove all nodes and text. Views of the old nodes must not be
+     *  used afterward.
+     */
+    public void clear() {
+        size = 0;
+        textPoolSize = 0;
+        textIndexes.clear();
+    }
+
+    public int getType(int node) {
+        return types[node];
+    }
+
+    public void setType(int node, int type) {
+        types[node] = type;
+    }
+
+    public String getText(int node) {
+        int text = texts[node];
+        return text == ASTArena.NIL ? null : textPool[text];
+    }
+
+    public void setText(int node, String text) {
+        texts[node] = textIndex(text);
+    }
+
+    /** @return the first child's index, or NIL */
+    public int getFirstChild(int node) {
+        return firstChildren[node];
+    }
+
+    public void setFirstChild(int node, int child) {
+        firstChildren[node] = child;
+    }
+
+    /** @return the next sibling's index, or NIL */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    public void setNextSibling(int node, int sibling) {
+        nextSiblings[node] = sibling;
+    }
+
+    public int getLine(int node) {
+        return lines[node];
+    }
+
+    public int getColumn(int node) {
+        return columns[node];
+    }
+
+    public void setPosition(int node, int line, int column) {
+        lines[node] = line;
+        columns[node] = column;
+    }
+
+    /** Add a node to the end of another node's child list */
+    public void addChild(int node, int child) {
+        int last = firstChildren[node];
+        if (last == ASTArena.NIL) {
+            firstChildren[node] = child;
+            return;
+        }
+        while (nextSiblings[last] != ASTArena.NIL) {
+            last = nextSiblings[last];
+        }
+        nextSiblings[last] = child;
+    }
+
+    /** The number of children a node has */
+    public int getNumberOfChildren(int node) {
+        int n = 0;
+        for (int child = firstChildren[node]; child != ASTArena.NIL; child = nextSiblings[child]) {
+            n++;
+        }
+        return n;
+    }
+}
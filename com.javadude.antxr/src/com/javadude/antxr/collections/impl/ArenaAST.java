@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.collections.impl;
+
+import com.javadude.antxr.BaseAST;
+import com.javadude.antxr.Token;
+import com.javadude.antxr.collections.AST;
+
+/**A view of a node in an {@link ASTArena}. It holds nothing but the arena
+ * and the node's index; everything else is read from and written to the
+ * arena, so there can be any number of views of a node. Navigation
+ * methods like getFirstChild() return new views.
+ * <p>
+ * Nodes can only be linked to nodes in the same arena.
+ */
+public class ArenaAST extends BaseAST {
+    private static final long serialVersionUID = 1L;
+
+    private final ASTArena arena;
+    private final int node;
+
+    /** Create a view of a node in an arena */
+    public ArenaAST(ASTArena arena, int node) {
+        this.arena = arena;
+        this.node = node;
+    }
+
+    public ASTArena getArena() {
+        return arena;
+    }
+
+    /** The index of this node in its arena */
+    public int getIndex() {
+        return node;
+    }
+
+    /** Get the index of a node in this arena */
+    private int indexOf(AST t) {
+        if (t == null) {
+            return ASTArena.NIL;
+        }
+        if (!(t instanceof ArenaAST) || ((ArenaAST)t).arena != arena) {
+            throw new IllegalArgumentException("Node is not in this arena: " + t);
+        }
+        return ((ArenaAST)t).node;
+    }
+
+    @Override
+    public void addChild(AST c) {
+        if (c != null) {
+            arena.addChild(node, indexOf(c));
+        }
+    }
+
+    @Override
+    public int getNumberOfChildren() {
+        return arena.getNumberOfChildren(node);
+    }
+
+    @Override
+    public AST getFirstChild() {
+        return arena.getAST(arena.getFirstChild(node));
+    }
+
+    @Override
+    public AST getNextSibling() {
+        return arena.getAST(arena.getNextSibling(node));
+    }
+
+    @Override
+    public void setFirstChild(AST c) {
+        arena.setFirstChild(node, indexOf(c));
+    }
+
+    @Override
+    public void setNextSibling(AST n) {
+        arena.setNextSibling(node, indexOf(n));
+    }
+
+    @Override
+    public void removeChildren() {
+        arena.setFirstChild(node, ASTArena.NIL);
+    }
+
+    @Override
+    public String getText() {
+        return arena.getText(node);
+    }
+
+    @Override
+    public void setText(String text) {
+        arena.setText(node, text);
+    }
+
+    @Override
+    public int getType() {
+        return arena.getType(node);
+    }
+
+    @Override
+    public void setType(int ttype) {
+        arena.setType(node, ttype);
+    }
+
+    @Override
+    public int getLine() {
+        return arena.getLine(node);
+    }
+
+    @Override
+    public int getColumn() {
+        return arena.getColumn(node);
+    }
+
+    @Override
+    public void initialize(int t, String txt) {
+        arena.setType(node, t);
+        arena.setText(node, txt);
+    }
+
+    @Override
+    public void initialize(AST t) {
+        arena.setType(node, t.getType());
+        arena.setText(node, t.getText());
+        arena.setPosition(node, t.getLine(), t.getColumn());
+    }
+
+    @Override
+    public void initialize(Token t) {
+        arena.setType(node, t.getType());
+        arena.setText(node, t.getText());
+        arena.setPosition(node, t.getLine(), t.getColumn());
+    }
+
+    /** Views are equal if they're views of the same node. (equals(AST),
+     *  which compares type and text, is still used when the argument is
+     *  declared as an AST.)
+     */
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ArenaAST && ((ArenaAST)o).arena == arena && ((ArenaAST)o).node == node;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(arena) * 31 + node;
+    }
+}
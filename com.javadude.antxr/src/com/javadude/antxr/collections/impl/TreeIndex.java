@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.collections.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.javadude.antxr.collections.AST;
+import com.javadude.antxr.collections.ASTEnumeration;
+
+/**An index of the nodes of a tree, for searching the same tree for many
+ * targets. BaseAST.findAll() walks the whole tree and compares every node
+ * each time it's called; build a TreeIndex once and ask it instead.
+ * <p>
+ * Each subtree is given a structural hash, computed bottom-up from the
+ * token type and text of its nodes, so an exact match (findAll) only
+ * compares the subtrees whose hash equals the target's. Nodes are also
+ * grouped by token type, so a partial match (findAllPartial) only
+ * compares the nodes whose type matches the root of the target. Both
+ * find the same matches as BaseAST does, in the same (preorder) order.
+ * The hash assumes two nodes are equal when their types and texts are, as
+ * BaseAST.equals(AST) does.
+ * <p>
+ * The index is a snapshot of the tree as it was when the index was built;
+ * build a new one after changing the tree.
+ */
+public class TreeIndex {
+    private Map<Integer, List<AST>> nodesByType = new HashMap<Integer, List<AST>>();
+    private Map<Integer, List<AST>> nodesByHash = new HashMap<Integer, List<AST>>();
+    private int size;
+
+    /** Index a tree, the siblings of its root, and everything below them */
+    public TreeIndex(AST t) {
+        Hashes hashes = new Hashes(t, true);
+        size = hashes.size;
+        for (int i = 0; i < size; i++) {
+            AST node = hashes.nodes.get(i);
+            TreeIndex.add(nodesByType, node.getType(), node);
+            TreeIndex.add(nodesByHash, hashes.treeHashes[i], node);
+        }
+    }
+
+    private static void add(Map<Integer, List<AST>> map, int key, AST node) {
+        Integer k = Integer.valueOf(key);
+        List<AST> nodes = map.get(k);
+        if (nodes == null) {
+            nodes = new ArrayList<AST>(1);
+            map.put(k, nodes);
+        }
+        nodes.add(node);
+    }
+
+    /** The structural hash of the tree rooted at t; the siblings of t are
+     *  ignored. Trees that are equalsTree() have the same hash.
+     */
+    public static int hashTree(AST t) {
+        if (t == null) {
+            return 0;
+        }
+        return new Hashes(t, false).treeHashes[0];
+    }
+
+    /** The nodes of a tree in preorder, with the hash of the subtree rooted
+     *  at each one. Everything is computed with explicit stacks, so deep
+     *  trees can't overflow the Java stack.
+     */
+    private static class Hashes {
+        List<AST> nodes = new ArrayList<AST>();
+        int size;
+        int[] treeHashes;
+
+        Hashes(AST t, boolean siblings) {
+            // preorder walk, noting where each node's first child and next
+            //   sibling are. The stack holds the next sibling of each node
+            //   whose children we're walking, and that node's position.
+            int[] firstChildren = new int[16];
+            int[] nextSiblings = new int[16];
+            List<AST> stack = new ArrayList<AST>();
+            int[] positions = new int[16];
+            int previous = -1;
+            AST node = t;
+            while (true) {
+                if (node == null) {
+                    if (stack.isEmpty()) {
+                        break;
+                    }
+                    node = stack.remove(stack.size() - 1);
+                    previous = positions[stack.size()];
+                    continue;
+                }
+                if (size == firstChildren.length) {
+                    firstChildren = Arrays.copyOf(firstChildren, size * 2);
+                    nextSiblings = Arrays.copyOf(nextSiblings, size * 2);
+                }
+                int position = size++;
+                nodes.add(node);
+                firstChildren[position] = -1;
+                nextSiblings[position] = -1;
+                if (previous >= 0) {
+                    nextSiblings[previous] = position;
+                }
+                AST next = (siblings || !stack.isEmpty()) ? node.getNextSibling() : null;
+                AST child = node.getFirstChild();
+                if (child != null) {
+                    if (stack.size() == positions.length) {
+                        positions = Arrays.copyOf(positions, positions.length * 2);
+                    }
+                    positions[stack.size()] = position;
+                    stack.add(next);
+                    firstChildren[position] = size;
+                    previous = -1;
+                    node = child;
+                }
+                else {
+                    previous = position;
+                    node = next;
+                }
+            }
+
+            // children and later siblings come after a node in preorder, so
+            //   going backwards, their hashes are always ready
+            treeHashes = new int[size];
+            int[] listHashes = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                AST n = nodes.get(i);
+                String text = n.getText();
+                int h = n.getType();
+                h = h * 0x01000193 + (text == null ? 0 : text.hashCode());
+                h = h * 0x01000193 + (firstChildren[i] < 0 ? 0 : listHashes[firstChildren[i]]);
+                treeHashes[i] = TreeIndex.mix(h);
+                h = treeHashes[i] * 0x5bd1e995 + (nextSiblings[i] < 0 ? 0 : listHashes[nextSiblings[i]]);
+                listHashes[i] = TreeIndex.mix(h ^ 0x2f);
+            }
+        }
+    }
+
+    /** Spread the bits of a hash, so nesting and order both count */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** How many nodes are in the tree? */
+    public int size() {
+        return size;
+    }
+
+    /** Get the nodes of a token type, in preorder */
+    public List<AST> getNodes(int type) {
+        List<AST> nodes = nodesByType.get(Integer.valueOf(type));
+        if (nodes == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /** Find all exact subtree matches, like BaseAST.findAll() */
+    public ASTEnumeration findAll(AST target) {
+        // the empty tree cannot result in an enumeration
+        if (target == null) {
+            return null;
+        }
+        List<AST> roots = new ArrayList<AST>();
+        List<AST> candidates = nodesByHash.get(Integer.valueOf(TreeIndex.hashTree(target)));
+        if (candidates != null) {
+            for (AST node : candidates) {
+                // different trees can have the same hash
+                if (node.equalsTree(target)) {
+                    roots.add(node);
+                }
+            }
+        }
+        return new ASTEnumerator(roots);
+    }
+
+    /** Find all partial subtree matches, like BaseAST.findAllPartial() */
+    public ASTEnumeration findAllPartial(AST sub) {
+        // the empty tree cannot result in an enumeration
+        if (sub == null) {
+            return null;
+        }
+        List<AST> roots = new ArrayList<AST>();
+        for (AST node : getNodes(sub.getType())) {
+            if (node.equalsTreePartial(sub)) {
+                roots.add(node);
+            }
+        }
+        return new ASTEnumerator(roots);
+    }
+}
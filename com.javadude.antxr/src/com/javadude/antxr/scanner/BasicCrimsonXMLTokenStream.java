@@ -12,11 +12,9 @@
  *******************************************************************************/
 package com.javadude.antxr.scanner;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Map;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -53,8 +51,6 @@ import com.javadude.antxr.TokenStreamException;
  */
 public class BasicCrimsonXMLTokenStream implements TokenStream {
     private XMLTokenStream xmlTokenStream;
-    private static final Class<?>[] NO_PARAMETERS = new Class[] {};
-    private static final Object[] NO_ARGUMENTS = new Object[] {};
 
 
     /**
@@ -99,6 +95,138 @@ public class BasicCrimsonXMLTokenStream implements TokenStream {
                                       boolean validating,
                                       int maximumQueueSize,
                                       int resumeQueueSize) {
+        this(xmlToParse, parserClass, namespaceAware, validating, maximumQueueSize, resumeQueueSize, false);
+    }
+
+    /**
+     * Create the xml token stream
+     * @param xmlToParse The XML input to parse
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param namespaceAware true if the XML (and your grammar) uses namespaces
+     * @param validating true if you want SAX to validate your XML
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the blocking queue ready for the ANTXR parser
+     *                         to fetch. This will put the SAX parse on hold
+     *                         until resumeQueue size is reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    public BasicCrimsonXMLTokenStream(Reader xmlToParse,
+                                      Class<? extends Parser> parserClass,
+                                      boolean namespaceAware,
+                                      boolean validating,
+                                      int maximumQueueSize,
+                                      int resumeQueueSize,
+                                      boolean skipOtherTagContent) {
+        this(new InputSource(xmlToParse), parserClass, namespaceAware, validating, maximumQueueSize, resumeQueueSize, skipOtherTagContent);
+    }
+
+    /**
+     * Create the xml token stream. This version does not gate the number of
+     * tokens read by the SAX parser. <i>Note that this can cause the entire
+     * XML to be read into memory!</i> If you have a small XML document to
+     * parse, this is more efficient, but large XML documents can cause memory
+     * problems. If you want to use a large XML file, call the other constructor
+     * and pass it a maximumQueueSize and resumeQueueSize.
+     * @param xmlFile The XML file to parse. It is memory-mapped and
+     *                its bytes are decoded by the SAX parser
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param namespaceAware true if the XML (and your grammar) uses namespaces
+     * @param validating true if you want SAX to validate your XML
+     * @throws IOException If the file can't be opened
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    public BasicCrimsonXMLTokenStream(File xmlFile,
+             Class<? extends Parser> parserClass,
+             boolean namespaceAware,
+             boolean validating) throws IOException {
+        this(xmlFile, parserClass, namespaceAware, validating, -1, -1);
+    }
+
+    /**
+     * Create the xml token stream for a file
+     * @param xmlFile The XML file to parse. It is memory-mapped and
+     *                its bytes are decoded by the SAX parser
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param namespaceAware true if the XML (and your grammar) uses namespaces
+     * @param validating true if you want SAX to validate your XML
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the blocking queue ready for the ANTXR parser
+     *                         to fetch. This will put the SAX parse on hold
+     *                         until resumeQueue size is reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @throws IOException If the file can't be opened
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    public BasicCrimsonXMLTokenStream(File xmlFile,
+                                      Class<? extends Parser> parserClass,
+                                      boolean namespaceAware,
+                                      boolean validating,
+                                      int maximumQueueSize,
+                                      int resumeQueueSize) throws IOException {
+        this(xmlFile, parserClass, namespaceAware, validating, maximumQueueSize, resumeQueueSize, false);
+    }
+
+    /**
+     * Create the xml token stream for a file
+     * @param xmlFile The XML file to parse. It is memory-mapped and
+     *                its bytes are decoded by the SAX parser
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param namespaceAware true if the XML (and your grammar) uses namespaces
+     * @param validating true if you want SAX to validate your XML
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the blocking queue ready for the ANTXR parser
+     *                         to fetch. This will put the SAX parse on hold
+     *                         until resumeQueue size is reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     * @throws IOException If the file can't be opened
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    public BasicCrimsonXMLTokenStream(File xmlFile,
+                                      Class<? extends Parser> parserClass,
+                                      boolean namespaceAware,
+                                      boolean validating,
+                                      int maximumQueueSize,
+                                      int resumeQueueSize,
+                                      boolean skipOtherTagContent) throws IOException {
+        this(MappedFileInputStream.createInputSource(xmlFile), parserClass, namespaceAware, validating, maximumQueueSize, resumeQueueSize, skipOtherTagContent);
+    }
+
+    /**
+     * Create the xml token stream
+     * @param in The XML input to parse
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param namespaceAware true if the XML (and your grammar) uses namespaces
+     * @param validating true if you want SAX to validate your XML
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the blocking queue ready for the ANTXR parser
+     *                         to fetch. This will put the SAX parse on hold
+     *                         until resumeQueue size is reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    private BasicCrimsonXMLTokenStream(InputSource in,
+                                       Class<? extends Parser> parserClass,
+                                       boolean namespaceAware,
+                                       boolean validating,
+                                       int maximumQueueSize,
+                                       int resumeQueueSize,
+                                       boolean skipOtherTagContent) {
         try {
             // Create the SAX parser (really part of the scanner)
             SAXParserFactory factory = SAXParserFactory.newInstance();
@@ -107,23 +235,15 @@ public class BasicCrimsonXMLTokenStream implements TokenStream {
 
             SAXParser parser= factory.newSAXParser();
 
-            Field field = parserClass.getField("_tokenNames");
-            String[] tokenNames = (String[])field.get(null);
-
-            Method getNameSpaceMapMethod = parserClass.getMethod("getNamespaceMap", BasicCrimsonXMLTokenStream.NO_PARAMETERS);
-            @SuppressWarnings("unchecked")
-            Map<String, String> namespaceMap = (Map<String, String>) getNameSpaceMapMethod.invoke(null, BasicCrimsonXMLTokenStream.NO_ARGUMENTS);
+            // only looked up the first time we see this parser class
+            XMLTagTable tagTable = XMLTagTable.forParser(parserClass);
 
             // Create our scanner (using the SAX parser)
             xmlTokenStream =
-                new XMLTokenStream(tokenNames, namespaceMap,
-                                   new InputSource(xmlToParse), parser, null, null);
-        }
-        catch (NoSuchFieldException e) {
-            throw new IllegalArgumentException("Cannot find _tokenNames in the parser class -- is it an XML parser?");
-        }
-        catch (NoSuchMethodException e) {
-            throw new IllegalArgumentException("Cannot find getNamespaceMap() in the parser class -- is it an XML parser?");
+                new XMLTokenStream(tagTable,
+                                   in, parser, null, null,
+                                   maximumQueueSize, resumeQueueSize,
+                                   RingBufferQueue.DEFAULT_BATCH_SIZE, skipOtherTagContent);
         }
         catch (ParserConfigurationException e) {
             throw new RuntimeException("Cannot configure the SAX parser. See nested exception.", e);
@@ -131,15 +251,6 @@ public class BasicCrimsonXMLTokenStream implements TokenStream {
         catch (SAXException e) {
             throw new RuntimeException("Error building SAX parser. See nested exception.", e);
         }
-        catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Cannot access _tokenNames or getNamespaceMap() in the parser class (they should be static)");
-        }
-        catch (IllegalAccessException e) {
-            throw new IllegalArgumentException("Cannot access _tokenNames or getNamespaceMap() in the parser class (they should be public)");
-        }
-        catch (InvocationTargetException e) {
-            throw new RuntimeException("Exception thrown when running getNamespaceMap(). See nested exception.", e);
-        }
     }
 
     /**
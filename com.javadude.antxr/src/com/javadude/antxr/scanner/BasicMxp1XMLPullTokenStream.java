@@ -12,11 +12,10 @@
  *******************************************************************************/
 package com.javadude.antxr.scanner;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.io.Reader;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Map;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -31,12 +30,9 @@ import com.javadude.antxr.TokenStreamException;
  * A simple implementation of XMLPullTokenStream that uses kxml as its
  * implementation
  */
-public class BasicMxp1XMLPullTokenStream implements TokenStream {
+public class BasicMxp1XMLPullTokenStream implements TokenStream, Closeable {
     private XMLPullTokenStream tokenStream;
-
-    private static final Class<?>[] NO_PARAMETERS = new Class[] {};
-
-    private static final Object[] NO_ARGUMENTS = new Object[] {};
+    private MappedFileInputStream mappedFile; // opened by the File constructors
 
     /**
      * Creates an instance of the KXml token stream
@@ -46,51 +42,127 @@ public class BasicMxp1XMLPullTokenStream implements TokenStream {
      *
      */
     public BasicMxp1XMLPullTokenStream(Reader xmlToParse, Class<? extends Parser> parserClass,
-                                        boolean namespaceAware) {
-        // Create the XmlPull parser (really part of the scanner)
+                                       boolean namespaceAware) {
+        this(xmlToParse, parserClass, namespaceAware, false);
+    }
 
+    /**
+     * Creates an instance of the KXml token stream
+     * @param xmlToParse the xml stream to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     */
+    public BasicMxp1XMLPullTokenStream(Reader xmlToParse, Class<? extends Parser> parserClass,
+                                       boolean namespaceAware, boolean skipOtherTagContent) {
         try {
-            XmlPullParserFactory factory = XmlPullParserFactory.newInstance("org.xmlpull.mxp1.MXParser", null);
-            factory.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, namespaceAware);
-
-            XmlPullParser parser = factory.newPullParser();
+            XmlPullParser parser = createParser(namespaceAware);
             parser.setInput(xmlToParse);
 
-            Field field = parserClass.getField("_tokenNames");
-            String[] tokenNames = (String[])field.get(null);
-
-            Method getNameSpaceMapMethod = parserClass.getMethod("getNamespaceMap", BasicMxp1XMLPullTokenStream.NO_PARAMETERS);
-            @SuppressWarnings("unchecked")
-            Map<String, String> namespaceMap = (Map<String, String>)getNameSpaceMapMethod.invoke(null, BasicMxp1XMLPullTokenStream.NO_ARGUMENTS);
+            // only looked up the first time we see this parser class
+            XMLTagTable tagTable = XMLTagTable.forParser(parserClass);
 
             // Create our scanner (using the xml pull parser)
-            tokenStream = new XMLPullTokenStream(tokenNames, namespaceMap, parser);
+            tokenStream = new XMLPullTokenStream(tagTable, parser, skipOtherTagContent);
         }
         catch (XmlPullParserException e) {
             throw new RuntimeException("Exception thrown setting up KXml parser. See nested exception.",e);
         }
-        catch (NoSuchFieldException e) {
-            throw new IllegalArgumentException("Cannot find _tokenNames in the parser class -- is it an XML parser?");
-        }
-        catch (NoSuchMethodException e) {
-            throw new IllegalArgumentException("Cannot find getNamespaceMap() in the parser class -- is it an XML parser?");
-        }
-        catch (IllegalArgumentException e) {
-            throw new IllegalArgumentException("Cannot access _tokenNames or getNamespaceMap() in the parser class (they should be static)");
-        }
-        catch (IllegalAccessException e) {
-            throw new IllegalArgumentException("Cannot access _tokenNames or getNamespaceMap() in the parser class (they should be public)");
+    }
+
+    /**
+     * Creates an instance of the KXml token stream for a file. The file
+     * is memory-mapped and its bytes are decoded by the XmlPull parser,
+     * using the document's declared encoding (UTF-8 if none)
+     * @param xmlFile the xml file to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @throws IOException if the file can't be opened
+     */
+    public BasicMxp1XMLPullTokenStream(File xmlFile, Class<? extends Parser> parserClass,
+                                       boolean namespaceAware) throws IOException {
+        this(xmlFile, parserClass, namespaceAware, false);
+    }
+
+    /**
+     * Creates an instance of the KXml token stream for a file. The file
+     * is memory-mapped and its bytes are decoded by the XmlPull parser,
+     * using the document's declared encoding (UTF-8 if none)
+     * @param xmlFile the xml file to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     * @throws IOException if the file can't be opened
+     */
+    public BasicMxp1XMLPullTokenStream(File xmlFile, Class<? extends Parser> parserClass,
+                                       boolean namespaceAware, boolean skipOtherTagContent) throws IOException {
+        try {
+            XmlPullParser parser = createParser(namespaceAware);
+            mappedFile = new MappedFileInputStream(xmlFile);
+            parser.setInput(mappedFile, null);
+
+            // only looked up the first time we see this parser class
+            XMLTagTable tagTable = XMLTagTable.forParser(parserClass);
+
+            // Create our scanner (using the xml pull parser)
+            tokenStream = new XMLPullTokenStream(tagTable, parser, skipOtherTagContent);
         }
-        catch (InvocationTargetException e) {
-            throw new RuntimeException("Exception thrown when running getNamespaceMap(). See nested exception.", e);
+        catch (XmlPullParserException e) {
+            if (mappedFile != null) {
+                mappedFile.close();
+            }
+            throw new RuntimeException("Exception thrown setting up KXml parser. See nested exception.",e);
         }
+    }
 
-
+    /**
+     * Create the XmlPull parser (really part of the scanner)
+     * @param namespaceAware do we want a namespace aware parse
+     * @return the parser, without its input set
+     * @throws XmlPullParserException if the parser can't be created
+     */
+    private static XmlPullParser createParser(boolean namespaceAware) throws XmlPullParserException {
+        XmlPullParserFactory factory = XmlPullParserFactory.newInstance("org.xmlpull.mxp1.MXParser", null);
+        factory.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, namespaceAware);
+        return factory.newPullParser();
     }
 
     /** {@inheritDoc} */
     public Token nextToken() throws TokenStreamException {
-        return tokenStream.nextToken();
+        boolean done = true;
+        try {
+            Token token = tokenStream.nextToken();
+            done = token.getType() == Token.EOF_TYPE;
+            return token;
+        }
+        finally {
+            // once the document is finished (or broken) we're done with the file
+            if (done && mappedFile != null) {
+                try {
+                    close();
+                }
+                catch (IOException e) {
+                    // nothing more will be read from it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the file opened by a File constructor. This happens on its
+     * own when the parser reaches the end of the document or the scanner
+     * reports an error, so it's only needed if you stop parsing early.
+     * A Reader passed to the constructor is left for the caller to close.
+     * @throws IOException If the file can't be closed
+     */
+    public void close() throws IOException {
+        if (mappedFile != null) {
+            MappedFileInputStream file = mappedFile;
+            mappedFile = null;
+            file.close();
+        }
     }
 
 }
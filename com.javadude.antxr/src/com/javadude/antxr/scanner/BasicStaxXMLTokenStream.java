@@ -0,0 +1,174 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.javadude.antxr.Parser;
+import com.javadude.antxr.Token;
+import com.javadude.antxr.TokenStream;
+import com.javadude.antxr.TokenStreamException;
+
+/**
+ * A simple implementation of StaxXMLTokenStream that uses the StAX
+ * implementation built into the JRE. No extra thread is used; the XML is
+ * scanned on the parser's thread as tokens are requested, which makes this
+ * a good choice if you're parsing many small documents.
+ */
+public class BasicStaxXMLTokenStream implements TokenStream, Closeable {
+    private StaxXMLTokenStream tokenStream;
+    private MappedFileInputStream mappedFile; // opened by the File constructors
+
+    /**
+     * Creates an instance of the StAX token stream
+     * @param xmlToParse the xml stream to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     *
+     */
+    public BasicStaxXMLTokenStream(Reader xmlToParse, Class<? extends Parser> parserClass,
+                                   boolean namespaceAware) {
+        this(xmlToParse, parserClass, namespaceAware, false);
+    }
+
+    /**
+     * Creates an instance of the StAX token stream
+     * @param xmlToParse the xml stream to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     */
+    public BasicStaxXMLTokenStream(Reader xmlToParse, Class<? extends Parser> parserClass,
+                                   boolean namespaceAware, boolean skipOtherTagContent) {
+        try {
+            XMLStreamReader reader = createFactory(namespaceAware).createXMLStreamReader(xmlToParse);
+
+            // only looked up the first time we see this parser class
+            XMLTagTable tagTable = XMLTagTable.forParser(parserClass);
+
+            // Create our scanner (using the StAX reader)
+            tokenStream = new StaxXMLTokenStream(tagTable, reader, skipOtherTagContent);
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException("Exception thrown setting up StAX reader. See nested exception.",e);
+        }
+    }
+
+    /**
+     * Creates an instance of the StAX token stream for a file. The file is
+     * memory-mapped and its bytes are decoded by the StAX reader, using the
+     * document's declared encoding (UTF-8 if none)
+     * @param xmlFile the xml file to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @throws IOException if the file can't be opened
+     */
+    public BasicStaxXMLTokenStream(File xmlFile, Class<? extends Parser> parserClass,
+                                   boolean namespaceAware) throws IOException {
+        this(xmlFile, parserClass, namespaceAware, false);
+    }
+
+    /**
+     * Creates an instance of the StAX token stream for a file. The file is
+     * memory-mapped and its bytes are decoded by the StAX reader, using the
+     * document's declared encoding (UTF-8 if none)
+     * @param xmlFile the xml file to parse
+     * @param parserClass the generated parser class
+     * @param namespaceAware do we want a namespace aware parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG,
+     *                            passing the parser just the tag and its end
+     * @throws IOException if the file can't be opened
+     */
+    public BasicStaxXMLTokenStream(File xmlFile, Class<? extends Parser> parserClass,
+                                   boolean namespaceAware, boolean skipOtherTagContent) throws IOException {
+        try {
+            mappedFile = new MappedFileInputStream(xmlFile);
+            XMLStreamReader reader = createFactory(namespaceAware).createXMLStreamReader(
+                    xmlFile.toURI().toString(), mappedFile);
+
+            // only looked up the first time we see this parser class
+            XMLTagTable tagTable = XMLTagTable.forParser(parserClass);
+
+            // Create our scanner (using the StAX reader)
+            tokenStream = new StaxXMLTokenStream(tagTable, reader, skipOtherTagContent);
+        }
+        catch (XMLStreamException e) {
+            mappedFile.close();
+            throw new RuntimeException("Exception thrown setting up StAX reader. See nested exception.",e);
+        }
+    }
+
+    /**
+     * Create the StAX factory (really part of the scanner)
+     * @param namespaceAware do we want a namespace aware parse
+     * @return the factory
+     */
+    private static XMLInputFactory createFactory(boolean namespaceAware) {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.valueOf(namespaceAware));
+        return factory;
+    }
+
+    /**
+     * State whether the given token is an XML start tag
+     * @param token the token to check
+     * @return true if it's a start tag, false otherwise
+     */
+    public boolean isStartTag(Token token) {
+        return tokenStream.isStartTag(token);
+    }
+
+    /** {@inheritDoc} */
+    public Token nextToken() throws TokenStreamException {
+        boolean done = true;
+        try {
+            Token token = tokenStream.nextToken();
+            done = token.getType() == Token.EOF_TYPE;
+            return token;
+        }
+        finally {
+            // once the document is finished (or broken) we're done with the file
+            if (done && mappedFile != null) {
+                try {
+                    close();
+                }
+                catch (IOException e) {
+                    // nothing more will be read from it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the file opened by a File constructor. This happens on its
+     * own when the parser reaches the end of the document or the scanner
+     * reports an error, so it's only needed if you stop parsing early.
+     * A Reader passed to the constructor is left for the caller to close.
+     * @throws IOException If the file can't be closed
+     */
+    public void close() throws IOException {
+        if (mappedFile != null) {
+            MappedFileInputStream file = mappedFile;
+            mappedFile = null;
+            file.close();
+        }
+    }
+}
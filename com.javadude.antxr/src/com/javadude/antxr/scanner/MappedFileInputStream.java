@@ -0,0 +1,362 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.MalformedInputException;
+
+import org.xml.sax.InputSource;
+
+/**
+ * An input stream that reads a file through a memory mapping. The file's
+ * bytes are never copied onto the heap as a whole; the XML scanner reads
+ * them straight out of the mapping into its own (small) buffer. Because
+ * the scanner gets bytes rather than characters, it decodes them itself
+ * using the document's declared encoding (UTF-8 if none), instead of going
+ * through a Reader that may use the platform's default encoding. The
+ * native XML scanner decodes UTF-8 straight out of the mapping with
+ * readUTF8, without any Reader at all.
+ *
+ * Files larger than 2GB are mapped one window at a time.
+ */
+public class MappedFileInputStream extends InputStream {
+    /** the largest part of the file mapped at once */
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    /** the smallest code point that needs a sequence of each length; anything smaller is an overlong form */
+    private static final int[] MIN_CODE_POINT = { 0, 0, 0x80, 0x800, 0x10000 };
+
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long fileSize;
+    private long mark;
+    private byte[] scratch; // bytes copied out of the mapping by readUTF8
+
+    /**
+     * Map a file for reading
+     * @param file the file to read
+     * @throws IOException If the file can't be opened or mapped
+     */
+    public MappedFileInputStream(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        boolean mapped = false;
+        try {
+            channel = randomAccessFile.getChannel();
+            fileSize = channel.size();
+            mapWindow(0);
+            mapped = true;
+        }
+        finally {
+            if (!mapped) {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    /**
+     * Create a SAX input source that reads a file through a memory mapping.
+     * The file's URI is used as the system id, so relative references in
+     * the document are resolved against the file's location.
+     * @param file the file to read
+     * @return the input source
+     * @throws IOException If the file can't be opened or mapped
+     */
+    static InputSource createInputSource(File file) throws IOException {
+        InputSource inputSource = new InputSource(new MappedFileInputStream(file));
+        inputSource.setSystemId(file.toURI().toString());
+        return inputSource;
+    }
+
+    /**
+     * Map the part of the file starting at the given position
+     * @param position the position in the file of the window's first byte
+     * @throws IOException If the file can't be mapped
+     */
+    private void mapWindow(long position) throws IOException {
+        long size = Math.min(fileSize - position, MappedFileInputStream.MAX_WINDOW_SIZE);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        windowStart = position;
+    }
+
+    /**
+     * Make sure there are bytes left in the current window, moving to the
+     * next window if needed
+     * @return false if we're at the end of the file
+     * @throws IOException If the next window can't be mapped
+     */
+    private boolean ensureAvailable() throws IOException {
+        if (window == null) {
+            throw new IOException("Stream closed");
+        }
+        if (window.hasRemaining()) {
+            return true;
+        }
+        long next = windowStart + window.limit();
+        if (next >= fileSize) {
+            return false;
+        }
+        mapWindow(next);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read() throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        return window.get() & 0xff;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        int n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    /**
+     * Decode UTF-8 straight out of the mapping into a char array. ASCII
+     * bytes are simply widened; only longer sequences need decoding, and a
+     * sequence is never split between calls.
+     * @param cbuf the array to decode into
+     * @param off the index of the first char to decode
+     * @param len the most chars to decode; at least 2, so a character
+     *            outside the BMP (a surrogate pair) always fits
+     * @return the number of chars decoded, or -1 at the end of the file
+     * @throws MalformedInputException If the bytes aren't valid UTF-8
+     * @throws IOException If the file can't be read
+     */
+    int readUTF8(char[] cbuf, int off, int len) throws IOException {
+        if (!ensureAvailable()) {
+            return -1;
+        }
+        // a char never takes less than a byte, so len bytes are plenty.
+        //   Copying them out in bulk is much faster than getting them from
+        //   the mapping one at a time
+        int start = window.position();
+        int count = Math.min(len, window.remaining());
+        if (scratch == null || scratch.length < count) {
+            scratch = new byte[count];
+        }
+        byte[] bytes = scratch;
+        window.get(bytes, 0, count);
+        int p = 0;
+        int n = off;
+        int end = off + len;
+        while (n < end && p < count) {
+            int b = bytes[p];
+            if (b >= 0) {
+                // runs of ASCII are the common case, so they get a loop of their own
+                int asciiEnd = p + Math.min(count - p, end - n);
+                do {
+                    cbuf[n++] = (char) b;
+                } while (++p < asciiEnd && (b = bytes[p]) >= 0);
+                continue;
+            }
+            int length;
+            int codePoint;
+            try {
+                length = MappedFileInputStream.sequenceLength(b);
+                if (length == 4 && n + 1 == end) {
+                    break; // no room for the surrogate pair
+                }
+                if (p + length <= count) {
+                    codePoint = MappedFileInputStream.decode(bytes, p, length);
+                }
+                else if (n > off) {
+                    break; // we didn't copy all of the sequence
+                }
+                else {
+                    // decode just this sequence, which may cross into the
+                    //   next window
+                    window.position(start + p);
+                    return MappedFileInputStream.store(decodeSequence(length), cbuf, off) - off;
+                }
+            }
+            catch (MalformedInputException e) {
+                if (n > off) {
+                    break; // return what we have; the next call reports the error
+                }
+                throw e;
+            }
+            p += length;
+            n = MappedFileInputStream.store(codePoint, cbuf, n);
+        }
+        window.position(start + p);
+        return n - off;
+    }
+
+    /**
+     * Decode one sequence a byte at a time, moving on to the next window
+     * if it starts at the end of this one
+     * @param length the length of the sequence
+     * @return the code point
+     * @throws MalformedInputException If the bytes aren't valid UTF-8
+     * @throws IOException If the file can't be read
+     */
+    private int decodeSequence(int length) throws IOException {
+        byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int b = read();
+            if (b == -1) {
+                throw new MalformedInputException(i); // truncated by the end of the file
+            }
+            sequence[i] = (byte) b;
+        }
+        return MappedFileInputStream.decode(sequence, 0, length);
+    }
+
+    /**
+     * Find the length of a UTF-8 sequence from its first byte
+     * @param b the first byte, which isn't ASCII
+     * @return the length of the sequence
+     * @throws MalformedInputException If no sequence can start with the byte
+     */
+    private static int sequenceLength(int b) throws MalformedInputException {
+        b &= 0xff;
+        if (b >= 0xc2 && b <= 0xdf) {
+            return 2;
+        }
+        if (b >= 0xe0 && b <= 0xef) {
+            return 3;
+        }
+        if (b >= 0xf0 && b <= 0xf4) {
+            return 4;
+        }
+        throw new MalformedInputException(1);
+    }
+
+    /**
+     * Decode a multi-byte UTF-8 sequence, rejecting the forms the JDK's
+     * decoder rejects: bad continuation bytes, overlong forms, surrogates
+     * and values above U+10FFFF
+     * @param bytes the bytes
+     * @param p the index of the sequence's first byte
+     * @param length the length of the sequence
+     * @return the code point
+     * @throws MalformedInputException If the sequence isn't valid
+     */
+    private static int decode(byte[] bytes, int p, int length) throws MalformedInputException {
+        int codePoint = bytes[p] & (0x7f >> length);
+        for (int i = 1; i < length; i++) {
+            int b = bytes[p + i];
+            if ((b & 0xc0) != 0x80) {
+                throw new MalformedInputException(i);
+            }
+            codePoint = (codePoint << 6) | (b & 0x3f);
+        }
+        if (codePoint < MappedFileInputStream.MIN_CODE_POINT[length] ||
+            codePoint > Character.MAX_CODE_POINT ||
+            (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+            throw new MalformedInputException(length);
+        }
+        return codePoint;
+    }
+
+    /**
+     * Store a decoded character, as a surrogate pair if it's outside the BMP
+     * @param codePoint the character
+     * @param cbuf the array to store it in
+     * @param n the index to store it at
+     * @return the index just past the character
+     */
+    private static int store(int codePoint, char[] cbuf, int n) {
+        if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            cbuf[n] = Character.highSurrogate(codePoint);
+            cbuf[n + 1] = Character.lowSurrogate(codePoint);
+            return n + 2;
+        }
+        cbuf[n] = (char) codePoint;
+        return n + 1;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0 || window == null) {
+            return 0;
+        }
+        long position = windowStart + window.position();
+        long target = Math.min(fileSize, position + n);
+        seek(target);
+        return target - position;
+    }
+
+    /**
+     * Move to a position in the file
+     * @param position the position to move to
+     * @throws IOException If the position's window can't be mapped
+     */
+    private void seek(long position) throws IOException {
+        if (position < windowStart || position > windowStart + window.limit()) {
+            mapWindow(position);
+        }
+        window.position((int) (position - windowStart));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int available() throws IOException {
+        if (window == null) {
+            return 0;
+        }
+        long remaining = fileSize - windowStart - window.position();
+        return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void mark(int readlimit) {
+        if (window != null) {
+            mark = windowStart + window.position();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void reset() throws IOException {
+        if (window == null) {
+            throw new IOException("Stream closed");
+        }
+        seek(mark);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,1734 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.javadude.antxr.CommonToken;
+import com.javadude.antxr.Token;
+import com.javadude.antxr.TokenStream;
+import com.javadude.antxr.TokenStreamException;
+
+
+/**
+ * An XML token stream with its own scanner, rather than a SAX, StAX or
+ * XmlPull parser. It handles well-formed, namespace-aware XML without a
+ * DTD, which covers most documents that are exchanged between programs,
+ * and produces the same tokens as the other XML token streams. Like a SAX
+ * parser, it rejects a document that isn't well-formed (or breaks the
+ * namespace rules) with a TokenStreamException.
+ *
+ * Tag and attribute names are matched against the parser's tag table
+ * while they are still in the scan buffer, so no String is created for
+ * them unless the grammar doesn't know the tag; start tag tokens for known
+ * tags share the text held in the tag table. Only attribute values and
+ * PCDATA text become new Strings.
+ *
+ * The scanner doesn't validate and doesn't read DTDs. If the document has
+ * a DOCTYPE declaration (which may declare entities or default attribute
+ * values), the whole document is handed to a SAX parser instead, and this
+ * stream simply passes on that parser's tokens. A file whose encoding is
+ * not UTF-8 (or ASCII), and a document that declares an XML version other
+ * than 1.0, are handed to a SAX parser as well.
+ */
+public class NativeXMLTokenStream implements TokenStream, Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    private static final String XMLNS_NAMESPACE = "http://www.w3.org/2000/xmlns/";
+    /** how many bytes we look at to find a file's encoding declaration */
+    private static final int PROLOG_SIZE = 256;
+
+    private XMLTagTable tagTable;
+    private int pcdataNum;
+    private int endTagValue;
+    private int otherTagValue;
+    private boolean skipOtherTagContent;
+
+    // the input: a Reader, or a mapped UTF-8 file that we decode ourselves.
+    //   buf[0] is at offset bufferOffset in the document
+    private Reader in;
+    private MappedFileInputStream mappedFile; // opened by the File constructors
+    private String systemId;
+    private char[] buf = new char[NativeXMLTokenStream.DEFAULT_BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    private long bufferOffset;
+    private int mark = -1; // start of the tag we're scanning; kept in the buffer
+    private boolean eof;
+    private boolean keepAll = true; // keep the prolog, in case we need to replay it
+    private int replayStart;
+    private int line = 1;
+    private long lineStart;
+
+    // used instead of our own scanner if the document has a DTD
+    private TokenStream fallback;
+
+    // open elements: their qualified names, one after another, and the
+    //   number of namespace declarations in effect outside each one
+    private char[] elementNames = new char[256];
+    private int elementNamesLength;
+    private int[] elementNameStarts = new int[32];
+    private int[] elementNamespaceCounts = new int[32];
+    private int depth;
+    private boolean rootSeen;
+
+    // namespace declarations in effect, innermost last
+    private String[] namespacePrefixes = new String[16];
+    private String[] namespaceUris = new String[16];
+    private int namespaceCount;
+
+    // the attributes of the start tag being scanned. Names are offsets
+    //   from mark
+    private int[] attributeNameStarts = new int[8];
+    private int[] attributeNameEnds = new int[8];
+    private String[] attributeValues = new String[8];
+    private int attributeCount;
+    private char[] valueChars = new char[64];
+    private int valueLength;
+    private char[] entityName = new char[8];
+
+    private PCDataBuffer currentCharacters = new PCDataBuffer();
+    private int currentCharactersLine = -1;
+    private int currentCharactersColumn = -1;
+
+    // while we're skipping the content of an OTHER_TAG, the depth of its
+    //   element; 0 if we're not skipping
+    private int skipDepth;
+
+    private boolean pendingEndTag; // did the last start tag end with "/>"?
+    private int pendingEndTagLine;
+    private int pendingEndTagColumn;
+
+    /**
+     * Create the xml token stream
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param xmlToParse The XML input to parse
+     */
+    public NativeXMLTokenStream(XMLTagTable tagTable, Reader xmlToParse) {
+        this(tagTable, xmlToParse, false);
+    }
+
+    /**
+     * Create the xml token stream. If skipOtherTagContent is true, a tag
+     * that maps to OTHER_TAG is passed to the parser with its matching end
+     * tag, but nothing in between; its content is still checked, but no
+     * tokens are created for it.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param xmlToParse The XML input to parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
+     */
+    public NativeXMLTokenStream(XMLTagTable tagTable, Reader xmlToParse, boolean skipOtherTagContent) {
+        useTagTable(tagTable, skipOtherTagContent);
+        in = xmlToParse;
+    }
+
+    /**
+     * Create the xml token stream for a file. The file is memory-mapped and
+     * its UTF-8 bytes are decoded straight into the scan buffer, without a
+     * Reader, so it's never held on the heap as a whole.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param xmlFile The XML file to parse
+     * @throws IOException If the file can't be opened
+     */
+    public NativeXMLTokenStream(XMLTagTable tagTable, File xmlFile) throws IOException {
+        this(tagTable, xmlFile, false);
+    }
+
+    /**
+     * Create the xml token stream for a file. The file is memory-mapped and
+     * its UTF-8 bytes are decoded straight into the scan buffer, without a
+     * Reader, so it's never held on the heap as a whole.
+     * If skipOtherTagContent is true, a tag that maps to OTHER_TAG is passed
+     * to the parser with its matching end tag, but nothing in between.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param xmlFile The XML file to parse
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
+     * @throws IOException If the file can't be opened
+     */
+    public NativeXMLTokenStream(XMLTagTable tagTable, File xmlFile, boolean skipOtherTagContent) throws IOException {
+        useTagTable(tagTable, skipOtherTagContent);
+        systemId = xmlFile.toURI().toString();
+        MappedFileInputStream bytes = new MappedFileInputStream(xmlFile);
+        if (NativeXMLTokenStream.isUTF8(bytes)) {
+            mappedFile = bytes;
+        } else {
+            bytes.close();
+            fallback = createSaxTokenStream(MappedFileInputStream.createInputSource(xmlFile));
+        }
+    }
+
+    /**
+     * Set up the token types to use when scanning
+     * @param tagTable The parser's XML tag table
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
+     */
+    private void useTagTable(XMLTagTable tagTable, boolean skipOtherTagContent) {
+        this.tagTable = tagTable;
+        pcdataNum = tagTable.getPCDataType();
+        endTagValue = tagTable.getEndTagType();
+        if (endTagValue == XMLTagTable.UNDEFINED) {
+            endTagValue = Token.INVALID_TYPE;
+        }
+        otherTagValue = tagTable.getOtherTagType();
+        this.skipOtherTagContent = skipOtherTagContent && otherTagValue != XMLTagTable.UNDEFINED;
+        namespacePrefixes[0] = "xml";
+        namespaceUris[0] = NativeXMLTokenStream.XML_NAMESPACE;
+        namespacePrefixes[1] = "";
+        namespaceUris[1] = "";
+        namespaceCount = 2;
+    }
+
+    /**
+     * Check whether a file can be read as UTF-8, based on its byte order
+     * mark and encoding declaration. ASCII is a subset of UTF-8, so it's
+     * fine as well.
+     * @param bytes the file's contents; left at the start of the file
+     * @return true if the file is UTF-8
+     * @throws IOException If the file can't be read
+     */
+    private static boolean isUTF8(MappedFileInputStream bytes) throws IOException {
+        byte[] prolog = new byte[NativeXMLTokenStream.PROLOG_SIZE];
+        bytes.mark(prolog.length);
+        int length = 0;
+        int n;
+        while (length < prolog.length && (n = bytes.read(prolog, length, prolog.length - length)) > 0) {
+            length += n;
+        }
+        bytes.reset();
+        // UTF-16 and UTF-32 have a zero in one of the first two bytes, or a
+        //   byte order mark we don't handle
+        if (length >= 2 && (prolog[0] == 0 || prolog[1] == 0 ||
+                            (prolog[0] & 0xff) == 0xfe || (prolog[0] & 0xff) == 0xff)) {
+            return false;
+        }
+        String start = new String(prolog, 0, length, StandardCharsets.ISO_8859_1);
+        if (start.startsWith("\u00ef\u00bb\u00bf")) { // UTF-8 byte order mark
+            start = start.substring(3);
+        }
+        if (!start.startsWith("<?xml")) {
+            return true;
+        }
+        int end = start.indexOf("?>");
+        int encoding = start.indexOf("encoding");
+        if (end == -1 || encoding == -1 || encoding > end) {
+            return true;
+        }
+        int quote = encoding + 8;
+        while (quote < end && start.charAt(quote) != '"' && start.charAt(quote) != '\'') {
+            quote++;
+        }
+        int endQuote = start.indexOf(start.charAt(quote), quote + 1);
+        if (quote >= end || endQuote == -1) {
+            return true; // let the scanner report the broken declaration
+        }
+        String name = start.substring(quote + 1, endQuote);
+        return "UTF-8".equalsIgnoreCase(name) || "UTF8".equalsIgnoreCase(name) ||
+               "US-ASCII".equalsIgnoreCase(name) || "ASCII".equalsIgnoreCase(name);
+    }
+
+    /**
+     * State whether the given token is an XML start tag
+     * @param token the token to check
+     * @return true if it's a start tag, false otherwise
+     */
+    public boolean isStartTag(Token token) {
+        return tagTable.isStartTag(token.getType());
+    }
+
+    /** {@inheritDoc} */
+    public Token nextToken() throws TokenStreamException {
+        boolean done = true;
+        try {
+            Token token = scanToken();
+            done = token.getType() == Token.EOF_TYPE;
+            return token;
+        }
+        finally {
+            // once the document is finished (or broken) we're done with the file
+            if (done && mappedFile != null) {
+                try {
+                    close();
+                }
+                catch (IOException e) {
+                    // nothing more will be read from it anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the file opened by a File constructor. This happens on its
+     * own when the parser reaches the end of the document or the scanner
+     * reports an error, so it's only needed if you stop parsing early.
+     * A Reader passed to the constructor is left for the caller to close.
+     * @throws IOException If the file can't be closed
+     */
+    public void close() throws IOException {
+        if (mappedFile != null) {
+            MappedFileInputStream file = mappedFile;
+            mappedFile = null;
+            file.close();
+        }
+    }
+
+    /**
+     * Scan the next token
+     * @return the token
+     * @throws TokenStreamException If the document isn't well-formed or
+     *                              can't be read
+     */
+    private Token scanToken() throws TokenStreamException {
+        if (fallback != null) {
+            return fallback.nextToken();
+        }
+        try {
+            if (pendingEndTag) {
+                pendingEndTag = false;
+                return createToken(endTagValue, "", pendingEndTagLine, pendingEndTagColumn);
+            }
+            while (true) {
+                int c = peek(0);
+                if (c == -1) {
+                    Token pcdata = finishCharacters();
+                    if (pcdata != null) {
+                        return pcdata;
+                    }
+                    if (!rootSeen || depth > 0) {
+                        throw error("Unexpected end of document");
+                    }
+                    return createToken(Token.EOF_TYPE, "", line, column());
+                }
+                if (c != '<') {
+                    scanText();
+                    continue;
+                }
+                switch (peek(1)) {
+                    case '?':
+                        // processing instructions (including the XML
+                        //   declaration) aren't interesting to the parser
+                        scanProcessingInstruction();
+                        if (fallback != null) {
+                            return fallback.nextToken();
+                        }
+                        continue;
+
+                    case '!':
+                        if (lookingAt("<!--")) {
+                            skipComment();
+                        }
+                        else if (lookingAt("<![CDATA[")) {
+                            scanCData();
+                        }
+                        else if (lookingAt("<!DOCTYPE") && !rootSeen) {
+                            fallBackToSax();
+                            return fallback.nextToken();
+                        }
+                        else {
+                            throw error("Unexpected markup");
+                        }
+                        continue;
+
+                    case '/': {
+                        // if we were working on a PCDATA, send it first
+                        Token pcdata = finishCharacters();
+                        if (pcdata != null) {
+                            return pcdata;
+                        }
+                        scanEndTag();
+                        if (skipDepth > 0) {
+                            if (depth >= skipDepth) {
+                                continue; // still inside the OTHER_TAG
+                            }
+                            skipDepth = 0;
+                        }
+                        return createToken(endTagValue, "", line, column());
+                    }
+
+                    default: {
+                        Token pcdata = finishCharacters();
+                        if (pcdata != null) {
+                            return pcdata;
+                        }
+                        Token token = scanStartTag();
+                        if (token == null) {
+                            continue; // inside an OTHER_TAG we're skipping
+                        }
+                        return token;
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new TokenStreamException("Error reading XML (line " + line + " col " + column() + ")", e);
+        }
+    }
+
+    /**
+     * Hand the document to a SAX parser, starting over from its first
+     * character. Only called before the root element, while the whole
+     * prolog is still in the buffer.
+     */
+    private void fallBackToSax() {
+        Reader rest = in;
+        if (rest == null) {
+            // we've decoded exactly the bytes that are in the buffer
+            rest = new InputStreamReader(mappedFile, StandardCharsets.UTF_8.newDecoder());
+        }
+        InputSource inputSource = new InputSource(new ReplayReader(buf, replayStart, limit, rest));
+        inputSource.setSystemId(systemId);
+        fallback = createSaxTokenStream(inputSource);
+        buf = null;
+    }
+
+    /**
+     * Create a token stream that uses a SAX parser to scan the document
+     * @param inputSource The document
+     * @return the token stream
+     */
+    private TokenStream createSaxTokenStream(InputSource inputSource) {
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            SAXParser parser = factory.newSAXParser();
+            return new XMLTokenStream(tagTable, inputSource, parser, null, null,
+                                      -1, -1, RingBufferQueue.DEFAULT_BATCH_SIZE, skipOtherTagContent);
+        }
+        catch (ParserConfigurationException e) {
+            throw new RuntimeException("Cannot configure the SAX parser. See nested exception.", e);
+        }
+        catch (SAXException e) {
+            throw new RuntimeException("Error building SAX parser. See nested exception.", e);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // buffer management
+
+    /**
+     * Read more of the input into the buffer. Everything before the
+     * current position (or the mark, if a tag is being scanned) may be
+     * dropped to make room, so indexes into the buffer must be refreshed
+     * afterwards.
+     * @return false if there's no more input
+     * @throws IOException If the input can't be read
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (!keepAll) {
+            int keep = mark >= 0 ? mark : pos;
+            if (keep > 0) {
+                System.arraycopy(buf, keep, buf, 0, limit - keep);
+                limit -= keep;
+                pos -= keep;
+                if (mark >= 0) {
+                    mark -= keep;
+                }
+                bufferOffset += keep;
+            }
+        }
+        // leave room for at least a surrogate pair
+        if (buf.length - limit < 2) {
+            char[] newBuf = new char[buf.length * 2];
+            System.arraycopy(buf, 0, newBuf, 0, limit);
+            buf = newBuf;
+        }
+        int n;
+        if (in == null) {
+            // a mapped file: decode its bytes ourselves
+            if (mappedFile == null) {
+                throw new IOException("Stream closed");
+            }
+            n = mappedFile.readUTF8(buf, limit, buf.length - limit);
+        }
+        else {
+            while ((n = in.read(buf, limit, buf.length - limit)) == 0) {
+                // keep trying
+            }
+        }
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        if (bufferOffset == 0 && limit == n && buf[0] == '\ufeff') {
+            pos = replayStart = 1; // skip the byte order mark
+            lineStart = 1;
+        }
+        return true;
+    }
+
+    /**
+     * Look at a character without consuming it
+     * @param ahead how far past the current position to look
+     * @return the character, or -1 at the end of the input
+     * @throws IOException If the input can't be read
+     */
+    private int peek(int ahead) throws IOException {
+        while (pos + ahead >= limit) {
+            if (!fill()) {
+                return -1;
+            }
+        }
+        return buf[pos + ahead];
+    }
+
+    /**
+     * Check whether the input continues with the given text
+     * @param text the text to look for
+     * @return true if it does
+     * @throws IOException If the input can't be read
+     */
+    private boolean lookingAt(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (peek(i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the column of the current position
+     */
+    private int column() {
+        return (int) (bufferOffset + pos - lineStart) + 1;
+    }
+
+    /**
+     * Note that we just moved past a line break
+     */
+    private void newLine() {
+        line++;
+        lineStart = bufferOffset + pos;
+    }
+
+    /**
+     * Move past one character, counting line breaks (a carriage return
+     * followed by a newline counts once)
+     * @param c the character
+     * @throws IOException If the input can't be read
+     */
+    private void consume(int c) throws IOException {
+        pos++;
+        if (c == '\n' || (c == '\r' && peek(0) != '\n')) {
+            newLine();
+        }
+    }
+
+    /**
+     * Skip everything up to and including the given text
+     * @param end the text that ends the construct we're skipping
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the input ends first
+     */
+    private void skipPast(String end) throws IOException, TokenStreamException {
+        while (!lookingAt(end)) {
+            int c = peek(0);
+            if (c == -1) {
+                throw error("Expected '" + end + "' before end of document");
+            }
+            skipChar(c);
+        }
+        pos += end.length();
+    }
+
+    /**
+     * Move past one character, which must be allowed in a document
+     * @param c the character at the current position
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the character isn't allowed
+     */
+    private void skipChar(int c) throws IOException, TokenStreamException {
+        if (checkChar(c) == 2) {
+            pos += 2;
+        } else {
+            consume(c);
+        }
+    }
+
+    /**
+     * Check that the character at the current position is allowed in a
+     * document
+     * @param c the character at the current position
+     * @return the number of chars it takes: 2 for a surrogate pair, else 1
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the character isn't allowed
+     */
+    private int checkChar(int c) throws IOException, TokenStreamException {
+        if (c >= '\ud800' && c <= '\udbff') {
+            int low = peek(1);
+            if (low >= '\udc00' && low <= '\udfff') {
+                return 2;
+            }
+        }
+        else if (NativeXMLTokenStream.isXMLChar(c)) {
+            return 1;
+        }
+        throw error(String.format("Character U+%04X is not allowed in XML", Integer.valueOf(c)));
+    }
+
+    /**
+     * Check whether a character is allowed in a document
+     * @param c the character
+     * @return true if it is
+     */
+    private static boolean isXMLChar(int c) {
+        return c >= 0x20 && c <= 0xd7ff || c == '\t' || c == '\n' || c == '\r' ||
+               c >= 0xe000 && c <= 0xfffd || c >= 0x10000 && c <= Character.MAX_CODE_POINT;
+    }
+
+    /**
+     * Check whether a character can start a name
+     * @param c the character
+     * @return true if it can
+     */
+    private static boolean isNameStartChar(int c) {
+        if (c < 0x80) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':';
+        }
+        return c >= 0xc0 && c <= 0xd6 || c >= 0xd8 && c <= 0xf6 || c >= 0xf8 && c <= 0x2ff ||
+               c >= 0x370 && c <= 0x37d || c >= 0x37f && c <= 0x1fff || c == 0x200c || c == 0x200d ||
+               c >= 0x2070 && c <= 0x218f || c >= 0x2c00 && c <= 0x2fef || c >= 0x3001 && c <= 0xd7ff ||
+               c >= 0xf900 && c <= 0xfdcf || c >= 0xfdf0 && c <= 0xfffd || c >= 0x10000 && c <= 0xeffff;
+    }
+
+    /**
+     * Check whether a character can appear in a name after its first
+     * character
+     * @param c the character
+     * @return true if it can
+     */
+    private static boolean isNameChar(int c) {
+        if (c < 0x80) {
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' ||
+                   c == '_' || c == ':' || c == '-' || c == '.';
+        }
+        return NativeXMLTokenStream.isNameStartChar(c) || c == 0xb7 || c >= 0x300 && c <= 0x36f ||
+               c == 0x203f || c == 0x2040;
+    }
+
+    /**
+     * Skip a comment, which can't contain "--"
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the comment isn't well-formed
+     */
+    private void skipComment() throws IOException, TokenStreamException {
+        pos += 4; // "<!--"
+        while (true) {
+            int c = peek(0);
+            if (c == -1) {
+                throw error("Expected '-->' before end of document");
+            }
+            if (c == '-' && peek(1) == '-') {
+                if (peek(2) != '>') {
+                    throw error("'--' is not allowed in comments");
+                }
+                pos += 3;
+                return;
+            }
+            skipChar(c);
+        }
+    }
+
+    /**
+     * Skip a processing instruction, checking its target. The XML
+     * declaration looks like one, but it's only allowed at the very start
+     * of the document; if it declares a version other than 1.0, the
+     * document is handed to a SAX parser.
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the instruction isn't well-formed
+     */
+    private void scanProcessingInstruction() throws IOException, TokenStreamException {
+        boolean atStart = bufferOffset == 0 && pos == replayStart;
+        mark = pos;
+        pos += 2; // "<?"
+        scanName();
+        if (pos - mark == 5 && "xml".equalsIgnoreCase(new String(buf, mark + 2, 3))) {
+            if (!nameEquals(2, 5, "xml")) {
+                throw error("Processing instruction target '" + new String(buf, mark + 2, 3) + "' is reserved");
+            }
+            if (!atStart) {
+                throw error("The XML declaration is only allowed at the start of the document");
+            }
+            mark = -1;
+            scanXMLDeclaration();
+            return;
+        }
+        mark = -1;
+        if (!skipWhitespace() && !lookingAt("?>")) {
+            throw error("Expected whitespace after the processing instruction target");
+        }
+        skipPast("?>");
+    }
+
+    /**
+     * Scan the rest of the XML declaration, after "&lt;?xml". XML 1.1 has
+     * different rules for names and characters, so a document with any
+     * version other than 1.0 is handed to a SAX parser.
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the declaration isn't well-formed
+     */
+    private void scanXMLDeclaration() throws IOException, TokenStreamException {
+        if (!skipWhitespace() || !lookingAt("version")) {
+            throw error("Expected the version in the XML declaration");
+        }
+        pos += 7;
+        String version = scanDeclarationValue();
+        if (!NativeXMLTokenStream.isVersionNumber(version)) {
+            throw error("Malformed version '" + version + "' in the XML declaration");
+        }
+        boolean whitespace = skipWhitespace();
+        if (whitespace && lookingAt("encoding")) {
+            pos += 8;
+            String encoding = scanDeclarationValue();
+            if (!NativeXMLTokenStream.isEncodingName(encoding)) {
+                throw error("Malformed encoding name '" + encoding + "' in the XML declaration");
+            }
+            whitespace = skipWhitespace();
+        }
+        if (whitespace && lookingAt("standalone")) {
+            pos += 10;
+            String standalone = scanDeclarationValue();
+            if (!"yes".equals(standalone) && !"no".equals(standalone)) {
+                throw error("standalone must be 'yes' or 'no' in the XML declaration");
+            }
+            skipWhitespace();
+        }
+        if (!lookingAt("?>")) {
+            throw error("Malformed XML declaration");
+        }
+        pos += 2;
+        if (!"1.0".equals(version)) {
+            fallBackToSax();
+        }
+    }
+
+    /**
+     * Scan the "= 'value'" part of a setting in the XML declaration
+     * @return the value
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the value isn't well-formed
+     */
+    private String scanDeclarationValue() throws IOException, TokenStreamException {
+        skipWhitespace();
+        if (peek(0) != '=') {
+            throw error("Expected '=' in the XML declaration");
+        }
+        pos++;
+        skipWhitespace();
+        int quote = peek(0);
+        if (quote != '"' && quote != '\'') {
+            throw error("Expected a quoted value in the XML declaration");
+        }
+        pos++;
+        StringBuilder value = new StringBuilder();
+        int c;
+        while ((c = peek(0)) != quote) {
+            if (c == -1 || c == '<' || c == '>') {
+                throw error("Unterminated value in the XML declaration");
+            }
+            consume(c);
+            value.append((char) c);
+        }
+        pos++;
+        return value.toString();
+    }
+
+    /**
+     * Check the version in an XML declaration: "1." and at least one digit
+     * @param version the version
+     * @return true if it's well-formed
+     */
+    private static boolean isVersionNumber(String version) {
+        if (version.length() < 3 || !version.startsWith("1.")) {
+            return false;
+        }
+        for (int i = 2; i < version.length(); i++) {
+            if (version.charAt(i) < '0' || version.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the encoding name in an XML declaration: a letter, followed by
+     * letters, digits, '.', '_' and '-'
+     * @param name the name
+     * @return true if it's well-formed
+     */
+    private static boolean isEncodingName(String name) {
+        if (name.length() == 0 || !Character.isLetter(name.charAt(0)) || name.charAt(0) > 'z') {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' ||
+                  c == '.' || c == '_' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip whitespace
+     * @return true if there was any
+     * @throws IOException If the input can't be read
+     */
+    private boolean skipWhitespace() throws IOException {
+        boolean skipped = false;
+        int c;
+        while ((c = peek(0)) == ' ' || c == '\t' || c == '\n' || c == '\r') {
+            consume(c);
+            skipped = true;
+        }
+        return skipped;
+    }
+
+    /**
+     * Move past a name
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If there's no name here
+     */
+    private void scanName() throws IOException, TokenStreamException {
+        int start = pos - mark;
+        while (true) {
+            int c = peek(0);
+            int length = 1;
+            if (c >= '\ud800' && c <= '\udbff') {
+                int low = peek(1);
+                if (low >= '\udc00' && low <= '\udfff') {
+                    c = Character.toCodePoint((char) c, (char) low);
+                    length = 2;
+                }
+            }
+            if (pos - mark == start ? !NativeXMLTokenStream.isNameStartChar(c) : !NativeXMLTokenStream.isNameChar(c)) {
+                break;
+            }
+            pos += length;
+        }
+        if (pos - mark == start) {
+            throw error("Expected a name");
+        }
+    }
+
+    /**
+     * Move past a qualified name: a name with at most one colon, which
+     * separates its prefix from its local name
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If there's no qualified name here
+     */
+    private void scanQName() throws IOException, TokenStreamException {
+        int start = pos - mark;
+        scanName();
+        int end = pos - mark;
+        int colon = findColon(start, end);
+        if (colon != -1 && (colon == start || colon == end - 1 || findColon(colon + 1, end) != -1)) {
+            throw error("'" + new String(buf, mark + start, end - start) + "' is not a valid qualified name");
+        }
+    }
+
+    /**
+     * Create the exception for a document that isn't well-formed
+     * @param message what's wrong
+     * @return the exception
+     */
+    private TokenStreamException error(String message) {
+        return new TokenStreamException(message + " (line " + line + " col " + column() + ")");
+    }
+
+    // ------------------------------------------------------------------
+    // character data
+
+    /**
+     * Collect character data up to the next tag
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the data isn't well-formed
+     */
+    private void scanText() throws IOException, TokenStreamException {
+        if (currentCharactersLine == -1 && depth > 0 && skipDepth == 0) {
+            currentCharactersLine = line;
+            currentCharactersColumn = column();
+        }
+        int start = pos;
+        while (true) {
+            if (pos == limit) {
+                appendText(start, pos);
+                if (!fill()) {
+                    return;
+                }
+                start = pos;
+                continue;
+            }
+            char c = buf[pos];
+            if (c == '<') {
+                break;
+            }
+            if (c == '&') {
+                appendText(start, pos);
+                scanReference(false);
+                start = pos;
+            }
+            else if (c == '\r') {
+                // line breaks are always reported as a single newline
+                appendText(start, pos);
+                appendText('\n');
+                consume(c);
+                if (peek(0) == '\n') {
+                    pos++;
+                }
+                start = pos;
+            }
+            else if (c == '\n') {
+                pos++;
+                newLine();
+            }
+            else if (c == ']') {
+                // "]]>" may only end a CDATA section
+                appendText(start, pos);
+                if (lookingAt("]]>")) {
+                    throw error("']]>' is not allowed in character data");
+                }
+                start = pos;
+                pos++;
+            }
+            else if (c < ' ' ? c != '\t' : c >= '\ud800' && (c <= '\udfff' || c >= '\ufffe')) {
+                // control characters, surrogates and U+FFFE/U+FFFF need a
+                //   closer look
+                appendText(start, pos);
+                int length = checkChar(c);
+                start = pos;
+                pos += length;
+            }
+            else {
+                pos++;
+            }
+        }
+        appendText(start, pos);
+    }
+
+    /**
+     * Collect the contents of a CDATA section
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the section isn't closed
+     */
+    private void scanCData() throws IOException, TokenStreamException {
+        if (currentCharactersLine == -1 && depth > 0 && skipDepth == 0) {
+            currentCharactersLine = line;
+            currentCharactersColumn = column();
+        }
+        pos += 9; // "<![CDATA["
+        while (!lookingAt("]]>")) {
+            int c = peek(0);
+            if (c == -1) {
+                throw error("Expected ']]>' before end of document");
+            }
+            if (checkChar(c) == 2) {
+                // a surrogate pair; the low half is added below
+                appendText((char) c);
+                pos++;
+                c = peek(0);
+            }
+            consume(c);
+            if (c == '\r') {
+                if (peek(0) == '\n') {
+                    pos++;
+                }
+                c = '\n';
+            }
+            appendText((char) c);
+        }
+        pos += 3;
+    }
+
+    /**
+     * Collect part of the buffer as character data
+     * @param start the index of the first character
+     * @param end the index just past the last character
+     * @throws TokenStreamException If we're outside the root element
+     */
+    private void appendText(int start, int end) throws TokenStreamException {
+        if (depth == 0) {
+            for (int i = start; i < end; i++) {
+                if (buf[i] > ' ') {
+                    throw error("Character data is not allowed outside the root element");
+                }
+            }
+            return;
+        }
+        // if PCDATA isn't used in the parser (or we're skipping it), don't
+        //   collect characters
+        if (pcdataNum != XMLTagTable.UNDEFINED && skipDepth == 0 && end > start) {
+            currentCharacters.append(buf, start, end - start);
+        }
+    }
+
+    /**
+     * Collect a character as character data
+     * @param c the character
+     * @throws TokenStreamException If we're outside the root element
+     */
+    private void appendText(char c) throws TokenStreamException {
+        if (depth == 0) {
+            if (c > ' ') {
+                throw error("Character data is not allowed outside the root element");
+            }
+            return;
+        }
+        if (pcdataNum != XMLTagTable.UNDEFINED && skipDepth == 0) {
+            currentCharacters.append(c);
+        }
+    }
+
+    /**
+     * Finish our PCDATA
+     * @return the PCDATA token, or null if there were no characters or they
+     *         were all whitespace
+     */
+    private Token finishCharacters() {
+        if (currentCharactersLine == -1) {
+            return null;
+        }
+        int tokenLine = currentCharactersLine;
+        int tokenColumn = currentCharactersColumn;
+        currentCharactersLine = -1;
+        currentCharactersColumn = -1;
+        // whitespace between tags never becomes a String
+        if (currentCharacters.isWhitespace()) {
+            currentCharacters.clear();
+            return null;
+        }
+
+        Token token = currentCharacters.createToken(pcdataNum);
+        token.setLine(tokenLine);
+        token.setColumn(tokenColumn);
+        return token;
+    }
+
+    /**
+     * Decode a character or predefined entity reference
+     * @param inAttribute true if the reference is in an attribute value,
+     *                    false if it's in character data
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the reference isn't well-formed or
+     *                              names an entity we don't know
+     */
+    private void scanReference(boolean inAttribute) throws IOException, TokenStreamException {
+        pos++; // '&'
+        int codePoint = 0;
+        if (peek(0) == '#') {
+            pos++;
+            int radix = 10;
+            if (peek(0) == 'x') {
+                pos++;
+                radix = 16;
+            }
+            int c;
+            int digits = 0;
+            while ((c = peek(0)) != ';') {
+                int digit = Character.digit(c, radix);
+                if (c == -1 || digit == -1 || codePoint > Character.MAX_CODE_POINT) {
+                    throw error("Malformed character reference");
+                }
+                codePoint = codePoint * radix + digit;
+                digits++;
+                pos++;
+            }
+            pos++;
+            if (digits == 0) {
+                throw error("Malformed character reference");
+            }
+            if (!NativeXMLTokenStream.isXMLChar(codePoint)) {
+                throw error(String.format("Character reference to U+%04X, which is not allowed in XML", Integer.valueOf(codePoint)));
+            }
+        }
+        else {
+            int length = 0;
+            int c;
+            while ((c = peek(0)) != ';') {
+                if (c == -1 || c <= ' ' || c == '<' || c == '&') {
+                    throw error("Malformed entity reference");
+                }
+                if (length < entityName.length) {
+                    entityName[length] = (char) c;
+                }
+                length++;
+                pos++;
+            }
+            pos++;
+            codePoint = NativeXMLTokenStream.predefinedEntity(entityName, length);
+            if (codePoint == -1) {
+                // declaring other entities needs a DTD, and we only scan
+                //   documents that don't have one
+                throw error("Reference to undeclared entity");
+            }
+        }
+        if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            appendDecoded(Character.highSurrogate(codePoint), inAttribute);
+            appendDecoded(Character.lowSurrogate(codePoint), inAttribute);
+        } else {
+            appendDecoded((char) codePoint, inAttribute);
+        }
+    }
+
+    /**
+     * Look up one of the entities every XML document has
+     * @param name the entity name
+     * @param length the length of the name
+     * @return the entity's character, or -1 if it's not predefined
+     */
+    private static int predefinedEntity(char[] name, int length) {
+        if (length == 2 && name[1] == 't') {
+            if (name[0] == 'l') {
+                return '<';
+            }
+            if (name[0] == 'g') {
+                return '>';
+            }
+        }
+        else if (length == 3 && name[0] == 'a' && name[1] == 'm' && name[2] == 'p') {
+            return '&';
+        }
+        else if (length == 4) {
+            if (name[0] == 'q' && name[1] == 'u' && name[2] == 'o' && name[3] == 't') {
+                return '"';
+            }
+            if (name[0] == 'a' && name[1] == 'p' && name[2] == 'o' && name[3] == 's') {
+                return '\'';
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add a character from a reference to the attribute value or character
+     * data we're collecting
+     * @param c the character
+     * @param inAttribute true if we're collecting an attribute value
+     * @throws TokenStreamException If we're outside the root element
+     */
+    private void appendDecoded(char c, boolean inAttribute) throws TokenStreamException {
+        if (inAttribute) {
+            appendValue(c);
+        } else {
+            appendText(c);
+        }
+    }
+
+    // ------------------------------------------------------------------
+    // tags
+
+    /**
+     * Scan a start tag, including its namespace declarations and attributes
+     * @return the start tag token, or null if it's inside an OTHER_TAG whose
+     *         content we're skipping
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the tag isn't well-formed
+     */
+    private Token scanStartTag() throws IOException, TokenStreamException {
+        if (rootSeen && depth == 0) {
+            throw error("Only one root element is allowed");
+        }
+        mark = pos;
+        pos++; // '<'
+        int nameStart = pos - mark;
+        scanQName();
+        int nameEnd = pos - mark;
+        int namespaceCountOutside = namespaceCount;
+        attributeCount = 0;
+        boolean empty = false;
+        while (true) {
+            boolean whitespace = skipWhitespace();
+            int c = peek(0);
+            if (c == '>') {
+                pos++;
+                break;
+            }
+            if (c == '/') {
+                if (peek(1) != '>') {
+                    throw error("Expected '>' after '/'");
+                }
+                pos += 2;
+                empty = true;
+                break;
+            }
+            if (c == -1) {
+                throw error("Unexpected end of document in start tag");
+            }
+            if (!whitespace) {
+                throw error("Expected whitespace before attribute");
+            }
+            int attributeNameStart = pos - mark;
+            scanQName();
+            int attributeNameEnd = pos - mark;
+            skipWhitespace();
+            if (peek(0) != '=') {
+                throw error("Expected '=' after attribute name");
+            }
+            pos++;
+            skipWhitespace();
+            if (nameEquals(attributeNameStart, attributeNameEnd, "xmlns")) {
+                declareNamespace("", scanAttributeValue(true), namespaceCountOutside);
+            }
+            else if (attributeNameEnd - attributeNameStart > 6 &&
+                     nameEquals(attributeNameStart, attributeNameStart + 6, "xmlns:")) {
+                String prefix = new String(buf, mark + attributeNameStart + 6, attributeNameEnd - attributeNameStart - 6);
+                declareNamespace(prefix, scanAttributeValue(true), namespaceCountOutside);
+            }
+            else {
+                // skipped tags don't need their attribute values
+                addAttribute(attributeNameStart, attributeNameEnd, scanAttributeValue(skipDepth == 0));
+            }
+        }
+        int tokenLine = line;
+        int tokenColumn = column();
+        Token token = null;
+        if (skipDepth == 0) {
+            token = createXMLToken(nameStart, nameEnd, tokenLine, tokenColumn);
+        } else {
+            checkSkippedTag(nameStart, nameEnd);
+        }
+        pushElement(nameStart, nameEnd, namespaceCountOutside);
+        mark = -1;
+        if (!rootSeen) {
+            // past the prolog, so we won't need to replay it for SAX
+            rootSeen = true;
+            keepAll = false;
+        }
+        if (empty) {
+            popElement();
+            if (token != null) {
+                pendingEndTag = true;
+                pendingEndTagLine = tokenLine;
+                pendingEndTagColumn = tokenColumn;
+            }
+        }
+        else if (skipOtherTagContent && token != null && token.getType() == otherTagValue) {
+            skipDepth = depth;
+        }
+        return token;
+    }
+
+    /**
+     * Scan a quoted attribute value, decoding references and normalizing
+     * whitespace the way a non-validating parser does
+     * @param keep false if the value is only checked, not used
+     * @return the value, or null if it's not kept
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the value isn't well-formed
+     */
+    private String scanAttributeValue(boolean keep) throws IOException, TokenStreamException {
+        int quote = peek(0);
+        if (quote != '"' && quote != '\'') {
+            throw error("Expected a quoted attribute value");
+        }
+        pos++;
+        valueLength = 0;
+        while (true) {
+            int c = peek(0);
+            if (c == quote) {
+                pos++;
+                break;
+            }
+            switch (c) {
+                case -1:
+                    throw error("Unexpected end of document in attribute value");
+                case '<':
+                    throw error("'<' is not allowed in attribute values");
+                case '&':
+                    scanReference(true);
+                    break;
+                case '\r':
+                    consume(c);
+                    if (peek(0) == '\n') {
+                        pos++;
+                    }
+                    appendValue(' ');
+                    break;
+                case '\n':
+                case '\t':
+                    consume(c);
+                    appendValue(' ');
+                    break;
+                default:
+                    if (checkChar(c) == 2) {
+                        // a surrogate pair; the low half is added below
+                        appendValue((char) c);
+                        pos++;
+                        c = peek(0);
+                    }
+                    pos++;
+                    appendValue((char) c);
+                    break;
+            }
+        }
+        if (!keep) {
+            return null;
+        }
+        return new String(valueChars, 0, valueLength);
+    }
+
+    /**
+     * Add a character to the attribute value being collected
+     * @param c the character
+     */
+    private void appendValue(char c) {
+        if (valueLength == valueChars.length) {
+            char[] newChars = new char[valueChars.length * 2];
+            System.arraycopy(valueChars, 0, newChars, 0, valueLength);
+            valueChars = newChars;
+        }
+        valueChars[valueLength++] = c;
+    }
+
+    /**
+     * Remember an attribute of the start tag being scanned. Its name is
+     * resolved once all of the tag's namespace declarations have been seen.
+     * @param nameStart the offset of the attribute name from the mark
+     * @param nameEnd the offset just past the attribute name
+     * @param value the attribute value
+     */
+    private void addAttribute(int nameStart, int nameEnd, String value) {
+        if (attributeCount == attributeValues.length) {
+            int newLength = attributeCount * 2;
+            int[] newStarts = new int[newLength];
+            int[] newEnds = new int[newLength];
+            String[] newValues = new String[newLength];
+            System.arraycopy(attributeNameStarts, 0, newStarts, 0, attributeCount);
+            System.arraycopy(attributeNameEnds, 0, newEnds, 0, attributeCount);
+            System.arraycopy(attributeValues, 0, newValues, 0, attributeCount);
+            attributeNameStarts = newStarts;
+            attributeNameEnds = newEnds;
+            attributeValues = newValues;
+        }
+        attributeNameStarts[attributeCount] = nameStart;
+        attributeNameEnds[attributeCount] = nameEnd;
+        attributeValues[attributeCount] = value;
+        attributeCount++;
+    }
+
+    /**
+     * Add a namespace declaration for the element being scanned
+     * @param prefix the prefix ("" for the default namespace)
+     * @param uri the namespace
+     * @param firstDeclaration the index of the element's first declaration
+     * @throws TokenStreamException If the element already declares the prefix, or the binding isn't allowed
+     */
+    private void declareNamespace(String prefix, String uri, int firstDeclaration) throws TokenStreamException {
+        for (int i = firstDeclaration; i < namespaceCount; i++) {
+            if (namespacePrefixes[i].equals(prefix)) {
+                throw error("Attribute '" + ("".equals(prefix) ? "xmlns" : "xmlns:" + prefix) + "' appears more than once in a tag");
+            }
+        }
+        if ("xmlns".equals(prefix) || NativeXMLTokenStream.XMLNS_NAMESPACE.equals(uri)) {
+            throw error("The xmlns prefix and namespace can't be declared");
+        }
+        if ("xml".equals(prefix) != NativeXMLTokenStream.XML_NAMESPACE.equals(uri)) {
+            throw error("The xml prefix can only be bound to " + NativeXMLTokenStream.XML_NAMESPACE + ", and no other prefix can be");
+        }
+        if (uri.length() == 0 && prefix.length() > 0) {
+            throw error("Prefix '" + prefix + "' can't be bound to an empty namespace");
+        }
+        if (namespaceCount == namespacePrefixes.length) {
+            String[] newPrefixes = new String[namespaceCount * 2];
+            String[] newUris = new String[namespaceCount * 2];
+            System.arraycopy(namespacePrefixes, 0, newPrefixes, 0, namespaceCount);
+            System.arraycopy(namespaceUris, 0, newUris, 0, namespaceCount);
+            namespacePrefixes = newPrefixes;
+            namespaceUris = newUris;
+        }
+        namespacePrefixes[namespaceCount] = prefix;
+        namespaceUris[namespaceCount] = uri;
+        namespaceCount++;
+    }
+
+    /**
+     * Find the namespace bound to a prefix in the tag being scanned
+     * @param start the offset of the prefix from the mark
+     * @param end the offset just past the prefix
+     * @return the namespace
+     * @throws TokenStreamException If the prefix isn't bound
+     */
+    private String resolvePrefix(int start, int end) throws TokenStreamException {
+        for (int i = namespaceCount - 1; i >= 0; i--) {
+            if (nameEquals(start, end, namespacePrefixes[i])) {
+                return namespaceUris[i];
+            }
+        }
+        throw error("Namespace prefix '" + new String(buf, mark + start, end - start) + "' is not bound");
+    }
+
+    /**
+     * Compare a name in the tag being scanned to a String
+     * @param start the offset of the name from the mark
+     * @param end the offset just past the name
+     * @param name the String to compare to
+     * @return true if they're the same
+     */
+    private boolean nameEquals(int start, int end, String name) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int i = 0, j = mark + start; i < name.length(); i++, j++) {
+            if (buf[j] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the colon in a qualified name
+     * @param start the offset of the name from the mark
+     * @param end the offset just past the name
+     * @return the offset of the colon, or -1 if the name has no prefix
+     */
+    private int findColon(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buf[mark + i] == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Create an XML token for the start tag being scanned
+     * @param nameStart the offset of the tag name from the mark
+     * @param nameEnd the offset just past the tag name
+     * @param tokenLine the line of the token
+     * @param tokenColumn the column of the token
+     * @return An XMLToken
+     * @throws TokenStreamException If the tag (or one of its attributes) uses
+     *                              an unbound prefix, or the grammar doesn't
+     *                              know the tag and has no OTHER_TAG
+     */
+    private Token createXMLToken(int nameStart, int nameEnd, int tokenLine, int tokenColumn) throws TokenStreamException {
+        int colon = findColon(nameStart, nameEnd);
+        int localStart = nameStart;
+        String uri;
+        if (colon == -1) {
+            uri = resolvePrefix(nameStart, nameStart); // the default namespace
+        } else {
+            uri = resolvePrefix(nameStart, colon);
+            localStart = colon + 1;
+        }
+        int id = tagTable.getTagType(uri, buf, mark + localStart, nameEnd - localStart);
+        int tokenValue;
+        String name;
+        if (id != XMLTagTable.UNDEFINED) {
+            tokenValue = id;
+            name = tagTable.getTagName(id);
+        }
+        else {
+            name = new String(buf, mark + localStart, nameEnd - localStart);
+            if (!"".equals(uri.trim())) {
+                name = uri + ":" + name;
+            }
+            if (otherTagValue == XMLTagTable.UNDEFINED) {
+                throw error("Tag '" + name + "' not defined in parser grammar");
+            }
+            tokenValue = otherTagValue;
+        }
+
+        String[] attributeData = null;
+        int[] attributeIds = null;
+        if (attributeCount > 0) {
+            attributeData = new String[attributeCount * XMLToken.ATTRIBUTE_FIELDS];
+            boolean useIds = tagTable.hasAttributeIds();
+            if (useIds) {
+                attributeIds = new int[attributeCount];
+            }
+            for (int i = 0, j = 0; i < attributeCount; i++, j += XMLToken.ATTRIBUTE_FIELDS) {
+                int start = attributeNameStarts[i];
+                int end = attributeNameEnds[i];
+                int attributeColon = findColon(start, end);
+                // unprefixed attributes are in no namespace, whatever the default
+                String namespace = "";
+                if (attributeColon != -1) {
+                    namespace = resolvePrefix(start, attributeColon);
+                    start = attributeColon + 1;
+                }
+                int attributeId = XMLTagTable.UNDEFINED;
+                if (useIds) {
+                    attributeId = tagTable.getAttributeId(namespace, buf, mark + start, end - start);
+                    attributeIds[i] = attributeId;
+                }
+                attributeData[j] = namespace;
+                if (attributeId != XMLTagTable.UNDEFINED) {
+                    attributeData[j + 1] = tagTable.getAttributeLocalName(attributeId);
+                } else {
+                    attributeData[j + 1] = new String(buf, mark + start, end - start);
+                }
+                // the same name can't appear twice, even through different
+                //   prefixes for the same namespace
+                for (int k = 0; k < j; k += XMLToken.ATTRIBUTE_FIELDS) {
+                    if (attributeData[k].equals(namespace) && attributeData[k + 1].equals(attributeData[j + 1])) {
+                        String attributeName = "".equals(namespace) ? attributeData[j + 1] : namespace + ":" + attributeData[j + 1];
+                        throw error("Attribute '" + attributeName + "' appears more than once in tag '" + name + "'");
+                    }
+                }
+                attributeData[j + 2] = attributeValues[i];
+                attributeData[j + 3] = "CDATA"; // no DTD, so no other types
+                attributeValues[i] = null;
+            }
+        }
+
+        XMLToken token = new XMLToken(tokenValue, name, attributeData, attributeIds);
+        token.setLine(tokenLine);
+        token.setColumn(tokenColumn);
+        return token;
+    }
+
+    /**
+     * Check the prefixes and attribute names of a start tag inside skipped
+     * content, the way createXMLToken would, without creating anything
+     * @param nameStart the offset of the tag name from the mark
+     * @param nameEnd the offset just past the tag name
+     * @throws TokenStreamException If the tag (or one of its attributes) uses
+     *                              an unbound prefix, or an attribute appears
+     *                              twice
+     */
+    private void checkSkippedTag(int nameStart, int nameEnd) throws TokenStreamException {
+        int colon = findColon(nameStart, nameEnd);
+        if (colon != -1) {
+            resolvePrefix(nameStart, colon);
+        }
+        for (int i = 0; i < attributeCount; i++) {
+            String namespace = attributeNamespace(i);
+            int localStart = attributeLocalStart(i);
+            int localLength = attributeNameEnds[i] - localStart;
+            for (int k = 0; k < i; k++) {
+                int otherStart = attributeLocalStart(k);
+                if (attributeNameEnds[k] - otherStart == localLength &&
+                    regionEquals(localStart, otherStart, localLength) &&
+                    attributeNamespace(k).equals(namespace)) {
+                    String name = new String(buf, mark + localStart, localLength);
+                    throw error("Attribute '" + ("".equals(namespace) ? name : namespace + ":" + name) +
+                                "' appears more than once in tag '" + new String(buf, mark + nameStart, nameEnd - nameStart) + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the namespace of an attribute of the tag being scanned
+     * @param i the index of the attribute
+     * @return the namespace ("" if the attribute has no prefix)
+     * @throws TokenStreamException If the prefix isn't bound
+     */
+    private String attributeNamespace(int i) throws TokenStreamException {
+        int colon = findColon(attributeNameStarts[i], attributeNameEnds[i]);
+        if (colon == -1) {
+            return "";
+        }
+        return resolvePrefix(attributeNameStarts[i], colon);
+    }
+
+    /**
+     * Find the local part of an attribute name in the tag being scanned
+     * @param i the index of the attribute
+     * @return the offset of the local name from the mark
+     */
+    private int attributeLocalStart(int i) {
+        int colon = findColon(attributeNameStarts[i], attributeNameEnds[i]);
+        return colon == -1 ? attributeNameStarts[i] : colon + 1;
+    }
+
+    /**
+     * Compare two names in the tag being scanned
+     * @param start1 the offset of the first name from the mark
+     * @param start2 the offset of the second name from the mark
+     * @param length the length of the names
+     * @return true if they're the same
+     */
+    private boolean regionEquals(int start1, int start2, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf[mark + start1 + i] != buf[mark + start2 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scan an end tag, checking that it closes the innermost open element
+     * @throws IOException If the input can't be read
+     * @throws TokenStreamException If the tag isn't well-formed or doesn't
+     *                              match
+     */
+    private void scanEndTag() throws IOException, TokenStreamException {
+        mark = pos;
+        pos += 2; // "</"
+        int nameStart = pos - mark;
+        scanName();
+        int nameEnd = pos - mark;
+        skipWhitespace();
+        if (peek(0) != '>') {
+            throw error("Expected '>' at end of end tag");
+        }
+        pos++;
+        if (depth == 0 || !matchesOpenElement(nameStart, nameEnd)) {
+            throw error("End tag '" + new String(buf, mark + nameStart, nameEnd - nameStart) + "' does not match the open element");
+        }
+        mark = -1;
+        popElement();
+    }
+
+    /**
+     * Check whether a name in the tag being scanned is the name of the
+     * innermost open element
+     * @param start the offset of the name from the mark
+     * @param end the offset just past the name
+     * @return true if it is
+     */
+    private boolean matchesOpenElement(int start, int end) {
+        int openStart = elementNameStarts[depth - 1];
+        if (elementNamesLength - openStart != end - start) {
+            return false;
+        }
+        for (int i = openStart, j = mark + start; i < elementNamesLength; i++, j++) {
+            if (elementNames[i] != buf[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open an element
+     * @param nameStart the offset of the element name from the mark
+     * @param nameEnd the offset just past the element name
+     * @param namespaceCountOutside the number of namespace declarations in
+     *                              effect outside the element
+     */
+    private void pushElement(int nameStart, int nameEnd, int namespaceCountOutside) {
+        if (depth == elementNameStarts.length) {
+            int[] newStarts = new int[depth * 2];
+            int[] newCounts = new int[depth * 2];
+            System.arraycopy(elementNameStarts, 0, newStarts, 0, depth);
+            System.arraycopy(elementNamespaceCounts, 0, newCounts, 0, depth);
+            elementNameStarts = newStarts;
+            elementNamespaceCounts = newCounts;
+        }
+        int length = nameEnd - nameStart;
+        if (elementNamesLength + length > elementNames.length) {
+            char[] newNames = new char[Math.max(elementNames.length * 2, elementNamesLength + length)];
+            System.arraycopy(elementNames, 0, newNames, 0, elementNamesLength);
+            elementNames = newNames;
+        }
+        System.arraycopy(buf, mark + nameStart, elementNames, elementNamesLength, length);
+        elementNameStarts[depth] = elementNamesLength;
+        elementNamespaceCounts[depth] = namespaceCountOutside;
+        elementNamesLength += length;
+        depth++;
+    }
+
+    /**
+     * Close the innermost element, dropping its namespace declarations
+     */
+    private void popElement() {
+        depth--;
+        elementNamesLength = elementNameStarts[depth];
+        int outside = elementNamespaceCounts[depth];
+        for (int i = outside; i < namespaceCount; i++) {
+            namespacePrefixes[i] = null;
+            namespaceUris[i] = null;
+        }
+        namespaceCount = outside;
+    }
+
+    /**
+     * Create and return a token
+     * @param tokenNum the token id
+     * @param tokenText the token text
+     * @param tokenLine the line of the token
+     * @param tokenColumn the column of the token
+     * @return the created token
+     */
+    private Token createToken(int tokenNum, String tokenText, int tokenLine, int tokenColumn) {
+        Token token = new CommonToken(tokenNum, tokenText);
+        token.setLine(tokenLine);
+        token.setColumn(tokenColumn);
+        return token;
+    }
+
+    /**
+     * Replays the characters we scanned before finding a DOCTYPE, followed
+     * by the rest of the input, so a SAX parser can start over
+     */
+    private static class ReplayReader extends Reader {
+        private char[] prefix;
+        private int next;
+        private int end;
+        private Reader rest;
+
+        /**
+         * Create the reader
+         * @param prefix the characters already read
+         * @param start the index of the first character to replay
+         * @param end the index just past the last character to replay
+         * @param rest the rest of the input
+         */
+        public ReplayReader(char[] prefix, int start, int end, Reader rest) {
+            this.prefix = prefix;
+            next = start;
+            this.end = end;
+            this.rest = rest;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (next < end) {
+                int n = Math.min(len, end - next);
+                System.arraycopy(prefix, next, cbuf, off, n);
+                next += n;
+                if (next == end) {
+                    prefix = null;
+                }
+                return n;
+            }
+            return rest.read(cbuf, off, len);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            rest.close();
+        }
+    }
+}
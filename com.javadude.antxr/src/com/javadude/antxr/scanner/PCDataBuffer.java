@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+/**
+ * Collects the chunks of character data the XML scanners report between
+ * two tags, so they can be handed to the parser as a single PCDATA token.
+ * While collecting, it keeps track of whether it has seen anything other
+ * than whitespace (anything at or below ' ', the same test
+ * {@link String#trim()} uses), so whitespace-only text (like the
+ * indentation in pretty-printed XML) can be dropped without ever creating
+ * a String for it.
+ */
+class PCDataBuffer {
+    private char[] chars = new char[256];
+    private int length;
+    private boolean whitespace = true;
+
+    /**
+     * Add a chunk of characters
+     * @param ch the array holding the characters
+     * @param start the index of the first character
+     * @param count the number of characters
+     */
+    public void append(char[] ch, int start, int count) {
+        if (whitespace) {
+            for (int i = start, end = start + count; i < end; i++) {
+                if (ch[i] > ' ') {
+                    whitespace = false;
+                    break;
+                }
+            }
+        }
+        if (length + count > chars.length) {
+            char[] newChars = new char[Math.max(chars.length * 2, length + count)];
+            System.arraycopy(chars, 0, newChars, 0, length);
+            chars = newChars;
+        }
+        System.arraycopy(ch, start, chars, length, count);
+        length += count;
+    }
+
+    /**
+     * Add a single character
+     * @param c the character
+     */
+    public void append(char c) {
+        if (c > ' ') {
+            whitespace = false;
+        }
+        if (length == chars.length) {
+            char[] newChars = new char[chars.length * 2];
+            System.arraycopy(chars, 0, newChars, 0, length);
+            chars = newChars;
+        }
+        chars[length++] = c;
+    }
+
+    /**
+     * @return true if only whitespace (or nothing) has been collected
+     */
+    public boolean isWhitespace() {
+        return whitespace;
+    }
+
+    /**
+     * Create a token holding a copy of the collected characters and clear
+     * the buffer
+     * @param type the token type
+     * @return the token
+     */
+    public PCDataToken createToken(int type) {
+        char[] tokenChars = new char[length];
+        System.arraycopy(chars, 0, tokenChars, 0, length);
+        clear();
+        return new PCDataToken(type, tokenChars, 0, tokenChars.length);
+    }
+
+    /**
+     * Throw away the collected characters
+     */
+    public void clear() {
+        length = 0;
+        whitespace = true;
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.nio.CharBuffer;
+
+import com.javadude.antxr.CommonToken;
+
+/**
+ * An ANTXR token that represents the character data (PCDATA) between tags.
+ * The characters are kept in a char array; a String is only created if
+ * someone calls {@link #getText()}. Actions that can work with a
+ * {@link CharSequence} can use {@link #getCharacters()} instead, which
+ * doesn't copy the characters at all.
+ */
+public class PCDataToken extends CommonToken {
+    private char[] chars;
+    private int offset;
+    private int length;
+
+    /**
+     * Create a PCDATA token
+     * @param t The token's id
+     * @param chars The array holding the characters. The token now owns
+     *              the array; the caller must not change it
+     * @param offset The index of the first character in the array
+     * @param length The number of characters
+     */
+    public PCDataToken(int t, char[] chars, int offset, int length) {
+        type = t;
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Get the characters without creating a String
+     * @return a read-only view of the characters
+     */
+    public CharSequence getCharacters() {
+        if (text != null) {
+            return text;
+        }
+        return CharBuffer.wrap(chars, offset, length).asReadOnlyBuffer();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getText() {
+        if (text == null && chars != null) {
+            text = new String(chars, offset, length);
+            chars = null; // the String has its own copy now
+        }
+        return text;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setText(String s) {
+        text = s;
+        chars = null;
+    }
+}
@@ -0,0 +1,438 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.javadude.antxr.CommonToken;
+import com.javadude.antxr.Parser;
+import com.javadude.antxr.RecognitionException;
+import com.javadude.antxr.Token;
+import com.javadude.antxr.TokenStream;
+import com.javadude.antxr.TokenStreamException;
+
+
+/**
+ * Parses the records of a large XML document on several threads at once.
+ *
+ * Many XML documents are a root element containing a long list of identical
+ * record elements. This driver reads the tokens of such a document (from
+ * any of the XML token streams), cuts out each record element (its start
+ * tag, everything inside it and its end tag), and hands batches of records
+ * to a pool of threads. Each thread owns its own instance of your parser and
+ * runs the given start rule once per record. Tokens that are not part of a
+ * record (the root element, for example) are dropped.
+ *
+ * The result of each record is the start rule's return value (or, if the
+ * rule doesn't return anything, the AST it built, which is null if your
+ * grammar doesn't build trees). Results are passed to a
+ * {@link RecordHandler} on the calling thread, in document order.
+ *
+ * The start rule is usually the rule for the record element; XML rules are
+ * named after the tag, so the rule for &lt;q:record&gt; is __xml_q_record.
+ * Parsers must be generated with the xmlMode=true option and must have a
+ * public constructor that takes a TokenStream (all generated parsers do).
+ *
+ * Scanning the XML still happens on a single thread, so this pays off when
+ * the parser actions are the expensive part of the job.
+ *
+ * @param <Result> the type of the start rule's result
+ */
+public class ParallelXMLRecordParser <Result> {
+    /** default number of records handed to a parser thread at a time */
+    public static final int DEFAULT_RECORDS_PER_BATCH = 256;
+
+    /**
+     * Receives the result of each record, in document order
+     * @param <Result> the type of the start rule's result
+     */
+    public interface RecordHandler <Result> {
+        /**
+         * Handle the result of a record
+         * @param recordNumber the position of the record in the document,
+         *                     starting at 0
+         * @param result the result of parsing the record
+         */
+        void handleRecord(long recordNumber, Result result);
+    }
+
+    private final Constructor<? extends Parser> parserConstructor;
+    private final Method startRule;
+    private final int recordType;
+    private final int endTagType;
+    private final int otherTagType;
+    private final XMLTagTable tagTable;
+    private final int threads;
+    private final int recordsPerBatch;
+
+    /**
+     * Create the driver, using one thread per available processor
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param startRule The name of the rule to run for each record
+     * @param recordNamespace The namespace of the record element ("" for none)
+     * @param recordTag The local name of the record element
+     * @throws IllegalArgumentException if the parser doesn't have the start
+     *                                  rule or doesn't mention the record tag
+     */
+    public ParallelXMLRecordParser(Class<? extends Parser> parserClass, String startRule,
+                                   String recordNamespace, String recordTag) {
+        this(parserClass, startRule, recordNamespace, recordTag,
+             Runtime.getRuntime().availableProcessors(),
+             ParallelXMLRecordParser.DEFAULT_RECORDS_PER_BATCH);
+    }
+
+    /**
+     * Create the driver
+     * @param parserClass Your parser class. The parser must have been generated
+     *                    with the xmlMode=true option specified
+     * @param startRule The name of the rule to run for each record
+     * @param recordNamespace The namespace of the record element ("" for none)
+     * @param recordTag The local name of the record element
+     * @param threads The number of parser threads to use
+     * @param recordsPerBatch The number of records handed to a parser thread
+     *                        at a time. Larger batches mean less hand-off
+     *                        overhead but more tokens held in memory
+     * @throws IllegalArgumentException if the parser doesn't have the start
+     *                                  rule or doesn't mention the record tag
+     */
+    public ParallelXMLRecordParser(Class<? extends Parser> parserClass, String startRule,
+                                   String recordNamespace, String recordTag,
+                                   int threads, int recordsPerBatch) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+        if (recordsPerBatch < 1) {
+            throw new IllegalArgumentException("recordsPerBatch must be > 0");
+        }
+        try {
+            parserConstructor = parserClass.getConstructor(TokenStream.class);
+            this.startRule = parserClass.getMethod(startRule);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Parser class " + parserClass.getName() + " must have a public TokenStream constructor and a rule named '" + startRule + "'", e);
+        }
+        tagTable = XMLTagTable.forParser(parserClass);
+        recordType = tagTable.getTagType(recordNamespace, recordTag);
+        if (recordType == XMLTagTable.UNDEFINED) {
+            throw new IllegalArgumentException("Tag '" + recordTag + "' not defined in parser grammar");
+        }
+        endTagType = tagTable.getEndTagType();
+        otherTagType = tagTable.getOtherTagType();
+        this.threads = threads;
+        this.recordsPerBatch = recordsPerBatch;
+    }
+
+    /**
+     * Parse all records in the token stream, collecting their results
+     * @param tokens The XML tokens to parse
+     * @return the results of the records, in document order
+     * @throws RecognitionException If a record could not be parsed
+     * @throws TokenStreamException If the XML could not be read
+     */
+    public List<Result> parse(TokenStream tokens) throws RecognitionException, TokenStreamException {
+        final List<Result> results = new ArrayList<Result>();
+        parse(tokens, new RecordHandler<Result>() {
+            public void handleRecord(long recordNumber, Result result) {
+                results.add(result);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Parse all records in the token stream, passing their results to a
+     * handler. The handler is called on the calling thread, in document
+     * order; it may be called while later records are still being parsed.
+     * @param tokens The XML tokens to parse
+     * @param handler The handler for the results
+     * @throws RecognitionException If a record could not be parsed
+     * @throws TokenStreamException If the XML could not be read
+     */
+    public void parse(TokenStream tokens, RecordHandler<Result> handler) throws RecognitionException, TokenStreamException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ParserThreadFactory());
+        // the parser for each thread is created the first time the thread
+        //   needs it, and reused for every record after that
+        ThreadLocal<RecordParser> recordParsers = new ThreadLocal<RecordParser>();
+        // enough batches in flight to keep every thread busy while we wait
+        //   for the oldest one
+        int maxPendingBatches = threads * 2;
+        Deque<Future<Object[]>> pending = new ArrayDeque<Future<Object[]>>();
+        long recordNumber = 0;
+        boolean done = false;
+        try {
+            RecordBatch batch = new RecordBatch();
+            int depth = 0; // nesting inside the current record (0 if we aren't in one)
+            for (Token token = tokens.nextToken(); token.getType() != Token.EOF_TYPE; token = tokens.nextToken()) {
+                int type = token.getType();
+                if (depth == 0) {
+                    if (type != recordType) {
+                        continue; // not part of a record
+                    }
+                }
+                batch.add(token);
+                if (type == endTagType) {
+                    depth--;
+                }
+                else if (tagTable.isStartTag(type) || type == otherTagType) {
+                    depth++;
+                }
+                if (depth == 0) {
+                    batch.endRecord();
+                    if (batch.getRecordCount() == recordsPerBatch) {
+                        if (pending.size() == maxPendingBatches) {
+                            recordNumber = deliver(pending.removeFirst(), recordNumber, handler);
+                        }
+                        pending.addLast(executor.submit(new ParseBatch(batch, recordParsers)));
+                        batch = new RecordBatch();
+                    }
+                }
+            }
+            if (batch.getRecordCount() > 0) {
+                pending.addLast(executor.submit(new ParseBatch(batch, recordParsers)));
+            }
+            while (!pending.isEmpty()) {
+                recordNumber = deliver(pending.removeFirst(), recordNumber, handler);
+            }
+            done = true;
+        }
+        finally {
+            if (done) {
+                executor.shutdown();
+            } else {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Wait for a batch to be parsed and pass its results to the handler
+     * @param batchResults the future results of the batch
+     * @param recordNumber the number of the first record in the batch
+     * @param handler the handler for the results
+     * @return the number of the first record in the next batch
+     * @throws RecognitionException If a record could not be parsed
+     * @throws TokenStreamException If a record's tokens could not be read
+     */
+    @SuppressWarnings("unchecked")
+    private long deliver(Future<Object[]> batchResults, long recordNumber, RecordHandler<Result> handler) throws RecognitionException, TokenStreamException {
+        Object[] results;
+        try {
+            results = batchResults.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TokenStreamException("Interrupted while waiting for records to be parsed", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RecognitionException) {
+                throw (RecognitionException) cause;
+            }
+            if (cause instanceof TokenStreamException) {
+                throw (TokenStreamException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException("Exception while parsing records. See nested exception.", cause);
+        }
+        for (Object result : results) {
+            handler.handleRecord(recordNumber++, (Result) result);
+        }
+        return recordNumber;
+    }
+
+    /**
+     * The tokens of several consecutive records. All tokens live in one
+     * array; recordEnds holds the index just past each record's last token.
+     */
+    private static class RecordBatch {
+        private Token[] tokens = new Token[1024];
+        private int tokenCount;
+        private int[] recordEnds = new int[16];
+        private int recordCount;
+
+        /**
+         * Add a token to the current record
+         * @param token the token to add
+         */
+        public void add(Token token) {
+            if (tokenCount == tokens.length) {
+                Token[] newTokens = new Token[tokens.length * 2];
+                System.arraycopy(tokens, 0, newTokens, 0, tokenCount);
+                tokens = newTokens;
+            }
+            tokens[tokenCount++] = token;
+        }
+
+        /**
+         * Finish the current record
+         */
+        public void endRecord() {
+            if (recordCount == recordEnds.length) {
+                int[] newEnds = new int[recordEnds.length * 2];
+                System.arraycopy(recordEnds, 0, newEnds, 0, recordCount);
+                recordEnds = newEnds;
+            }
+            recordEnds[recordCount++] = tokenCount;
+        }
+
+        /**
+         * @return the number of finished records in the batch
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+    }
+
+    /**
+     * Parses all records of a batch on one of the parser threads
+     */
+    private class ParseBatch implements Callable<Object[]> {
+        private final RecordBatch batch;
+        private final ThreadLocal<RecordParser> recordParsers;
+
+        /**
+         * Create the task
+         * @param batch the records to parse
+         * @param recordParsers the parser for each thread
+         */
+        public ParseBatch(RecordBatch batch, ThreadLocal<RecordParser> recordParsers) {
+            this.batch = batch;
+            this.recordParsers = recordParsers;
+        }
+
+        /** {@inheritDoc} */
+        public Object[] call() throws Exception {
+            RecordParser recordParser = recordParsers.get();
+            if (recordParser == null) {
+                recordParser = new RecordParser();
+                recordParsers.set(recordParser);
+            }
+            Object[] results = new Object[batch.recordCount];
+            int start = 0;
+            for (int i = 0; i < batch.recordCount; i++) {
+                int end = batch.recordEnds[i];
+                results[i] = recordParser.parse(batch.tokens, start, end);
+                start = end;
+            }
+            return results;
+        }
+    }
+
+    /**
+     * A parser instance plus the token stream it reads, reused for every
+     * record parsed on one thread
+     */
+    private class RecordParser {
+        private final RecordTokenStream tokens = new RecordTokenStream();
+        private final Parser parser;
+
+        /**
+         * Create the parser
+         * @throws Exception If the parser can't be created
+         */
+        public RecordParser() throws Exception {
+            parser = parserConstructor.newInstance(tokens);
+        }
+
+        /**
+         * Run the start rule over a single record
+         * @param recordTokens the tokens of the batch
+         * @param start the index of the record's first token
+         * @param end the index just past the record's last token
+         * @return the rule's result
+         * @throws Exception If the record could not be parsed
+         */
+        public Object parse(Token[] recordTokens, int start, int end) throws Exception {
+            tokens.setRecord(recordTokens, start, end);
+            parser.getInputState().reset();
+            Object result;
+            try {
+                result = startRule.invoke(parser);
+            }
+            catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception) {
+                    throw (Exception) cause;
+                }
+                throw (Error) cause;
+            }
+            if (startRule.getReturnType() == Void.TYPE) {
+                return parser.getAST();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A token stream over the tokens of one record, followed by EOF
+     */
+    private static class RecordTokenStream implements TokenStream {
+        private final Token eofToken = new CommonToken(Token.EOF_TYPE, "");
+        private Token[] tokens;
+        private int next;
+        private int end;
+
+        /**
+         * Read the tokens of a record
+         * @param tokens the tokens of the batch
+         * @param start the index of the record's first token
+         * @param end the index just past the record's last token
+         */
+        public void setRecord(Token[] tokens, int start, int end) {
+            this.tokens = tokens;
+            next = start;
+            this.end = end;
+        }
+
+        /** {@inheritDoc} */
+        public Token nextToken() {
+            if (next < end) {
+                return tokens[next++];
+            }
+            return eofToken;
+        }
+    }
+
+    /**
+     * Creates daemon parser threads, so an abandoned parse doesn't keep the
+     * VM alive
+     */
+    private static class ParserThreadFactory implements ThreadFactory {
+        private int count;
+
+        /** {@inheritDoc} */
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "antxrRecordParser-" + count++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
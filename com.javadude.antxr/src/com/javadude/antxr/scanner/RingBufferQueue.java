@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer/single-consumer queue, used as a transport access point
+ * between the SAX parser and the XML parser. It does the same job as
+ * {@link BlockingQueue}, but without locks:
+ * <ul>
+ *   <li>Elements are written into a ring buffer and published to the reader
+ *       in batches, so the reader only sees a volatile write once per
+ *       batch rather than once per token.</li>
+ *   <li>The reader releases slots in batches as well.</li>
+ *   <li>A side that cannot make progress parks itself; the other side
+ *       unparks it once there is something to do.</li>
+ * </ul>
+ *
+ * Exactly one thread may call {@link #enqueue(Object)} and {@link #flush()},
+ * and exactly one (other) thread may call {@link #dequeue()}.
+ *
+ * If maxQueuedElements is -1, the buffer grows whenever it fills up (the
+ * producer never waits). Otherwise the producer waits once
+ * maxQueuedElements are queued, and resumes when the reader has brought the
+ * queue down to resumeQueuedElements.
+ *
+ * The queue counts how often and how long each side had to wait; see
+ * {@link #getProducerStallCount()} and friends.
+ */
+public class RingBufferQueue <Type> {
+    /** default number of elements handed over to the reader at a time */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    private static final int DEFAULT_INITIAL_CAPACITY = 1024;
+    /** marks a slot whose successor lives in the next (larger) buffer */
+    private static final Object JUMP = new Object();
+
+    private final boolean useMaxMin;
+    private final int maxQueuedElements;
+    private final int resumeQueuedElements;
+    private final int batchSize;
+
+    // shared state; each index is only written by its owning side
+    private volatile long tail;  // number of elements published by the producer
+    private volatile long head;  // number of elements released by the consumer
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    private volatile Throwable enqueueException;
+
+    // producer-only state
+    private Object[] producerBuffer;
+    private int producerMask;
+    private long producerIndex;
+    private long producerLimit;
+
+    // consumer-only state
+    private Object[] consumerBuffer;
+    private int consumerMask;
+    private long consumerIndex;
+    private long consumerLimit;
+
+    // statistics; each counter is only written by its owning side
+    private volatile long producerStallCount;
+    private volatile long producerStallNanos;
+    private volatile long consumerStallCount;
+    private volatile long consumerStallNanos;
+
+    /**
+     * Create an instance of RingBufferQueue that never makes the producer wait
+     */
+    public RingBufferQueue() {
+        this(-1, -1, RingBufferQueue.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Create an instance of RingBufferQueue
+     * @param maxQueuedElements the number of queued elements at which the
+     *                          producer waits, or -1 to never wait
+     * @param resumeQueuedElements the number of queued elements at which a
+     *                             waiting producer resumes
+     * @param batchSize the number of elements handed to the reader at a time
+     */
+    public RingBufferQueue(int maxQueuedElements, int resumeQueuedElements, int batchSize) {
+        super();
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be > 0");
+        }
+        this.maxQueuedElements = maxQueuedElements;
+        this.resumeQueuedElements = resumeQueuedElements;
+        int capacity = RingBufferQueue.DEFAULT_INITIAL_CAPACITY;
+        if (maxQueuedElements != -1) {
+            useMaxMin = true;
+            if (maxQueuedElements <= resumeQueuedElements) {
+                throw new IllegalArgumentException("maxQueuedElements must be > resumeQueuedElements");
+            }
+            // one spare slot, so the buffer itself never fills before the max
+            capacity = RingBufferQueue.powerOfTwoAtLeast(maxQueuedElements + 2);
+            this.batchSize = Math.min(batchSize, maxQueuedElements);
+        } else {
+            useMaxMin = false;
+            this.batchSize = batchSize;
+        }
+        // the extra slot at the end holds the link to the next buffer
+        producerBuffer = new Object[capacity + 1];
+        producerMask = capacity - 1;
+        producerLimit = capacity - 1;
+        consumerBuffer = producerBuffer;
+        consumerMask = producerMask;
+    }
+
+    private static int powerOfTwoAtLeast(int n) {
+        int result = 1;
+        while (result < n) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Enqueue an element. The element becomes visible to the reader when the
+     * current batch is full, when {@link #flush()} is called, or right away
+     * if the reader is waiting for it.
+     * @param o the element to enqueue
+     */
+    public void enqueue(Type o) {
+        if (useMaxMin && producerIndex - head >= maxQueuedElements) {
+            waitForResume();
+        }
+        if (producerIndex >= producerLimit) {
+            makeRoom();
+        }
+        producerBuffer[(int) producerIndex & producerMask] = o;
+        producerIndex++;
+        if (producerIndex - tail >= batchSize || waitingConsumer != null) {
+            flush();
+        }
+    }
+
+    /**
+     * Hand all enqueued elements to the reader
+     */
+    public void flush() {
+        if (tail == producerIndex) {
+            return;
+        }
+        tail = producerIndex;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Make sure there is a free slot for the next element, growing the buffer
+     * if needed
+     */
+    private void makeRoom() {
+        int capacity = producerMask + 1;
+        producerLimit = head + capacity - 1;
+        if (producerIndex < producerLimit) {
+            return;
+        }
+        // switch to a buffer twice as large. The reader finds the JUMP marker
+        //   in the slot the element would have gone to and follows the link
+        //   stored after the last regular slot. (A bounded queue only gets
+        //   here if the producer was interrupted while waiting.)
+        int newCapacity = capacity << 1;
+        Object[] newBuffer = new Object[newCapacity + 1];
+        producerBuffer[capacity] = newBuffer;
+        producerBuffer[(int) producerIndex & producerMask] = RingBufferQueue.JUMP;
+        producerBuffer = newBuffer;
+        producerMask = newCapacity - 1;
+        producerLimit = head + newCapacity - 1;
+    }
+
+    /**
+     * Wait until the reader has brought the queue down to the resume size
+     */
+    private void waitForResume() {
+        flush(); // the reader can't drain what it can't see
+        long start = System.nanoTime();
+        producerStallCount++;
+        try {
+            waitingProducer = Thread.currentThread();
+            while (producerIndex - head > resumeQueuedElements) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    enqueueException = new InterruptedException("Interrupted while waiting to enqueue");
+                    break;
+                }
+            }
+        }
+        finally {
+            waitingProducer = null;
+            producerStallNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Dequeue an element
+     * @return The next object in the queue
+     * @throws InterruptedException If we were interrupted
+     */
+    @SuppressWarnings("unchecked")
+    public Type dequeue() throws InterruptedException {
+        if (enqueueException != null) {
+            Throwable toReport = enqueueException;
+            enqueueException = null;
+            throw new RuntimeException("Exception while enqueueing", toReport);
+        }
+
+        if (consumerIndex == consumerLimit) {
+            awaitElements();
+        }
+        int slot = (int) consumerIndex & consumerMask;
+        Object o = consumerBuffer[slot];
+        if (o == RingBufferQueue.JUMP) {
+            consumerBuffer[slot] = null;
+            Object[] next = (Object[]) consumerBuffer[consumerMask + 1];
+            consumerBuffer[consumerMask + 1] = null;
+            consumerBuffer = next;
+            consumerMask = next.length - 2;
+            slot = (int) consumerIndex & consumerMask;
+            o = consumerBuffer[slot];
+        }
+        consumerBuffer[slot] = null;
+        consumerIndex++;
+        if (consumerIndex - head >= batchSize || waitingProducer != null) {
+            release();
+        }
+        return (Type) o;
+    }
+
+    /**
+     * Wait until the producer publishes more elements
+     * @throws InterruptedException If we were interrupted
+     */
+    private void awaitElements() throws InterruptedException {
+        consumerLimit = tail;
+        if (consumerIndex != consumerLimit) {
+            return;
+        }
+        release();
+        long start = System.nanoTime();
+        consumerStallCount++;
+        try {
+            waitingConsumer = Thread.currentThread();
+            while ((consumerLimit = tail) == consumerIndex) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        finally {
+            waitingConsumer = null;
+            consumerStallNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Give the slots we have read back to the producer, waking it if it's
+     * waiting and we've reached the "low water mark"
+     */
+    private void release() {
+        if (head == consumerIndex) {
+            return;
+        }
+        head = consumerIndex;
+        Thread producer = waitingProducer;
+        if (producer != null && tail - consumerIndex <= resumeQueuedElements) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * @return how many times the producer had to wait for the reader
+     */
+    public long getProducerStallCount() {
+        return producerStallCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the producer waited for the reader
+     */
+    public long getProducerStallNanos() {
+        return producerStallNanos;
+    }
+
+    /**
+     * @return how many times the reader had to wait for the producer
+     */
+    public long getConsumerStallCount() {
+        return consumerStallCount;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the reader waited for the producer
+     */
+    public long getConsumerStallNanos() {
+        return consumerStallNanos;
+    }
+}
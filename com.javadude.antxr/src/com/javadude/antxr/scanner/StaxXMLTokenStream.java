@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.util.Map;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.javadude.antxr.CommonToken;
+import com.javadude.antxr.Token;
+import com.javadude.antxr.TokenStream;
+import com.javadude.antxr.TokenStreamException;
+
+
+/**
+ * An XML token stream that uses a StAX {@link XMLStreamReader} as its
+ * scanner. Unlike {@link XMLTokenStream}, no separate thread is started;
+ * the reader is advanced on the caller's thread whenever the parser asks
+ * for the next token. The tokens are the same as the ones
+ * {@link XMLTokenStream} produces: adjacent character data (including CDATA
+ * sections, and text on either side of comments or processing
+ * instructions) is combined into a single PCDATA token, and PCDATA that is
+ * only whitespace is skipped.
+ */
+public class StaxXMLTokenStream implements TokenStream {
+    private XMLTagTable tagTable;
+    private int pcdataNum;
+    private int endTagValue;
+    private int otherTagValue;
+    private XMLStreamReader reader;
+    private PCDataBuffer currentCharacters = new PCDataBuffer();
+    private int currentCharactersLine = -1;
+    private int currentCharactersColumn = -1;
+    private boolean atCurrentEvent = true; // is the reader's event still unprocessed?
+    private boolean skipOtherTagContent;
+    private boolean skipping; // did we just return an OTHER_TAG whose content we skip?
+
+    /**
+     * Create the xml token stream.
+     * @param tokenNames An array of token names for your parser. You can get
+     *                   this by passing YourParser._tokenNames, where YourParser
+     *                   is an XML parser generated by ANTXR
+     * @param namespaceMap  A map of namespace/prefix mappings. You can get this
+     *                      by passing YourParser.getNamespaceMap(), where
+     *                      YourParser is an XML parser generated by ANTXR
+     * @param reader The StAX reader that you want to use to scan your XML.
+     *               The input should already be set, but not read
+     */
+    public StaxXMLTokenStream(String[] tokenNames, Map<String, String> namespaceMap, XMLStreamReader reader) {
+        this(XMLTagTable.fromTokenNames(tokenNames, namespaceMap), reader);
+    }
+
+    /**
+     * Create the xml token stream, using a tag table rather than the
+     * parser's token names. This is the cheapest way to create the token
+     * stream, as the tag table is built only once per parser class.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param reader The StAX reader that you want to use to scan your XML.
+     *               The input should already be set, but not read
+     */
+    public StaxXMLTokenStream(XMLTagTable tagTable, XMLStreamReader reader) {
+        this(tagTable, reader, false);
+    }
+
+    /**
+     * Create the xml token stream, optionally skipping the content of tags
+     * that the parser doesn't define. If skipOtherTagContent is true, a tag
+     * that becomes an OTHER_TAG token is returned along with its matching
+     * XML_END_TAG, but nothing in between: nested tags, their end tags and
+     * PCDATA are read past without creating tokens. Only use this if your
+     * grammar never looks inside an OTHER_TAG.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param reader The StAX reader that you want to use to scan your XML.
+     *               The input should already be set, but not read
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
+     */
+    public StaxXMLTokenStream(XMLTagTable tagTable, XMLStreamReader reader, boolean skipOtherTagContent) {
+        useTagTable(tagTable);
+        this.reader = reader;
+        this.skipOtherTagContent = skipOtherTagContent && otherTagValue != XMLTagTable.UNDEFINED;
+    }
+
+    /**
+     * Set up the token types to use when scanning
+     * @param tagTable The parser's XML tag table
+     */
+    private void useTagTable(XMLTagTable tagTable) {
+        this.tagTable = tagTable;
+        pcdataNum = tagTable.getPCDataType();
+        endTagValue = tagTable.getEndTagType();
+        if (endTagValue == XMLTagTable.UNDEFINED) {
+            endTagValue = Token.INVALID_TYPE;
+        }
+        otherTagValue = tagTable.getOtherTagType();
+    }
+
+    /**
+     * State whether the given token is an XML start tag
+     * @param token the token to check
+     * @return true if it's a start tag, false otherwise
+     */
+    public boolean isStartTag(Token token) {
+        return tagTable.isStartTag(token.getType());
+    }
+
+    /** {@inheritDoc} */
+    public Token nextToken() throws TokenStreamException {
+        try {
+            if (skipping) {
+                skipContent();
+            }
+            while (true) {
+                // the reader starts out positioned on its first event; after
+                //   that, we only move it forward once we've used its event
+                if (!atCurrentEvent) {
+                    reader.next();
+                    atCurrentEvent = true;
+                }
+                switch (reader.getEventType()) {
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        collectCharacters();
+                        atCurrentEvent = false;
+                        continue;
+
+                    case XMLStreamConstants.START_ELEMENT:
+                    case XMLStreamConstants.END_ELEMENT:
+                    case XMLStreamConstants.END_DOCUMENT:
+                        // if we were working on a PCDATA, send it first and
+                        //   come back to this event on the next call
+                        Token pcdata = finishCharacters();
+                        if (pcdata != null) {
+                            return pcdata;
+                        }
+                        // stay on END_DOCUMENT so we keep returning EOF
+                        atCurrentEvent = reader.getEventType() == XMLStreamConstants.END_DOCUMENT;
+                        Token token = createEventToken();
+                        skipping = skipOtherTagContent && token.getType() == otherTagValue;
+                        return token;
+
+                    default:
+                        // comments, processing instructions, DTDs and such
+                        //   aren't interesting to the parser
+                        atCurrentEvent = false;
+                        continue;
+                }
+            }
+        }
+        catch (XMLStreamException e) {
+            String lineCol = "";
+            Location location = e.getLocation();
+            if (location != null) {
+                lineCol = " (line " + location.getLineNumber() + " col " + location.getColumnNumber() + ")";
+            }
+            throw new TokenStreamException("Error during XML parse" + lineCol, e);
+        }
+    }
+
+    /**
+     * Read past the content of the OTHER_TAG we just returned, leaving the
+     * reader on its end tag
+     * @throws XMLStreamException If the XML is not well-formed
+     */
+    private void skipContent() throws XMLStreamException {
+        skipping = false;
+        int depth = 1;
+        while (reader.hasNext()) {
+            int eventType = reader.next();
+            if (eventType == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            }
+            else if (eventType == XMLStreamConstants.END_ELEMENT && --depth == 0) {
+                break;
+            }
+        }
+        atCurrentEvent = true;
+    }
+
+    /**
+     * Create the token for the reader's current start tag, end tag or end of
+     * document event
+     * @return the created token
+     * @throws TokenStreamException If a start tag isn't defined in the parser
+     */
+    private Token createEventToken() throws TokenStreamException {
+        switch (reader.getEventType()) {
+            case XMLStreamConstants.START_ELEMENT:
+                return createXMLToken();
+            case XMLStreamConstants.END_ELEMENT:
+                return createToken(endTagValue, "");
+            default:
+                return createToken(Token.EOF_TYPE, "");
+        }
+    }
+
+    /**
+     * Collect all adjacent character chunks into a single PCDATA to return to
+     * the parser
+     */
+    private void collectCharacters() {
+        // if PCDATA isn't used in the parser, don't collect characters
+        if (pcdataNum == XMLTagTable.UNDEFINED) {
+            return;
+        }
+        if (currentCharactersLine == -1) {
+            Location location = reader.getLocation();
+            currentCharactersLine = location.getLineNumber();
+            currentCharactersColumn = location.getColumnNumber();
+        }
+        currentCharacters.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+    }
+
+    /**
+     * Finish our PCDATA
+     * @return the PCDATA token, or null if there were no characters or they
+     *         were all whitespace
+     */
+    private Token finishCharacters() {
+        if (currentCharactersLine == -1) {
+            return null;
+        }
+        int line = currentCharactersLine;
+        int column = currentCharactersColumn;
+        currentCharactersLine = -1;
+        currentCharactersColumn = -1;
+        // whitespace between tags never becomes a String
+        if (currentCharacters.isWhitespace()) {
+            currentCharacters.clear();
+            return null;
+        }
+
+        Token token = currentCharacters.createToken(pcdataNum);
+        token.setLine(line);
+        token.setColumn(column);
+        return token;
+    }
+
+    /**
+     * Create and return a token
+     * @param tokenNum the token id
+     * @param tokenText the token text
+     * @return the created token
+     */
+    private Token createToken(int tokenNum, String tokenText) {
+        Token token = new CommonToken(tokenNum, tokenText);
+        Location location = reader.getLocation();
+        token.setLine(location.getLineNumber());
+        token.setColumn(location.getColumnNumber());
+        return token;
+    }
+
+    /**
+     * Create an XML token for the reader's current start tag
+     * @return An XMLToken
+     * @throws TokenStreamException If the tag isn't defined in the parser
+     */
+    protected Token createXMLToken() throws TokenStreamException {
+        String localName = reader.getLocalName();
+        String uri = reader.getNamespaceURI();
+        int id = tagTable.getTagType(uri, localName);
+        String name = "";
+        if (uri != null && !"".equals(uri.trim())) {
+            name += uri + ":";
+        }
+        name += localName;
+        int tokenValue;
+        if (id != XMLTagTable.UNDEFINED) {
+            tokenValue = id;
+        }
+        else if (otherTagValue != XMLTagTable.UNDEFINED) {
+            tokenValue = otherTagValue;
+        }
+        else {
+            Location location = reader.getLocation();
+            throw new TokenStreamException("Tag '" + name + "' not defined in parser grammar" +
+                                           " (line " + location.getLineNumber() + " col " + location.getColumnNumber() + ")");
+        }
+
+        int attributeCount = reader.getAttributeCount();
+        String[] attributeData = null;
+        int[] attributeIds = null;
+        if (attributeCount > 0) {
+            attributeData = new String[attributeCount * XMLToken.ATTRIBUTE_FIELDS];
+            if (tagTable.hasAttributeIds()) {
+                attributeIds = new int[attributeCount];
+            }
+            for (int i = 0, j = 0; i < attributeCount; i++, j += XMLToken.ATTRIBUTE_FIELDS) {
+                // StAX uses null for "no namespace"; SAX and XmlPull use ""
+                String namespace = reader.getAttributeNamespace(i);
+                if (namespace == null) {
+                    namespace = "";
+                }
+                String localAttributeName = reader.getAttributeLocalName(i);
+                attributeData[j] = namespace;
+                attributeData[j + 1] = localAttributeName;
+                attributeData[j + 2] = reader.getAttributeValue(i);
+                attributeData[j + 3] = reader.getAttributeType(i);
+                if (attributeIds != null) {
+                    attributeIds[i] = tagTable.getAttributeId(namespace, localAttributeName);
+                }
+            }
+        }
+
+        XMLToken token = new XMLToken(tokenValue, name, attributeData, attributeIds);
+        Location location = reader.getLocation();
+        token.setLine(location.getLineNumber());
+        token.setColumn(location.getColumnNumber());
+        return token;
+    }
+}
@@ -13,13 +13,7 @@
 package com.javadude.antxr.scanner;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -35,13 +29,14 @@ import com.javadude.antxr.TokenStreamException;
  *   configuration you want for use as the scanner.
  */
 public class XMLPullTokenStream implements TokenStream {
-    private boolean[] startTag;
-    private Map<String, Map<String, Integer>> namespaces = new HashMap<String, Map<String,Integer>>();
-    private Map<String, Integer> tokens = new HashMap<String, Integer>();
+    private XMLTagTable tagTable;
     private int pcdataNum;
     private int endTagValue;
-    private int otherTagValue = -1;
+    private int otherTagValue;
     private XmlPullParser parser;
+    private boolean skipOtherTagContent;
+    private boolean skipping; // did we just return an OTHER_TAG whose content we skip?
+    private final int[] textStartAndLength = new int[2];
 
     /**
      * Create the xml token stream.
@@ -55,73 +50,55 @@ public class XMLPullTokenStream implements TokenStream {
      *               validate) your XML. The input should already be set, but not read
      */
     public XMLPullTokenStream(String[] tokenNames, Map<String, String> namespaceMap, XmlPullParser parser) {
-        readTokens(tokenNames, namespaceMap);
-        // TODO avoid NPE on following
-        Integer tokenNum = tokens.get("PCDATA");
-        if (tokenNum == null) {
-	        pcdataNum = -99;
-        } else {
-	        pcdataNum = tokenNum.intValue();
-        }
-        this.parser = parser;
+        this(XMLTagTable.fromTokenNames(tokenNames, namespaceMap), parser);
     }
 
     /**
-     * Set up the tokens to use when scanning
-     * @param tokenNames The names of the tokens in the grammar
-     * @param namespaceMap A mapping that includes prefixes
+     * Create the xml token stream, using a tag table rather than the
+     * parser's token names. This is the cheapest way to create the token
+     * stream, as the tag table is built only once per parser class.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param parser The XmlPull Parser that you want to use to scan (and possibly
+     *               validate) your XML. The input should already be set, but not read
      */
-    private void readTokens(String[] tokenNames, Map<String, String> namespaceMap) {
-        startTag = new boolean[tokenNames.length];
-        Pattern pattern = Pattern.compile("\"<((.*):)?(.*)>\"");
-        for (int i = 0; i < tokenNames.length; i++) {
-            String tokenName = tokenNames[i];
-            Matcher matcher = pattern.matcher(tokenName);
-            Integer integerValue = new Integer(i);
-            if (matcher.matches()) {
-                String namespace = matcher.group(2);
-                String tag = matcher.group(3);
-                if (namespace == null) {
-	                namespace = namespaceMap.get("$DEFAULT");
-                }
-                addTag(namespace, tag, integerValue);
-            }
-            else {
-                tokens.put(tokenName,integerValue);
-                if ("XML_END_TAG".equals(tokenName)) {
-	                endTagValue = integerValue.intValue();
-                }
-                if ("OTHER_TAG".equals(tokenName)) {
-	                otherTagValue = integerValue.intValue();
-                }
-            }
-        }
+    public XMLPullTokenStream(XMLTagTable tagTable, XmlPullParser parser) {
+        this(tagTable, parser, false);
     }
 
-    // TODO if only one namespace, optimize further (no hashmap lookup)
     /**
-     * Get the numerical token number for an XML tag
-     * @param namespace The tag's namespace
-     * @param tag The tag name
-     * @return The tag's token id
+     * Create the xml token stream, optionally skipping the content of tags
+     * that the parser doesn't define. If skipOtherTagContent is true, a tag
+     * that becomes an OTHER_TAG token is returned along with its matching
+     * XML_END_TAG, but nothing in between: nested tags, their end tags and
+     * PCDATA are read past without creating tokens. Only use this if your
+     * grammar never looks inside an OTHER_TAG.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param parser The XmlPull Parser that you want to use to scan (and possibly
+     *               validate) your XML. The input should already be set, but not read
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
      */
-    private Integer getTokenValue(String namespace, String tag) {
-        return getTags(namespace).get(tag);
+    public XMLPullTokenStream(XMLTagTable tagTable, XmlPullParser parser, boolean skipOtherTagContent) {
+        useTagTable(tagTable);
+        this.parser = parser;
+        this.skipOtherTagContent = skipOtherTagContent && otherTagValue != XMLTagTable.UNDEFINED;
     }
 
     /**
-     * Add an XML tag to our mapping
-     * @param namespace The namespace/prefix map from the grammar
-     * @param tag The xml tag to store
-     * @param integerValue The integer value of the tag
+     * Set up the token types to use when scanning
+     * @param tagTable The parser's XML tag table
      */
-    private void addTag(String namespace, String tag, Integer integerValue) {
-        if (namespace == null) {
-	        namespace = "";
+    private void useTagTable(XMLTagTable tagTable) {
+        this.tagTable = tagTable;
+        pcdataNum = tagTable.getPCDataType();
+        endTagValue = tagTable.getEndTagType();
+        if (endTagValue == XMLTagTable.UNDEFINED) {
+            endTagValue = Token.INVALID_TYPE;
         }
-
-        getTags(namespace).put(tag, integerValue);
-        startTag[integerValue.intValue()] = true;
+        otherTagValue = tagTable.getOtherTagType();
     }
 
     /**
@@ -130,30 +107,16 @@ public class XMLPullTokenStream implements TokenStream {
      * @return true if it's a start tag, false otherwise
      */
     public boolean isStartTag(Token token) {
-        return startTag[token.getType()];
-    }
-
-    /**
-     * Get all the tags defined in the given namespace
-     * @param namespace The namespace to check
-     * @return A map of tags to token ids
-     */
-    private Map<String, Integer> getTags(String namespace) {
-        if (namespace == null) {
-	        namespace = "";
-        }
-        Map<String, Integer> tags = namespaces.get(namespace);
-        if (tags == null) {
-            tags = new HashMap<String, Integer>();
-            namespaces.put(namespace, tags);
-        }
-        return tags;
+        return tagTable.isStartTag(token.getType());
     }
 
     /** {@inheritDoc} */
     public Token nextToken() throws TokenStreamException {
         try {
             try {
+                if (skipping) {
+                    skipContent();
+                }
                 while (true) {
                     switch(parser.getEventType()) {
                         case XmlPullParser.START_DOCUMENT :
@@ -168,19 +131,25 @@ public class XMLPullTokenStream implements TokenStream {
 
                         case XmlPullParser.START_TAG:
                             // create a start token
-                            return createXMLToken();
+                            Token token = createXMLToken();
+                            skipping = skipOtherTagContent && token.getType() == otherTagValue;
+                            return token;
 
                         case XmlPullParser.END_TAG:
                             return createToken(endTagValue,"");
 
                         case XmlPullParser.TEXT:
                             // if PCDATA isn't used in the parser, don't collect characters
-                            if (pcdataNum == -99 || parser.isWhitespace()) {
+                            if (pcdataNum == XMLTagTable.UNDEFINED) {
                                 parser.next(); // skip to next event
                                 continue;
                             }
-
-                            return createToken(pcdataNum, parser.getText());
+                            Token pcdata = createPCDataToken();
+                            if (pcdata == null) {
+                                parser.next(); // whitespace; skip to next event
+                                continue;
+                            }
+                            return pcdata;
                     }
                 }
             }
@@ -198,6 +167,55 @@ public class XMLPullTokenStream implements TokenStream {
         }
     }
 
+    /**
+     * Read past the content of the OTHER_TAG we just returned, stopping at
+     * its end tag
+     * @throws XmlPullParserException If the XML is not well-formed
+     * @throws IOException If the XML cannot be read
+     */
+    private void skipContent() throws XmlPullParserException, IOException {
+        skipping = false;
+        int depth = 1;
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT; eventType = parser.next()) {
+            if (eventType == XmlPullParser.START_TAG) {
+                depth++;
+            }
+            else if (eventType == XmlPullParser.END_TAG && --depth == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Create a PCDATA token for the current text, reading the parser's
+     * buffer directly rather than asking it for a String. The parser
+     * reuses its buffer when it moves on, so the token gets its own copy
+     * of the characters; the String is only created if someone asks for
+     * the token's text.
+     * @return the token, or null if the text is all whitespace
+     */
+    private Token createPCDataToken() {
+        char[] chars = parser.getTextCharacters(textStartAndLength);
+        if (chars == null) {
+            return null;
+        }
+        int start = textStartAndLength[0];
+        int end = start + textStartAndLength[1];
+        int i = start;
+        while (i < end && chars[i] <= ' ') {
+            i++;
+        }
+        if (i == end) {
+            return null;
+        }
+        char[] tokenChars = new char[end - start];
+        System.arraycopy(chars, start, tokenChars, 0, tokenChars.length);
+        Token token = new PCDataToken(pcdataNum, tokenChars, 0, tokenChars.length);
+        token.setLine(parser.getLineNumber());
+        token.setColumn(parser.getColumnNumber());
+        return token;
+    }
+
     /**
      * Create and return a token
      * @param tokenNum the token id
@@ -212,45 +230,56 @@ public class XMLPullTokenStream implements TokenStream {
     }
 
 
+    /**
+     * Create an XML token for the parser's current start tag
+     * @return An XMLToken
+     */
     protected Token createXMLToken() {
         String localName = parser.getName();
         String uri = parser.getNamespace();
-        Integer id = getTokenValue(uri, localName);
-        String name = "";
-        if (uri != null && !"".equals(uri.trim())) {
-	        name += uri + ":";
-        }
-        name += localName;
+        int id = tagTable.getTagType(uri, localName);
         int tokenValue;
-        if (id != null) {
-            tokenValue = id.intValue();
-        }
-        else if (otherTagValue != -1) {
-            tokenValue = otherTagValue;
+        String name;
+        if (id != XMLTagTable.UNDEFINED) {
+            // the tag table already has the token text for known tags
+            tokenValue = id;
+            name = tagTable.getTagName(id);
         }
         else {
-            throw new RuntimeException("Tag '" + name + "' not defined in parser grammar");
+            name = localName;
+            if (uri != null && !"".equals(uri.trim())) {
+                name = uri + ":" + localName;
+            }
+            if (otherTagValue == XMLTagTable.UNDEFINED) {
+                throw new RuntimeException("Tag '" + name + "' not defined in parser grammar");
+            }
+            tokenValue = otherTagValue;
         }
 
         int attributeCount = parser.getAttributeCount();
-        List<Attribute> attributeList;
-        if (attributeCount == 0) {
-	        attributeList = Collections.emptyList();
-        } else {
-	        attributeList = new ArrayList<Attribute>(attributeCount);
-        }
-
-        for (int i = 0; i < attributeCount; i++) {
-            attributeList.add(
-                new Attribute(parser.getAttributeNamespace(i),
-                              parser.getAttributeName(i),
-                              parser.getAttributeValue(i),
-                              parser.getAttributeType(i)));
+        String[] attributeData = null;
+        int[] attributeIds = null;
+        if (attributeCount > 0) {
+            attributeData = new String[attributeCount * XMLToken.ATTRIBUTE_FIELDS];
+            if (tagTable.hasAttributeIds()) {
+                attributeIds = new int[attributeCount];
+            }
+            for (int i = 0, j = 0; i < attributeCount; i++, j += XMLToken.ATTRIBUTE_FIELDS) {
+                String namespace = parser.getAttributeNamespace(i);
+                String localAttributeName = parser.getAttributeName(i);
+                attributeData[j] = namespace;
+                attributeData[j + 1] = localAttributeName;
+                attributeData[j + 2] = parser.getAttributeValue(i);
+                attributeData[j + 3] = parser.getAttributeType(i);
+                if (attributeIds != null) {
+                    attributeIds[i] = tagTable.getAttributeId(namespace, localAttributeName);
+                }
+            }
         }
 
-        XMLToken token = new XMLToken(tokenValue, name, attributeList);
+        XMLToken token = new XMLToken(tokenValue, name, attributeData, attributeIds);
         token.setLine(parser.getLineNumber());
         token.setColumn(parser.getColumnNumber());
         return token;
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
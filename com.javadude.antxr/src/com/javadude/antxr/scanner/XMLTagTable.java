@@ -0,0 +1,443 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.javadude.antxr.Parser;
+
+/**
+ * An immutable mapping from XML tags (namespace + local name) to the token
+ * types of an XML parser, plus the token types of the special XML tokens
+ * (PCDATA, XML_END_TAG and OTHER_TAG).
+ *
+ * ANTXR generates a static table into each XML parser (as
+ * <code>__xml_tagTable</code>); {@link #forParser(Class)} finds it once per
+ * parser class, so creating a token stream doesn't need to look at the
+ * token names at all. Tag lookup is an open-addressed hash probe over
+ * parallel arrays: no boxing and no map chains.
+ *
+ * The table also numbers the attributes that the grammar's actions refer
+ * to (as <code>@name</code>), so the scanner can tag each attribute with
+ * its id and the generated actions can fetch it by id.
+ */
+public class XMLTagTable {
+    /** token type returned for tags and special tokens the grammar doesn't define */
+    public static final int UNDEFINED = -1;
+
+    private static final Pattern TAG_PATTERN = Pattern.compile("\"<((.*):)?(.*)>\"");
+    private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
+    private static final Object[] NO_ARGUMENTS = new Object[] {};
+
+    private static final ClassValue<XMLTagTable> TABLES = new ClassValue<XMLTagTable>() {
+        @Override
+        protected XMLTagTable computeValue(Class<?> parserClass) {
+            return XMLTagTable.lookUp(parserClass);
+        }
+    };
+
+    private final NameTable tags;
+    private final NameTable attributes;
+    private final boolean[] startTag;
+    private final String[] tagNames;
+    private final String[] attributeNames;
+    private final int pcdataType;
+    private final int endTagType;
+    private final int otherTagType;
+
+    /**
+     * Create a tag table. The three tag arrays are parallel: tag i is
+     * localNames[i] in namespaces[i], and has token type types[i].
+     * @param namespaces The namespace of each tag ("" for no namespace)
+     * @param localNames The local name of each tag
+     * @param types The token type of each tag
+     * @param tokenCount The number of token types in the parser
+     * @param pcdataType The token type of PCDATA, or UNDEFINED
+     * @param endTagType The token type of XML_END_TAG, or UNDEFINED
+     * @param otherTagType The token type of OTHER_TAG, or UNDEFINED
+     */
+    public XMLTagTable(String[] namespaces, String[] localNames, int[] types,
+                       int tokenCount, int pcdataType, int endTagType, int otherTagType) {
+        this(namespaces, localNames, types, tokenCount, pcdataType, endTagType, otherTagType,
+             new String[0], new String[0]);
+    }
+
+    /**
+     * Create a tag table that also assigns ids to the attributes the grammar
+     * refers to. Attribute i (localName attributeLocalNames[i] in namespace
+     * attributeNamespaces[i]) has id i; see {@link XMLToken#getAttribute(int)}.
+     * @param namespaces The namespace of each tag ("" for no namespace)
+     * @param localNames The local name of each tag
+     * @param types The token type of each tag
+     * @param tokenCount The number of token types in the parser
+     * @param pcdataType The token type of PCDATA, or UNDEFINED
+     * @param endTagType The token type of XML_END_TAG, or UNDEFINED
+     * @param otherTagType The token type of OTHER_TAG, or UNDEFINED
+     * @param attributeNamespaces The namespace of each attribute ("" for no namespace)
+     * @param attributeLocalNames The local name of each attribute
+     */
+    public XMLTagTable(String[] namespaces, String[] localNames, int[] types,
+                       int tokenCount, int pcdataType, int endTagType, int otherTagType,
+                       String[] attributeNamespaces, String[] attributeLocalNames) {
+        if (namespaces.length != localNames.length || namespaces.length != types.length) {
+            throw new IllegalArgumentException("namespaces, localNames and types must be the same length");
+        }
+        if (attributeNamespaces.length != attributeLocalNames.length) {
+            throw new IllegalArgumentException("attributeNamespaces and attributeLocalNames must be the same length");
+        }
+        this.pcdataType = pcdataType;
+        this.endTagType = endTagType;
+        this.otherTagType = otherTagType;
+        startTag = new boolean[tokenCount];
+        tagNames = new String[tokenCount];
+        tags = new NameTable(namespaces.length);
+        for (int i = 0; i < namespaces.length; i++) {
+            tags.put(namespaces[i], localNames[i], types[i]);
+            startTag[types[i]] = true;
+            // the same text the scanners give a start tag token
+            String namespace = namespaces[i];
+            if (namespace != null && !"".equals(namespace.trim())) {
+                tagNames[types[i]] = namespace + ":" + localNames[i];
+            } else {
+                tagNames[types[i]] = localNames[i];
+            }
+        }
+        attributeNames = attributeLocalNames.clone();
+        attributes = new NameTable(attributeNamespaces.length);
+        for (int i = 0; i < attributeNamespaces.length; i++) {
+            attributes.put(attributeNamespaces[i], attributeLocalNames[i], i);
+        }
+    }
+
+    /**
+     * Get the tag table for a parser class. The table is looked up (or, for
+     * parsers generated by older versions of ANTXR, built from the parser's
+     * _tokenNames and getNamespaceMap()) only the first time a class is
+     * passed in.
+     * @param parserClass Your parser class. The parser must have been
+     *                    generated with the xmlMode=true option specified
+     * @return the parser's tag table
+     * @throws IllegalArgumentException if you pass in an invalid parser
+     */
+    public static XMLTagTable forParser(Class<? extends Parser> parserClass) {
+        return XMLTagTable.TABLES.get(parserClass);
+    }
+
+    /**
+     * Find or build the tag table for a parser class
+     * @param parserClass the generated parser class
+     * @return the parser's tag table
+     */
+    private static XMLTagTable lookUp(Class<?> parserClass) {
+        try {
+            try {
+                Field tableField = parserClass.getField("__xml_tagTable");
+                return (XMLTagTable) tableField.get(null);
+            }
+            catch (NoSuchFieldException e) {
+                // generated before tag tables existed; build one by hand
+            }
+
+            String[] tokenNames;
+            try {
+                Field field = parserClass.getField("_tokenNames");
+                tokenNames = (String[])field.get(null);
+            }
+            catch (NoSuchFieldException e) {
+                throw new IllegalArgumentException("Cannot find _tokenNames in the parser class -- is it an XML parser?");
+            }
+
+            Map<String, String> namespaceMap;
+            try {
+                Method getNameSpaceMapMethod = parserClass.getMethod("getNamespaceMap", XMLTagTable.NO_PARAMETERS);
+                @SuppressWarnings("unchecked")
+                Map<String, String> map = (Map<String, String>) getNameSpaceMapMethod.invoke(null, XMLTagTable.NO_ARGUMENTS);
+                namespaceMap = map;
+            }
+            catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Cannot find getNamespaceMap() in the parser class -- is it an XML parser?");
+            }
+            return XMLTagTable.fromTokenNames(tokenNames, namespaceMap);
+        }
+        catch (NullPointerException e) {
+            throw new IllegalArgumentException("Cannot access __xml_tagTable, _tokenNames or getNamespaceMap() in the parser class (they should be static)");
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access __xml_tagTable, _tokenNames or getNamespaceMap() in the parser class (they should be public)");
+        }
+        catch (InvocationTargetException e) {
+            throw new RuntimeException("Exception thrown when running getNamespaceMap(). See nested exception.", e);
+        }
+    }
+
+    /**
+     * Build a tag table from a parser's token names
+     * @param tokenNames An array of token names for your parser. You can get
+     *                   this by passing YourParser._tokenNames, where YourParser
+     *                   is an XML parser generated by ANTXR
+     * @param namespaceMap  A map of namespace/prefix mappings. You can get this
+     *                      by passing YourParser.getNamespaceMap(), where
+     *                      YourParser is an XML parser generated by ANTXR
+     * @return the tag table
+     */
+    public static XMLTagTable fromTokenNames(String[] tokenNames, Map<String, String> namespaceMap) {
+        List<String> namespaces = new ArrayList<String>();
+        List<String> localNames = new ArrayList<String>();
+        List<Integer> types = new ArrayList<Integer>();
+        int pcdataType = XMLTagTable.UNDEFINED;
+        int endTagType = XMLTagTable.UNDEFINED;
+        int otherTagType = XMLTagTable.UNDEFINED;
+        for (int i = 0; i < tokenNames.length; i++) {
+            String tokenName = tokenNames[i];
+            Matcher matcher = XMLTagTable.TAG_PATTERN.matcher(tokenName);
+            if (matcher.matches()) {
+                String namespace = matcher.group(2);
+                if (namespace == null) {
+                    namespace = namespaceMap.get("$DEFAULT");
+                }
+                namespaces.add(namespace);
+                localNames.add(matcher.group(3));
+                types.add(i);
+            }
+            else if ("PCDATA".equals(tokenName)) {
+                pcdataType = i;
+            }
+            else if ("XML_END_TAG".equals(tokenName)) {
+                endTagType = i;
+            }
+            else if ("OTHER_TAG".equals(tokenName)) {
+                otherTagType = i;
+            }
+        }
+
+        int[] typeArray = new int[types.size()];
+        for (int i = 0; i < typeArray.length; i++) {
+            typeArray[i] = types.get(i);
+        }
+        return new XMLTagTable(namespaces.toArray(new String[namespaces.size()]),
+                               localNames.toArray(new String[localNames.size()]),
+                               typeArray, tokenNames.length,
+                               pcdataType, endTagType, otherTagType);
+    }
+
+    /**
+     * Get the token type for an XML tag
+     * @param namespace The tag's namespace (null or "" for none)
+     * @param localName The tag's local name
+     * @return The tag's token type, or UNDEFINED if the grammar doesn't
+     *         mention the tag
+     */
+    public int getTagType(String namespace, String localName) {
+        return tags.get(namespace, localName);
+    }
+
+    /**
+     * Get the token type for an XML tag whose local name is still sitting
+     * in the scanner's character buffer, without creating a String for it
+     * @param namespace The tag's namespace (null or "" for none)
+     * @param chars The buffer holding the tag's local name
+     * @param start The index of the local name's first character
+     * @param length The length of the local name
+     * @return The tag's token type, or UNDEFINED if the grammar doesn't
+     *         mention the tag
+     */
+    public int getTagType(String namespace, char[] chars, int start, int length) {
+        return tags.get(namespace, chars, start, length);
+    }
+
+    /**
+     * Get the text of a start tag token: the tag's local name, preceded by
+     * its namespace and a colon if it has one
+     * @param type The tag's token type
+     * @return The tag's name, or null if the type isn't a start tag
+     */
+    public String getTagName(int type) {
+        return isStartTag(type) ? tagNames[type] : null;
+    }
+
+    /**
+     * Get the id the grammar uses for an attribute
+     * @param namespace The attribute's namespace (null or "" for none)
+     * @param localName The attribute's local name
+     * @return The attribute's id, or UNDEFINED if the grammar doesn't
+     *         refer to the attribute
+     */
+    public int getAttributeId(String namespace, String localName) {
+        return attributes.get(namespace, localName);
+    }
+
+    /**
+     * Get the id the grammar uses for an attribute whose local name is
+     * still sitting in the scanner's character buffer
+     * @param namespace The attribute's namespace (null or "" for none)
+     * @param chars The buffer holding the attribute's local name
+     * @param start The index of the local name's first character
+     * @param length The length of the local name
+     * @return The attribute's id, or UNDEFINED if the grammar doesn't
+     *         refer to the attribute
+     */
+    public int getAttributeId(String namespace, char[] chars, int start, int length) {
+        return attributes.get(namespace, chars, start, length);
+    }
+
+    /**
+     * Get the local name of an attribute the grammar refers to
+     * @param id The attribute's id
+     * @return The attribute's local name
+     */
+    public String getAttributeLocalName(int id) {
+        return attributeNames[id];
+    }
+
+    /**
+     * @return true if the grammar refers to any attributes by id
+     */
+    public boolean hasAttributeIds() {
+        return attributes.size() > 0;
+    }
+
+    /**
+     * State whether the given token type is an XML start tag
+     * @param type the token type to check
+     * @return true if it's a start tag, false otherwise
+     */
+    public boolean isStartTag(int type) {
+        return type >= 0 && type < startTag.length && startTag[type];
+    }
+
+    /**
+     * @return the token type of PCDATA, or UNDEFINED if the grammar doesn't use it
+     */
+    public int getPCDataType() {
+        return pcdataType;
+    }
+
+    /**
+     * @return the token type of XML_END_TAG, or UNDEFINED if the grammar doesn't use it
+     */
+    public int getEndTagType() {
+        return endTagType;
+    }
+
+    /**
+     * @return the token type of OTHER_TAG, or UNDEFINED if the grammar doesn't use it
+     */
+    public int getOtherTagType() {
+        return otherTagType;
+    }
+
+    /**
+     * An open-addressed hash table from namespace + local name to an int,
+     * kept in parallel arrays. It's kept at most half full so probe
+     * sequences stay short.
+     */
+    private static class NameTable {
+        private final String[] namespaces;
+        private final String[] localNames;
+        private final int[] values;
+        private final int mask;
+        private int size;
+
+        NameTable(int expectedSize) {
+            int capacity = 2;
+            while (capacity < expectedSize * 2) {
+                capacity <<= 1;
+            }
+            mask = capacity - 1;
+            namespaces = new String[capacity];
+            localNames = new String[capacity];
+            values = new int[capacity];
+        }
+
+        private static int hash(String namespace, String localName) {
+            int h = namespace.hashCode() * 31 + localName.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        void put(String namespace, String localName, int value) {
+            if (namespace == null) {
+                namespace = "";
+            }
+            int slot = NameTable.hash(namespace, localName) & mask;
+            while (localNames[slot] != null &&
+                   !(localNames[slot].equals(localName) && namespaces[slot].equals(namespace))) {
+                slot = (slot + 1) & mask;
+            }
+            if (localNames[slot] == null) {
+                size++;
+            }
+            namespaces[slot] = namespace;
+            localNames[slot] = localName;
+            values[slot] = value;
+        }
+
+        int get(String namespace, String localName) {
+            if (namespace == null) {
+                namespace = "";
+            }
+            int slot = NameTable.hash(namespace, localName) & mask;
+            String name;
+            while ((name = localNames[slot]) != null) {
+                if (name.equals(localName) && namespaces[slot].equals(namespace)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return XMLTagTable.UNDEFINED;
+        }
+
+        int get(String namespace, char[] chars, int start, int length) {
+            if (namespace == null) {
+                namespace = "";
+            }
+            // same as String.hashCode(), so we land where put() did
+            int localHash = 0;
+            for (int i = start, end = start + length; i < end; i++) {
+                localHash = 31 * localHash + chars[i];
+            }
+            int h = namespace.hashCode() * 31 + localHash;
+            int slot = (h ^ (h >>> 16)) & mask;
+            String name;
+            while ((name = localNames[slot]) != null) {
+                if (NameTable.regionEquals(name, chars, start, length) && namespaces[slot].equals(namespace)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return XMLTagTable.UNDEFINED;
+        }
+
+        private static boolean regionEquals(String name, char[] chars, int start, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (name.charAt(i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -12,6 +12,8 @@
  *******************************************************************************/
 package com.javadude.antxr.scanner;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -19,12 +21,25 @@ import com.javadude.antxr.CommonToken;
 
 /**
  * An ANTXR token that represents an XML Tag.
+ *
+ * The scanners store a tag's attributes in a flat array (namespace, local
+ * name, value and type for each attribute), along with the id the grammar
+ * uses for each attribute (see {@link XMLTagTable}). {@link Attribute}
+ * objects are only created if someone asks for them via
+ * {@link #getAttributes()}.
  */
 public class XMLToken extends CommonToken {
+    private static final String[] NO_ATTRIBUTE_DATA = new String[0];
+    /** number of attribute data entries per attribute: namespace, local name, value and type */
+    public static final int ATTRIBUTE_FIELDS = 4;
+    private static final int NAMESPACE = 0;
+    private static final int LOCAL_NAME = 1;
+    private static final int VALUE = 2;
+    private static final int TYPE = 3;
+
+    private String[] attributeData = XMLToken.NO_ATTRIBUTE_DATA;
+    private int[] attributeIds;
     private List<Attribute> attributeList;
-    // list of attributes -- shouldn't be many
-    // should we have an option to optimize using hashmap of namespace?
-    //   is it worth it?
 
     /**
      * Create an XML Token
@@ -43,9 +58,80 @@ public class XMLToken extends CommonToken {
      */
     public XMLToken(int t, String txt, List<Attribute> attributeList) {
         super(t, txt);
+        attributeData = new String[attributeList.size() * XMLToken.ATTRIBUTE_FIELDS];
+        int i = 0;
+        for (Attribute attribute : attributeList) {
+            attributeData[i + XMLToken.NAMESPACE] = attribute.getNamespace();
+            attributeData[i + XMLToken.LOCAL_NAME] = attribute.getLocalName();
+            attributeData[i + XMLToken.VALUE] = attribute.getValue();
+            attributeData[i + XMLToken.TYPE] = attribute.getType();
+            i += XMLToken.ATTRIBUTE_FIELDS;
+        }
         this.attributeList = attributeList;
     }
 
+    /**
+     * Create an XML Token
+     * @param t The token's id
+     * @param txt The token's text
+     * @param attributeData The token's attributes, or null if there are
+     *                      none; ATTRIBUTE_FIELDS entries per attribute:
+     *                      namespace, local name, value and type
+     * @param attributeIds The grammar's id for each attribute (or
+     *                     XMLTagTable.UNDEFINED), or null if the grammar
+     *                     doesn't use attribute ids
+     */
+    public XMLToken(int t, String txt, String[] attributeData, int[] attributeIds) {
+        super(t, txt);
+        if (attributeData != null) {
+            this.attributeData = attributeData;
+        }
+        this.attributeIds = attributeIds;
+    }
+
+    /**
+     * @return the number of attributes in the tag
+     */
+    public int getAttributeCount() {
+        return attributeData.length / XMLToken.ATTRIBUTE_FIELDS;
+    }
+
+    /**
+     * Fetch an attribute by the id the grammar assigned to it
+     * @param id The attribute's id
+     * @return The attribute's value, or null if the tag doesn't have it
+     */
+    public String getAttribute(int id) {
+        if (attributeIds == null) {
+            return null;
+        }
+        for (int i = 0; i < attributeIds.length; i++) {
+            if (attributeIds[i] == id) {
+                return attributeData[i * XMLToken.ATTRIBUTE_FIELDS + XMLToken.VALUE];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetch an attribute by the id the grammar assigned to it, or by
+     * namespace and name if the token wasn't given attribute ids (tokens
+     * created without an XMLTagTable that knows the grammar's attributes)
+     * @param id The attribute's id
+     * @param namespace The attribute's namespace
+     * @param localName The attribute's name
+     * @return The attribute's value, or null if the tag doesn't have it
+     */
+    public String getAttribute(int id, String namespace, String localName) {
+        if (attributeIds != null) {
+            for (int i = 0; i < attributeIds.length; i++) {
+                if (attributeIds[i] == id) {
+                    return attributeData[i * XMLToken.ATTRIBUTE_FIELDS + XMLToken.VALUE];
+                }
+            }
+        }
+        return getAttribute(namespace, localName);
+    }
 
     /**
      * Fetch an attribute by namespace and name
@@ -54,10 +140,10 @@ public class XMLToken extends CommonToken {
      * @return The attribute's value
      */
     public String getAttribute(String namespace, String localName) {
-        for (Attribute attribute : attributeList) {
-            if (attribute.getNamespace().equals(namespace) &&
-                attribute.getLocalName().equals(localName)) {
-	            return attribute.getValue();
+        for (int i = 0; i < attributeData.length; i += XMLToken.ATTRIBUTE_FIELDS) {
+            if (attributeData[i + XMLToken.LOCAL_NAME].equals(localName) &&
+                attributeData[i + XMLToken.NAMESPACE].equals(namespace)) {
+                return attributeData[i + XMLToken.VALUE];
             }
         }
         return null;
@@ -69,6 +155,19 @@ public class XMLToken extends CommonToken {
      */
     public Iterator<Attribute> getAttributes() {
         // TODO should we make it immutable? is it worth it?
+        if (attributeList == null) {
+            if (attributeData.length == 0) {
+                attributeList = Collections.emptyList();
+            } else {
+                attributeList = new ArrayList<Attribute>(getAttributeCount());
+                for (int i = 0; i < attributeData.length; i += XMLToken.ATTRIBUTE_FIELDS) {
+                    attributeList.add(new Attribute(attributeData[i + XMLToken.NAMESPACE],
+                                                    attributeData[i + XMLToken.LOCAL_NAME],
+                                                    attributeData[i + XMLToken.VALUE],
+                                                    attributeData[i + XMLToken.TYPE]));
+                }
+            }
+        }
         return attributeList.iterator();
     }
-}
\ No newline at end of file
+}
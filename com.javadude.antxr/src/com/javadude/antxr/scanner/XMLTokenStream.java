@@ -15,13 +15,7 @@ package com.javadude.antxr.scanner;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.xml.parsers.SAXParser;
 
@@ -44,16 +38,15 @@ import com.javadude.antxr.TokenStreamException;
  * you want for use as the scanner.
  */
 public class XMLTokenStream implements TokenStream {
-    private boolean[] startTag;
-    private Map<String, Map<String, Integer>> namespaces = new HashMap<String, Map<String,Integer>>();
-    private Map<String, Integer> tokens = new HashMap<String, Integer>();
-    private BlockingQueue<Object> blockingQueue;
+    private XMLTagTable tagTable;
+    private RingBufferQueue<Object> blockingQueue;
     private int pcdataNum;
-    private StringBuffer currentCharacters = new StringBuffer();
+    private PCDataBuffer currentCharacters = new PCDataBuffer();
     private int currentCharactersLine = -1;
     private int currentCharactersColumn = -1;
     private int endTagValue;
-    private int otherTagValue = -1;
+    private int otherTagValue;
+    private boolean skipOtherTagContent;
 
     /**
      * Create the xml token stream. This version does not gate the number of
@@ -104,74 +97,108 @@ public class XMLTokenStream implements TokenStream {
      *                        resume the SAX parse
      */
     public XMLTokenStream(String[] tokenNames, Map<String, String> namespaceMap, InputSource in, SAXParser parser, EntityResolver entityResolver, DTDHandler dtdHandler, int maximumQueueSize, int resumeQueueSize) {
-        readTokens(tokenNames, namespaceMap);
-        // TODO avoid NPE on following
-        Integer tokenNum = tokens.get("PCDATA");
-        if (tokenNum == null) {
-            pcdataNum = -99;
-        } else {
-            pcdataNum = tokenNum.intValue();
-        }
-        blockingQueue = new BlockingQueue<Object>(maximumQueueSize,resumeQueueSize);
-        parse(parser, in, entityResolver, dtdHandler);
+        this(tokenNames, namespaceMap, in, parser, entityResolver, dtdHandler, maximumQueueSize, resumeQueueSize, RingBufferQueue.DEFAULT_BATCH_SIZE);
     }
 
     /**
-     * Set up the tokens to use when scanning
-     * @param tokenNames The names of the tokens in the grammar
-     * @param namespaceMap A mapping that includes prefixes
+     * Create the xml token stream, specifying how many tokens the SAX parser
+     * hands over to the ANTXR parser at a time. Larger batches mean less
+     * synchronization between the two threads; a batch size of 1 makes each
+     * token available as soon as it's scanned, which you may want if the
+     * XML arrives slowly (over a socket, for example).
+     * @param tokenNames An array of token names for your parser. You can get
+     *                   this by passing YourParser._tokenNames, where YourParser
+     *                   is an XML parser generated by ANTXR
+     * @param namespaceMap  A map of namespace/prefix mappings. You can get this
+     *                      by passing YourParser.getNamespaceMap(), where
+     *                      YourParser is an XML parser generated by ANTXR
+     * @param in The XML InputSource containing the XML to parse
+     * @param parser The SAX Parser that you want to use to scan (and possibly
+     *               validate) your XML
+     * @param entityResolver An XML Entity resolver for the SAX parse (if needed), or null
+     * @param dtdHandler and XML DTD Handler for theSAX parse (if needed), or null
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the queue ready for the ANTXR parser
+     *                         to fetch (or -1 for no maximum). This will put
+     *                         the SAX parse on hold until resumeQueue size is
+     *                         reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param batchSize The number of tokens handed to the ANTXR parser at a time
      */
-    private void readTokens(String[] tokenNames, Map<String, String> namespaceMap) {
-        startTag = new boolean[tokenNames.length];
-        Pattern pattern = Pattern.compile("\"<((.*):)?(.*)>\"");
-        for (int i = 0; i < tokenNames.length; i++) {
-            String tokenName = tokenNames[i];
-            Matcher matcher = pattern.matcher(tokenName);
-            Integer integerValue = new Integer(i);
-            if (matcher.matches()) {
-                String namespace = matcher.group(2);
-                String tag = matcher.group(3);
-                if (namespace == null) {
-                    namespace = namespaceMap.get("$DEFAULT");
-                }
-                addTag(namespace, tag, integerValue);
-            }
-            else {
-                tokens.put(tokenName,integerValue);
-                if ("XML_END_TAG".equals(tokenName)) {
-                    endTagValue = integerValue.intValue();
-                }
-                if ("OTHER_TAG".equals(tokenName)) {
-                    otherTagValue = integerValue.intValue();
-                }
-            }
-        }
+    public XMLTokenStream(String[] tokenNames, Map<String, String> namespaceMap, InputSource in, SAXParser parser, EntityResolver entityResolver, DTDHandler dtdHandler, int maximumQueueSize, int resumeQueueSize, int batchSize) {
+        this(XMLTagTable.fromTokenNames(tokenNames, namespaceMap), in, parser, entityResolver, dtdHandler, maximumQueueSize, resumeQueueSize, batchSize);
     }
 
-    // TODO if only one namespace, optimize further (no hashmap lookup)
     /**
-     * Get the numerical token number for an XML tag
-     * @param namespace The tag's namespace
-     * @param tag The tag name
-     * @return The tag's token id
+     * Create the xml token stream, using a tag table rather than the
+     * parser's token names. This is the cheapest way to create an
+     * XMLTokenStream, as the tag table is built only once per parser class.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param in The XML InputSource containing the XML to parse
+     * @param parser The SAX Parser that you want to use to scan (and possibly
+     *               validate) your XML
+     * @param entityResolver An XML Entity resolver for the SAX parse (if needed), or null
+     * @param dtdHandler and XML DTD Handler for theSAX parse (if needed), or null
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the queue ready for the ANTXR parser
+     *                         to fetch (or -1 for no maximum). This will put
+     *                         the SAX parse on hold until resumeQueue size is
+     *                         reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param batchSize The number of tokens handed to the ANTXR parser at a time
+     */
+    public XMLTokenStream(XMLTagTable tagTable, InputSource in, SAXParser parser, EntityResolver entityResolver, DTDHandler dtdHandler, int maximumQueueSize, int resumeQueueSize, int batchSize) {
+        this(tagTable, in, parser, entityResolver, dtdHandler, maximumQueueSize, resumeQueueSize, batchSize, false);
+    }
+
+    /**
+     * Create the xml token stream, optionally skipping the content of tags
+     * that the parser doesn't define. If skipOtherTagContent is true, a tag
+     * that becomes an OTHER_TAG token is passed to the parser along with its
+     * matching XML_END_TAG, but nothing in between: nested tags, their end
+     * tags and PCDATA are dropped in the SAX thread and never queued. Only
+     * use this if your grammar never looks inside an OTHER_TAG.
+     * @param tagTable The parser's tag table. You can get this by passing
+     *                 XMLTagTable.forParser(YourParser.class), where YourParser
+     *                 is an XML parser generated by ANTXR
+     * @param in The XML InputSource containing the XML to parse
+     * @param parser The SAX Parser that you want to use to scan (and possibly
+     *               validate) your XML
+     * @param entityResolver An XML Entity resolver for the SAX parse (if needed), or null
+     * @param dtdHandler and XML DTD Handler for theSAX parse (if needed), or null
+     * @param maximumQueueSize the maximum number of tokens you want to place
+     *                         in the queue ready for the ANTXR parser
+     *                         to fetch (or -1 for no maximum). This will put
+     *                         the SAX parse on hold until resumeQueue size is
+     *                         reached.
+     * @param resumeQueueSize The number of buffered tokens at which you will
+     *                        resume the SAX parse
+     * @param batchSize The number of tokens handed to the ANTXR parser at a time
+     * @param skipOtherTagContent true to skip everything inside an OTHER_TAG
      */
-    private Integer getTokenValue(String namespace, String tag) {
-        return getTags(namespace).get(tag);
+    public XMLTokenStream(XMLTagTable tagTable, InputSource in, SAXParser parser, EntityResolver entityResolver, DTDHandler dtdHandler, int maximumQueueSize, int resumeQueueSize, int batchSize, boolean skipOtherTagContent) {
+        useTagTable(tagTable);
+        this.skipOtherTagContent = skipOtherTagContent && otherTagValue != XMLTagTable.UNDEFINED;
+        blockingQueue = new RingBufferQueue<Object>(maximumQueueSize,resumeQueueSize,batchSize);
+        parse(parser, in, entityResolver, dtdHandler);
     }
 
     /**
-     * Add an XML tag to our mapping
-     * @param namespace The namespace/prefix map from the grammar
-     * @param tag The xml tag to store
-     * @param integerValue The integer value of the tag
+     * Set up the token types to use when scanning
+     * @param tagTable The parser's XML tag table
      */
-    private void addTag(String namespace, String tag, Integer integerValue) {
-        if (namespace == null) {
-            namespace = "";
+    private void useTagTable(XMLTagTable tagTable) {
+        this.tagTable = tagTable;
+        pcdataNum = tagTable.getPCDataType();
+        endTagValue = tagTable.getEndTagType();
+        if (endTagValue == XMLTagTable.UNDEFINED) {
+            endTagValue = Token.INVALID_TYPE;
         }
-
-        getTags(namespace).put(tag, integerValue);
-        startTag[integerValue.intValue()] = true;
+        otherTagValue = tagTable.getOtherTagType();
     }
 
     /**
@@ -180,24 +207,7 @@ public class XMLTokenStream implements TokenStream {
      * @return true if it's a start tag, false otherwise
      */
     public boolean isStartTag(Token token) {
-        return startTag[token.getType()];
-    }
-
-    /**
-     * Get all the tags defined in the given namespace
-     * @param namespace The namespace to check
-     * @return A map of tags to token ids
-     */
-    private Map<String, Integer> getTags(String namespace) {
-        if (namespace == null) {
-            namespace = "";
-        }
-        Map<String, Integer> tags = namespaces.get(namespace);
-        if (tags == null) {
-            tags = new HashMap<String, Integer>();
-            namespaces.put(namespace, tags);
-        }
-        return tags;
+        return tagTable.isStartTag(token.getType());
     }
 
     /**
@@ -220,6 +230,9 @@ public class XMLTokenStream implements TokenStream {
                 catch (Throwable t) {
                     blockingQueue.enqueue(t); // stuff any exceptions in the queue
                 }
+                finally {
+                    blockingQueue.flush(); // hand over any partial batch
+                }
             }
         };
 
@@ -227,6 +240,38 @@ public class XMLTokenStream implements TokenStream {
         saxParseThread.start();
     }
 
+    /**
+     * @return how many times the SAX parser had to wait because
+     *         maximumQueueSize tokens were waiting to be read
+     */
+    public long getProducerStallCount() {
+        return blockingQueue.getProducerStallCount();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the SAX parser spent waiting
+     *         for the ANTXR parser to read tokens
+     */
+    public long getProducerStallNanos() {
+        return blockingQueue.getProducerStallNanos();
+    }
+
+    /**
+     * @return how many times the ANTXR parser had to wait for the SAX parser
+     *         to scan more tokens
+     */
+    public long getConsumerStallCount() {
+        return blockingQueue.getConsumerStallCount();
+    }
+
+    /**
+     * @return the total time, in nanoseconds, the ANTXR parser spent waiting
+     *         for the SAX parser to scan more tokens
+     */
+    public long getConsumerStallNanos() {
+        return blockingQueue.getConsumerStallNanos();
+    }
+
     /** {@inheritDoc} */
     public Token nextToken() throws TokenStreamException {
         try {
@@ -251,9 +296,9 @@ public class XMLTokenStream implements TokenStream {
     }
 
     /**
-     * The SAX handler that glues the SAX parser to our blocking queue.
+     * The SAX handler that glues the SAX parser to our token queue.
      * This class grabs notifications of tags from the SAX parser, creates
-     * ANTXR tokens from them, and stuffs the tokens in the blocking queue.
+     * ANTXR tokens from them, and stuffs the tokens in the queue.
      * The nextToken method returns tokens off the queue when asked.
      *
      * If the caller passes in a DTD and/or entity resolver, we delegate to
@@ -263,6 +308,7 @@ public class XMLTokenStream implements TokenStream {
         private Locator locator;
         private EntityResolver entityResolver;
         private DTDHandler dtdHandler;
+        private int skipDepth; // how deep we are inside a skipped OTHER_TAG (0 if we aren't)
 
         /**
          * Create the handler
@@ -286,7 +332,7 @@ public class XMLTokenStream implements TokenStream {
             // collect all adjacent character chunks into a single PCDATA
             //   to return to the parser
             // if PCDATA isn't used in the parser, don't collect characters
-            if (pcdataNum == -99) {
+            if (pcdataNum == XMLTagTable.UNDEFINED || skipDepth > 0) {
                 return;
             }
             if (currentCharactersLine == -1) {
@@ -301,20 +347,20 @@ public class XMLTokenStream implements TokenStream {
          */
         protected void finishCharacters() {
             // if PCDATA isn't used in the parser, don't collect characters
-            if (pcdataNum == -99) {
+            if (pcdataNum == XMLTagTable.UNDEFINED) {
                 return;
             }
             int line = currentCharactersLine;
             int column = currentCharactersColumn;
             currentCharactersLine = -1;
             currentCharactersColumn = -1;
-            String characters = currentCharacters.toString();
-            currentCharacters.delete(0, currentCharacters.length());
-            if ("".equals(characters.trim())) {
+            // whitespace between tags never becomes a String
+            if (currentCharacters.isWhitespace()) {
+                currentCharacters.clear();
                 return;
             }
 
-            Token token = new CommonToken(pcdataNum,characters);
+            Token token = currentCharacters.createToken(pcdataNum);
             token.setLine(line);
             token.setColumn(column);
             blockingQueue.enqueue(token);
@@ -323,6 +369,10 @@ public class XMLTokenStream implements TokenStream {
         /** {@inheritDoc} */
         @Override
         public void endElement(String uri, String localName, String qName) throws SAXException {
+            // only the end of the skipped OTHER_TAG itself is sent
+            if (skipDepth > 0 && --skipDepth > 0) {
+                return;
+            }
             finishCharacters(); // if we were working on a PCDATA, send it!
 
             // queue an XML_END_TAG token
@@ -341,6 +391,7 @@ public class XMLTokenStream implements TokenStream {
             eofToken.setLine(locator.getLineNumber());
             eofToken.setColumn(locator.getColumnNumber());
             blockingQueue.enqueue(eofToken);
+            blockingQueue.flush();
         }
 
         /** {@inheritDoc} */
@@ -367,12 +418,21 @@ public class XMLTokenStream implements TokenStream {
         /** {@inheritDoc} */
         @Override
         public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            // nothing inside a skipped OTHER_TAG becomes a token
+            if (skipDepth > 0) {
+                skipDepth++;
+                return;
+            }
             finishCharacters(); // if we were working on a PCDATA, send it!
             // queue a start tag token for the tag
             if ("".equals(localName)) {
                 localName = qName;
             }
-            blockingQueue.enqueue(createXMLToken(uri, localName, attributes));
+            XMLToken token = createXMLToken(uri, localName, attributes);
+            if (skipOtherTagContent && token.getType() == otherTagValue) {
+                skipDepth = 1;
+            }
+            blockingQueue.enqueue(token);
         }
 
         /**
@@ -384,43 +444,48 @@ public class XMLTokenStream implements TokenStream {
          * @throws SAXException If we have trouble accessing the SAX attributes
          */
         private XMLToken createXMLToken(String uri, String localName, Attributes attributes) throws SAXException {
-            Integer id = getTokenValue(uri, localName);
+            int id = tagTable.getTagType(uri, localName);
             String name = "";
             if (uri != null && !"".equals(uri.trim())) {
                 name += uri + ":";
             }
             name += localName;
             int tokenValue;
-            if (id != null) {
-                tokenValue = id.intValue();
+            if (id != XMLTagTable.UNDEFINED) {
+                tokenValue = id;
             }
-            else if (otherTagValue != -1) {
+            else if (otherTagValue != XMLTagTable.UNDEFINED) {
                 tokenValue = otherTagValue;
             }
             else {
                 throw new SAXException("Tag '" + name + "' not defined in parser grammar");
             }
 
-            List<Attribute> attributeList;
-
-            if (attributes == null || attributes.getLength() == 0) {
-                attributeList = Collections.emptyList();
-            } else {
-                attributeList = new ArrayList<Attribute>(attributes.getLength());
-                for (int i = 0; i < attributes.getLength(); i++) {
+            int attributeCount = attributes == null ? 0 : attributes.getLength();
+            String[] attributeData = null;
+            int[] attributeIds = null;
+            if (attributeCount > 0) {
+                attributeData = new String[attributeCount * XMLToken.ATTRIBUTE_FIELDS];
+                if (tagTable.hasAttributeIds()) {
+                    attributeIds = new int[attributeCount];
+                }
+                for (int i = 0, j = 0; i < attributeCount; i++, j += XMLToken.ATTRIBUTE_FIELDS) {
                     String localAttributeName = attributes.getLocalName(i);
                     if ("".equals(localAttributeName)) {
                         localAttributeName = attributes.getQName(i);
                     }
                     String namespace = attributes.getURI(i);
-                    String value = attributes.getValue(i);
-                    String type = attributes.getType(i);
-                    Attribute attribute = new Attribute(namespace,localAttributeName,value,type);
-                    attributeList.add(attribute);
+                    attributeData[j] = namespace;
+                    attributeData[j + 1] = localAttributeName;
+                    attributeData[j + 2] = attributes.getValue(i);
+                    attributeData[j + 3] = attributes.getType(i);
+                    if (attributeIds != null) {
+                        attributeIds[i] = tagTable.getAttributeId(namespace, localAttributeName);
+                    }
                 }
             }
 
-            XMLToken token = new XMLToken(tokenValue, name, attributeList);
+            XMLToken token = new XMLToken(tokenValue, name, attributeData, attributeIds);
             token.setLine(locator.getLineNumber());
             token.setColumn(locator.getColumnNumber());
             return token;
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.javadude.antxr.collections.AST;
+
+/** Writes trees with ASTFactory.writeSnapshot() and checks that reading
+ *  them back gives the same types, text, positions and structure.
+ */
+public class ASTSnapshotTest {
+    private static final byte[] KEY = {1, 2, 3};
+    private static final String[] TEXT = {null, "", "a", "id", "while", "\u00e9\u4e2d", "\ud83d\ude00x", "a b\nc"};
+
+    /** A node that keeps its token's position */
+    private static class PositionAST extends CommonAST {
+        private static final long serialVersionUID = 1L;
+        private int line;
+        private int column;
+
+        @Override
+        public void initialize(Token tok) {
+            super.initialize(tok);
+            line = tok.getLine();
+            column = tok.getColumn();
+        }
+
+        @Override
+        public int getLine() {
+            return line;
+        }
+
+        @Override
+        public int getColumn() {
+            return column;
+        }
+    }
+
+    private ASTFactory factory;
+
+    @Before
+    public void createFactory() {
+        factory = new ASTFactory();
+        factory.setASTNodeFactory(new ASTNodeFactory() {
+            public AST createAST(int type) {
+                return new PositionAST();
+            }
+        });
+    }
+
+    /** Describe a tree and its root's siblings, positions included */
+    private static String describe(AST t) {
+        StringBuilder description = new StringBuilder();
+        for (AST node = t; node != null; node = node.getNextSibling()) {
+            description.append('(').append(node.getType()).append(' ').append(node.getText())
+                       .append(' ').append(node.getLine()).append(':').append(node.getColumn());
+            if (node.getFirstChild() != null) {
+                description.append(' ').append(ASTSnapshotTest.describe(node.getFirstChild()));
+            }
+            description.append(')');
+        }
+        return description.toString();
+    }
+
+    private AST randomTree(Random random, int depth) {
+        Token token = new CommonToken(random.nextInt(5) == 0 ? random.nextInt() : random.nextInt(200),
+                                      ASTSnapshotTest.TEXT[random.nextInt(ASTSnapshotTest.TEXT.length)]);
+        if (random.nextInt(4) != 0) {
+            token.setLine(random.nextInt(100000));
+            token.setColumn(random.nextInt(200));
+        }
+        AST node = factory.create(token);
+        if (depth < 6) {
+            for (int i = random.nextInt(5 - depth / 2); i > 0; i--) {
+                node.addChild(randomTree(random, depth + 1));
+            }
+        }
+        return node;
+    }
+
+    private byte[] write(AST t, byte[] key) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        factory.writeSnapshot(t, key, out);
+        return out.toByteArray();
+    }
+
+    private AST read(byte[] snapshot, byte[] key) throws IOException {
+        return factory.readSnapshot(new ByteArrayInputStream(snapshot), key);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(1);
+        for (int n = 0; n < 200; n++) {
+            AST forest = randomTree(random, 0);
+            AST last = forest;
+            for (int i = random.nextInt(3); i > 0; i--) {
+                last.setNextSibling(randomTree(random, 0));
+                last = last.getNextSibling();
+            }
+            String expected = ASTSnapshotTest.describe(forest);
+            Assert.assertEquals(expected, ASTSnapshotTest.describe(read(write(forest, ASTSnapshotTest.KEY), ASTSnapshotTest.KEY)));
+        }
+    }
+
+    @Test
+    public void siblingsOfTheRoot() throws IOException {
+        AST first = factory.create(1, "a");
+        first.addChild(factory.create(2, "b"));
+        AST second = factory.create(3, "c");
+        first.setNextSibling(second);
+        second.setNextSibling(factory.create(4, null));
+        AST read = read(write(first, null), null);
+        Assert.assertEquals("(1 a 0:0 (2 b 0:0))(3 c 0:0)(4 null 0:0)", ASTSnapshotTest.describe(read));
+        Assert.assertTrue(read.equalsList(first));
+    }
+
+    @Test
+    public void readsMappedFile() throws IOException {
+        AST t = randomTree(new Random(2), 0);
+        File file = File.createTempFile("snapshot", ".ast");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                factory.writeSnapshot(t, ASTSnapshotTest.KEY, out);
+            }
+            finally {
+                out.close();
+            }
+            Assert.assertEquals(ASTSnapshotTest.describe(t), ASTSnapshotTest.describe(factory.readSnapshot(file, ASTSnapshotTest.KEY)));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void wrongKeyGivesNull() throws IOException {
+        byte[] snapshot = write(factory.create(1, "a"), ASTSnapshotTest.KEY);
+        Assert.assertNull(read(snapshot, new byte[] {1, 2, 4}));
+        Assert.assertNull(read(snapshot, null));
+        Assert.assertNotNull(read(write(factory.create(1, "a"), null), new byte[0]));
+    }
+
+    @Test
+    public void truncatedSnapshotsFail() throws IOException {
+        byte[] snapshot = write(randomTree(new Random(3), 0), ASTSnapshotTest.KEY);
+        for (int length = 0; length < snapshot.length; length++) {
+            try {
+                read(Arrays.copyOf(snapshot, length), ASTSnapshotTest.KEY);
+                Assert.fail("read a snapshot cut to " + length + " bytes");
+            }
+            catch (IOException e) {
+                // expected; usually an EOFException, but a count that runs
+                //   past the end is caught before reading
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        read("<?xml version='1.0'?>".getBytes("UTF-8"), null);
+    }
+}
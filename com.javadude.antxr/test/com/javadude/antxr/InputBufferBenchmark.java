@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+/** Times reading a large input through {@link CharBuffer} and
+ *  {@link ByteBuffer}, both on their own (LA(1)/consume() until EOF) and
+ *  under the ANTXR grammar lexer. The input is a grammar file repeated to
+ *  about 8MB, held in memory so the source isn't what's measured.
+ *  <p>
+ *  Usage: <code>InputBufferBenchmark [grammar-file [runs]]</code>; the
+ *  default grammar is src/com/javadude/antxr/antlr.antxr. Each case is run
+ *  several times and the best time is reported.
+ *  <p>
+ *  It only uses constructors that have always existed, so the same class
+ *  can be run against older builds to compare them.
+ */
+public class InputBufferBenchmark {
+    private static final int INPUT_SIZE = 8 * 1024 * 1024;
+
+    private static abstract class Case {
+        private final String name;
+        Case(String name) {
+            this.name = name;
+        }
+        /** Run the case once
+         *  @return a count to print, so the work can't be optimized away
+         */
+        abstract long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String grammarFile = args.length > 0 ? args[0] : "src/com/javadude/antxr/antlr.antxr";
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final String text = InputBufferBenchmark.repeat(InputBufferBenchmark.readFile(new File(grammarFile)), INPUT_SIZE);
+        final byte[] bytes = text.getBytes("ISO-8859-1");
+        System.out.println("input: " + grammarFile + " repeated to " + text.length() + " chars");
+
+        Case[] cases = {
+            new Case("CharBuffer") {
+                @Override
+                long run() throws Exception {
+                    return InputBufferBenchmark.drain(new CharBuffer(new StringReader(text)));
+                }
+            },
+            new Case("ByteBuffer") {
+                @Override
+                long run() throws Exception {
+                    return InputBufferBenchmark.drain(new ByteBuffer(new ByteArrayInputStream(bytes)));
+                }
+            },
+            new Case("ANTXRLexer/Reader") {
+                @Override
+                long run() throws Exception {
+                    return InputBufferBenchmark.lex(new ANTXRLexer(new StringReader(text)));
+                }
+            },
+            new Case("ANTXRLexer/InputStream") {
+                @Override
+                long run() throws Exception {
+                    return InputBufferBenchmark.lex(new ANTXRLexer(new ByteArrayInputStream(bytes)));
+                }
+            },
+        };
+
+        for (Case c : cases) {
+            long best = Long.MAX_VALUE;
+            long count = 0;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                count = c.run();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.println(String.format("%-24s %8.1f ms %8.1f MB/s  (%d)",
+                                             c.name, best / 1e6, text.length() / (best / 1e3), Long.valueOf(count)));
+        }
+    }
+
+    /** Read every character from a buffer
+     *  @return the number of characters
+     */
+    static long drain(InputBuffer buffer) throws CharStreamException {
+        long count = 0;
+        while (buffer.LA(1) != CharScanner.EOF_CHAR) {
+            buffer.consume();
+            count++;
+        }
+        return count;
+    }
+
+    /** Read every token from a lexer
+     *  @return the number of tokens
+     */
+    static long lex(TokenStream lexer) throws TokenStreamException {
+        long count = 0;
+        while (lexer.nextToken().getType() != Token.EOF_TYPE) {
+            count++;
+        }
+        return count;
+    }
+
+    private static String readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] contents = new byte[(int) file.length()];
+            int length = 0;
+            int n;
+            while (length < contents.length && (n = in.read(contents, length, contents.length - length)) != -1) {
+                length += n;
+            }
+            return new String(contents, 0, length, "ISO-8859-1");
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static String repeat(String s, int size) {
+        StringBuilder result = new StringBuilder(size + s.length());
+        while (result.length() < size) {
+            result.append(s).append('\n');
+        }
+        return result.toString();
+    }
+}
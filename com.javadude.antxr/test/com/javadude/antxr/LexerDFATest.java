@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/** Generates the same lexer with lexerEngine=dfa and with the usual
+ *  recursive-descent code, and checks that they produce the same tokens
+ *  for fixed and random input. Where a recursive-descent rule commits to
+ *  a longer match and fails, the DFA returns the longest token it can
+ *  instead, so random input is only compared where the recursive lexer
+ *  succeeds.
+ */
+public class LexerDFATest {
+    private static final String GRAMMAR =
+        "header { package PACKAGE; }\n" +
+        "class CalcLexer extends Lexer;\n" +
+        "options { k=3; charVocabulary='\\3'..'\\377'; testLiterals=false; OPTIONS }\n" +
+        "tokens { \"if\"; \"else\"; \"while\"; \"iffy\"; }\n" +
+        "ID options { testLiterals=true; } : ('a'..'z'|'A'..'Z'|'_') ('a'..'z'|'A'..'Z'|'_'|'0'..'9')* ;\n" +
+        "NUM : ('0'..'9')+ ( '.' ('0'..'9')+ )? ;\n" +
+        "HEX : '#' (DIGIT|'a'..'f')+ ;\n" +
+        "STR : '\"' (~('\"'|'\\\\'|'\\n') | '\\\\' .)* '\"' ;\n" +
+        "WS : (' '|'\\t'|'\\n' {newline();})+ { $setType(Token.SKIP); } ;\n" +
+        "PLUS : '+' ; PLUSPLUS : \"++\" ; PLUSEQ : \"+=\" ;\n" +
+        "LT : '<' ; LE : \"<=\" ; SHL : \"<<\" ; SHLEQ : \"<<=\" ;\n" +
+        "SEMI : ';' ;\n" +
+        "LPAREN : '(' ; RPAREN : ')' ;\n" +
+        "EQ : '=' ; EQEQ : \"==\" ;\n" +
+        "COMMENT : \"/*\" (options {greedy=false;} : . )* \"*/\" { $setType(Token.SKIP); } ;\n" +
+        "SLASH : '/' ;\n" +
+        "protected DIGIT : '0'..'9' ;\n";
+
+    /** the characters random input is made of */
+    private static final String ALPHABET = "abfilesywhIFELSEx_09.#\"\\ \t\n+<=;()/*";
+
+    private static File directory;
+    private static Constructor<?> recursiveLexer;
+    private static Constructor<?> dfaLexer;
+
+    @BeforeClass
+    public static void generateLexers() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        Assume.assumeNotNull(compiler);
+        directory = File.createTempFile("lexerdfa", "");
+        directory.delete();
+        directory.mkdir();
+        List<String> sources = new ArrayList<String>();
+        sources.addAll(LexerDFATest.generate("recursive", ""));
+        sources.addAll(LexerDFATest.generate("dfa", "lexerEngine=dfa;"));
+        List<String> args = new ArrayList<String>();
+        args.add("-nowarn");
+        args.add("-classpath");
+        args.add(System.getProperty("java.class.path"));
+        args.add("-d");
+        args.add(directory.getPath());
+        args.addAll(sources);
+        Assert.assertEquals("javac", 0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+
+        ClassLoader loader = new URLClassLoader(new URL[] {directory.toURI().toURL()}, LexerDFATest.class.getClassLoader());
+        recursiveLexer = loader.loadClass("recursive.CalcLexer").getConstructor(Reader.class);
+        dfaLexer = loader.loadClass("dfa.CalcLexer").getConstructor(Reader.class);
+        loader.loadClass("dfa.CalcLexer").getDeclaredField("_dfaTransitions");
+    }
+
+    @AfterClass
+    public static void deleteLexers() {
+        if (directory != null) {
+            LexerDFATest.delete(directory);
+        }
+    }
+
+    /** Generate the lexer into its own package
+     *  @return the generated sources
+     */
+    private static List<String> generate(String packageName, String options) throws IOException {
+        File packageDirectory = new File(directory, packageName);
+        packageDirectory.mkdir();
+        File grammar = new File(packageDirectory, "calc.antxr");
+        Writer writer = new FileWriter(grammar);
+        try {
+            writer.write(GRAMMAR.replace("PACKAGE", packageName).replace("OPTIONS", options));
+        }
+        finally {
+            writer.close();
+        }
+        Tool tool = new Tool();
+        tool.doEverything(new String[] {"-o", packageDirectory.getPath(), grammar.getPath()});
+        Assert.assertFalse("errors generating the " + packageName + " lexer", tool.hasError());
+        List<String> sources = new ArrayList<String>();
+        for (File file : packageDirectory.listFiles()) {
+            if (file.getName().endsWith(".java")) {
+                sources.add(file.getPath());
+            }
+        }
+        return sources;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                LexerDFATest.delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /** Describe every token a lexer returns for some input, or the error
+     *  that stops it
+     */
+    private static String lex(Constructor<?> lexerConstructor, String input) throws Exception {
+        TokenStream lexer = (TokenStream) lexerConstructor.newInstance(new StringReader(input));
+        StringBuilder tokens = new StringBuilder();
+        try {
+            while (true) {
+                Token token = lexer.nextToken();
+                tokens.append(token.getType()).append('[').append(token.getText()).append(']')
+                      .append(token.getLine()).append(':').append(token.getColumn()).append(' ');
+                if (token.getType() == Token.EOF_TYPE) {
+                    break;
+                }
+            }
+        }
+        catch (TokenStreamRecognitionException e) {
+            tokens.append("error: ").append(e.recog.getMessage());
+        }
+        return tokens.toString();
+    }
+
+    private static void assertSameTokens(String input) throws Exception {
+        Assert.assertEquals("tokens for \"" + input + "\"",
+                            LexerDFATest.lex(recursiveLexer, input), LexerDFATest.lex(dfaLexer, input));
+    }
+
+    @Test
+    public void longestMatch() throws Exception {
+        LexerDFATest.assertSameTokens("a<<=b<<c<=d<e ++x+=y+z == =");
+    }
+
+    @Test
+    public void literals() throws Exception {
+        LexerDFATest.assertSameTokens("if else while iffy iff ifx else2 While");
+    }
+
+    @Test
+    public void numbersAndStrings() throws Exception {
+        LexerDFATest.assertSameTokens("12 3.25 #0af \"a\\\"b\" \"\"");
+    }
+
+    @Test
+    public void commentsAndLines() throws Exception {
+        LexerDFATest.assertSameTokens("a /* x\n y */ b\n\tc / d");
+    }
+
+    @Test
+    public void errors() throws Exception {
+        LexerDFATest.assertSameTokens("a \"unterminated\nb");
+        LexerDFATest.assertSameTokens("x ? y");
+        LexerDFATest.assertSameTokens("#g");
+    }
+
+    @Test
+    public void longestMatchBacksOff() throws Exception {
+        // NUM commits to the fraction once it sees '.', but the DFA backs
+        //   off to "7" and then fails on '.'
+        Assert.assertTrue(LexerDFATest.lex(recursiveLexer, "7.x").startsWith("error: "));
+        String tokens = LexerDFATest.lex(dfaLexer, "7.x");
+        Assert.assertTrue(tokens, tokens.matches("\\d+\\[7\\]1:1 error: .*'\\.'.*"));
+    }
+
+    @Test
+    public void randomInput() throws Exception {
+        Random random = new Random(42);
+        int compared = 0;
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder input = new StringBuilder();
+            int length = random.nextInt(30);
+            for (int i = 0; i < length; i++) {
+                input.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            String expected = LexerDFATest.lex(recursiveLexer, input.toString());
+            if (expected.indexOf("error: ") == -1) {
+                Assert.assertEquals("tokens for \"" + input + "\"", expected, LexerDFATest.lex(dfaLexer, input.toString()));
+                compared++;
+            }
+        }
+        Assert.assertTrue("only " + compared + " inputs lexed without errors", compared > 200);
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Checks MappedInputBuffer's decoding against the JDK's, including
+ *  malformed UTF-8 and files read through a window smaller than the file.
+ */
+public class MappedInputBufferTest {
+    /** the smallest window MappedInputBuffer allows, so tests cross a lot
+     *  of window boundaries */
+    private static final int SMALL_WINDOW = 64 * 1024 + 1;
+    /** bytes that are never valid on their own; 0xEF is left out so random
+     *  input never contains a byte order mark or U+FFFF (EOF_CHAR) */
+    private static final int[] BAD_BYTES = {0x80, 0xa0, 0xbf, 0xc0, 0xc1, 0xc3, 0xe0, 0xed, 0xf0, 0xf4, 0xf5, 0xf8, 0xff};
+
+    private File file;
+    private MappedInputBuffer buffer;
+
+    @After
+    public void cleanUp() throws IOException {
+        if (buffer != null) {
+            buffer.close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private MappedInputBuffer open(byte[] bytes, int encoding, int windowSize) throws IOException {
+        file = File.createTempFile("mapped", ".txt");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        }
+        finally {
+            out.close();
+        }
+        buffer = new MappedInputBuffer(file, encoding, windowSize);
+        return buffer;
+    }
+
+    /** Read every character up to EOF_CHAR */
+    private static String drain(InputBuffer input) throws CharStreamException {
+        StringBuilder text = new StringBuilder();
+        char c;
+        while ((c = input.LA(1)) != CharScanner.EOF_CHAR) {
+            text.append(c);
+            input.consume();
+        }
+        return text.toString();
+    }
+
+    /** UTF-8 made of random code points from every range, with some bad
+     *  bytes mixed in if asked */
+    private static byte[] randomUTF8(Random random, int codePoints, boolean malformed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < codePoints; i++) {
+            if (malformed && random.nextInt(10) == 0) {
+                bytes.write(MappedInputBufferTest.BAD_BYTES[random.nextInt(MappedInputBufferTest.BAD_BYTES.length)]);
+                continue;
+            }
+            int codePoint;
+            switch (random.nextInt(4)) {
+                case 0:
+                    codePoint = random.nextInt(0x80);
+                    break;
+                case 1:
+                    codePoint = 0x80 + random.nextInt(0x800 - 0x80);
+                    break;
+                case 2:
+                    codePoint = 0x800 + random.nextInt(0xd800 - 0x800);
+                    break;
+                default:
+                    codePoint = 0x10000 + random.nextInt(Character.MAX_CODE_POINT - 0x10000);
+                    break;
+            }
+            bytes.write(new String(Character.toChars(codePoint)).getBytes("UTF-8"));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void decodesLikeTheJDK() throws Exception {
+        Random random = new Random(3);
+        for (int n = 0; n < 200; n++) {
+            byte[] bytes = MappedInputBufferTest.randomUTF8(random, random.nextInt(40), n % 2 == 0);
+            Assert.assertEquals(new String(bytes, "UTF-8"),
+                                MappedInputBufferTest.drain(open(bytes, MappedInputBuffer.UTF8, MappedInputBuffer.DEFAULT_WINDOW_SIZE)));
+            cleanUp();
+        }
+    }
+
+    @Test
+    public void rejectsOverlongAndSurrogateForms() throws Exception {
+        byte[] bytes = {(byte) 0xc0, (byte) 0xaf, 'a', (byte) 0xed, (byte) 0xa0, (byte) 0x80, 'b',
+                        (byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80, 'c', (byte) 0xe2, (byte) 0x82};
+        Assert.assertEquals(new String(bytes, "UTF-8"),
+                            MappedInputBufferTest.drain(open(bytes, MappedInputBuffer.UTF8, MappedInputBuffer.DEFAULT_WINDOW_SIZE)));
+    }
+
+    @Test
+    public void skipsByteOrderMark() throws Exception {
+        byte[] bytes = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf, 'a', 'b'};
+        MappedInputBuffer input = open(bytes, MappedInputBuffer.UTF8, MappedInputBuffer.DEFAULT_WINDOW_SIZE);
+        Assert.assertEquals("ab", MappedInputBufferTest.drain(input));
+        input.reset();
+        Assert.assertEquals('a', input.LA(1));
+    }
+
+    @Test
+    public void asciiIsLatin1() throws Exception {
+        byte[] bytes = {'a', (byte) 0xe9, (byte) 0x80, 'z'};
+        Assert.assertEquals(new String(bytes, "ISO-8859-1"),
+                            MappedInputBufferTest.drain(open(bytes, MappedInputBuffer.ASCII, MappedInputBuffer.DEFAULT_WINDOW_SIZE)));
+    }
+
+    @Test
+    public void decodesAcrossWindows() throws Exception {
+        byte[] bytes = MappedInputBufferTest.randomUTF8(new Random(4), 200000, true);
+        Assert.assertTrue(bytes.length > 4 * MappedInputBufferTest.SMALL_WINDOW);
+        Assert.assertEquals(new String(bytes, "UTF-8"),
+                            MappedInputBufferTest.drain(open(bytes, MappedInputBuffer.UTF8, MappedInputBufferTest.SMALL_WINDOW)));
+    }
+
+    /** Marks are positions in the file, so rewinding goes back across
+     *  windows, and the marked text spans them */
+    @Test
+    public void rewindsAcrossWindows() throws Exception {
+        byte[] bytes = MappedInputBufferTest.randomUTF8(new Random(5), 100000, false);
+        String expected = new String(bytes, "UTF-8");
+        MappedInputBuffer input = open(bytes, MappedInputBuffer.UTF8, MappedInputBufferTest.SMALL_WINDOW);
+        for (int i = 0; i < 10; i++) {
+            input.consume();
+        }
+        int outer = input.mark();
+        long start = input.index();
+        for (int i = 0; i < 1000; i++) {
+            input.consume();
+        }
+        int inner = input.mark();
+        String rest = MappedInputBufferTest.drain(input);
+        Assert.assertEquals(expected.substring(10), input.getMarkedChars());
+        Assert.assertEquals(expected.substring(10), input.getText(start, input.index()));
+        input.rewind(inner);
+        Assert.assertEquals(rest, MappedInputBufferTest.drain(input));
+        input.rewind(outer);
+        Assert.assertEquals(expected.substring(10), MappedInputBufferTest.drain(input));
+    }
+
+    @Test
+    public void lazyTextAfterClose() throws Exception {
+        MappedInputBuffer input = open("hello world".getBytes("UTF-8"), MappedInputBuffer.UTF8, MappedInputBuffer.DEFAULT_WINDOW_SIZE);
+        long start = input.index();
+        for (int i = 0; i < 5; i++) {
+            input.consume();
+        }
+        LazyTextToken kept = new LazyTextToken();
+        kept.setText(input, start, input.index());
+        LazyTextToken notKept = new LazyTextToken();
+        notKept.setText(input, start, input.index());
+        Assert.assertEquals("hello", kept.getText());
+        input.close();
+        buffer = null;
+        Assert.assertEquals("hello", kept.getText());
+        try {
+            notKept.getText();
+            Assert.fail("text created after close");
+        }
+        catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoTableTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void limitMustBePositive() {
+        new MemoTable(0);
+    }
+
+    @Test
+    public void remembersStopsAndFailures() {
+        MemoTable table = new MemoTable();
+        Assert.assertEquals(MemoTable.UNKNOWN, table.get(5));
+        table.put(5, 9, 0);
+        table.put(7, MemoTable.FAILED, 0);
+        Assert.assertEquals(9, table.get(5));
+        Assert.assertEquals(MemoTable.FAILED, table.get(7));
+        table.put(5, 12, 0);
+        Assert.assertEquals(12, table.get(5));
+        Assert.assertEquals(2, table.size());
+        table.clear();
+        Assert.assertEquals(MemoTable.UNKNOWN, table.get(5));
+        Assert.assertEquals(0, table.size());
+    }
+
+    @Test
+    public void growsUpToTheLimit() {
+        MemoTable table = new MemoTable();
+        for (long i = 0; i < 10000; i++) {
+            table.put(i * 3 + (1L << 33), i, 0);
+        }
+        Assert.assertEquals(10000, table.size());
+        for (long i = 0; i < 10000; i++) {
+            Assert.assertEquals(i, table.get(i * 3 + (1L << 33)));
+        }
+    }
+
+    @Test
+    public void evictsWhatCantBeRewoundTo() {
+        MemoTable table = new MemoTable(100);
+        for (int i = 0; i < 100; i++) {
+            table.put(i, i + 1, 0);
+        }
+        table.put(100, 101, 90);
+        Assert.assertEquals(11, table.size());
+        Assert.assertEquals(MemoTable.UNKNOWN, table.get(89));
+        Assert.assertEquals(91, table.get(90));
+        Assert.assertEquals(101, table.get(100));
+    }
+
+    @Test
+    public void clearsWhenEvictingWouldntFreeEnough() {
+        MemoTable table = new MemoTable(100);
+        for (int i = 0; i < 100; i++) {
+            table.put(i, i + 1, 0);
+        }
+        table.put(100, 101, 10);
+        Assert.assertEquals(1, table.size());
+        Assert.assertEquals(MemoTable.UNKNOWN, table.get(50));
+        Assert.assertEquals(101, table.get(100));
+    }
+
+    /** Random puts and gets, with the first index creeping forward as a
+     *  parser's would, checked against a HashMap that evicts by the rules
+     *  in the class comment */
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(9);
+        for (int run = 0; run < 20; run++) {
+            int limit = 1 + random.nextInt(200);
+            MemoTable table = new MemoTable(limit);
+            Map<Long, Long> expected = new HashMap<Long, Long>();
+            long firstIndex = 0;
+            for (int op = 0; op < 5000; op++) {
+                long start = firstIndex + random.nextInt(300);
+                if (random.nextInt(3) == 0) {
+                    Long stop = expected.get(Long.valueOf(start));
+                    Assert.assertEquals(stop == null ? MemoTable.UNKNOWN : stop.longValue(), table.get(start));
+                    continue;
+                }
+                long stop = random.nextInt(5) == 0 ? MemoTable.FAILED : start + random.nextInt(50);
+                if (expected.size() >= limit) {
+                    int used = 0;
+                    for (Long s : expected.keySet()) {
+                        if (s.longValue() >= firstIndex) {
+                            used++;
+                        }
+                    }
+                    if (used > limit - limit / 4) {
+                        expected.clear();
+                    }
+                    else {
+                        for (Iterator<Long> i = expected.keySet().iterator(); i.hasNext();) {
+                            if (i.next().longValue() < firstIndex) {
+                                i.remove();
+                            }
+                        }
+                    }
+                }
+                table.put(start, stop, firstIndex);
+                expected.put(Long.valueOf(start), Long.valueOf(stop));
+                Assert.assertEquals(expected.size(), table.size());
+                firstIndex += random.nextInt(4);
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Checks that a TokenStore passes the parser the same tokens, with the
+ *  same hidden tokens around them, as TokenStreamHiddenTokenFilter.
+ */
+public class TokenStoreTest {
+    /** the token types random input is made of; EOF is never hidden */
+    private static final int FIRST_TYPE = 4;
+    private static final int TYPES = 6;
+
+    /** A stream that returns the tokens it's given, then EOF */
+    private static TokenStream stream(List<? extends Token> tokens) {
+        final Iterator<? extends Token> i = tokens.iterator();
+        return new TokenStream() {
+            public Token nextToken() {
+                if (i.hasNext()) {
+                    return i.next();
+                }
+                return new CommonHiddenStreamToken(Token.EOF_TYPE, null);
+            }
+        };
+    }
+
+    /** Random tokens, each with its own text so they can be told apart */
+    private static List<CommonHiddenStreamToken> randomTokens(Random random, int count) {
+        List<CommonHiddenStreamToken> tokens = new ArrayList<CommonHiddenStreamToken>();
+        for (int i = 0; i < count; i++) {
+            CommonHiddenStreamToken token = new CommonHiddenStreamToken(TokenStoreTest.FIRST_TYPE + random.nextInt(TokenStoreTest.TYPES), "t" + i);
+            token.setLine(1 + i / 10);
+            token.setColumn(1 + i % 10);
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    private static String describe(Token token) {
+        if (token == null) {
+            return "none";
+        }
+        return token.getType() + "[" + token.getText() + "]" + token.getLine() + ":" + token.getColumn();
+    }
+
+    /** Describe the hidden tokens from a token onwards, following
+     *  getHiddenAfter() (or getHiddenBefore(), going backwards) */
+    private static String describeHidden(CommonHiddenStreamToken token, boolean after) {
+        StringBuilder description = new StringBuilder();
+        for (CommonHiddenStreamToken t = token; t != null; t = after ? t.getHiddenAfter() : t.getHiddenBefore()) {
+            description.append(TokenStoreTest.describe(t)).append(' ');
+        }
+        return description.toString();
+    }
+
+    private static String describeHidden(TokenStore store, int token, boolean after) {
+        StringBuilder description = new StringBuilder();
+        for (int t = token; t != TokenStore.NIL; t = after ? store.getHiddenAfter(t) : store.getHiddenBefore(t)) {
+            description.append(TokenStoreTest.describe(store.getToken(t))).append(' ');
+        }
+        return description.toString();
+    }
+
+    @Test
+    public void matchesHiddenTokenFilter() throws TokenStreamException {
+        Random random = new Random(17);
+        for (int run = 0; run < 200; run++) {
+            long seed = random.nextLong();
+            int count = random.nextInt(40);
+            TokenStreamHiddenTokenFilter filter = new TokenStreamHiddenTokenFilter(TokenStoreTest.stream(TokenStoreTest.randomTokens(new Random(seed), count)));
+            TokenStore store = new TokenStore(TokenStoreTest.stream(TokenStoreTest.randomTokens(new Random(seed), count)));
+            for (int type = TokenStoreTest.FIRST_TYPE; type < TokenStoreTest.FIRST_TYPE + TokenStoreTest.TYPES; type++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        filter.hide(type);
+                        store.hide(type);
+                        break;
+                    case 1:
+                        filter.discard(type);
+                        store.discard(type);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            TokenStream view = store.getTokenStream();
+            while (true) {
+                CommonHiddenStreamToken expected = (CommonHiddenStreamToken) filter.nextToken();
+                StoredToken actual = (StoredToken) view.nextToken();
+                Assert.assertEquals(TokenStoreTest.describe(expected), TokenStoreTest.describe(actual));
+                Assert.assertEquals(TokenStore.DEFAULT_CHANNEL, store.getChannel(actual.getIndex()));
+                Assert.assertEquals(TokenStoreTest.describeHidden(expected.getHiddenBefore(), false),
+                                    TokenStoreTest.describeHidden(store, store.getHiddenBefore(actual.getIndex()), false));
+                Assert.assertEquals(TokenStoreTest.describeHidden(expected.getHiddenAfter(), true),
+                                    TokenStoreTest.describeHidden(store, store.getHiddenAfter(actual.getIndex()), true));
+                if (expected.getType() == Token.EOF_TYPE) {
+                    break;
+                }
+            }
+            Assert.assertEquals(TokenStoreTest.describeHidden(filter.getInitialHiddenToken(), true),
+                                TokenStoreTest.describeHidden(store, store.getInitialHiddenToken(), true));
+        }
+    }
+
+    @Test
+    public void discardedTokensAreNotStored() throws TokenStreamException {
+        List<CommonHiddenStreamToken> tokens = new ArrayList<CommonHiddenStreamToken>();
+        tokens.add(new CommonHiddenStreamToken(4, "a"));
+        tokens.add(new CommonHiddenStreamToken(5, " "));
+        tokens.add(new CommonHiddenStreamToken(6, "/*x*/"));
+        tokens.add(new CommonHiddenStreamToken(4, "b"));
+        TokenStore store = new TokenStore(TokenStoreTest.stream(tokens));
+        store.hide(5);
+        store.discard(6);
+        store.fetchAll();
+        Assert.assertFalse(store.fetch());
+        Assert.assertEquals(4, store.size());
+        Assert.assertEquals(" ", store.getText(1));
+        Assert.assertTrue(store.isHidden(1));
+        Assert.assertEquals("b", store.getText(2));
+        Assert.assertEquals(Token.EOF_TYPE, store.getType(3));
+        Assert.assertEquals(1, store.getHiddenAfter(0));
+        Assert.assertEquals(1, store.getHiddenBefore(2));
+        Assert.assertEquals(TokenStore.NIL, store.getHiddenBefore(0));
+        Assert.assertEquals(TokenStore.NIL, store.getInitialHiddenToken());
+        Assert.assertNull(store.getToken(TokenStore.NIL));
+    }
+
+    /** The view keeps returning EOF, and each view starts again */
+    @Test
+    public void viewsReplay() throws TokenStreamException {
+        List<CommonHiddenStreamToken> tokens = TokenStoreTest.randomTokens(new Random(18), 20);
+        TokenStore store = new TokenStore(TokenStoreTest.stream(tokens));
+        store.hide(TokenStoreTest.FIRST_TYPE);
+        List<String> first = new ArrayList<String>();
+        TokenStream view = store.getTokenStream();
+        Token token;
+        do {
+            token = view.nextToken();
+            first.add(TokenStoreTest.describe(token));
+        } while (token.getType() != Token.EOF_TYPE);
+        Assert.assertEquals(Token.EOF_TYPE, view.nextToken().getType());
+        Assert.assertEquals(Token.EOF_TYPE, view.nextToken().getType());
+
+        view = store.getTokenStream();
+        for (String expected : first) {
+            Assert.assertEquals(expected, TokenStoreTest.describe(view.nextToken()));
+        }
+    }
+
+    /** Setting a token's fields through the store or a view of it changes
+     *  every view of the token */
+    @Test
+    public void setters() throws TokenStreamException {
+        List<CommonHiddenStreamToken> tokens = TokenStoreTest.randomTokens(new Random(19), 3);
+        TokenStore store = new TokenStore(TokenStoreTest.stream(tokens));
+        store.fetchAll();
+        Token view = store.getToken(1);
+        store.setType(1, 42);
+        store.setText(1, "changed");
+        store.setLine(1, 7);
+        store.setColumn(1, 9);
+        Assert.assertEquals("42[changed]7:9", TokenStoreTest.describe(view));
+        view.setType(43);
+        view.setText(null);
+        view.setLine(8);
+        view.setColumn(10);
+        Assert.assertEquals("43[null]8:10", TokenStoreTest.describe(store.getToken(1)));
+        Assert.assertEquals(store.getToken(1), view);
+        Assert.assertEquals(store.getToken(1).hashCode(), view.hashCode());
+        Assert.assertFalse(store.getToken(0).equals(view));
+        Assert.assertEquals("t0", store.getText(0));
+    }
+
+    @Test
+    public void textIsPooled() throws TokenStreamException {
+        List<CommonHiddenStreamToken> tokens = new ArrayList<CommonHiddenStreamToken>();
+        for (int i = 0; i < 3000; i++) {
+            tokens.add(new CommonHiddenStreamToken(4, new String(new char[] {(char) ('a' + i % 3)})));
+        }
+        TokenStore store = new TokenStore(TokenStoreTest.stream(tokens));
+        store.fetchAll();
+        Assert.assertEquals(3001, store.size());
+        Assert.assertEquals(3, store.getTextPoolSize());
+        for (int i = 0; i < 3000; i++) {
+            Assert.assertEquals(tokens.get(i).getText(), store.getText(i));
+            Assert.assertEquals(-1, store.getStartPosition(i));
+        }
+        Assert.assertNull(store.getText(3000));
+    }
+
+    /** Lazy tokens leave their text in the input buffer */
+    @Test
+    public void lazyTextIsReadFromTheInput() throws TokenStreamException {
+        final String input = "hello lazy world";
+        InputBuffer buffer = new InputBuffer() {
+            @Override
+            public void fill(int amount) {
+                // not read
+            }
+
+            @Override
+            public String getText(long start, long end) {
+                return input.substring((int) start, (int) end);
+            }
+        };
+        List<Token> tokens = new ArrayList<Token>();
+        int start = 0;
+        for (String word : input.split(" ")) {
+            LazyTextToken token = new LazyTextToken();
+            token.setType(4);
+            token.setText(buffer, start, start + word.length());
+            tokens.add(token);
+            start += word.length() + 1;
+        }
+        TokenStore store = new TokenStore(TokenStoreTest.stream(tokens));
+        store.fetchAll();
+        Assert.assertEquals(0, store.getTextPoolSize());
+        Assert.assertEquals("lazy", store.getText(1));
+        Assert.assertEquals(6, store.getStartPosition(1));
+        Assert.assertEquals(10, store.getEndPosition(1));
+        store.setText(1, "eager");
+        Assert.assertEquals("eager", store.getText(1));
+        Assert.assertEquals("world", store.getText(2));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void unreadTokens() throws TokenStreamException {
+        TokenStore store = new TokenStore(TokenStoreTest.stream(new ArrayList<Token>()));
+        store.fetch();
+        store.getToken(1);
+    }
+}
@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.collections.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.javadude.antxr.ASTFactory;
+import com.javadude.antxr.collections.AST;
+import com.javadude.antxr.collections.ASTEnumeration;
+
+/** Checks that TreeIndex finds the same nodes, in the same order, as the
+ *  tree walks in BaseAST.
+ */
+public class TreeIndexTest {
+    /** few types and texts, so random trees repeat themselves a lot */
+    private static final String[] TEXT = {null, "a", "b"};
+
+    private ASTFactory factory = new ASTFactory();
+
+    private AST randomTree(Random random, int depth) {
+        AST node = factory.create(1 + random.nextInt(3), TreeIndexTest.TEXT[random.nextInt(TreeIndexTest.TEXT.length)]);
+        if (depth < 5) {
+            for (int i = random.nextInt(4 - depth / 2); i > 0; i--) {
+                node.addChild(randomTree(random, depth + 1));
+            }
+        }
+        return node;
+    }
+
+    /** A tree with its root's siblings */
+    private AST randomForest(Random random) {
+        AST forest = randomTree(random, 0);
+        AST last = forest;
+        for (int i = random.nextInt(3); i > 0; i--) {
+            last.setNextSibling(randomTree(random, 0));
+            last = last.getNextSibling();
+        }
+        return forest;
+    }
+
+    /** The nodes of a tree and its root's siblings, in preorder */
+    private static List<AST> preorder(AST t) {
+        List<AST> nodes = new ArrayList<AST>();
+        for (AST node = t; node != null; node = node.getNextSibling()) {
+            nodes.add(node);
+            nodes.addAll(TreeIndexTest.preorder(node.getFirstChild()));
+        }
+        return nodes;
+    }
+
+    /** Copy a subtree, keeping only the first few children of each node, so
+     *  the copy is a partial match of the original */
+    private AST prune(Random random, AST t) {
+        AST copy = factory.create(t.getType(), t.getText());
+        int keep = random.nextInt(3);
+        for (AST child = t.getFirstChild(); child != null && keep > 0; child = child.getNextSibling(), keep--) {
+            copy.addChild(prune(random, child));
+        }
+        return copy;
+    }
+
+    private static List<AST> toList(ASTEnumeration e) {
+        List<AST> nodes = new ArrayList<AST>();
+        while (e.hasMoreNodes()) {
+            nodes.add(e.nextNode());
+        }
+        return nodes;
+    }
+
+    /** Compare node lists by identity; equal trees in different places are
+     *  different matches */
+    private static void assertSameNodes(List<AST> expected, List<AST> actual) {
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertSame(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void matchesBaseAST() {
+        Random random = new Random(11);
+        int matches = 0;
+        for (int n = 0; n < 200; n++) {
+            AST forest = randomForest(random);
+            List<AST> nodes = TreeIndexTest.preorder(forest);
+            TreeIndex index = new TreeIndex(forest);
+            for (int t = 0; t < 10; t++) {
+                AST subtree = nodes.get(random.nextInt(nodes.size()));
+                AST target = random.nextBoolean() ? factory.dupTree(subtree) : randomTree(random, 3);
+                List<AST> expected = TreeIndexTest.toList(forest.findAll(target));
+                TreeIndexTest.assertSameNodes(expected, TreeIndexTest.toList(index.findAll(target)));
+                matches += expected.size();
+
+                AST sub = prune(random, subtree);
+                expected = TreeIndexTest.toList(forest.findAllPartial(sub));
+                Assert.assertTrue(expected.contains(subtree));
+                TreeIndexTest.assertSameNodes(expected, TreeIndexTest.toList(index.findAllPartial(sub)));
+            }
+        }
+        Assert.assertTrue("only " + matches + " exact matches", matches > 1000);
+    }
+
+    @Test
+    public void nullTargets() {
+        TreeIndex index = new TreeIndex(factory.create(1, "a"));
+        Assert.assertNull(index.findAll(null));
+        Assert.assertNull(index.findAllPartial(null));
+    }
+
+    @Test
+    public void nodesByType() {
+        Random random = new Random(12);
+        AST forest = randomForest(random);
+        List<AST> nodes = TreeIndexTest.preorder(forest);
+        TreeIndex index = new TreeIndex(forest);
+        Assert.assertEquals(nodes.size(), index.size());
+        for (int type = 0; type <= 4; type++) {
+            List<AST> expected = new ArrayList<AST>();
+            for (AST node : nodes) {
+                if (node.getType() == type) {
+                    expected.add(node);
+                }
+            }
+            TreeIndexTest.assertSameNodes(expected, index.getNodes(type));
+        }
+    }
+
+    @Test
+    public void hashIgnoresRootSiblings() {
+        Random random = new Random(13);
+        for (int n = 0; n < 200; n++) {
+            AST t = randomTree(random, 0);
+            AST copy = factory.dupTree(t);
+            copy.setNextSibling(randomTree(random, 0));
+            Assert.assertTrue(t.equalsTree(copy));
+            Assert.assertEquals(TreeIndex.hashTree(t), TreeIndex.hashTree(copy));
+        }
+        Assert.assertEquals(0, TreeIndex.hashTree(null));
+    }
+
+    @Test
+    public void hashSeesShapeAndOrder() {
+        // a(b c) against a(b(c)) and a(c b)
+        AST flat = factory.create(1, "a");
+        flat.addChild(factory.create(2, "b"));
+        flat.addChild(factory.create(3, "c"));
+        AST nested = factory.create(1, "a");
+        AST b = factory.create(2, "b");
+        b.addChild(factory.create(3, "c"));
+        nested.addChild(b);
+        AST swapped = factory.create(1, "a");
+        swapped.addChild(factory.create(3, "c"));
+        swapped.addChild(factory.create(2, "b"));
+        Assert.assertTrue(TreeIndex.hashTree(flat) != TreeIndex.hashTree(nested));
+        Assert.assertTrue(TreeIndex.hashTree(flat) != TreeIndex.hashTree(swapped));
+    }
+
+    /** Deep trees are walked without recursion */
+    @Test
+    public void deepTree() {
+        AST root = factory.create(1, "a");
+        AST node = root;
+        for (int i = 0; i < 100000; i++) {
+            AST child = factory.create(1 + i % 2, "a");
+            node.setFirstChild(child);
+            node = child;
+        }
+        TreeIndex index = new TreeIndex(root);
+        Assert.assertEquals(100001, index.size());
+        Assert.assertEquals(50001, index.getNodes(1).size());
+        List<AST> found = TreeIndexTest.toList(index.findAll(node));
+        Assert.assertEquals(1, found.size());
+        Assert.assertSame(node, found.get(0));
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import com.javadude.antxr.Token;
+import com.javadude.antxr.TokenStream;
+import com.javadude.antxr.TokenStreamException;
+
+/** Checks the native scanner against the SAX-based XMLTokenStream: both
+ *  must accept the same documents and return the same tokens, and reject
+ *  the same documents.
+ */
+public class NativeXMLTokenStreamTest {
+    private static final int NOTE = 4;
+    private static final int END_TAG = 5;
+    private static final int TO = 6;
+    private static final int BODY = 7;
+    private static final int PCDATA = 8;
+    private static final int OTHER_TAG = 9;
+    private static final XMLTagTable TAG_TABLE =
+        new XMLTagTable(new String[] {"", "", ""}, new String[] {"note", "to", "body"},
+                        new int[] {NativeXMLTokenStreamTest.NOTE, NativeXMLTokenStreamTest.TO, NativeXMLTokenStreamTest.BODY},
+                        10, NativeXMLTokenStreamTest.PCDATA, NativeXMLTokenStreamTest.END_TAG, NativeXMLTokenStreamTest.OTHER_TAG);
+
+    /** documents that are well-formed or not in a number of ways; the two
+     *  streams must agree on each */
+    private static final String[] DOCUMENTS = {
+        "<note/>",
+        "<1rec/>",
+        "<note><1rec/></note>",
+        "<note 1a='x'/>",
+        "<note a-b='x' _c='y' d.e='z'/>",
+        "<-note/>",
+        "<.note/>",
+        "<note>&#0;</note>",
+        "<note>&#1;</note>",
+        "<note>&#9;&#10;&#13;</note>",
+        "<note>&#xD800;</note>",
+        "<note>&#xFFFE;</note>",
+        "<note>&#x10000;</note>",
+        "<note>a\u0001b</note>",
+        "<note>a\u0000b</note>",
+        "<note>a\uffffb</note>",
+        "<note>a\ud800b</note>",
+        "<note>a\udc00b</note>",
+        "<note>a\ud800\udc00b</note>",
+        "<note a='\u0001'/>",
+        "<note><![CDATA[\u0001]]></note>",
+        "<note><!-- \u0001 --></note>",
+        "<note><?pi \u0001?></note>",
+        "<note><!-- a -- b --></note>",
+        "<note><!-- a ---></note>",
+        "<note><!-- a - b --></note>",
+        "<note><!----></note>",
+        "<note><!---></note>",
+        "<?xml version='1.0'?><note/>",
+        " <?xml version='1.0'?><note/>",
+        "\n<?xml version='1.0'?><note/>",
+        "<?xml version='1.0'?><?xml version='1.0'?><note/>",
+        "<note/><?xml version='1.0'?>",
+        "<note><?xml version='1.0'?></note>",
+        "<?XML version='1.0'?><note/>",
+        "<note><?xmlfoo bar?></note>",
+        "<note><?Xml bar?></note>",
+        "<note><?pi?></note>",
+        "<note><?pi data?></note>",
+        "<note><?pi?data?></note>",
+        "<note><?a:b data?></note>",
+        "<note><? pi?></note>",
+        "<?xml version='1.0' encoding='UTF-8' standalone='yes'?><note/>",
+        "<?xml version=\"1.0\" encoding=\"utf-8\"?><note/>",
+        "<?xml version='1.0' standalone='maybe'?><note/>",
+        "<?xml version='1.0' foo='bar'?><note/>",
+        "<?xml encoding='UTF-8'?><note/>",
+        "<?xml version='1.0'encoding='UTF-8'?><note/>",
+        "<?xml version='2.0'?><note/>",
+        "<?xml version='1.1'?><note/>",
+        "<?xml version = '1.0' ?><note/>",
+        "<?xml version='1.0' standalone='no' encoding='UTF-8'?><note/>",
+        "<note xmlns:p=''/>",
+        "<note xmlns=''/>",
+        "<note xmlns:xmlns='u'/>",
+        "<note xmlns:xml='u'/>",
+        "<note xmlns:xml='http://www.w3.org/XML/1998/namespace'/>",
+        "<note xmlns:p='http://www.w3.org/XML/1998/namespace'/>",
+        "<note xmlns='http://www.w3.org/XML/1998/namespace'/>",
+        "<note xmlns:p='http://www.w3.org/2000/xmlns/'/>",
+        "<note xmlns='http://www.w3.org/2000/xmlns/'/>",
+        "<a:b:c xmlns:a='u'/>",
+        "<note: xmlns:note='u'/>",
+        "<note a:='x' xmlns:a='u'/>",
+        "<note xml:lang='en'/>",
+        "<xmlns:note/>",
+        "<note>\u00e9\u4e2d\ud83d\ude00</note>",
+        "<\u00e9/>",
+        "<note \u00e9='1'/>",
+        "<note x\u00b7y='1' a\u0300='2'/>",
+        "<note \u00b7a='1'/>",
+        "<note>]</note>",
+        "<note>a&amp;b&lt;&gt;&quot;&apos;</note>",
+        "<note>&#x41;&#65;</note>",
+        "<note>&#X41;</note>",
+        "<note><![CDATA[a]]b]]></note>",
+    };
+
+    /** Describe the tokens a stream returns, or the fact that it failed */
+    private static String tokens(TokenStream stream) {
+        StringBuilder tokens = new StringBuilder();
+        try {
+            Token token;
+            while ((token = stream.nextToken()).getType() != Token.EOF_TYPE) {
+                tokens.append(token.getType()).append('[').append(token.getText());
+                if (token instanceof XMLToken) {
+                    for (Iterator<Attribute> i = ((XMLToken) token).getAttributes(); i.hasNext();) {
+                        Attribute attribute = i.next();
+                        tokens.append(' ').append(attribute.getNamespace()).append(':').append(attribute.getLocalName())
+                              .append("='").append(attribute.getValue()).append('\'');
+                    }
+                }
+                tokens.append("] ");
+            }
+            return tokens.toString();
+        }
+        catch (TokenStreamException e) {
+            return "error";
+        }
+    }
+
+    private static String nativeTokens(String xml, boolean skipOtherTagContent) {
+        return NativeXMLTokenStreamTest.tokens(new NativeXMLTokenStream(NativeXMLTokenStreamTest.TAG_TABLE, new StringReader(xml), skipOtherTagContent));
+    }
+
+    private static String saxTokens(String xml, boolean skipOtherTagContent) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return NativeXMLTokenStreamTest.tokens(new XMLTokenStream(NativeXMLTokenStreamTest.TAG_TABLE, new InputSource(new StringReader(xml)),
+                                                                  factory.newSAXParser(), null, null, -1, -1,
+                                                                  RingBufferQueue.DEFAULT_BATCH_SIZE, skipOtherTagContent));
+    }
+
+    private static void assertSameAsSax(String xml, boolean skipOtherTagContent) throws Exception {
+        Assert.assertEquals(xml, NativeXMLTokenStreamTest.saxTokens(xml, skipOtherTagContent),
+                            NativeXMLTokenStreamTest.nativeTokens(xml, skipOtherTagContent));
+    }
+
+    @Test
+    public void agreesWithSax() throws Exception {
+        for (String xml : NativeXMLTokenStreamTest.DOCUMENTS) {
+            NativeXMLTokenStreamTest.assertSameAsSax(xml, false);
+        }
+    }
+
+    /** The namespace and XML specs forbid these, though some SAX parsers
+     *  let them through */
+    @Test
+    public void rejectsWhatTheSpecsForbid() {
+        String[] documents = {
+            "<:note/>",
+            "<note :a='x'/>",
+            "<?xml version='1.0' encoding='-x'?><note/>",
+        };
+        for (String xml : documents) {
+            Assert.assertEquals(xml, "error", NativeXMLTokenStreamTest.nativeTokens(xml, false));
+        }
+    }
+
+    @Test
+    public void reportsWhereTheErrorIs() {
+        try {
+            TokenStream stream = new NativeXMLTokenStream(NativeXMLTokenStreamTest.TAG_TABLE, new StringReader("<note>\n  <to>a\u0001</to></note>"));
+            while (stream.nextToken().getType() != Token.EOF_TYPE) {
+                // keep going
+            }
+            Assert.fail("no error");
+        }
+        catch (TokenStreamException e) {
+            Assert.assertEquals("Character U+0001 is not allowed in XML (line 2 col 8)", e.getMessage());
+        }
+    }
+
+    /** Random documents, many with a character inserted or removed, must get
+     *  the same tokens or the same verdict from both streams, with and
+     *  without skipOtherTagContent */
+    @Test
+    public void randomDocumentsAgreeWithSax() throws Exception {
+        Random random = new Random(11);
+        for (int n = 0; n < 1000; n++) {
+            String xml = NativeXMLTokenStreamTest.randomDocument(random);
+            if (random.nextBoolean()) {
+                // leave the XML declaration alone; SAX parsers don't all
+                //   check encoding names
+                int start = xml.startsWith("<?xml ") ? xml.indexOf("?>") + 2 : 0;
+                int i = start + random.nextInt(xml.length() - start);
+                if (random.nextBoolean()) {
+                    xml = xml.substring(0, i) + xml.substring(i + 1);
+                } else {
+                    xml = xml.substring(0, i) + NativeXMLTokenStreamTest.MUTATIONS.charAt(random.nextInt(NativeXMLTokenStreamTest.MUTATIONS.length())) + xml.substring(i);
+                }
+            }
+            if (xml.matches("(?s).*[<\\s]:.*")) {
+                // an empty prefix, which SAX may let through
+                Assert.assertEquals(xml, "error", NativeXMLTokenStreamTest.nativeTokens(xml, false));
+                continue;
+            }
+            NativeXMLTokenStreamTest.assertSameAsSax(xml, false);
+            NativeXMLTokenStreamTest.assertSameAsSax(xml, true);
+        }
+    }
+
+    /** A file is decoded straight from its mapped bytes; it must give the
+     *  same tokens as the same text read through a Reader */
+    @Test
+    public void fileMatchesReader() throws Exception {
+        Random random = new Random(5);
+        for (int n = 0; n < 50; n++) {
+            String xml = NativeXMLTokenStreamTest.randomDocument(random);
+            File file = File.createTempFile("native", ".xml");
+            try {
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(xml.getBytes("UTF-8"));
+                }
+                finally {
+                    out.close();
+                }
+                NativeXMLTokenStream stream = new NativeXMLTokenStream(NativeXMLTokenStreamTest.TAG_TABLE, file);
+                Assert.assertEquals(xml, NativeXMLTokenStreamTest.nativeTokens(xml, false), NativeXMLTokenStreamTest.tokens(stream));
+            }
+            finally {
+                file.delete();
+            }
+        }
+    }
+
+    /** the characters inserted into random documents */
+    private static final String MUTATIONS = "<>&;'\"/=-?!x]\u0001";
+    private static final String[] TAGS = {"note", "to", "body", "other", "x:note", "y"};
+    private static final String[] ATTRIBUTES = {"id", "name", "x:id", "a-b", "c.d"};
+    private static final String[] TEXT = {"a", "bc", " ", "\n", "\r\n", "\t", "&amp;", "&lt;", "&#x41;", "&#233;",
+                                          "\u00e9", "\u4e2d", "\ud83d\ude00", "&quot;", "]", "<![CDATA[<&]]>",
+                                          "<!-- c -->", "<?pi data?>", "'", "\""};
+
+    private static String randomDocument(Random random) {
+        StringBuilder xml = new StringBuilder();
+        if (random.nextInt(4) == 0) {
+            xml.append("<?xml version='1.0' encoding='UTF-8'?>");
+        }
+        if (random.nextBoolean()) {
+            xml.append("<!-- prolog -->\n");
+        }
+        NativeXMLTokenStreamTest.randomElement(random, xml, 0, true);
+        if (random.nextBoolean()) {
+            xml.append("\n<?pi after?>");
+        }
+        return xml.toString();
+    }
+
+    private static void randomElement(Random random, StringBuilder xml, int depth, boolean root) {
+        String tag = NativeXMLTokenStreamTest.TAGS[random.nextInt(NativeXMLTokenStreamTest.TAGS.length)];
+        xml.append('<').append(tag);
+        if (root) {
+            xml.append(" xmlns:x='urn:x'");
+        }
+        int attributes = random.nextInt(3);
+        for (int i = 0; i < attributes; i++) {
+            // the same name twice is an error, which both streams must catch
+            String name = NativeXMLTokenStreamTest.ATTRIBUTES[random.nextInt(NativeXMLTokenStreamTest.ATTRIBUTES.length)];
+            char quote = random.nextBoolean() ? '"' : '\'';
+            xml.append(' ').append(name).append('=').append(quote);
+            for (int j = random.nextInt(4); j > 0; j--) {
+                String text = NativeXMLTokenStreamTest.TEXT[random.nextInt(11)];
+                xml.append(text);
+            }
+            xml.append(quote);
+        }
+        if (depth > 3 || random.nextInt(4) == 0) {
+            xml.append("/>");
+            return;
+        }
+        xml.append('>');
+        for (int i = random.nextInt(5); i > 0; i--) {
+            if (random.nextInt(3) == 0) {
+                NativeXMLTokenStreamTest.randomElement(random, xml, depth + 1, false);
+            } else {
+                xml.append(NativeXMLTokenStreamTest.TEXT[random.nextInt(NativeXMLTokenStreamTest.TEXT.length)]);
+            }
+        }
+        xml.append("</").append(tag).append('>');
+    }
+}
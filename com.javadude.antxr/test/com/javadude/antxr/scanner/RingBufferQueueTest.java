@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2008 Scott Stanchfield.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *   Based on the ANTLR parser generator by Terence Parr, http://antlr.org
+ *   Ric Klaren <klaren@cs.utwente.nl>
+ *   Scott Stanchfield - Modifications for XML Parsing
+ *******************************************************************************/
+package com.javadude.antxr.scanner;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RingBufferQueueTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void batchSizeMustBePositive() {
+        new RingBufferQueue<Integer>(-1, -1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxMustBeAboveResume() {
+        new RingBufferQueue<Integer>(10, 10, 4);
+    }
+
+    @Test
+    public void growsPastInitialCapacity() throws InterruptedException {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>();
+        for (int i = 0; i < 5000; i++) {
+            queue.enqueue(Integer.valueOf(i));
+        }
+        queue.flush();
+        for (int i = 0; i < 5000; i++) {
+            Assert.assertEquals(Integer.valueOf(i), queue.dequeue());
+        }
+    }
+
+    /** Random runs of enqueue, flush and dequeue on one thread, checked
+     *  against an ArrayDeque. Only flushed elements are dequeued, since the
+     *  one thread can't wait for itself.
+     */
+    @Test
+    public void matchesArrayDeque() throws InterruptedException {
+        Random random = new Random(7);
+        for (int run = 0; run < 50; run++) {
+            RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(-1, -1, 1 + random.nextInt(100));
+            ArrayDeque<Integer> expected = new ArrayDeque<Integer>();
+            int next = 0;
+            int flushed = 0;
+            for (int op = 0; op < 500; op++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        for (int n = random.nextInt(300); n > 0; n--) {
+                            queue.enqueue(Integer.valueOf(next));
+                            expected.add(Integer.valueOf(next));
+                            next++;
+                        }
+                        break;
+                    case 1:
+                        queue.flush();
+                        flushed = expected.size();
+                        break;
+                    default:
+                        for (int n = random.nextInt(flushed + 1); n > 0; n--) {
+                            Assert.assertEquals(expected.remove(), queue.dequeue());
+                            flushed--;
+                        }
+                        break;
+                }
+            }
+            queue.flush();
+            while (!expected.isEmpty()) {
+                Assert.assertEquals(expected.remove(), queue.dequeue());
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void unboundedAcrossThreads() throws Throwable {
+        RingBufferQueueTest.transfer(new RingBufferQueue<Integer>(), 200000, 0);
+    }
+
+    @Test(timeout = 30000)
+    public void boundedProducerWaits() throws Throwable {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<Integer>(100, 20, 8);
+        // the reader starts late, so the producer must fill the queue and wait
+        RingBufferQueueTest.transfer(queue, 100000, 100);
+        Assert.assertTrue(queue.getProducerStallCount() > 0);
+    }
+
+    /** Send count elements from another thread and check they all arrive
+     *  in order
+     *  @param readerDelay how long, in ms, to wait before reading
+     */
+    private static void transfer(final RingBufferQueue<Integer> queue, final int count, long readerDelay) throws Throwable {
+        final Throwable[] producerException = new Throwable[1];
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        queue.enqueue(Integer.valueOf(i));
+                    }
+                    queue.flush();
+                }
+                catch (Throwable e) {
+                    producerException[0] = e;
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(readerDelay);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(Integer.valueOf(i), queue.dequeue());
+        }
+        producer.join();
+        if (producerException[0] != null) {
+            throw producerException[0];
+        }
+    }
+}